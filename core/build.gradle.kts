@@ -11,6 +11,7 @@ dependencies {
 
     implementation("org.apache.commons:commons-configuration2")
     implementation("commons-beanutils:commons-beanutils")
+    implementation("org.apache.commons:commons-compress")
 
     api("org.ow2.asm:asm-tree")
     implementation("org.ow2.asm:asm")
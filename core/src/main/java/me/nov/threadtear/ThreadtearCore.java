@@ -1,17 +1,32 @@
 package me.nov.threadtear;
 
+import me.nov.threadtear.analysis.stack.ConstantFrameCache;
+import me.nov.threadtear.execution.ClassLocalExecution;
 import me.nov.threadtear.execution.Clazz;
+import me.nov.threadtear.execution.EvictionPolicy;
 import me.nov.threadtear.execution.Execution;
+import me.nov.threadtear.execution.ExecutionContext;
+import me.nov.threadtear.execution.FusedInstructionPasses;
+import me.nov.threadtear.execution.InstructionPass;
 import me.nov.threadtear.logging.LogWrapper;
+import me.nov.threadtear.security.CallSiteGuard;
 import me.nov.threadtear.security.VMSecurityManager;
+import me.nov.threadtear.util.asm.CallGraph;
+import me.nov.threadtear.util.asm.ClassHierarchy;
+import me.nov.threadtear.vm.DecryptionCache;
+import me.nov.threadtear.vm.InvocationRunner;
+import me.nov.threadtear.vm.VM;
 import org.slf4j.LoggerFactory;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class ThreadtearCore {
@@ -25,19 +40,39 @@ public class ThreadtearCore {
   }
 
   public static void run(List<Clazz> classes, List<Execution> executions, boolean disableSecurity, boolean verbose) {
+    run(classes, executions, disableSecurity, verbose, EvictionPolicy.AFTER_EXECUTION);
+  }
+
+  public static void run(List<Clazz> classes, List<Execution> executions, boolean disableSecurity, boolean verbose,
+                         EvictionPolicy eviction) {
+    run(classes, executions, disableSecurity, verbose, eviction, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param parallelism number of threads {@link ClassLocalExecution}s are run on. Other executions always run on the
+   *                    calling thread.
+   */
+  public static void run(List<Clazz> classes, List<Execution> executions, boolean disableSecurity, boolean verbose,
+                         EvictionPolicy eviction, int parallelism) {
     LogWrapper.logger.info("Threadtear version {}", CoreUtils.getVersion());
     LogWrapper.logger.info("Executing {} tasks on {} classes!", executions.size(), classes.size());
+    CallSiteGuard.setEnabled(!disableSecurity);
     if (!disableSecurity) {
       LogWrapper.logger.info("Initializing security manager if something goes horribly wrong");
-      System.setSecurityManager(new VMSecurityManager());
+      try {
+        System.setSecurityManager(new VMSecurityManager());
+      } catch (UnsupportedOperationException e) {
+        LogWrapper.logger.warning("This JVM does not allow a security manager, only direct calls to dangerous " +
+          "methods will be blocked. Start with -Djava.security.manager=allow to enable it.");
+      }
     } else {
       LogWrapper.logger.warning("Starting without security manager!");
     }
     List<Clazz> ignoredClasses = classes.stream().filter(c -> !c.transform).collect(Collectors.toList());
     LogWrapper.logger.warning("{} classes will be ignored", ignoredClasses.size());
     classes.removeIf(c -> !c.transform);
-    Map<String, Clazz> map = classes.stream().collect(Collectors.toMap(c -> c.node.name, c -> c, (c1, c2) -> {
-      LogWrapper.logger.warning("Warning: Duplicate class definition of {}, one class may not get decrypted", c1.node.name);
+    Map<String, Clazz> map = classes.stream().collect(Collectors.toMap(c -> c.getName(), c -> c, (c1, c2) -> {
+      LogWrapper.logger.warning("Warning: Duplicate class definition of {}, one class may not get decrypted", c1.getName());
       return c1;
     }));
     LogWrapper.logger.info("If an execution doesn't work properly on your file, please open an issue: https://github" +
@@ -52,22 +87,139 @@ public class ThreadtearCore {
       } catch (InterruptedException e1) {
       }
     }
-    executions.forEach(e -> {
-      long ms = System.currentTimeMillis();
-      LogWrapper.logger.info("Executing " + e.getClass().getName());
-      boolean success = e.execute(map, verbose);
-      LogWrapper.logger.collectErrors(null);
-      LogWrapper.logger.errorIf("Finish with {}. Took {} ms.", !success, success ? "success" : "failure",
-        (System.currentTimeMillis() - ms));
-    });
-    classes.addAll(ignoredClasses); // re-add ignored
-    // classes to export them
+    ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    AtomicBoolean cancelled = new AtomicBoolean();
+    // shared by all executions, both are only built when needed
+    ClassHierarchy hierarchy = new ClassHierarchy(map);
+    CallGraph callGraph = new CallGraph(map, hierarchy);
+    long savedTraversals = 0;
+    // a previous run may have been aborted before it could clean up
+    clearCaches();
+    resetCounters();
+    try {
+      for (int i = 0; i < executions.size(); ) {
+        Execution e = executions.get(i);
+        if (cancelled.get()) {
+          LogWrapper.logger.warning("Run was cancelled, skipping {}", e.getClass().getName());
+          i++;
+          continue;
+        }
+        long ms = System.currentTimeMillis();
+        List<InstructionPass> passes = FusedInstructionPasses.collect(executions, i);
+        if (passes.size() > 1) {
+          savedTraversals += runFused(passes, map, verbose, cancelled, hierarchy, callGraph, pool);
+          i += passes.size();
+        } else {
+          LogWrapper.logger.info("Executing " + e.getClass().getName());
+          ExecutionContext context = new ExecutionContext(map, verbose, cancelled, hierarchy, callGraph);
+          boolean success;
+          if (e instanceof ClassLocalExecution) {
+            success = ((ClassLocalExecution) e).execute(context, pool);
+          } else {
+            success = e.execute(context);
+          }
+          LogWrapper.logger.collectErrors(null);
+          LogWrapper.logger.errorIf("Finish with {}. Took {} ms.", !success, success ? "success" : "failure",
+            (System.currentTimeMillis() - ms));
+          i++;
+        }
+        if (eviction == EvictionPolicy.AFTER_EXECUTION) {
+          evictUnmodified(classes);
+        }
+      }
+      if (savedTraversals > 0) {
+        LogWrapper.logger.info("Fusing instruction passes saved {} method traversals", savedTraversals);
+      }
+      logStatistics();
+      if (eviction == EvictionPolicy.AFTER_RUN) {
+        evictUnmodified(classes);
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      clearCaches();
+      classes.addAll(ignoredClasses); // re-add ignored
+      // classes to export them
+      System.setSecurityManager(null);
+    }
     try {
       Thread.sleep(500);
     } catch (InterruptedException e1) {
     }
     LogWrapper.logger.info("Successful completion!");
-    System.setSecurityManager(null);
+  }
+
+  private static void clearCaches() {
+    ConstantFrameCache.clear();
+    VM.clearConversionCache();
+    DecryptionCache.clear();
+  }
+
+  private static void resetCounters() {
+    ConstantFrameCache.resetCounters();
+    VM.resetCounters();
+    DecryptionCache.resetCounters();
+    CallSiteGuard.resetCounters();
+    InvocationRunner.resetCounters();
+  }
+
+  private static void logStatistics() {
+    if (ConstantFrameCache.getHits() + ConstantFrameCache.getMisses() > 0) {
+      LogWrapper.logger.info("Constant frame cache: {} hits, {} misses", ConstantFrameCache.getHits(),
+        ConstantFrameCache.getMisses());
+    }
+    if (VM.getConstructedCount() > 0) {
+      LogWrapper.logger.info("Constructed {} VMs, {} classes were defined", VM.getConstructedCount(),
+        VM.getDefinedClassCount());
+      LogWrapper.logger.info("VM conversion cache: {} hits, {} misses, {} lookups of unresolved classes skipped",
+        VM.getConversionHits(), VM.getConversionMisses(), VM.getSkippedLookups());
+    }
+    long lookups = DecryptionCache.getHits() + DecryptionCache.getMisses();
+    if (lookups > 0) {
+      LogWrapper.logger.info("Decryption cache: {} hits, {} misses ({}% hit rate), {} evictions",
+        DecryptionCache.getHits(), DecryptionCache.getMisses(), Math.round(DecryptionCache.getHits() * 100f / lookups),
+        DecryptionCache.getEvictions());
+    }
+    if (CallSiteGuard.getRewrittenCount() > 0) {
+      LogWrapper.logger.warning("Blocked {} calls to dangerous methods in dynamic classes",
+        CallSiteGuard.getRewrittenCount());
+    }
+    if (InvocationRunner.getTimeoutCount() > 0) {
+      LogWrapper.logger.warning("{} invocations timed out, {} of their threads could not be stopped",
+        InvocationRunner.getTimeoutCount(), InvocationRunner.getAbandonedCount());
+      InvocationRunner.getTimeouts().forEach((name, count) -> LogWrapper.logger.warning("  {}: {}", name, count));
+    }
+  }
+
+  /**
+   * @return the number of method traversals saved by fusing the passes
+   */
+  private static long runFused(List<InstructionPass> passes, Map<String, Clazz> map, boolean verbose,
+                               AtomicBoolean cancelled, ClassHierarchy hierarchy, CallGraph callGraph,
+                               ForkJoinPool pool) {
+    long ms = System.currentTimeMillis();
+    LogWrapper.logger.info("Executing {} in a single pass",
+      passes.stream().map(p -> p.getClass().getName()).collect(Collectors.joining(", ")));
+    List<ExecutionContext> contexts = new ArrayList<>();
+    passes.forEach(p -> contexts.add(new ExecutionContext(map, verbose, cancelled, hierarchy, callGraph)));
+    FusedInstructionPasses fused = new FusedInstructionPasses(passes, contexts);
+    boolean[] results = fused.execute(pool);
+    LogWrapper.logger.collectErrors(null);
+    boolean success = results != null;
+    for (int i = 0; success && i < results.length; i++) {
+      success = results[i];
+    }
+    LogWrapper.logger.errorIf("Finish with {}. Took {} ms.", !success, success ? "success" : "failure",
+      (System.currentTimeMillis() - ms));
+    return fused.getSavedTraversals();
+  }
+
+  private static void evictUnmodified(List<Clazz> classes) {
+    long evicted = classes.stream().filter(Clazz::evict).count();
+    if (evicted > 0) {
+      LogWrapper.logger.info("Evicted {} unmodified class nodes", evicted);
+    }
   }
 
   // TODO: make a CLI
@@ -3,9 +3,21 @@ package me.nov.threadtear.analysis;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.analysis.*;
 
+import me.nov.threadtear.util.asm.ClassHierarchy;
+
 public class SuperInterpreter extends BasicInterpreter {
+  private final ClassHierarchy hierarchy;
+
   public SuperInterpreter() {
+    this(null);
+  }
+
+  /**
+   * @param hierarchy if not null, merged object types are their common super class instead of java/lang/Object
+   */
+  public SuperInterpreter(ClassHierarchy hierarchy) {
     super(ASM8);
+    this.hierarchy = hierarchy;
   }
 
   @Override
@@ -18,10 +30,19 @@ public class SuperInterpreter extends BasicInterpreter {
   public BasicValue merge(BasicValue a, BasicValue b) {
     if (a.equals(b))
       return a;
-    if (a.isReference() && b.isReference())
-      // this is the place to consider the actual type
-      // hierarchy if you want
+    if (a.isReference() && b.isReference()) {
+      if (hierarchy != null && a.getType().getSort() == Type.OBJECT && b.getType().getSort() == Type.OBJECT) {
+        String common;
+        try {
+          common = hierarchy.getCommonSuperClass(a.getType().getInternalName(), b.getType().getInternalName());
+        } catch (TypeNotPresentException e) {
+          return BasicValue.REFERENCE_VALUE;
+        }
+        return common.equals("java/lang/Object") ? BasicValue.REFERENCE_VALUE :
+                new BasicValue(Type.getObjectType(common));
+      }
       return BasicValue.REFERENCE_VALUE;
+    }
     return BasicValue.UNINITIALIZED_VALUE;
   }
 }
@@ -12,7 +12,9 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * A basic IConstantReferenceHandler that handles simple calls like Integer.parseInt or Float.valueOf
+ * A basic IConstantReferenceHandler that handles simple calls like Integer.parseInt or Float.valueOf. Frames computed
+ * with basic handlers are shared, see {@link ConstantFrameCache}. Subclasses only share them if they override
+ * {@link #getCaching()}.
  */
 public class BasicReferenceHandler implements IConstantReferenceHandler {
 
@@ -66,4 +68,9 @@ public class BasicReferenceHandler implements IConstantReferenceHandler {
     }
     return params;
   }
+
+  @Override
+  public Caching getCaching() {
+    return getClass() == BasicReferenceHandler.class ? Caching.SHARED : Caching.INSTANCE;
+  }
 }
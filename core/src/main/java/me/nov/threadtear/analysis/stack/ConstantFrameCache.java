@@ -0,0 +1,139 @@
+package me.nov.threadtear.analysis.stack;
+
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import me.nov.threadtear.analysis.stack.IConstantReferenceHandler.Caching;
+import me.nov.threadtear.util.asm.ModificationStamp;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Caches the constant frames of methods, so a method that was not changed is not analyzed again by every execution.
+ * Frames are cached per method and reference handler instance, unless the handler shares them with its class or
+ * doesn't allow caching, see {@link IConstantReferenceHandler#getCaching()}.
+ * <p>
+ * Each entry remembers the {@link ModificationStamp} of the method and of its class, together with the instructions
+ * and try catch blocks of the method. If the method was changed or the class was marked as modified since the
+ * analysis, the method is analyzed again. Frames are kept softly and dropped when memory runs low.
+ */
+public final class ConstantFrameCache {
+  /**
+   * entries by method and by handler, or by handler class for shared frames. Handlers are compared by identity.
+   */
+  private static final Map<MethodNode, Map<Object, Entry>> entries = new WeakHashMap<>();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+  private ConstantFrameCache() {
+  }
+
+  /**
+   * @return the cached frames, or null if the method was not analyzed with this handler or changed since. The
+   * returned frames are shared and must not be modified.
+   */
+  public static Frame<ConstantValue>[] get(ClassNode c, MethodNode m, IConstantReferenceHandler handler) {
+    Object key = key(handler);
+    if (key == null) {
+      return null;
+    }
+    Entry entry;
+    synchronized (entries) {
+      Map<Object, Entry> handlers = entries.get(m);
+      entry = handlers == null ? null : handlers.get(key);
+    }
+    Frame<ConstantValue>[] frames = entry == null ? null : entry.frames.get();
+    if (frames == null || !entry.matches(c, m)) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return frames;
+  }
+
+  /**
+   * @param c the class of the method, only its stamp is remembered
+   */
+  public static void put(ClassNode c, MethodNode m, IConstantReferenceHandler handler, Frame<ConstantValue>[] frames) {
+    Object key = key(handler);
+    if (key == null) {
+      return;
+    }
+    Entry entry = new Entry(c, m, frames);
+    synchronized (entries) {
+      entries.computeIfAbsent(m, k -> new IdentityHashMap<>()).put(key, entry);
+    }
+  }
+
+  private static Object key(IConstantReferenceHandler handler) {
+    Caching caching = handler.getCaching();
+    return caching == Caching.NONE ? null : caching == Caching.SHARED ? handler.getClass() : handler;
+  }
+
+  public static void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public static long getHits() {
+    return hits.sum();
+  }
+
+  public static long getMisses() {
+    return misses.sum();
+  }
+
+  public static void resetCounters() {
+    hits.reset();
+    misses.reset();
+  }
+
+  private static final class Entry {
+    final long classStamp;
+    final long methodStamp;
+    final InsnList instructions;
+    final AbstractInsnNode[] stamp;
+    final TryCatchBlockNode[] tryCatchBlocks;
+    final int maxLocals;
+    final SoftReference<Frame<ConstantValue>[]> frames;
+
+    Entry(ClassNode c, MethodNode m, Frame<ConstantValue>[] frames) {
+      this.classStamp = ModificationStamp.ofClass(c);
+      this.methodStamp = ModificationStamp.of(m);
+      this.instructions = m.instructions;
+      this.stamp = m.instructions.toArray();
+      this.tryCatchBlocks = m.tryCatchBlocks == null ? null : m.tryCatchBlocks.toArray(new TryCatchBlockNode[0]);
+      this.maxLocals = m.maxLocals;
+      this.frames = new SoftReference<>(frames);
+    }
+
+    boolean matches(ClassNode c, MethodNode m) {
+      if (ModificationStamp.ofClass(c) != classStamp || ModificationStamp.of(m) != methodStamp) {
+        return false;
+      }
+      if (m.instructions != instructions || m.instructions.size() != stamp.length || m.maxLocals != maxLocals) {
+        return false;
+      }
+      int i = 0;
+      for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+        if (ain != stamp[i++]) {
+          return false;
+        }
+      }
+      if (m.tryCatchBlocks == null || tryCatchBlocks == null) {
+        return m.tryCatchBlocks == null && tryCatchBlocks == null;
+      }
+      if (m.tryCatchBlocks.size() != tryCatchBlocks.length) {
+        return false;
+      }
+      for (int j = 0; j < tryCatchBlocks.length; j++) {
+        if (m.tryCatchBlocks.get(j) != tryCatchBlocks[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
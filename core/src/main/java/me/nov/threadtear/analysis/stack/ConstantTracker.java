@@ -16,7 +16,7 @@ import me.nov.threadtear.util.reflection.Casts;
  * .com/users/2711488/holger (Modified version)
  */
 public class ConstantTracker extends Interpreter<ConstantValue> implements Opcodes {
-  public static final ConstantValue NULL = new ConstantValue(BasicValue.REFERENCE_VALUE, null);
+  public static final ConstantValue NULL = new ConstantValue(BasicValue.REFERENCE_VALUE);
 
   SuperInterpreter basic = new SuperInterpreter();
 
@@ -70,29 +70,29 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
       case ICONST_3:
       case ICONST_4:
       case ICONST_5:
-        return new ConstantValue(BasicValue.INT_VALUE, insn.getOpcode() - ICONST_0);
+        return ConstantValue.ofInt(insn.getOpcode() - ICONST_0);
       case LCONST_0:
       case LCONST_1:
-        return new ConstantValue(BasicValue.LONG_VALUE, (long) (insn.getOpcode() - LCONST_0));
+        return ConstantValue.ofLong(insn.getOpcode() - LCONST_0);
       case FCONST_0:
       case FCONST_1:
       case FCONST_2:
-        return new ConstantValue(BasicValue.FLOAT_VALUE, (float) (insn.getOpcode() - FCONST_0));
+        return ConstantValue.ofFloat(insn.getOpcode() - FCONST_0);
       case DCONST_0:
       case DCONST_1:
-        return new ConstantValue(BasicValue.DOUBLE_VALUE, (double) (insn.getOpcode() - DCONST_0));
+        return ConstantValue.ofDouble(insn.getOpcode() - DCONST_0);
       case BIPUSH:
       case SIPUSH:
-        return new ConstantValue(BasicValue.INT_VALUE, ((IntInsnNode) insn).operand);
+        return ConstantValue.ofInt(((IntInsnNode) insn).operand);
       case LDC:
-        return new ConstantValue(v, ((LdcInsnNode) insn).cst);
+        return ConstantValue.of(v, ((LdcInsnNode) insn).cst);
       case GETSTATIC:
         FieldInsnNode fin = (FieldInsnNode) insn;
 
         Object o = referenceHandler.getFieldValueOrNull(v, fin.owner, fin.name, fin.desc);
-        return new ConstantValue(v, o);
+        return ConstantValue.of(v, o);
       default:
-        return v == null ? null : new ConstantValue(v, null);
+        return v == null ? null : ConstantValue.unknown(v);
     }
   }
 
@@ -107,9 +107,9 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
         case DLOAD:
         case FLOAD:
           int var = ((VarInsnNode) insn).var;
-          if (var < args.length) {
-            Object val = args[var];
-            value.setValue(val);
+          if (var < args.length && args[var] != null) {
+            // values are shared between frames, never modify them
+            return ConstantValue.of(value.getType(), args[var]);
           }
           break;
         default:
@@ -122,7 +122,7 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
   @Override
   public ConstantValue newValue(Type type) {
     BasicValue v = basic.newValue(type);
-    return v == null ? null : new ConstantValue(v, null);
+    return v == null ? null : ConstantValue.unknown(v);
   }
 
   @Override
@@ -131,80 +131,80 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
     switch (insn.getOpcode()) {
       case GETFIELD:
         FieldInsnNode fin = (FieldInsnNode) insn;
-        return new ConstantValue(v, referenceHandler.getFieldValueOrNull(v, fin.owner, fin.name, fin.desc));
+        return ConstantValue.of(v, referenceHandler.getFieldValueOrNull(v, fin.owner, fin.name, fin.desc));
       case NEWARRAY:
         Integer size = value.getAsInteger();
         if (size != null) {
           switch (((IntInsnNode) insn).operand) {
             case T_BOOLEAN:
-              return new ConstantValue(v, new boolean[size]);
+              return ConstantValue.of(v, new boolean[size]);
             case T_CHAR:
-              return new ConstantValue(v, new char[size]);
+              return ConstantValue.of(v, new char[size]);
             case T_BYTE:
-              return new ConstantValue(v, new byte[size]);
+              return ConstantValue.of(v, new byte[size]);
             case T_SHORT:
-              return new ConstantValue(v, new short[size]);
+              return ConstantValue.of(v, new short[size]);
             case T_INT:
-              return new ConstantValue(v, new int[size]);
+              return ConstantValue.of(v, new int[size]);
             case T_FLOAT:
-              return new ConstantValue(v, new float[size]);
+              return ConstantValue.of(v, new float[size]);
             case T_DOUBLE:
-              return new ConstantValue(v, new double[size]);
+              return ConstantValue.of(v, new double[size]);
             case T_LONG:
-              return new ConstantValue(v, new long[size]);
+              return ConstantValue.of(v, new long[size]);
           }
         }
       case ARRAYLENGTH:
-        if (value.value != null) {
-          Class<?> clz = value.value.getClass();
+        Object array = value.getValue();
+        if (array != null) {
+          Class<?> clz = array.getClass();
           if (clz.isArray() && clz.getComponentType().isPrimitive()) {
-            return new ConstantValue(v, Array.getLength(value.value));
+            return ConstantValue.ofInt(Array.getLength(array));
           }
         }
       default:
-        return v == null ? null : new ConstantValue(v, getUnaryValue(insn.getOpcode(), value.value));
+        return v == null ? null : getUnaryValue(insn.getOpcode(), value, v);
     }
   }
 
-  private Object getUnaryValue(int opcode, Object value) {
-    if (!(value instanceof Number))
-      return null;
-    Number numVal = (Number) value;
+  private ConstantValue getUnaryValue(int opcode, ConstantValue value, BasicValue v) {
+    if (!value.isKnownNumber())
+      return ConstantValue.unknown(v);
     switch (opcode) {
       case INEG:
-        return -((int) value);
+        return ConstantValue.ofInt(-value.intValue());
       case FNEG:
-        return -((float) value);
+        return ConstantValue.ofFloat(-value.floatValue());
       case LNEG:
-        return -((long) value);
+        return ConstantValue.ofLong(-value.longValue());
       case DNEG:
-        return -((double) value);
+        return ConstantValue.ofDouble(-value.doubleValue());
       case L2I:
       case F2I:
       case D2I:
-        return numVal.intValue();
+        return ConstantValue.ofInt(value.intValue());
       case I2B:
-        return numVal.byteValue();
+        return ConstantValue.ofInt((byte) value.intValue());
       case I2C:
-        return numVal.intValue() & 0x0000FFFF;
+        return ConstantValue.ofInt(value.intValue() & 0x0000FFFF);
       case I2S:
-        return numVal.shortValue();
+        return ConstantValue.ofInt((short) value.intValue());
       case I2F:
       case L2F:
       case D2F:
-        return numVal.floatValue();
+        return ConstantValue.ofFloat(value.floatValue());
       case I2L:
       case F2L:
       case D2L:
-        return numVal.longValue();
+        return ConstantValue.ofLong(value.longValue());
       case I2D:
       case L2D:
       case F2D:
-        return numVal.doubleValue();
+        return ConstantValue.ofDouble(value.doubleValue());
       case CHECKCAST:
-        return value;
+        return value.withType(v);
       default:
-        return null;
+        return ConstantValue.unknown(v);
     }
   }
 
@@ -222,128 +222,124 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
       case LALOAD:
       case AALOAD:
         if (a.isKnown() && b.isKnown() && b.isInteger()) {
-          int index = b.getAsInteger();
+          Object array = a.getValue();
+          int index = b.intValue();
           // we do not want an OOB exception here, just
           // keep it unknown
-          if (index >= 0 && index < Array.getLength(a.value)) {
+          if (index >= 0 && index < Array.getLength(array)) {
             if (insn.getOpcode() == AALOAD)
-              return new ConstantValue(v, Array.get(a.value, index));
+              return ConstantValue.of(v, Array.get(array, index));
             else
-              return new ConstantValue(v, Casts.toNumber(Array.get(a.value, index)));
+              return ConstantValue.of(v, Casts.toNumber(Array.get(array, index)));
           }
         }
-        return new ConstantValue(v, null);
+        return ConstantValue.unknown(v);
       default:
-        return v == null ? null : new ConstantValue(v, getBinaryValue(insn.getOpcode(), a.value, b.value));
+        return v == null ? null : getBinaryValue(insn.getOpcode(), a, b, v);
     }
   }
 
-  private Object getBinaryValue(int opcode, Object a, Object b) {
-    if (a == null || b == null) {
-      return null;
-    }
-    if (!(a instanceof Number) || !(b instanceof Number)) {
-      return null;
+  private ConstantValue getBinaryValue(int opcode, ConstantValue a, ConstantValue b, BasicValue v) {
+    if (!a.isKnownNumber() || !b.isKnownNumber()) {
+      return ConstantValue.unknown(v);
     }
     // array load instructions not handled
-    Number num1 = (Number) a;
-    Number num2 = (Number) b;
     switch (opcode) {
       case IADD:
-        return num1.intValue() + num2.intValue();
+        return ConstantValue.ofInt(a.intValue() + b.intValue());
       case ISUB:
-        return num1.intValue() - num2.intValue();
+        return ConstantValue.ofInt(a.intValue() - b.intValue());
       case IMUL:
-        return num1.intValue() * num2.intValue();
+        return ConstantValue.ofInt(a.intValue() * b.intValue());
       case IDIV:
-        if (num2.intValue() == 0) {
+        if (b.intValue() == 0) {
           // we do not want arithmetic exceptions
-          return null;
+          return ConstantValue.unknown(v);
         }
-        return num1.intValue() / num2.intValue();
+        return ConstantValue.ofInt(a.intValue() / b.intValue());
       case IREM:
-        if (num2.intValue() == 0) {
+        if (b.intValue() == 0) {
           // we do not want arithmetic exceptions
-          return null;
+          return ConstantValue.unknown(v);
         }
-        return num1.intValue() % num2.intValue();
+        return ConstantValue.ofInt(a.intValue() % b.intValue());
       case ISHL:
-        return num1.intValue() << num2.intValue();
+        return ConstantValue.ofInt(a.intValue() << b.intValue());
       case ISHR:
-        return num1.intValue() >> num2.intValue();
+        return ConstantValue.ofInt(a.intValue() >> b.intValue());
       case IUSHR:
-        return num1.intValue() >>> num2.intValue();
+        return ConstantValue.ofInt(a.intValue() >>> b.intValue());
       case IAND:
-        return num1.intValue() & num2.intValue();
+        return ConstantValue.ofInt(a.intValue() & b.intValue());
       case IOR:
-        return num1.intValue() | num2.intValue();
+        return ConstantValue.ofInt(a.intValue() | b.intValue());
       case IXOR:
-        return num1.intValue() ^ num2.intValue();
+        return ConstantValue.ofInt(a.intValue() ^ b.intValue());
       case FADD:
-        return num1.floatValue() + num2.floatValue();
+        return ConstantValue.ofFloat(a.floatValue() + b.floatValue());
       case FSUB:
-        return num1.floatValue() - num2.floatValue();
+        return ConstantValue.ofFloat(a.floatValue() - b.floatValue());
       case FMUL:
-        return num1.floatValue() * num2.floatValue();
+        return ConstantValue.ofFloat(a.floatValue() * b.floatValue());
       case FDIV:
-        return num1.floatValue() / num2.floatValue();
+        return ConstantValue.ofFloat(a.floatValue() / b.floatValue());
       case FREM:
-        return num1.floatValue() % num2.floatValue();
+        return ConstantValue.ofFloat(a.floatValue() % b.floatValue());
       case LADD:
-        return num1.longValue() + num2.longValue();
+        return ConstantValue.ofLong(a.longValue() + b.longValue());
       case LSUB:
-        return num1.longValue() - num2.longValue();
+        return ConstantValue.ofLong(a.longValue() - b.longValue());
       case LMUL:
-        return num1.longValue() * num2.longValue();
+        return ConstantValue.ofLong(a.longValue() * b.longValue());
       case LDIV:
-        if (num2.intValue() == 0) {
+        if (b.intValue() == 0) {
           // we do not want arithmetic exceptions
-          return null;
+          return ConstantValue.unknown(v);
         }
-        return num1.longValue() / num2.longValue();
+        return ConstantValue.ofLong(a.longValue() / b.longValue());
       case LREM:
-        if (num2.intValue() == 0) {
+        if (b.intValue() == 0) {
           // we do not want arithmetic exceptions
-          return null;
+          return ConstantValue.unknown(v);
         }
-        return num1.longValue() % num2.longValue();
+        return ConstantValue.ofLong(a.longValue() % b.longValue());
       case LSHL:
-        return num1.longValue() << num2.intValue();
+        return ConstantValue.ofLong(a.longValue() << b.intValue());
       case LSHR:
-        return num1.longValue() >> num2.intValue();
+        return ConstantValue.ofLong(a.longValue() >> b.intValue());
       case LUSHR:
-        return num1.longValue() >>> num2.intValue();
+        return ConstantValue.ofLong(a.longValue() >>> b.intValue());
       case LAND:
-        return num1.longValue() & num2.longValue();
+        return ConstantValue.ofLong(a.longValue() & b.longValue());
       case LOR:
-        return num1.longValue() | num2.longValue();
+        return ConstantValue.ofLong(a.longValue() | b.longValue());
       case LXOR:
-        return num1.longValue() ^ num2.longValue();
+        return ConstantValue.ofLong(a.longValue() ^ b.longValue());
       case DADD:
-        return num1.doubleValue() + num2.doubleValue();
+        return ConstantValue.ofDouble(a.doubleValue() + b.doubleValue());
       case DSUB:
-        return num1.doubleValue() - num2.doubleValue();
+        return ConstantValue.ofDouble(a.doubleValue() - b.doubleValue());
       case DMUL:
-        return num1.doubleValue() * num2.doubleValue();
+        return ConstantValue.ofDouble(a.doubleValue() * b.doubleValue());
       case DDIV:
-        return num1.doubleValue() / num2.doubleValue();
+        return ConstantValue.ofDouble(a.doubleValue() / b.doubleValue());
       case DREM:
-        return num1.doubleValue() % num2.doubleValue();
+        return ConstantValue.ofDouble(a.doubleValue() % b.doubleValue());
 
       // compare instructions not tested, could return
       // wrong result
       case LCMP:
-        return Long.compare(num1.longValue(), num2.longValue());
+        return ConstantValue.ofInt(Long.compare(a.longValue(), b.longValue()));
       case FCMPL:
       case FCMPG:
         // no NaN handling, could affect results
-        return Float.compare(num1.longValue(), num2.longValue());
+        return ConstantValue.ofInt(Float.compare(a.longValue(), b.longValue()));
       case DCMPL:
       case DCMPG:
         // no NaN handling, could affect results
-        return Double.compare(num1.longValue(), num2.longValue());
+        return ConstantValue.ofInt(Double.compare(a.longValue(), b.longValue()));
       default:
-        return null;
+        return ConstantValue.unknown(v);
     }
   }
 
@@ -352,9 +348,8 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
     // basic analyzer returns null, so no need for basic
     // .ternaryOperation here
     // only array store instructions here
-    if (a.isKnown() && b.isKnown() && c.isKnown() && c.value instanceof Number) {
-      Object array = a.value;
-      Number value = (Number) c.value;
+    if (a.isKnown() && b.isKnown() && c.isKnownNumber()) {
+      Object array = a.getValue();
       int index = b.getAsInteger();
       if(index < 0 || index >= Array.getLength(array)) {
         // avoid OOB exceptions
@@ -363,28 +358,28 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
       switch (insn.getOpcode()) {
         case BASTORE:
           if (array instanceof byte[]) {
-            ((byte[]) array)[index] = value.byteValue();
+            ((byte[]) array)[index] = (byte) c.intValue();
           } else {
-            ((boolean[]) array)[index] = value.intValue() != 0;
+            ((boolean[]) array)[index] = c.intValue() != 0;
           }
           break;
         case CASTORE:
-          ((char[]) array)[index] = (char) value.intValue();
+          ((char[]) array)[index] = (char) c.intValue();
           break;
         case SASTORE:
-          ((short[]) array)[index] = value.shortValue();
+          ((short[]) array)[index] = (short) c.intValue();
           break;
         case IASTORE:
-          ((int[]) array)[index] = value.intValue();
+          ((int[]) array)[index] = c.intValue();
           break;
         case FASTORE:
-          ((float[]) array)[index] = value.floatValue();
+          ((float[]) array)[index] = c.floatValue();
           break;
         case DASTORE:
-          ((double[]) array)[index] = value.doubleValue();
+          ((double[]) array)[index] = c.doubleValue();
           break;
         case LASTORE:
-          ((long[]) array)[index] = value.longValue();
+          ((long[]) array)[index] = c.longValue();
           break;
         default:
           return null;
@@ -405,11 +400,11 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
       case INVOKEINTERFACE:
         MethodInsnNode min = (MethodInsnNode) insn;
         return v == null ? null :
-                new ConstantValue(v, referenceHandler.getMethodReturnOrNull(v, min.owner, min.name, min.desc, values));
+                ConstantValue.of(v, referenceHandler.getMethodReturnOrNull(v, min.owner, min.name, min.desc, values));
 
       // TODO how to handle invokedynamic here?
       default:
-        return v == null ? null : new ConstantValue(v, null);
+        return v == null ? null : ConstantValue.unknown(v);
     }
   }
 
@@ -423,7 +418,7 @@ public class ConstantTracker extends Interpreter<ConstantValue> implements Opcod
       return a;
     BasicValue t = basic.merge(a.getType(), b.getType());
 
-    return new ConstantValue(t, a.value);
+    return a == NULL ? ConstantValue.unknown(t) : a.withType(t);
     //		return t.equals(a.getType()) && (a.value == null && a != NULL || a.value != null && a.value.equals(b
     //		.value)) ? a : t.equals(b.getType()) && b.value == null && b != NULL ? b : new ConstantValue(t, null);
   }
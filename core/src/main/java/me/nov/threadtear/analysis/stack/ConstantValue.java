@@ -6,18 +6,121 @@ import me.nov.threadtear.util.reflection.Casts;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.analysis.*;
 
+/**
+ * A value with its type and, if known, its constant value. Values are immutable. Primitive numbers are kept unboxed,
+ * they are only boxed when {@link #getValue()} is called. Unknown values of the basic types are shared instances.
+ */
 public class ConstantValue implements Value {
+  private static final byte UNKNOWN = 0;
+  private static final byte OBJECT = 1;
+  private static final byte INT = 2;
+  private static final byte LONG = 3;
+  private static final byte FLOAT = 4;
+  private static final byte DOUBLE = 5;
+
+  private static final ConstantValue UNKNOWN_UNINITIALIZED = new ConstantValue(BasicValue.UNINITIALIZED_VALUE);
+  private static final ConstantValue UNKNOWN_INT = new ConstantValue(BasicValue.INT_VALUE);
+  private static final ConstantValue UNKNOWN_FLOAT = new ConstantValue(BasicValue.FLOAT_VALUE);
+  private static final ConstantValue UNKNOWN_LONG = new ConstantValue(BasicValue.LONG_VALUE);
+  private static final ConstantValue UNKNOWN_DOUBLE = new ConstantValue(BasicValue.DOUBLE_VALUE);
+  private static final ConstantValue UNKNOWN_REFERENCE = new ConstantValue(BasicValue.REFERENCE_VALUE);
+  private static final ConstantValue UNKNOWN_RETURN_ADDRESS = new ConstantValue(BasicValue.RETURNADDRESS_VALUE);
+
   private final BasicValue type;
-  Object value;
+  private final byte kind;
+  /**
+   * int, long, float (int bits) or double (long bits) value
+   */
+  private final long bits;
+  private final Object value;
 
-  ConstantValue(BasicValue type, Object value) {
+  private ConstantValue(BasicValue type, byte kind, long bits, Object value) {
     this.type = Objects.requireNonNull(type);
-    if (type == BasicValue.INT_VALUE && !(value instanceof Integer)) {
+    this.kind = kind;
+    this.bits = bits;
+    this.value = value;
+  }
+
+  /**
+   * Creates a new unknown value. Use {@link #unknown(BasicValue)} to get the shared instance instead.
+   */
+  ConstantValue(BasicValue type) {
+    this(type, UNKNOWN, 0, null);
+  }
+
+  public static ConstantValue ofInt(int value) {
+    return new ConstantValue(BasicValue.INT_VALUE, INT, value, null);
+  }
+
+  public static ConstantValue ofLong(long value) {
+    return new ConstantValue(BasicValue.LONG_VALUE, LONG, value, null);
+  }
+
+  public static ConstantValue ofFloat(float value) {
+    return new ConstantValue(BasicValue.FLOAT_VALUE, FLOAT, Float.floatToIntBits(value), null);
+  }
+
+  public static ConstantValue ofDouble(double value) {
+    return new ConstantValue(BasicValue.DOUBLE_VALUE, DOUBLE, Double.doubleToLongBits(value), null);
+  }
+
+  /**
+   * @return a shared unknown value for the basic types, a new one for other types
+   */
+  public static ConstantValue unknown(BasicValue type) {
+    if (type == BasicValue.INT_VALUE)
+      return UNKNOWN_INT;
+    if (type == BasicValue.REFERENCE_VALUE)
+      return UNKNOWN_REFERENCE;
+    if (type == BasicValue.LONG_VALUE)
+      return UNKNOWN_LONG;
+    if (type == BasicValue.FLOAT_VALUE)
+      return UNKNOWN_FLOAT;
+    if (type == BasicValue.DOUBLE_VALUE)
+      return UNKNOWN_DOUBLE;
+    if (type == BasicValue.UNINITIALIZED_VALUE)
+      return UNKNOWN_UNINITIALIZED;
+    if (type == BasicValue.RETURNADDRESS_VALUE)
+      return UNKNOWN_RETURN_ADDRESS;
+    return new ConstantValue(type);
+  }
+
+  /**
+   * @param value the value, or null if unknown. Values of primitive types are converted to match the type.
+   */
+  public static ConstantValue of(BasicValue type, Object value) {
+    if (value == null) {
+      return unknown(type);
+    }
+    if (type == BasicValue.INT_VALUE) {
       // make sure we don't get problems with BasicReferenceHandler returns.
       // All non-decimal numbers smaller than Integer including Character should held as Integer.
-      value = Casts.castWithPrimitives(int.class, value);
+      if (value instanceof Integer) {
+        return ofInt((Integer) value);
+      }
+      return ofInt((Integer) Casts.castWithPrimitives(int.class, value));
     }
-    this.value = value;
+    Object number = Casts.toNumber(value);
+    if (number instanceof Number) {
+      if (type == BasicValue.LONG_VALUE) {
+        return ofLong(((Number) number).longValue());
+      } else if (type == BasicValue.FLOAT_VALUE) {
+        return ofFloat(((Number) number).floatValue());
+      } else if (type == BasicValue.DOUBLE_VALUE) {
+        return ofDouble(((Number) number).doubleValue());
+      }
+    }
+    return new ConstantValue(type, OBJECT, 0, value);
+  }
+
+  /**
+   * @return the same value with another type
+   */
+  public ConstantValue withType(BasicValue type) {
+    if (type.equals(this.type)) {
+      return this;
+    }
+    return kind == UNKNOWN ? unknown(type) : new ConstantValue(type, kind, bits, value);
   }
 
   @Override
@@ -32,14 +135,25 @@ public class ConstantValue implements Value {
       return "uninitialized";
     String typeName = getType() == BasicValue.REFERENCE_VALUE ? "a reference type" : t.getClassName();
     return this == ConstantTracker.NULL ? "null" :
-      value == null ? "unknown value of " + typeName : value + " (" + typeName + ")";
+      !isKnown() ? "unknown value of " + typeName : getValue() + " (" + typeName + ")";
   }
 
   /**
    * @return Associated value, Integer object for Integer, Short, Byte, Character or Boolean.
    */
   public Object getValue() {
-    return value;
+    switch (kind) {
+      case INT:
+        return (int) bits;
+      case LONG:
+        return bits;
+      case FLOAT:
+        return Float.intBitsToFloat((int) bits);
+      case DOUBLE:
+        return Double.longBitsToDouble(bits);
+      default:
+        return value;
+    }
   }
 
   @Override
@@ -49,18 +163,31 @@ public class ConstantValue implements Value {
     if (this == ConstantTracker.NULL || obj == ConstantTracker.NULL || !(obj instanceof ConstantValue))
       return false;
     ConstantValue that = (ConstantValue) obj;
-    return Objects.equals(this.value, that.value) && Objects.equals(this.getType(), that.getType());
+    return kind == that.kind && bits == that.bits && Objects.equals(this.value, that.value) &&
+      Objects.equals(this.getType(), that.getType());
   }
 
   @Override
   public int hashCode() {
     if (this == ConstantTracker.NULL)
       return ~0;
-    return (value == null ? 7 : value.hashCode()) + getType().hashCode() * 31;
-  }
-
-  public void setValue(Object value) {
-    this.value = value;
+    int valueHash;
+    switch (kind) {
+      case INT:
+      case FLOAT:
+        valueHash = (int) bits;
+        break;
+      case LONG:
+      case DOUBLE:
+        valueHash = Long.hashCode(bits);
+        break;
+      case OBJECT:
+        valueHash = value.hashCode();
+        break;
+      default:
+        valueHash = 7;
+    }
+    return valueHash + getType().hashCode() * 31;
   }
 
   public BasicValue getType() {
@@ -76,7 +203,7 @@ public class ConstantValue implements Value {
    * unknown. A known value of "null" returns true.
    */
   public boolean isKnown() {
-    return value != null;
+    return kind != UNKNOWN;
   }
 
   public boolean isNull() {
@@ -98,9 +225,76 @@ public class ConstantValue implements Value {
     return getType() == BasicValue.LONG_VALUE;
   }
 
+  /**
+   * @return true if the value is a known number, that can be read using the primitive accessors
+   */
+  public boolean isKnownNumber() {
+    return kind >= INT || value instanceof Number;
+  }
+
   public Integer getAsInteger() {
-    if (value == null)
+    if (!isKnown())
       return null;
-    return ((Number) value).intValue();
+    return kind == INT ? (int) bits : ((Number) getValue()).intValue();
+  }
+
+  /**
+   * Primitive accessors, only valid if {@link #isKnownNumber()} is true. The value is converted like a
+   * {@link Number} would, without boxing int, long, float and double values.
+   */
+  public int intValue() {
+    switch (kind) {
+      case INT:
+      case LONG:
+        return (int) bits;
+      case FLOAT:
+        return (int) Float.intBitsToFloat((int) bits);
+      case DOUBLE:
+        return (int) Double.longBitsToDouble(bits);
+      default:
+        return ((Number) value).intValue();
+    }
+  }
+
+  public long longValue() {
+    switch (kind) {
+      case INT:
+      case LONG:
+        return bits;
+      case FLOAT:
+        return (long) Float.intBitsToFloat((int) bits);
+      case DOUBLE:
+        return (long) Double.longBitsToDouble(bits);
+      default:
+        return ((Number) value).longValue();
+    }
+  }
+
+  public float floatValue() {
+    switch (kind) {
+      case INT:
+      case LONG:
+        return (float) bits;
+      case FLOAT:
+        return Float.intBitsToFloat((int) bits);
+      case DOUBLE:
+        return (float) Double.longBitsToDouble(bits);
+      default:
+        return ((Number) value).floatValue();
+    }
+  }
+
+  public double doubleValue() {
+    switch (kind) {
+      case INT:
+      case LONG:
+        return (double) bits;
+      case FLOAT:
+        return Float.intBitsToFloat((int) bits);
+      case DOUBLE:
+        return Double.longBitsToDouble(bits);
+      default:
+        return ((Number) value).doubleValue();
+    }
   }
 }
@@ -33,4 +33,25 @@ public interface IConstantReferenceHandler {
   Object getMethodReturnOrNull(BasicValue v, String owner, String name, String desc,
                                List<? extends ConstantValue> values);
 
+  /**
+   * @return how frames computed with this handler are cached, see {@link ConstantFrameCache}
+   */
+  default Caching getCaching() {
+    return Caching.INSTANCE;
+  }
+
+  enum Caching {
+    /**
+     * frames are not cached, because the values the handler returns change between analyses
+     */
+    NONE,
+    /**
+     * frames are cached for this handler instance
+     */
+    INSTANCE,
+    /**
+     * frames are shared by all handlers of the same class, which have to return the same values
+     */
+    SHARED
+  }
 }
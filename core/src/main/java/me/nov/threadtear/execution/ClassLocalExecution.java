@@ -0,0 +1,89 @@
+package me.nov.threadtear.execution;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * An execution that transforms every class on its own, without looking at other classes. The core runs these
+ * executions on a work-stealing pool, so {@link #transform(ExecutionContext, Clazz)} can be called for multiple
+ * classes at once. Implementations must not access other classes, keep counters and caches in the
+ * {@link ExecutionContext}.
+ */
+public abstract class ClassLocalExecution extends Execution {
+
+  public ClassLocalExecution(ExecutionCategory type, String name, String description, ExecutionTag... tags) {
+    super(type, name, description, tags);
+  }
+
+  /**
+   * Called once before the classes are transformed.
+   */
+  protected void begin(ExecutionContext context) {
+  }
+
+  /**
+   * Transform a single class. Errors logged during the call are collected for this class.
+   */
+  protected abstract void transform(ExecutionContext context, Clazz c);
+
+  /**
+   * Called once after all classes were transformed, log the summary here.
+   *
+   * @return success (true) or failure (false)
+   */
+  protected abstract boolean finish(ExecutionContext context);
+
+  @Override
+  public final boolean execute(ExecutionContext context) {
+    return execute(context, null);
+  }
+
+  /**
+   * Run the execution
+   *
+   * @param pool the pool to transform the classes on, or null to transform them on the calling thread
+   * @return success (true) or failure (false)
+   */
+  public final boolean execute(ExecutionContext context, ForkJoinPool pool) {
+    begin(context);
+    if (!forEachClass(context, pool, c -> transform(context, c))) {
+      return false;
+    }
+    return finish(context);
+  }
+
+  /**
+   * Apply a transformation to all classes of the context, skipping the remaining classes when the run is cancelled.
+   *
+   * @return false if the parallel transformation was interrupted
+   */
+  static boolean forEachClass(ExecutionContext context, ForkJoinPool pool, Consumer<Clazz> transformation) {
+    if (pool == null) {
+      context.classes.values().forEach(c -> transformClass(context, c, transformation));
+      return true;
+    }
+    try {
+      pool.submit(() -> context.classes.values().parallelStream()
+        .forEach(c -> transformClass(context, c, transformation))).get();
+      return true;
+    } catch (InterruptedException | ExecutionException e) {
+      logger.error("Parallel execution was interrupted", e);
+      return false;
+    }
+  }
+
+  private static void transformClass(ExecutionContext context, Clazz c, Consumer<Clazz> transformation) {
+    if (context.isCancelled()) {
+      return;
+    }
+    logger.collectErrors(c);
+    try {
+      transformation.accept(c);
+    } catch (Throwable t) {
+      logger.error("Failed to transform {}, {}", t, c.getName(), shortStacktrace(t));
+    } finally {
+      logger.collectErrors(null);
+    }
+  }
+}
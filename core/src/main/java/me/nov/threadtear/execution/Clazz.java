@@ -2,28 +2,196 @@ package me.nov.threadtear.execution;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.*;
 import java.util.jar.*;
 import java.util.stream.*;
 
+import me.nov.threadtear.io.Conversion;
+import me.nov.threadtear.logging.LogWrapper;
+import me.nov.threadtear.util.asm.ClassHierarchy;
+import me.nov.threadtear.util.asm.ModificationStamp;
 import me.nov.threadtear.util.format.Strings;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.*;
 
+/**
+ * A loaded class. The class is kept as its compact bytecode until the {@link ClassNode} is requested for the first
+ * time. Nodes that were only viewed, but never handed out for modification, can be evicted back to bytes.
+ * <p>
+ * Code that changes a viewed node has to call {@link #markModified()}. As a safeguard, the members and instructions
+ * of a viewed node are stamped when it is parsed. A node whose stamp changed is treated as modified before it is
+ * evicted or its original bytes are used.
+ */
 public class Clazz {
 
   public boolean transform = true;
-  public ClassNode node;
+  /**
+   * true if the class was malformed and had to be rewritten by CAFED00D before it could be parsed
+   */
+  public boolean sanitized;
   public final JarEntry oldEntry;
   public final Object inputFile;
   public final ArrayList<String> failures = new ArrayList<>();
 
+  private ClassNode node;
+  /**
+   * bytecode the class was loaded from, null if the class has no byte representation
+   */
+  private byte[] bytes;
+  private final String name;
+  private boolean modified;
+  /**
+   * members and instructions of the node when it was parsed, null once the class is marked as modified
+   */
+  private Object[] stamp;
+
   public Clazz(ClassNode node, JarEntry oldEntry, Object inputFile) {
     super();
     this.node = node;
+    this.name = node.name;
+    this.modified = true;
+    this.oldEntry = oldEntry;
+    this.inputFile = inputFile;
+  }
+
+  public Clazz(byte[] bytes, JarEntry oldEntry, Object inputFile) {
+    super();
+    this.bytes = bytes;
+    this.name = new ClassReader(bytes).getClassName();
     this.oldEntry = oldEntry;
     this.inputFile = inputFile;
   }
 
+  /**
+   * Get the class node for modification. The node is parsed on first access and the class is marked as modified,
+   * so it won't be evicted and will be rewritten on export.
+   */
+  public synchronized ClassNode getNode() {
+    ClassNode cn = viewNode();
+    markModified();
+    return cn;
+  }
+
+  /**
+   * Get the class node for read-only access, e.g. for scanning, displaying or decompiling it. Call
+   * {@link #markModified()} after changing the returned node.
+   */
+  public synchronized ClassNode viewNode() {
+    if (node == null) {
+      node = Conversion.toNode(bytes);
+      stamp = stamp(node);
+    }
+    return node;
+  }
+
+  /**
+   * Mark the class as modified, so it won't be evicted and will be rewritten on export. Bumps the
+   * {@link ModificationStamp} of the node, so cached conversions of it are dropped.
+   */
+  public synchronized void markModified() {
+    modified = true;
+    stamp = null;
+    if (node != null) {
+      ModificationStamp.bump(node);
+    }
+  }
+
+  public synchronized void setNode(ClassNode node) {
+    this.node = node;
+    markModified();
+  }
+
+  /**
+   * @return the internal name of the class, without parsing it
+   */
+  public synchronized String getName() {
+    return node != null ? node.name : name;
+  }
+
+  public synchronized boolean isModified() {
+    if (!modified && stamp != null && !Arrays.equals(stamp, stamp(node))) {
+      LogWrapper.logger.warning("Class {} was changed without being marked as modified", name);
+      markModified();
+    }
+    return modified;
+  }
+
+  public synchronized boolean isMaterialized() {
+    return node != null;
+  }
+
+  /**
+   * @return the bytecode of the class. Unmodified classes return their original bytes.
+   */
+  public byte[] getBytes() {
+    return getBytes(null);
+  }
+
+  /**
+   * @param hierarchy if not null, stack map frames of modified classes are recomputed using this hierarchy
+   * @return the bytecode of the class. Unmodified classes return their original bytes.
+   */
+  public byte[] getBytes(ClassHierarchy hierarchy) {
+    ClassNode cn;
+    synchronized (this) {
+      if (!isModified() && bytes != null) {
+        return bytes;
+      }
+      cn = node;
+    }
+    // serialize outside the lock, the hierarchy may need to look at other classes
+    return hierarchy == null ? Conversion.toBytecode0(cn) : Conversion.toBytecode(cn, hierarchy);
+  }
+
+  /**
+   * Drop the parsed class node if it was never handed out for modification.
+   *
+   * @return true if the node was evicted
+   */
+  public synchronized boolean evict() {
+    if (bytes == null || node == null || isModified()) {
+      return false;
+    }
+    node = null;
+    stamp = null;
+    return true;
+  }
+
+  /**
+   * @return the identity of the members, instructions and try catch blocks of the node, together with the names,
+   * descriptors, access flags and maxs. Changes made to a single instruction in place are not included.
+   */
+  private static Object[] stamp(ClassNode cn) {
+    List<Object> parts = new ArrayList<>();
+    Collections.addAll(parts, cn.name, cn.superName, cn.access, cn.version, cn.sourceFile, cn.signature);
+    addAll(parts, cn.interfaces);
+    addAll(parts, cn.visibleAnnotations);
+    addAll(parts, cn.invisibleAnnotations);
+    addAll(parts, cn.attrs);
+    for (FieldNode f : cn.fields) {
+      Collections.addAll(parts, f, f.access, f.name, f.desc, f.value);
+    }
+    for (MethodNode m : cn.methods) {
+      Collections.addAll(parts, m, m.access, m.name, m.desc, m.maxStack, m.maxLocals);
+      addAll(parts, m.tryCatchBlocks);
+      addAll(parts, m.localVariables);
+      parts.add(m.instructions.size());
+      for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+        parts.add(ain);
+      }
+    }
+    return parts.toArray();
+  }
+
+  private static void addAll(List<Object> parts, List<?> list) {
+    if (list == null) {
+      parts.add(-1);
+      return;
+    }
+    parts.add(list.size());
+    parts.addAll(list);
+  }
+
   public InputStream streamOriginal() throws IOException {
     if (inputFile instanceof JarFile) {
       JarFile jf = new JarFile(((JarFile) inputFile).getName());
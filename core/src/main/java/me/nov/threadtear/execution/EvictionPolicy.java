@@ -0,0 +1,15 @@
+package me.nov.threadtear.execution;
+
+/**
+ * Decides when parsed class nodes that were never modified are dropped back to their bytecode.
+ */
+public enum EvictionPolicy {
+  NEVER("Keep all parsed classes in memory."), AFTER_RUN("Evict unmodified classes once all executions finished."),
+  AFTER_EXECUTION("Evict unmodified classes after every execution.");
+
+  public final String info;
+
+  EvictionPolicy(String info) {
+    this.info = info;
+  }
+}
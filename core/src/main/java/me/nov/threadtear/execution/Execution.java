@@ -19,7 +19,6 @@ public abstract class Execution implements Opcodes {
   public final ExecutionTag[] tags;
 
   protected static final LogWrapper logger = LogWrapper.logger;
-  protected static final Random random = new Random();
 
   public Execution(ExecutionCategory type, String name, String description, ExecutionTag... tags) {
     this.type = type;
@@ -44,16 +43,14 @@ public abstract class Execution implements Opcodes {
   }
 
   /**
-   * Run the execution
+   * Run the execution. Keep the state of the run in
+   * the context, not in fields.
    *
-   * @param map     a map of all loaded classes, while
-   *                the key is the internal name
-   *                (java/foo/bar)
-   * @param verbose true when the user wants more logging
-   *                output
+   * @param context the loaded classes, options and
+   *                counters of this run
    * @return success (true) or failure (false)
    */
-  public abstract boolean execute(Map<String, Clazz> map, boolean verbose);
+  public abstract boolean execute(ExecutionContext context);
 
   /**
    * Get a method from a class node
@@ -74,7 +71,9 @@ public abstract class Execution implements Opcodes {
   /**
    * Run the constant analyzer and get the frames The
    * frames will have more information than normal ASM
-   * ones and pre-compute easy calculations.
+   * ones and pre-compute easy calculations. Frames of
+   * unchanged methods are reused, see
+   * {@link ConstantFrameCache}.
    *
    * @param handler a reference handler to integrate more
    *                methods or fields in the computation
@@ -82,6 +81,10 @@ public abstract class Execution implements Opcodes {
    * corresponds to the instruction index
    */
   protected Frame<ConstantValue>[] getConstantFrames(ClassNode c, MethodNode m, IConstantReferenceHandler handler) {
+    Frame<ConstantValue>[] frames = ConstantFrameCache.get(c, m, handler);
+    if (frames != null) {
+      return frames;
+    }
     Analyzer<ConstantValue> a =
             new Analyzer<>(new ConstantTracker(handler, Access.isStatic(m.access), m.maxLocals, m.desc, new Object[0]));
     try {
@@ -92,7 +95,9 @@ public abstract class Execution implements Opcodes {
       // BytecodeDebugger.show(c, (Exception) e);
       return null;
     }
-    return a.getFrames();
+    frames = a.getFrames();
+    ConstantFrameCache.put(c, m, handler, frames);
+    return frames;
   }
 
   /**
@@ -129,7 +134,7 @@ public abstract class Execution implements Opcodes {
   /**
    * For logging
    */
-  protected String shortStacktrace(Throwable e) {
+  protected static String shortStacktrace(Throwable e) {
     StringBuilder sb = new StringBuilder();
     sb.append(e.getClass().getName());
     if (e.getMessage() != null) {
@@ -159,10 +164,14 @@ public abstract class Execution implements Opcodes {
     return sb.toString();
   }
 
-  protected void allowReflection(boolean allow) {
+  /**
+   * Allow the classes of a VM to use reflection. Revoke it in a finally block when done.
+   */
+  @SuppressWarnings("removal")
+  protected void allowReflection(ClassLoader vm, boolean allow) {
     SecurityManager sm = System.getSecurityManager();
-    if (sm != null) {
-      ((VMSecurityManager) sm).allowReflection(allow);
+    if (sm instanceof VMSecurityManager) {
+      ((VMSecurityManager) sm).allowReflection(vm, allow);
     }
   }
 }
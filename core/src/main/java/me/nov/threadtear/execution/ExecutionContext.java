@@ -0,0 +1,145 @@
+package me.nov.threadtear.execution;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import me.nov.threadtear.util.asm.CallGraph;
+import me.nov.threadtear.util.asm.ClassHierarchy;
+
+/**
+ * State of a single run of an execution. Executions keep everything that belongs to a run in here instead of
+ * instance fields, so the same execution instance can be run multiple times, and can transform many classes at
+ * once. Counters and caches can be used by multiple threads.
+ */
+public class ExecutionContext {
+  /**
+   * all loaded classes, while the key is the internal name (java/foo/bar)
+   */
+  public final Map<String, Clazz> classes;
+  /**
+   * true when the user wants more logging output
+   */
+  public final boolean verbose;
+  public final Random random = new Random();
+
+  private final AtomicBoolean cancelled;
+  private volatile ClassHierarchy hierarchy;
+  private volatile CallGraph callGraph;
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final Map<String, Object> caches = new ConcurrentHashMap<>();
+
+  public ExecutionContext(Map<String, Clazz> classes, boolean verbose) {
+    this(classes, verbose, new AtomicBoolean());
+  }
+
+  /**
+   * @param cancelled cancellation token, can be shared by the contexts of a whole run
+   */
+  public ExecutionContext(Map<String, Clazz> classes, boolean verbose, AtomicBoolean cancelled) {
+    this(classes, verbose, cancelled, null);
+  }
+
+  /**
+   * @param hierarchy hierarchy of the classes, can be shared by the contexts of a whole run. If null, it is created
+   *                  on first use.
+   */
+  public ExecutionContext(Map<String, Clazz> classes, boolean verbose, AtomicBoolean cancelled,
+                          ClassHierarchy hierarchy) {
+    this(classes, verbose, cancelled, hierarchy, null);
+  }
+
+  /**
+   * @param callGraph call graph of the classes, can be shared by the contexts of a whole run. If null, it is created
+   *                  on first use.
+   */
+  public ExecutionContext(Map<String, Clazz> classes, boolean verbose, AtomicBoolean cancelled,
+                          ClassHierarchy hierarchy, CallGraph callGraph) {
+    this.classes = classes;
+    this.verbose = verbose;
+    this.cancelled = cancelled;
+    this.hierarchy = hierarchy;
+    this.callGraph = callGraph;
+  }
+
+  /**
+   * @return the type hierarchy of the loaded classes. Executions that rename classes or change their supertypes
+   * have to update it.
+   */
+  public ClassHierarchy getHierarchy() {
+    ClassHierarchy h = hierarchy;
+    if (h == null) {
+      synchronized (this) {
+        h = hierarchy;
+        if (h == null) {
+          hierarchy = h = new ClassHierarchy(classes);
+        }
+      }
+    }
+    return h;
+  }
+
+  /**
+   * @return the call graph of the loaded classes, brought up to date with the current code. Executions that modify
+   * single instructions in place while using the graph have to update it.
+   */
+  public CallGraph getCallGraph() {
+    CallGraph g = callGraph;
+    if (g == null) {
+      synchronized (this) {
+        g = callGraph;
+        if (g == null) {
+          callGraph = g = new CallGraph(classes, getHierarchy());
+        }
+      }
+    }
+    g.refresh();
+    return g;
+  }
+
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  public void increment(String counter) {
+    counter(counter).increment();
+  }
+
+  public void add(String counter, long amount) {
+    counter(counter).add(amount);
+  }
+
+  /**
+   * @return the current value of a counter, 0 if it was never incremented
+   */
+  public long count(String counter) {
+    LongAdder adder = counters.get(counter);
+    return adder == null ? 0 : adder.sum();
+  }
+
+  /**
+   * Get a cache of this run, or create it if it doesn't exist yet.
+   *
+   * @param name    unique name of the cache
+   * @param factory creates the cache, it has to be safe to use from multiple threads if the execution transforms
+   *                classes in parallel
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T cache(String name, Supplier<T> factory) {
+    return (T) caches.computeIfAbsent(name, n -> factory.get());
+  }
+
+  /**
+   * Stop the run. Executions stop transforming classes as soon as possible, remaining executions are skipped.
+   */
+  public void cancel() {
+    cancelled.set(true);
+  }
+
+  public boolean isCancelled() {
+    return cancelled.get();
+  }
+}
@@ -0,0 +1,72 @@
+package me.nov.threadtear.execution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adjacent {@link InstructionPass}es of a run, applied together in a single walk over each method.
+ */
+public class FusedInstructionPasses {
+  private final InstructionPass[] passes;
+  private final ExecutionContext[] contexts;
+  private final LongAdder methods = new LongAdder();
+
+  /**
+   * @param contexts the context of each pass, in the same order
+   */
+  public FusedInstructionPasses(List<InstructionPass> passes, List<ExecutionContext> contexts) {
+    if (passes.size() != contexts.size()) {
+      throw new IllegalArgumentException("every pass needs a context");
+    }
+    this.passes = passes.toArray(new InstructionPass[0]);
+    this.contexts = contexts.toArray(new ExecutionContext[0]);
+  }
+
+  /**
+   * Collect the instruction passes that can be fused, starting at the given execution.
+   *
+   * @return the passes, an empty list if the execution at start is no instruction pass
+   */
+  public static List<InstructionPass> collect(List<Execution> executions, int start) {
+    List<InstructionPass> passes = new ArrayList<>();
+    for (int i = start; i < executions.size(); i++) {
+      Execution e = executions.get(i);
+      if (!(e instanceof InstructionPass) || (i > start && ((InstructionPass) e).readsAhead())) {
+        break;
+      }
+      passes.add((InstructionPass) e);
+    }
+    return passes;
+  }
+
+  /**
+   * Run all passes
+   *
+   * @param pool the pool to transform the classes on, or null to transform them on the calling thread
+   * @return success of each pass, or null if the walk was interrupted
+   */
+  public boolean[] execute(ForkJoinPool pool) {
+    for (int i = 0; i < passes.length; i++) {
+      passes[i].begin(contexts[i]);
+    }
+    // all contexts of a run share the same classes and cancellation
+    if (!ClassLocalExecution.forEachClass(contexts[0], pool,
+      c -> methods.add(InstructionPass.walk(c, passes, contexts)))) {
+      return null;
+    }
+    boolean[] success = new boolean[passes.length];
+    for (int i = 0; i < passes.length; i++) {
+      success[i] = passes[i].finish(contexts[i]);
+    }
+    return success;
+  }
+
+  /**
+   * @return the number of method walks that were saved by fusing the passes
+   */
+  public long getSavedTraversals() {
+    return methods.sum() * (passes.length - 1);
+  }
+}
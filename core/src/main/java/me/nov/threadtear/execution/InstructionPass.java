@@ -0,0 +1,88 @@
+package me.nov.threadtear.execution;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A class-local execution that transforms code one instruction at a time. Adjacent instruction passes of a run are
+ * fused by the core, so all of them are applied in a single walk over each method instead of one walk per
+ * execution. Each pass still gets its own {@link ExecutionContext}.
+ * <p>
+ * To give the same result as running the passes one after another, {@link #visitInsn} may only replace or remove
+ * the visited instruction or insert new instructions before it, and may only look at the visited instruction and
+ * the instructions before it. Passes that have to look at following instructions override {@link #readsAhead()},
+ * they are never fused with the passes that come before them.
+ * <p>
+ * A class is only marked as modified if a pass replaced, removed or inserted instructions, or changed the maxs of a
+ * method. Passes must not change the visited instruction in place, they have to replace it.
+ */
+public abstract class InstructionPass extends ClassLocalExecution {
+
+  public InstructionPass(ExecutionCategory type, String name, String description, ExecutionTag... tags) {
+    super(type, name, description, tags);
+  }
+
+  /**
+   * Called for every method, before its instructions are visited.
+   */
+  protected void visitMethod(ExecutionContext context, ClassNode cn, MethodNode m) {
+  }
+
+  /**
+   * Visit a single instruction.
+   *
+   * @return the instruction that is now at the position of ain, or null if ain was removed
+   */
+  protected AbstractInsnNode visitInsn(ExecutionContext context, MethodNode m, AbstractInsnNode ain) {
+    return ain;
+  }
+
+  /**
+   * @return true if the pass looks at instructions after the visited one
+   */
+  public boolean readsAhead() {
+    return false;
+  }
+
+  @Override
+  protected final void transform(ExecutionContext context, Clazz c) {
+    walk(c, new InstructionPass[]{this}, new ExecutionContext[]{context});
+  }
+
+  /**
+   * Walk over every method of a class once, applying all passes to each instruction in order. The class is marked
+   * as modified if any pass changed it.
+   *
+   * @param contexts the context of each pass
+   * @return the number of walked methods
+   */
+  static int walk(Clazz c, InstructionPass[] passes, ExecutionContext[] contexts) {
+    ClassNode cn = c.viewNode();
+    boolean changed = false;
+    for (MethodNode m : cn.methods) {
+      int size = m.instructions.size();
+      int maxStack = m.maxStack;
+      int maxLocals = m.maxLocals;
+      for (int i = 0; i < passes.length; i++) {
+        passes[i].visitMethod(contexts[i], cn, m);
+      }
+      AbstractInsnNode ain = m.instructions.getFirst();
+      while (ain != null) {
+        // passes only change the visited instruction or insert before it, so the next one stays the same
+        AbstractInsnNode next = ain.getNext();
+        AbstractInsnNode visited = ain;
+        for (int i = 0; i < passes.length && ain != null; i++) {
+          ain = passes[i].visitInsn(contexts[i], m, ain);
+        }
+        changed |= ain != visited;
+        ain = next;
+      }
+      changed |= size != m.instructions.size() || maxStack != m.maxStack || maxLocals != m.maxLocals;
+    }
+    if (changed) {
+      c.markModified();
+    }
+    return cn.methods.size();
+  }
+}
@@ -20,10 +20,10 @@ public class ExpirationDateRemoverAllatori extends Execution implements IConstan
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     try {
       logger.info("Finding most common long ldc cst");
-      long mostCommon = classes.values().stream().map(c -> c.node.methods).flatMap(List::stream)
+      long mostCommon = context.classes.values().stream().map(c -> c.viewNode().methods).flatMap(List::stream)
               .map(m -> m.instructions.spliterator()).flatMap(insns -> StreamSupport.stream(insns, false))
               .filter(ain -> ain.getOpcode() == LDC && ((LdcInsnNode) ain).cst instanceof Long)
               .map(ain -> (LdcInsnNode) ain)
@@ -31,10 +31,13 @@ public class ExpirationDateRemoverAllatori extends Execution implements IConstan
               .collect(Collectors.groupingBy(ldc -> (long) ldc.cst, Collectors.counting())).entrySet().stream()
               .max(Entry.comparingByValue()).map(Entry::getKey).orElseThrow(RuntimeException::new);
       logger.info("Expiration date is " + new Date(mostCommon).toString() + ", replacing");
-      classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.spliterator())
-              .flatMap(insns -> StreamSupport.stream(insns, false))
+      context.classes.values().forEach(c -> c.viewNode().methods.forEach(m -> StreamSupport
+              .stream(m.instructions.spliterator(), false)
               .filter(ain -> ain.getOpcode() == LDC && ((LdcInsnNode) ain).cst.equals(mostCommon))
-              .map(ain -> (LdcInsnNode) ain).forEach(ldc -> ldc.cst = 1337133713371337L);
+              .map(ain -> (LdcInsnNode) ain).forEach(ldc -> {
+                c.markModified();
+                ldc.cst = 1337133713371337L;
+              })));
       return true;
     } catch (Exception e) {
       logger.error("Failure", e);
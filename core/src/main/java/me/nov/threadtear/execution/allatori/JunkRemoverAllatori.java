@@ -1,19 +1,17 @@
 package me.nov.threadtear.execution.allatori;
 
+import me.nov.threadtear.execution.ClassLocalExecution;
 import me.nov.threadtear.execution.Clazz;
-import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.InstructionModifier;
 import org.objectweb.asm.tree.*;
 
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
-public class JunkRemoverAllatori extends Execution {
+public class JunkRemoverAllatori extends ClassLocalExecution {
   public JunkRemoverAllatori() {
     super(ExecutionCategory.ALLATORI, "Junk instruction remover",
             "Removes junk instructions that create a lot of boolean variables when " +
@@ -21,22 +19,22 @@ public class JunkRemoverAllatori extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> map, boolean verbose) {
-    int methodTotal = 0;
-    int methodModified = 0;
-    int removedTotal = 0;
-    final List<ClassNode> classNodes = map.values().stream().map(c -> c.node).collect(Collectors.toList());
-    for (ClassNode clazz : classNodes) {
-      for (MethodNode method : clazz.methods) {
-        methodTotal++;
-        int removed = processMethod(method);
-        removedTotal += removed;
-        if (removed > 0) {
-          methodModified++;
-        }
+  protected void transform(ExecutionContext context, Clazz c) {
+    for (MethodNode method : c.viewNode().methods) {
+      context.increment("methods");
+      int removed = processMethod(method);
+      context.add("removed", removed);
+      if (removed > 0) {
+        context.increment("modified");
+        c.markModified();
       }
     }
-    logger.info("Removed {} junk instructions from {}/{} methods.", removedTotal, methodModified, methodTotal);
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
+    logger.info("Removed {} junk instructions from {}/{} methods.", context.count("removed"), context.count("modified"),
+            context.count("methods"));
     return true;
   }
 
@@ -1,7 +1,8 @@
 package me.nov.threadtear.execution.allatori;
 
-import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.tree.analysis.*;
@@ -12,13 +13,9 @@ import me.nov.threadtear.util.asm.Instructions;
 import me.nov.threadtear.util.format.Strings;
 import me.nov.threadtear.vm.*;
 
-public class StringObfuscationAllatori extends Execution implements IVMReferenceHandler, IConstantReferenceHandler {
+public class StringObfuscationAllatori extends Execution implements IConstantReferenceHandler {
 
   private static final String ALLATORI_DECRPYTION_METHOD_DESC = "(Ljava/lang/String;)Ljava/lang/String;";
-  private Map<String, Clazz> classes;
-  private int encrypted;
-  private int decrypted;
-  private boolean verbose;
 
   public StringObfuscationAllatori() {
     super(ExecutionCategory.ALLATORI, "String obfuscation removal",
@@ -27,72 +24,91 @@ public class StringObfuscationAllatori extends Execution implements IVMReference
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
-    this.encrypted = 0;
-    this.decrypted = 0;
-
-    classes.values().forEach(this::decrypt);
+  public boolean execute(ExecutionContext context) {
+    // the session doesn't initialize classes, decryption classes are isolated from the rest of the input
+    Set<String> decryptionOwners = getDecryptionOwners(context);
+    IVMReferenceHandler handler = name -> {
+      Clazz c = context.classes.get(name);
+      if (c == null) {
+        return null;
+      }
+      return decryptionOwners.contains(name) ? Sandbox.isolatedCopy(c.viewNode(),
+        (owner, desc) -> !owner.matches("java/lang/.*")) : c.viewNode();
+    };
+    try (SandboxSession session = Sandbox.getInvoker().open(handler, false, false)) {
+      context.classes.values().forEach(c -> decrypt(context, session, c));
+    }
+    long encrypted = context.count("encrypted");
     if (encrypted == 0) {
       logger.error("No strings matching Allatori 7.3 string obfuscation have been found!");
       return false;
     }
-    float decryptionRatio = Math.round((decrypted / (float) encrypted) * 100);
+    float decryptionRatio = Math.round((context.count("decrypted") / (float) encrypted) * 100);
     logger.info("Of a total " + encrypted + " encrypted strings, " + (decryptionRatio) + "% were " +
-            "successfully decrypted");
+            "successfully decrypted, " + context.count("emulated") + " by emulation");
     return decryptionRatio > 0.25;
   }
 
-  private void decrypt(Clazz c) {
-    ClassNode cn = c.node;
+  private void decrypt(ExecutionContext context, SandboxSession session, Clazz c) {
+    ClassNode cn = c.viewNode();
     logger.collectErrors(c);
     cn.methods.forEach(m -> {
       InsnList rewrittenCode = new InsnList();
       Map<LabelNode, LabelNode> labels = Instructions.cloneLabels(m.instructions);
+      AtomicBoolean modified = new AtomicBoolean();
 
       // as we can't add instructions because frame index
       // and instruction index
       // wouldn't fit together anymore we have to do it
       // this way
       loopConstantFrames(cn, m, this, (ain, frame) -> {
-        for (AbstractInsnNode newInstr : tryReplaceMethods(cn, m, ain, frame)) {
+        AbstractInsnNode[] replacement = tryReplaceMethods(context, session, cn, m, ain, frame);
+        if (replacement.length != 1 || replacement[0] != ain) {
+          modified.set(true);
+        }
+        for (AbstractInsnNode newInstr : replacement) {
           rewrittenCode.add(newInstr.clone(labels));
         }
       });
-      if (rewrittenCode.size() > 0) {
+      if (modified.get() && rewrittenCode.size() > 0) {
+        c.markModified();
         Instructions.updateInstructions(m, labels, rewrittenCode);
       }
     });
   }
 
-  private AbstractInsnNode[] tryReplaceMethods(ClassNode cn, MethodNode m, AbstractInsnNode ain,
-                                               Frame<ConstantValue> frame) {
+  private AbstractInsnNode[] tryReplaceMethods(ExecutionContext context, SandboxSession session, ClassNode cn,
+                                               MethodNode m, AbstractInsnNode ain, Frame<ConstantValue> frame) {
     if (ain.getOpcode() == INVOKESTATIC) {
       MethodInsnNode min = (MethodInsnNode) ain;
       if (min.desc.equals(ALLATORI_DECRPYTION_METHOD_DESC)) {
         try {
-          encrypted++;
+          context.increment("encrypted");
           ConstantValue top = frame.getStack(frame.getStackSize() - 1);
           if (top.isKnown() && top.isString()) {
             String encryptedString = (String) top.getValue();
             // strings are not high utf and no high sdev,
             // don't check
-            String realString = invokeProxy(cn, m, min, encryptedString);
+            DecryptionCache.Key key = DecryptionCache.key(min, new Object[]{encryptedString}, cn.name + '.' + m.name);
+            String realString = (String) DecryptionCache.get(key);
+            if (realString == null) {
+              realString = emulateOrInvokeProxy(context, session, cn, m, min, encryptedString);
+              DecryptionCache.put(key, realString);
+            }
             if (realString != null) {
               if (Strings.isHighUTF(realString)) {
                 logger.warning("String may have not decrypted correctly in " + cn.name + "." + m.name + m.desc);
               }
-              this.decrypted++;
+              context.increment("decrypted");
               return new AbstractInsnNode[]{new InsnNode(POP), new LdcInsnNode(realString)};
             } else {
               logger.error("Failed to decrypt string in " + cn.name + "." + m.name + m.desc);
             }
-          } else if (verbose) {
+          } else if (context.verbose) {
             logger.warning("Unknown top stack value in " + cn.name + "." + m.name + m.desc + ", skipping");
           }
         } catch (Throwable e) {
-          if (verbose) {
+          if (context.verbose) {
             logger.error("Throwable", e);
           }
           logger.error(
@@ -104,47 +120,52 @@ public class StringObfuscationAllatori extends Execution implements IVMReference
     return new AbstractInsnNode[]{ain};
   }
 
-  private String invokeProxy(ClassNode cn, MethodNode m, MethodInsnNode min, String encrypted) throws Exception {
-    VM vm = VM.constructNonInitializingVM(this);
-    createFakeClone(cn, m, min, encrypted); // create a
-    // duplicate of the current class,
-    // we need this because stringer checks for
-    // stacktrace method name and class
+  /**
+   * Emulate the decryption method, only if the emulator doesn't support it a proxy is invoked.
+   */
+  private String emulateOrInvokeProxy(ExecutionContext context, SandboxSession session, ClassNode cn, MethodNode m,
+                                      MethodInsnNode min, String encrypted) throws Throwable {
+    try {
+      String realString = (String) getEmulator(context).invoke(min.owner, min.name, min.desc, new Object[]{encrypted},
+        Emulator.frame(cn.name, m.name));
+      context.increment("emulated");
+      return realString;
+    } catch (EmulationException e) {
+      if (!e.canFallBack()) {
+        throw e;
+      }
+      if (context.verbose) {
+        logger.warning("Emulation failed in " + cn.name + "." + m.name + m.desc + ": " + e.getMessage());
+      }
+    }
+    return invokeProxy(context, session, cn, m, min, encrypted);
+  }
 
-    final Clazz owner = classes.get(min.owner);
-    if (owner == null) {
+  private String invokeProxy(ExecutionContext context, SandboxSession session, ClassNode cn, MethodNode m,
+                             MethodInsnNode min, String encrypted) throws Throwable {
+    if (!context.classes.containsKey(min.owner)) {
       logger.error("Could not find owner class in class list");
       return null;
     }
-    ClassNode decryptionMethodOwner = owner.node;
-    if (decryptionMethodOwner == null)
-      return null;
-    vm.explicitlyPreload(fakeInvocationClone); // proxy
-    // class can't contain code in clinit other than the
-    // one we want to run
-    if (!vm.isLoaded(decryptionMethodOwner.name.replace('/', '.'))) // decryption class
-      // could be the same class
-      vm.explicitlyPreload(decryptionMethodOwner, true, (name, desc) -> !name.matches("java/lang/.*"));
-    Class<?> loadedClone = vm.loadClass(fakeInvocationClone.name.replace('/', '.'), true); // load
-    // dupe class
-
-    if (m.name.equals("<init>")) {
-      loadedClone.newInstance(); // special case:
-      // constructors have to be invoked by newInstance.
-      // Sandbox.createMethodProxy automatically handles
-      // access and super call
-    } else {
-      for (Method reflectionMethod : loadedClone.getMethods()) {
-        if (reflectionMethod.getName().equals(m.name)) {
-          reflectionMethod.invoke(null);
-          break;
-        }
-      }
+    getDecryptionOwners(context).add(min.owner);
+    ClassNode fakeInvocationClone = createFakeClone(context, cn, m, min, encrypted); // create a
+    // duplicate of the current class,
+    // we need this because stringer checks for
+    // stacktrace method name and class
+    // decryption classes are shared by the session, only the clone is defined again for every call.
+    // constructors are invoked by creating an instance, Sandbox.createMethodProxy automatically handles access and
+    // super call
+    Invocation invocation = new Invocation(fakeInvocationClone.name, m.name)
+      .read(fakeInvocationClone.name, "proxyReturn");
+    session.invoke(Collections.singleton(fakeInvocationClone), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      throw invocation.getError();
     }
-    return (String) loadedClone.getDeclaredField("proxyReturn").get(null);
+    return (String) invocation.getOutput(0);
   }
 
-  private void createFakeClone(ClassNode cn, MethodNode m, MethodInsnNode min, String encrypted) {
+  private ClassNode createFakeClone(ExecutionContext context, ClassNode cn, MethodNode m, MethodInsnNode min,
+                                    String encrypted) {
     ClassNode node = Sandbox.createClassProxy(cn.name);
     InsnList instructions = new InsnList();
     instructions.add(new LdcInsnNode(encrypted));
@@ -158,19 +179,23 @@ public class StringObfuscationAllatori extends Execution implements IVMReference
     // string
     if (min.owner.equals(cn.name)) {
       // decryption method is in own class
-      node.methods.add(Sandbox.copyMethod(getMethod(classes.get(min.owner).node, min.name, min.desc)));
+      node.methods.add(Sandbox.copyMethod(getMethod(context.classes.get(min.owner).viewNode(), min.name, min.desc)));
     }
-    fakeInvocationClone = node;
+    return node;
   }
 
-  private ClassNode fakeInvocationClone;
+  private Emulator getEmulator(ExecutionContext context) {
+    // like the VM, the emulator does not run static initializers
+    return context.cache("emulator", () -> new Emulator(
+      name -> context.classes.containsKey(name) ? context.classes.get(name).viewNode() : null, false));
+  }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    if (name.equals(fakeInvocationClone.name)) {
-      return fakeInvocationClone;
-    }
-    return classes.containsKey(name) ? classes.get(name).node : null;
+  /**
+   * @return the classes that declare called decryption methods, the session only loads copies of them without calls
+   * to other classes
+   */
+  private Set<String> getDecryptionOwners(ExecutionContext context) {
+    return context.cache("owners", ConcurrentHashMap::newKeySet);
   }
 
   @Override
@@ -1,12 +1,11 @@
 package me.nov.threadtear.execution.analysis;
 
-import java.util.Map;
 
 import org.objectweb.asm.tree.*;
 
 import me.nov.threadtear.execution.*;
 
-public class RemoveMonitors extends Execution {
+public class RemoveMonitors extends InstructionPass {
 
   public RemoveMonitors() {
     super(ExecutionCategory.ANALYSIS, "Remove synchronized blocks",
@@ -15,12 +14,17 @@ public class RemoveMonitors extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node).forEach(c -> c.methods.forEach(m -> {
-      for (AbstractInsnNode ain : m.instructions.toArray())
-        if (ain.getOpcode() == MONITORENTER || ain.getOpcode() == MONITOREXIT)
-          m.instructions.set(ain, new InsnNode(POP));
-    }));
+  protected AbstractInsnNode visitInsn(ExecutionContext context, MethodNode m, AbstractInsnNode ain) {
+    if (ain.getOpcode() == MONITORENTER || ain.getOpcode() == MONITOREXIT) {
+      InsnNode pop = new InsnNode(POP);
+      m.instructions.set(ain, pop);
+      return pop;
+    }
+    return ain;
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
     logger.info("Removed all synchronized blocks");
     return true;
   }
@@ -12,8 +12,10 @@ public class RemoveTCBs extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).forEach(m -> m.tryCatchBlocks.clear());
+  public boolean execute(ExecutionContext context) {
+    context.classes.values().stream()
+      .filter(c -> c.viewNode().methods.stream().anyMatch(m -> m.tryCatchBlocks != null && !m.tryCatchBlocks.isEmpty()))
+      .map(c -> c.getNode().methods).flatMap(List::stream).forEach(m -> m.tryCatchBlocks.clear());
     logger.info("Removed all try catch blocks");
     return true;
   }
@@ -3,6 +3,7 @@ package me.nov.threadtear.execution.analysis;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import me.nov.threadtear.analysis.stack.ConstantFrameCache;
 import me.nov.threadtear.execution.*;
 import me.nov.threadtear.util.asm.References;
 import me.nov.threadtear.util.format.Strings;
@@ -16,30 +17,34 @@ public class ReobfuscateClassNames extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     logger.info("Generating random names");
-    Queue<String> words = Strings.generateWordQueue(classes.size(),
+    Queue<String> words = Strings.generateWordQueue(context.classes.size(),
             Objects.requireNonNull(ReobfuscateClassNames.class.getResourceAsStream("names.txt")));
-    Map<String, String> map = classes.values().stream().collect(Collectors.toMap(c -> c.node.name, c -> words.poll()));
-    if (verbose) {
+    Map<String, String> map =
+            context.classes.values().stream().collect(Collectors.toMap(c -> c.getNode().name, c -> words.poll()));
+    if (context.verbose) {
       logger.info("Generated {} unique easy-to-remember strings", map.size());
       logger.info("Renaming classes and source files to original names");
     }
-    classes.values().forEach(c -> {
-      c.node.sourceFile = c.node.name; // to have a
+    context.classes.values().forEach(c -> {
+      c.getNode().sourceFile = c.getNode().name; // to have a
       // connection with original file
-      c.node.name = map.getOrDefault(c.node.name, c.node.name);
+      c.getNode().name = map.getOrDefault(c.getNode().name, c.getNode().name);
     });
     logger.info("Updating code references");
     int refs =
-            classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.toArray())
-                    .flatMap(Arrays::stream).mapToInt(ain -> References.remapClassRefs(map, ain)).sum();
+            context.classes.values().stream().map(c -> c.getNode().methods).flatMap(List::stream)
+                    .map(m -> m.instructions.toArray()).flatMap(Arrays::stream).mapToInt(ain -> References.remapClassRefs(map, ain)).sum();
     logger.info(refs + " code references updated successfully!");
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream)
+    context.classes.values().stream().map(c -> c.getNode().methods).flatMap(List::stream)
             .forEach(m -> References.remapMethodType(map, m));
-    classes.values().stream().map(c -> c.node.fields).flatMap(List::stream)
+    context.classes.values().stream().map(c -> c.getNode().fields).flatMap(List::stream)
             .forEach(f -> References.remapFieldType(map, f));
-    classes.values().stream().map(c -> c.node).forEach(c -> References.remapClassType(map, c));
+    context.classes.values().stream().map(c -> c.getNode()).forEach(c -> References.remapClassType(map, c));
+    context.getHierarchy().rename(map);
+    // code and descriptors of every class were changed in place
+    ConstantFrameCache.clear();
     logger.info("Updated remaining references successfully!");
     return true;
   }
@@ -1,22 +1,17 @@
 package me.nov.threadtear.execution.analysis;
 
-import java.net.URL;
 import java.util.*;
+import java.util.function.ToIntFunction;
 
 import me.nov.threadtear.logging.LogWrapper;
-import org.apache.commons.io.IOUtils;
 import org.objectweb.asm.tree.*;
 
 import me.nov.threadtear.execution.*;
-import me.nov.threadtear.io.Conversion;
 import me.nov.threadtear.util.asm.*;
+import me.nov.threadtear.util.asm.ClassHierarchy.Member;
 import me.nov.threadtear.util.format.Strings;
 
 public class ReobfuscateMembers extends Execution {
-  private Map<String, Clazz> classes;
-  private Queue<String> words;
-  private boolean verbose;
-
   public ReobfuscateMembers() {
     super(ExecutionCategory.ANALYSIS, "Reobfuscate methods and fields",
       "Reobfuscate method and field names for easier analysis.<br>Gets " +
@@ -25,105 +20,143 @@ public class ReobfuscateMembers extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.classes = classes;
-    this.verbose = verbose;
+  public boolean execute(ExecutionContext context) {
+    Map<String, Clazz> classes = context.classes;
+    HashMap<String, ArrayList<MappedMember>> fields = fields(context);
+    HashMap<String, ArrayList<MappedMember>> methods = methods(context);
 
     logger.info("Generating random names");
-    this.words = Strings.generateWordQueue(
-      (int) (classes.values().stream().map(c -> c.node.fields).mapToLong(List::size).sum() +
-        classes.values().stream().map(c -> c.node.methods).mapToLong(List::size).sum()),
-      Objects.requireNonNull(ReobfuscateMembers.class.getResourceAsStream("english-words.txt")));
+    context.cache("words", () -> Strings.generateWordQueue(
+      (int) (classes.values().stream().map(c -> c.viewNode().fields).mapToLong(List::size).sum() +
+        classes.values().stream().map(c -> c.viewNode().methods).mapToLong(List::size).sum()),
+      Objects.requireNonNull(ReobfuscateMembers.class.getResourceAsStream("english-words.txt"))));
 
     logger.info("Making method mappings");
-    classes.values().stream().map(c -> c.node).forEach(this::makeMethodMappings);
+    ClassHierarchy hierarchy = context.getHierarchy();
+    classes.values().stream().map(c -> c.viewNode()).forEach(c -> makeMethodMappings(context, hierarchy, c.name));
     logger.info(methods.size() + " method mappings created for classes and superclasses");
 
     logger.info("Renaming methods");
-    classes.values().stream().map(c -> c.node).forEach(c -> c.methods.forEach(m -> m.name =
-      methods.get(c.name).stream().filter(mapped -> mapped.equalsMethod(m)).findFirst().get().newName));
+    classes.values().forEach(c -> c.viewNode().methods.forEach(m -> {
+      String newName = methods.get(c.getName()).stream().filter(mapped -> mapped.equalsMethod(m)).findFirst().get()
+        .newName;
+      if (!newName.equals(m.name)) {
+        c.markModified();
+        m.name = newName;
+      }
+    }));
 
     logger.info("Updating method references in code");
-    int mrefs =
-      classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.toArray())
-        .flatMap(Arrays::stream).mapToInt(ain -> References.remapMethodRefs(methods, ain)).sum();
+    int mrefs = classes.values().stream().mapToInt(c -> remapRefs(c, ain -> References.remapMethodRefs(methods, ain)))
+      .sum();
     logger.info(mrefs + " method references updated successfully!");
+    hierarchy.invalidate(methods.keySet());
 
     logger.info("Making field mappings");
-    classes.values().stream().map(c -> c.node).forEach(this::makeFieldMappings);
+    classes.values().stream().map(c -> c.viewNode()).forEach(c -> makeFieldMappings(context, c));
 
     logger.info("Renaming fields");
-    classes.values().stream().map(c -> c.node).forEach(c -> c.fields.forEach(f -> f.name =
-      fields.get(c.name).stream().filter(mapped -> mapped.equalsField(f)).findFirst().get().newName));
+    classes.values().stream().filter(c -> !c.viewNode().fields.isEmpty()).map(c -> c.getNode())
+      .forEach(c -> c.fields.forEach(f -> f.name =
+        fields.get(c.name).stream().filter(mapped -> mapped.equalsField(f)).findFirst().get().newName));
 
     logger.info("Updating field references in code");
-    int frefs =
-      classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.toArray())
-        .flatMap(Arrays::stream).mapToInt(ain -> References.remapFieldRefs(fields, ain)).sum();
+    int frefs = classes.values().stream().mapToInt(c -> remapRefs(c, ain -> References.remapFieldRefs(fields, ain)))
+      .sum();
     logger.info(frefs + " field references updated successfully!");
     return frefs > 0 && mrefs > 0;
   }
 
-  private HashMap<String, ArrayList<MappedMember>> fields = new HashMap<>();
-  private HashMap<String, ArrayList<MappedMember>> methods = new HashMap<>();
+  /**
+   * @return the number of remapped references, the class is marked as modified if there are any
+   */
+  private static int remapRefs(Clazz c, ToIntFunction<AbstractInsnNode> remapper) {
+    int refs = 0;
+    for (MethodNode m : c.viewNode().methods) {
+      refs += Arrays.stream(m.instructions.toArray()).mapToInt(remapper).sum();
+    }
+    if (refs > 0) {
+      c.markModified();
+    }
+    return refs;
+  }
+
+  private static HashMap<String, ArrayList<MappedMember>> fields(ExecutionContext context) {
+    return context.cache("fields", HashMap::new);
+  }
+
+  private static HashMap<String, ArrayList<MappedMember>> methods(ExecutionContext context) {
+    return context.cache("methods", HashMap::new);
+  }
+
+  private static Queue<String> words(ExecutionContext context) {
+    return context.cache("words", ArrayDeque::new);
+  }
 
-  private void makeFieldMappings(ClassNode c) {
+  private void makeFieldMappings(ExecutionContext context, ClassNode c) {
+    Queue<String> words = words(context);
     ArrayList<MappedMember> list = new ArrayList<>();
     c.fields.forEach(f -> list.add(new MappedMember(f.name, f.desc, words.poll() + "$"))); // add a dollar
     // sign to avoid collisions
-    fields.put(c.name, list);
+    fields(context).put(c.name, list);
   }
 
-  private void makeMethodMappings(ClassNode c) {
-    if (methods.containsKey(c.name))
+  private void makeMethodMappings(ExecutionContext context, ClassHierarchy hierarchy, String name) {
+    HashMap<String, ArrayList<MappedMember>> methods = methods(context);
+    if (methods.containsKey(name))
       return;
-    boolean isLocal = classes.values().stream().anyMatch(clazz -> clazz.node.equals(c));
-    ArrayList<ClassNode> parents = new ArrayList<>();
+    boolean isLocal = hierarchy.getLoadedClass(name) != null;
+    ArrayList<String> parents = new ArrayList<>();
     // first remap parents
-    if (c.superName != null) {
-      ClassNode superClass = findClass(c.superName);
-      if (superClass != null) {
-        parents.add(superClass);
-        makeMethodMappings(superClass);
-      } else {
-        isLocal = false;
-      }
+    String superName = hierarchy.getSuperName(name);
+    if (superName != null) {
+      isLocal &= addParent(context, hierarchy, parents, superName);
     }
-    for (String itf : c.interfaces) {
-      ClassNode interfaze = findClass(itf);
-      if (interfaze != null) {
-        parents.add(interfaze);
-        makeMethodMappings(interfaze);
-      } else {
-        isLocal = false;
-      }
+    for (String itf : hierarchy.getInterfaces(name)) {
+      isLocal &= addParent(context, hierarchy, parents, itf);
     }
     ArrayList<MappedMember> list = new ArrayList<>();
-    parents.forEach(p -> list.addAll(methods.get(p.name))); // add parent methods. there
+    parents.forEach(p -> list.addAll(methods.get(p))); // add parent methods. there
     // are better solutions in terms of performance but
     // this is the simplest one
     final boolean local = isLocal;
-    c.methods.forEach(
-      m -> list.add(new MappedMember(m.name, m.desc, local && isChangeable(m) ? makeName(parents, m) : m.name)));
-    methods.put(c.name, list);
+    hierarchy.getMethods(name).forEach(m -> list.add(
+      new MappedMember(m.name, m.desc, local && isChangeable(m) ? makeName(context, parents, m) : m.name)));
+    methods.put(name, list);
   }
 
-  private String makeName(ArrayList<ClassNode> parents, MethodNode m) {
+  /**
+   * @return false if the parent class could not be found
+   */
+  private boolean addParent(ExecutionContext context, ClassHierarchy hierarchy, ArrayList<String> parents,
+                            String parent) {
+    if (!hierarchy.isKnown(parent)) {
+      if (context.verbose)
+        LogWrapper.logger.warning("Couldn't find or resolve {}", parent);
+      return false;
+    }
+    parents.add(parent);
+    makeMethodMappings(context, hierarchy, parent);
+    return true;
+  }
+
+  private String makeName(ExecutionContext context, ArrayList<String> parents, Member m) {
+    HashMap<String, ArrayList<MappedMember>> methods = methods(context);
     MappedMember overriddenMethod =
-      parents.stream().map(c -> c.name).filter(methods::containsKey).map(methods::get).flatMap(List::stream)
-        .filter(mapped -> mapped.equalsMethod(m)).findFirst().orElse(null);
+      parents.stream().filter(methods::containsKey).map(methods::get).flatMap(List::stream)
+        .filter(mapped -> mapped.equalsMethod(m.name, m.desc)).findFirst().orElse(null);
     if (overriddenMethod != null) {
       // return parent name
       return overriddenMethod.newName;
     }
-    return "_" + words.poll(); // add an underscore to avoid
+    return "_" + words(context).poll(); // add an underscore to avoid
     // collisions
   }
 
   private static final List<String> ignore = Arrays.asList("valueOf", "values", "ordinal", "toString", "hashCode");
   // save some time
 
-  private boolean isChangeable(MethodNode m) {
+  private boolean isChangeable(Member m) {
     if (Access.isNative(m.access))
       return false;
     if (m.name.startsWith("<"))
@@ -135,30 +168,6 @@ public class ReobfuscateMembers extends Execution {
     return true;
   }
 
-  private ClassNode findClass(String name) {
-    Clazz node = classes.get(name);
-    return node == null ? findInRT(name) : node.node;
-  }
-
-  private final HashMap<String, ClassNode> loadedRuntimeClasses = new HashMap<>();
-
-  private ClassNode findInRT(String name) {
-    if (loadedRuntimeClasses.containsKey(name)) {
-      return loadedRuntimeClasses.get(name);
-    }
-    String classFile = "/" + name + ".class";
-    URL url = ReobfuscateMembers.class.getResource(classFile);
-    try {
-      ClassNode loadedNode = Conversion.toNode(IOUtils.toByteArray(url));
-      loadedRuntimeClasses.put(name, loadedNode);
-      return loadedNode;
-    } catch (Exception e) {
-      if (verbose)
-        LogWrapper.logger.warning("Couldn't find or resolve {}, {}", name, shortStacktrace(e));
-      return null;
-    }
-  }
-
   public static class MappedMember {
     public String oldName;
     public String oldDesc;
@@ -172,7 +181,11 @@ public class ReobfuscateMembers extends Execution {
     }
 
     public boolean equalsMethod(MethodNode mn) {
-      return oldName.equals(mn.name) && oldDesc.equals(mn.desc);
+      return equalsMethod(mn.name, mn.desc);
+    }
+
+    public boolean equalsMethod(String name, String desc) {
+      return oldName.equals(name) && oldDesc.equals(desc);
     }
 
     public boolean equalsField(FieldNode fn) {
@@ -1,8 +1,8 @@
 package me.nov.threadtear.execution.analysis;
 
-import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.Access;
 import me.nov.threadtear.util.asm.Instructions;
@@ -42,12 +42,15 @@ public class ReobfuscateVariableNames extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     Map<MethodNode, Integer> methodVariableCountMap = new HashMap<>();
-    classes.values().stream()
-      .map(c -> c.node.methods).flatMap(Collection::stream)
-      .filter(m -> m.instructions != null && m.instructions.size() > 0)
-      .forEach(m -> methodVariableCountMap.put(m, getVariableCount(m)));
+    context.classes.values().forEach(c -> {
+      c.viewNode().methods.stream().filter(m -> m.instructions != null && m.instructions.size() > 0)
+        .forEach(m -> methodVariableCountMap.put(m, getVariableCount(m)));
+      if (c.viewNode().methods.stream().anyMatch(m -> methodVariableCountMap.getOrDefault(m, 0) > 0)) {
+        c.markModified();
+      }
+    });
 
     logger.info("Generating random names");
     Queue<String> words =
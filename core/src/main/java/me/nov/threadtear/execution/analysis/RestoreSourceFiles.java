@@ -4,6 +4,7 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
 
+import me.nov.threadtear.analysis.stack.ConstantFrameCache;
 import me.nov.threadtear.execution.*;
 import me.nov.threadtear.util.asm.References;
 
@@ -16,17 +17,16 @@ public class RestoreSourceFiles extends Execution {
             ExecutionTag.POSSIBLE_DAMAGE);
   }
 
-  private Map<String, String> map;
-
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     logger.info("Generating mappings for source file attributes");
-    map = classes.values().stream().filter(c -> c.node.sourceFile != null && c.node.sourceFile.endsWith(".java"))
+    Map<String, String> map = context.classes.values().stream()
+            .filter(c -> c.viewNode().sourceFile != null && c.viewNode().sourceFile.endsWith(".java"))
             .collect(Collectors
-                    .toMap(c -> c.node.name, c -> c.node.sourceFile.substring(0, c.node.sourceFile.length() - 5)));
+                    .toMap(c -> c.viewNode().name, c -> c.viewNode().sourceFile.substring(0, c.viewNode().sourceFile.length() - 5)));
     boolean duplicateFound = false;
-    if (map.size() < classes.size()) {
-      logger.warning("{} classes of {} have a valid source file attribute.", map.size(), classes.size());
+    if (map.size() < context.classes.size()) {
+      logger.warning("{} classes of {} have a valid source file attribute.", map.size(), context.classes.size());
       if (map.isEmpty()) {
         logger.error("No source file attribute found, nothing to do, returning!");
         return false;
@@ -40,7 +40,7 @@ public class RestoreSourceFiles extends Execution {
           logger.warning("Duplicate mapping was found! Numbering classes with multiple occurrences!");
           duplicateFound = true;
         }
-        if (verbose) {
+        if (context.verbose) {
           logger.warning("{} exists {} times! Renaming...", entry.getValue(), count);
         }
         // rename duplicate
@@ -48,17 +48,20 @@ public class RestoreSourceFiles extends Execution {
       }
     }
     logger.info("Updating class names");
-    classes.values().forEach(c -> c.node.name = map.getOrDefault(c.node.name, c.node.name));
+    context.classes.values().forEach(c -> c.getNode().name = map.getOrDefault(c.getNode().name, c.getNode().name));
     logger.info("Updating code references");
     int refs =
-            classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.toArray())
-                    .flatMap(Arrays::stream).mapToInt(ain -> References.remapClassRefs(map, ain)).sum();
+            context.classes.values().stream().map(c -> c.getNode().methods).flatMap(List::stream)
+                    .map(m -> m.instructions.toArray()).flatMap(Arrays::stream).mapToInt(ain -> References.remapClassRefs(map, ain)).sum();
     logger.info("{} code references updated successfully!", refs);
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream)
+    context.classes.values().stream().map(c -> c.getNode().methods).flatMap(List::stream)
             .forEach(m -> References.remapMethodType(map, m));
-    classes.values().stream().map(c -> c.node.fields).flatMap(List::stream)
+    context.classes.values().stream().map(c -> c.getNode().fields).flatMap(List::stream)
             .forEach(f -> References.remapFieldType(map, f));
-    classes.values().stream().map(c -> c.node).forEach(c -> References.remapClassType(map, c));
+    context.classes.values().stream().map(c -> c.getNode()).forEach(c -> References.remapClassType(map, c));
+    context.getHierarchy().rename(map);
+    // code and descriptors of every class were changed in place
+    ConstantFrameCache.clear();
     logger.info("Successfully updated remaining references");
     return true;
   }
@@ -3,6 +3,7 @@ package me.nov.threadtear.execution.cleanup;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.Access;
 import org.apache.commons.lang3.StringUtils;
@@ -28,13 +29,13 @@ public class GuessParameterNames extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> map, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     Map<Type, Integer> typesCount = new HashMap<>();
     Map<Type, Integer> typesIndex = new HashMap<>();
     int count = 0;
 
-    for (Clazz clazz : map.values()) {
-      for (MethodNode method : clazz.node.methods) {
+    for (Clazz clazz : context.classes.values()) {
+      for (MethodNode method : clazz.viewNode().methods) {
         // Check if method already contains parameter info
         boolean addParameters = method.parameters == null || method.parameters.isEmpty();
         boolean addLocalVariables = method.localVariables == null || method.localVariables.isEmpty();
@@ -45,6 +46,8 @@ public class GuessParameterNames extends Execution {
         Type[] types = Type.getArgumentTypes(method.desc);
         if (types.length == 0) continue;
 
+        clazz.markModified();
+
         // Get parameter types count
         for (Type type : types) {
           typesCount.compute(type, (t, tCount) -> tCount == null ? 1 : tCount + 1);
@@ -17,16 +17,14 @@ public class InlineMethods extends Execution {
             ExecutionTag.RUNNABLE);
   }
 
-  public int inlines;
-
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     HashMap<String, MethodNode> map = new HashMap<>();
-    classes.values().stream().map(c -> c.node).forEach(c -> c.methods.stream().filter(this::isUnnecessary)
-            .forEach(m -> map.put(c.name + "." + m.name + m.desc, m)));
+    context.classes.values().stream().map(c -> c.viewNode())
+            .forEach(c -> c.methods.stream().filter(this::isUnnecessary)
+                    .forEach(m -> map.put(c.name + "." + m.name + m.desc, m)));
     logger.info("{} unnecessary methods found that could be inlined", map.size());
-    inlines = 0;
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream)
+    context.classes.values().forEach(c -> c.viewNode().methods
             .forEach(m -> m.instructions.forEach(ain -> {
               if (ain.getOpcode() == INVOKESTATIC) { //
                 // can't inline invokevirtual / special
@@ -38,17 +36,19 @@ public class InlineMethods extends Execution {
                   inlineMethod(m, min, map.get(key));
                   m.maxStack = Math.max(map.get(key).maxStack, m.maxStack);
                   m.maxLocals = Math.max(map.get(key).maxLocals, m.maxLocals);
-                  inlines++;
+                  context.increment("inlines");
+                  c.markModified();
                 }
               }
-            }));
+            })));
 
     // map.forEach((key, method) -> classes.get(key
-    // .substring(0, key.lastIndexOf('.'))).node.methods
+    // .substring(0, key.lastIndexOf('.'))).getNode().methods
     // .removeIf(m -> m.equals(method) && !Access
     // .isPublic(method.access)));
-    map.forEach((key, method) -> classes.get(key.substring(0, key.lastIndexOf('.'))).node.methods.remove(method));
-    logger.info("Inlined {} method references!", inlines);
+    map.forEach((key, method) -> context.classes.get(key.substring(0, key.lastIndexOf('.'))).getNode().methods
+            .remove(method));
+    logger.info("Inlined {} method references!", context.count("inlines"));
     return true;
   }
 
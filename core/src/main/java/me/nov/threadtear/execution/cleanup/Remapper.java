@@ -3,15 +3,21 @@ package me.nov.threadtear.execution.cleanup;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.Mappings;
+import me.nov.threadtear.util.asm.ClassHierarchy;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.tree.ClassNode;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class Remapper extends Execution {
   public Remapper() {
@@ -25,7 +31,7 @@ public class Remapper extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> map, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     // Read mappings
     Mappings mappings = readMappings();
 
@@ -35,15 +41,28 @@ public class Remapper extends Execution {
     }
 
     // Remap
-    for (Clazz clazz : map.values()) {
+    Map<String, String> renames = new HashMap<>();
+    List<String> changedSupertypes = new ArrayList<>();
+
+    for (Clazz clazz : context.classes.values()) {
+      ClassNode node = clazz.viewNode();
       ClassNode copy = new ClassNode();
 
       ClassRemapper remapper = new ClassRemapper(copy, mappings);
-      clazz.node.accept(remapper);
+      node.accept(remapper);
+
+      if (!node.name.equals(copy.name)) renames.put(node.name, copy.name);
+      if (!Objects.equals(node.superName, copy.superName) || !node.interfaces.equals(copy.interfaces)) {
+        changedSupertypes.add(copy.name);
+      }
 
-      clazz.node = copy;
+      clazz.setNode(copy);
     }
 
+    ClassHierarchy hierarchy = context.getHierarchy();
+    hierarchy.rename(renames);
+    hierarchy.invalidate(changedSupertypes);
+
     logger.info("Remapped {} names!", mappings.remappedCount);
     return true;
   }
@@ -1,10 +1,10 @@
 package me.nov.threadtear.execution.cleanup.remove;
 
-import java.util.*;
+import org.objectweb.asm.tree.*;
 
 import me.nov.threadtear.execution.*;
 
-public class RemoveAttributes extends Execution {
+public class RemoveAttributes extends ClassLocalExecution {
 
   public RemoveAttributes() {
     super(ExecutionCategory.CLEANING, "Remove attributes", "Removes local variable names and signatures",
@@ -12,13 +12,24 @@ public class RemoveAttributes extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node).forEach(c -> c.signature = null);
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).forEach(m -> {
+  protected void transform(ExecutionContext context, Clazz c) {
+    ClassNode cn = c.viewNode();
+    boolean attributes = cn.signature != null || cn.fields.stream().anyMatch(f -> f.signature != null) ||
+      cn.methods.stream().anyMatch(m -> m.localVariables != null || m.signature != null);
+    if (!attributes) {
+      return;
+    }
+    c.markModified();
+    cn.signature = null;
+    cn.methods.forEach(m -> {
       m.localVariables = null;
       m.signature = null;
     });
-    classes.values().stream().map(c -> c.node.fields).flatMap(List::stream).forEach(f -> f.signature = null);
+    cn.fields.forEach(f -> f.signature = null);
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
     logger.info("Removed all local variable names and generic attributes");
     return true;
   }
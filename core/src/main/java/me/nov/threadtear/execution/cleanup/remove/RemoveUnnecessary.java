@@ -31,29 +31,35 @@ public class RemoveUnnecessary extends Execution implements ICRReferenceHandler
    */
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     logger.info("Simulating stack for every method!");
-    classes.values().stream().map(c -> c.node).forEach(this::optimize);
+    context.classes.values().forEach(this::optimize);
     return false;
   }
 
-  private void optimize(ClassNode cn) {
+  private void optimize(Clazz c) {
+    ClassNode cn = c.viewNode();
     cn.methods.forEach(m -> {
       try {
-        simulateAndRewrite(cn, m);
+        if (simulateAndRewrite(cn, m)) {
+          c.markModified();
+        }
       } catch (Exception e) {
         logger.error("Failed simplification in {}", e, referenceString(cn, m));
       }
     });
   }
 
-  private void simulateAndRewrite(ClassNode cn, MethodNode m) {
+  /**
+   * @return true if the method was changed
+   */
+  private boolean simulateAndRewrite(ClassNode cn, MethodNode m) {
     CodeAnalyzer a = new CodeAnalyzer(new CodeRewriter(this, Access.isStatic(m.access), m.maxLocals, m.desc));
     try {
       a.analyze(cn.name, m);
     } catch (AnalyzerException e) {
       logger.error("Failed stack analysis in " + cn.name + "." + m.name + ":" + e.getMessage());
-      return;
+      return false;
     }
 
     InstructionModifier im = new InstructionModifier();
@@ -105,10 +111,11 @@ public class RemoveUnnecessary extends Execution implements ICRReferenceHandler
           break;
       }
     }
-    im.apply(m);
+    boolean changed = im.apply(m);
     if (m.instructions.size() < size) {
       logger.info(cn.name + " " + m.name);
     }
+    return changed;
   }
 
   private CodeReferenceValue getStackFromTop(Frame<CodeReferenceValue> frame, int i) {
@@ -1,8 +1,9 @@
 package me.nov.threadtear.execution.cleanup.remove;
 
+import me.nov.threadtear.execution.ClassLocalExecution;
 import me.nov.threadtear.execution.Clazz;
-import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.Access;
 import me.nov.threadtear.util.asm.InstructionModifier;
@@ -11,35 +12,34 @@ import org.objectweb.asm.tree.*;
 
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 
-public class RemoveUnusedVariables extends Execution {
+public class RemoveUnusedVariables extends ClassLocalExecution {
   public RemoveUnusedVariables() {
     super(ExecutionCategory.CLEANING, "Remove unused variables", "Removes unused variables",
             ExecutionTag.BETTER_DECOMPILE);
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> map, boolean verbose) {
-    int methodTotal = 0;
-    int methodModified = 0;
-    int removedTotal = 0;
-    final List<ClassNode> classNodes = map.values().stream().map(c -> c.node).collect(Collectors.toList());
-    for (ClassNode clazz : classNodes) {
-      for (MethodNode method : clazz.methods) {
-        methodTotal++;
-        int removed = processMethod(method);
-        removedTotal += removed;
-        if (removed > 0) {
-          methodModified++;
-        }
+  protected void transform(ExecutionContext context, Clazz c) {
+    for (MethodNode method : c.viewNode().methods) {
+      context.increment("methods");
+      int removed = processMethod(method);
+      context.add("removed", removed);
+      if (removed > 0) {
+        context.increment("modified");
+        c.markModified();
       }
     }
-    logger.info("Removed {} unused variables from {}/{} methods.", removedTotal, methodModified, methodTotal);
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
+    logger.info("Removed {} unused variables from {}/{} methods.", context.count("removed"), context.count("modified"),
+            context.count("methods"));
     return true;
   }
 
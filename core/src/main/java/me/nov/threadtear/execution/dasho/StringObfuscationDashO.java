@@ -5,31 +5,32 @@ import me.nov.threadtear.analysis.stack.ConstantValue;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.InstructionModifier;
 import me.nov.threadtear.util.format.Strings;
+import me.nov.threadtear.vm.DecryptionCache;
+import me.nov.threadtear.vm.EmulationException;
+import me.nov.threadtear.vm.Emulator;
 import me.nov.threadtear.vm.IVMReferenceHandler;
+import me.nov.threadtear.vm.Invocation;
 import me.nov.threadtear.vm.Sandbox;
-import me.nov.threadtear.vm.VM;
+import me.nov.threadtear.vm.SandboxSession;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.tree.analysis.Frame;
 
-import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class StringObfuscationDashO extends Execution implements IVMReferenceHandler {
+public class StringObfuscationDashO extends Execution {
 
 
   private static final List<String> DESCS = Arrays.asList("(ILjava/lang/String;)Ljava/lang/String;",
     "(Ljava/lang/String;I)Ljava/lang/String;", "(Ljava/lang/String;II)Ljava/lang/String;");
-  private Map<String, Clazz> classes;
-  private int encrypted;
-  private int decrypted;
-  private boolean verbose;
-  private ClassNode fakeInvocationClone;
 
   public StringObfuscationDashO() {
     super(ExecutionCategory.DASHO, "String obfuscation removal",
@@ -38,56 +39,75 @@ public class StringObfuscationDashO extends Execution implements IVMReferenceHan
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
-    this.encrypted = 0;
-    this.decrypted = 0;
-
-    classes.values().forEach(this::decrypt);
+  public boolean execute(ExecutionContext context) {
+    // the session doesn't initialize classes, decryption classes are isolated from the rest of the input
+    Set<String> decryptionOwners = getDecryptionOwners(context);
+    IVMReferenceHandler handler = name -> {
+      Clazz c = context.classes.get(name);
+      if (c == null) {
+        return null;
+      }
+      return decryptionOwners.contains(name) ? Sandbox.isolatedCopy(c.viewNode(),
+        (owner, desc) -> !owner.matches("java/lang/.*")) : c.viewNode();
+    };
+    try (SandboxSession session = Sandbox.getInvoker().open(handler, false, false)) {
+      context.classes.values().forEach(c -> decrypt(context, session, c));
+    }
+    long encrypted = context.count("encrypted");
     if (encrypted == 0) {
       logger.error("No strings matching DashO 7.3 string obfuscation have been found!");
       return false;
     }
-    float decryptionRatio = Math.round((decrypted / (float) encrypted) * 100);
+    float decryptionRatio = Math.round((context.count("decrypted") / (float) encrypted) * 100);
     logger.info("Of a total " + encrypted + " encrypted strings, " + (decryptionRatio) + "% were " +
-      "successfully decrypted");
+      "successfully decrypted, " + context.count("emulated") + " by emulation");
     return decryptionRatio > 0.25;
   }
 
-  private void decrypt(Clazz c) {
-    ClassNode cn = c.node;
+  private void decrypt(ExecutionContext context, SandboxSession session, Clazz c) {
+    ClassNode cn = c.viewNode();
     logger.collectErrors(c);
     cn.methods.forEach(m -> {
       InstructionModifier modifier = new InstructionModifier();
       loopConstantFrames(cn, m, new BasicReferenceHandler(),
-        (ain, frame) -> tryReplaceMethods(cn, m, modifier, ain, frame));
-      modifier.apply(m);
+        (ain, frame) -> tryReplaceMethods(context, session, cn, m, modifier, ain, frame));
+      if (modifier.apply(m)) {
+        c.markModified();
+      }
     });
   }
 
-  private void tryReplaceMethods(ClassNode cn, MethodNode m, InstructionModifier modifier, AbstractInsnNode ain,
-                                 Frame<ConstantValue> frame) {
+  private void tryReplaceMethods(ExecutionContext context, SandboxSession session, ClassNode cn, MethodNode m,
+                                 InstructionModifier modifier, AbstractInsnNode ain, Frame<ConstantValue> frame) {
     if (ain.getOpcode() == INVOKESTATIC) {
       MethodInsnNode min = (MethodInsnNode) ain;
       if (DESCS.contains(min.desc)) {
         try {
-          encrypted++;
+          context.increment("encrypted");
           Type[] args = Type.getArgumentTypes(min.desc);
           for (int i = 0; i < args.length; i++)
             if (!frame.getStack(frame.getStackSize() - 1 - i).isKnown()) {
-              if (verbose)
+              if (context.verbose)
                 logger.error("Failed to decrypt string in {}", referenceString(cn, m));
               return;
             }
           // strings are not high utf and no high sdev,
           // don't check
-          String realString = invokeProxy(cn, m, min, args, frame);
+          Object[] values = new Object[args.length];
+          for (int i = 0; i < args.length; i++) {
+            values[i] = frame.getStack(frame.getStackSize() - args.length + i).getValue();
+          }
+          DecryptionCache.Key key = DecryptionCache.key(min, values, cn.name + '.' + m.name);
+          String realString = (String) DecryptionCache.get(key);
+          if (realString == null) {
+            realString = emulateOrInvokeProxy(context, session, cn, m, min, values, args, frame);
+            DecryptionCache.put(key, realString);
+          }
           if (realString != null) {
             if (Strings.isHighUTF(realString)) {
               logger.warning("String may have not decrypted correctly in {}", referenceString(cn, m));
             }
-            this.decrypted++;
+            context.increment("decrypted");
 
             InsnList il = new InsnList();
             for (Type arg : args) {
@@ -100,7 +120,7 @@ public class StringObfuscationDashO extends Execution implements IVMReferenceHan
             logger.error("Failed to decrypt string in {}", referenceString(cn, m));
           }
         } catch (Throwable e) {
-          if (verbose) {
+          if (context.verbose) {
             logger.error("Throwable", e);
           }
           logger.error("Failed to decrypt string in {}: {}", referenceString(cn, m), shortStacktrace(e));
@@ -109,44 +129,51 @@ public class StringObfuscationDashO extends Execution implements IVMReferenceHan
     }
   }
 
-  private String invokeProxy(ClassNode cn, MethodNode m, MethodInsnNode min, Type[] args, Frame<ConstantValue> frame)
-    throws Exception {
-    VM vm = VM.constructNonInitializingVM(this);
-    createFakeClone(cn, m, min, args, frame); // create a
+  /**
+   * Emulate the decryption method, only if the emulator doesn't support it a proxy is invoked.
+   */
+  private String emulateOrInvokeProxy(ExecutionContext context, SandboxSession session, ClassNode cn, MethodNode m,
+                                      MethodInsnNode min, Object[] values, Type[] args, Frame<ConstantValue> frame)
+    throws Throwable {
+    try {
+      String realString = (String) getEmulator(context).invoke(min.owner, min.name, min.desc, values,
+        Emulator.frame(cn.name, m.name));
+      context.increment("emulated");
+      return realString;
+    } catch (EmulationException e) {
+      if (!e.canFallBack()) {
+        throw e;
+      }
+      if (context.verbose) {
+        logger.warning("Emulation failed in {}: {}", referenceString(cn, m), e.getMessage());
+      }
+    }
+    return invokeProxy(context, session, cn, m, min, args, frame);
+  }
+
+  private String invokeProxy(ExecutionContext context, SandboxSession session, ClassNode cn, MethodNode m,
+                             MethodInsnNode min, Type[] args, Frame<ConstantValue> frame) throws Throwable {
+    if (!context.classes.containsKey(min.owner))
+      return null;
+    getDecryptionOwners(context).add(min.owner);
+    ClassNode fakeInvocationClone = createFakeClone(context, cn, m, min, args, frame); // create a
     // duplicate of the current class,
     // we need this because dashO checks for
     // stacktrace method name and class
-
-    ClassNode decryptionMethodOwner = classes.get(min.owner).node;
-    if (decryptionMethodOwner == null)
-      return null;
-    vm.explicitlyPreload(fakeInvocationClone); // proxy
-    // class can't contain code in clinit other than the
-    // one we want to run
-    if (!vm.isLoaded(decryptionMethodOwner.name.replace('/', '.'))) // decryption class
-      // could be the same class
-      vm.explicitlyPreload(decryptionMethodOwner, true, (name, desc) -> !name.matches("java/lang/.*"));
-    Class<?> loadedClone = vm.loadClass(fakeInvocationClone.name.replace('/', '.'), true); // load
-    // dupe class
-
-    if (m.name.equals("<init>")) {
-      loadedClone.getDeclaredConstructor().newInstance(); // special case:
-      // constructors have to be invoked by newInstance.
-      // Sandbox.createMethodProxy automatically handles
-      // access and super call
-    } else {
-      for (Method reflectionMethod : loadedClone.getMethods()) {
-        if (reflectionMethod.getName().equals(m.name)) {
-          reflectionMethod.invoke(null);
-          break;
-        }
-      }
+    // decryption classes are shared by the session, only the clone is defined again for every call.
+    // constructors are invoked by creating an instance, Sandbox.createMethodProxy automatically handles access and
+    // super call
+    Invocation invocation = new Invocation(fakeInvocationClone.name, m.name)
+      .read(fakeInvocationClone.name, "proxyReturn");
+    session.invoke(Collections.singleton(fakeInvocationClone), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      throw invocation.getError();
     }
-    return (String) loadedClone.getDeclaredField("proxyReturn").get(null);
+    return (String) invocation.getOutput(0);
   }
 
-  private void createFakeClone(ClassNode cn, MethodNode m, MethodInsnNode min, Type[] args,
-                               Frame<ConstantValue> frame) {
+  private ClassNode createFakeClone(ExecutionContext context, ClassNode cn, MethodNode m, MethodInsnNode min,
+                                    Type[] args, Frame<ConstantValue> frame) {
     ClassNode node = Sandbox.createClassProxy(cn.name);
     InsnList instructions = new InsnList();
     for (int i = 0; i < args.length; i++)
@@ -162,16 +189,22 @@ public class StringObfuscationDashO extends Execution implements IVMReferenceHan
     // string
     if (min.owner.equals(cn.name)) {
       // decryption method is in own class
-      node.methods.add(Sandbox.copyMethod(getMethod(classes.get(min.owner).node, min.name, min.desc)));
+      node.methods.add(Sandbox.copyMethod(getMethod(context.classes.get(min.owner).viewNode(), min.name, min.desc)));
     }
-    fakeInvocationClone = node;
+    return node;
   }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    if (name.equals(fakeInvocationClone.name)) {
-      return fakeInvocationClone;
-    }
-    return classes.containsKey(name) ? classes.get(name).node : null;
+  private Emulator getEmulator(ExecutionContext context) {
+    // like the VM, the emulator does not run static initializers
+    return context.cache("emulator", () -> new Emulator(
+      name -> context.classes.containsKey(name) ? context.classes.get(name).viewNode() : null, false));
+  }
+
+  /**
+   * @return the classes that declare called decryption methods, the session only loads copies of them without calls
+   * to other classes
+   */
+  private Set<String> getDecryptionOwners(ExecutionContext context) {
+    return context.cache("owners", ConcurrentHashMap::newKeySet);
   }
 }
@@ -1,15 +1,11 @@
 package me.nov.threadtear.execution.generic;
 
-import java.util.*;
-
 import org.objectweb.asm.tree.*;
 
 import me.nov.threadtear.execution.*;
 import me.nov.threadtear.util.asm.Instructions;
 
-public class ConvertCompareInstructions extends Execution {
-
-  private int count;
+public class ConvertCompareInstructions extends InstructionPass {
 
   public ConvertCompareInstructions() {
     super(ExecutionCategory.GENERIC, "Remove abnormal compare instructions",
@@ -19,34 +15,45 @@ public class ConvertCompareInstructions extends Execution {
             ExecutionTag.BETTER_DECOMPILE);
   }
 
+  /**
+   * Compare instructions followed by a jump are kept, so the next instruction is inspected.
+   */
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.count = 0;
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).forEach(m -> {
-      for (AbstractInsnNode ain : m.instructions) {
-        AbstractInsnNode next = Instructions.getRealNext(ain);
-        // keep them if they are jvm generated (for loops)
-        if (next != null && next.getType() != AbstractInsnNode.JUMP_INSN) {
-          switch (ain.getOpcode()) {
-            case LCMP:
-              m.instructions.set(ain, new MethodInsnNode(INVOKESTATIC, "java/lang/Long", "compare", "(JJ)I"));
-              count++;
-              continue;
-            case FCMPL:
-            case FCMPG:
-              m.instructions.set(ain, new MethodInsnNode(INVOKESTATIC, "java/lang/Float", "compare", "(FF)I"));
-              count++;
-              continue;
-            case DCMPL:
-            case DCMPG:
-              m.instructions.set(ain, new MethodInsnNode(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I"));
-              count++;
-              continue;
-          }
-        }
-      }
-    });
+  public boolean readsAhead() {
+    return true;
+  }
 
+  @Override
+  protected AbstractInsnNode visitInsn(ExecutionContext context, MethodNode m, AbstractInsnNode ain) {
+    MethodInsnNode invocation;
+    switch (ain.getOpcode()) {
+      case LCMP:
+        invocation = new MethodInsnNode(INVOKESTATIC, "java/lang/Long", "compare", "(JJ)I");
+        break;
+      case FCMPL:
+      case FCMPG:
+        invocation = new MethodInsnNode(INVOKESTATIC, "java/lang/Float", "compare", "(FF)I");
+        break;
+      case DCMPL:
+      case DCMPG:
+        invocation = new MethodInsnNode(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I");
+        break;
+      default:
+        return ain;
+    }
+    AbstractInsnNode next = Instructions.getRealNext(ain);
+    // keep them if they are jvm generated (for loops)
+    if (next == null || next.getType() == AbstractInsnNode.JUMP_INSN) {
+      return ain;
+    }
+    m.instructions.set(ain, invocation);
+    context.increment("converted");
+    return invocation;
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
+    long count = context.count("converted");
     logger.info("Removed " + count + " abnormal dcmp, fcmp and lcmp instructions");
     return count > 0;
   }
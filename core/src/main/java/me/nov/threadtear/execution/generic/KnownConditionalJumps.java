@@ -4,6 +4,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.nov.threadtear.util.asm.Descriptor;
 import org.objectweb.asm.tree.*;
@@ -12,12 +13,8 @@ import org.objectweb.asm.tree.analysis.*;
 import me.nov.threadtear.analysis.stack.*;
 import me.nov.threadtear.execution.*;
 import me.nov.threadtear.util.asm.Instructions;
-import me.nov.threadtear.util.reflection.Casts;
 
-public class KnownConditionalJumps extends Execution {
-
-  private int predictedJumps;
-  private int predictedSwitches;
+public class KnownConditionalJumps extends ClassLocalExecution {
 
   public KnownConditionalJumps() {
     super(ExecutionCategory.GENERIC, "Remove obvious flow obfuscation",
@@ -27,24 +24,22 @@ public class KnownConditionalJumps extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    predictedJumps = 0;
-    predictedSwitches = 0;
-    classes.values().forEach(this::decrypt);
-    logger.info("Removed {} unnecessary conditional jumps and {} unnecessary switches.", predictedJumps, predictedSwitches);
-    return predictedJumps > 0 || predictedSwitches > 0;
-  }
-
-  public void decrypt(Clazz c) {
-    ClassNode cn = c.node;
-    logger.collectErrors(c);
+  protected void transform(ExecutionContext context, Clazz c) {
+    ClassNode cn = c.viewNode();
+    AtomicBoolean changed = new AtomicBoolean();
     cn.methods.forEach(m -> {
       InsnList rewrittenCode = new InsnList();
       Map<LabelNode, LabelNode> labels = Instructions.cloneLabels(m.instructions);
+      AtomicBoolean modified = new AtomicBoolean();
 
       loopConstantFrames(cn, m, new BasicReferenceHandler(), (ain, frame) -> {
-        if (frame == null)
+        if (frame == null) {
+          // unreachable code is dropped
+          if (ain.getType() != AbstractInsnNode.LABEL) {
+            modified.set(true);
+          }
           return;
+        }
         if (ain.getType() == AbstractInsnNode.JUMP_INSN) {
           try {
             int predicted = predictJump(frame, ain.getOpcode());
@@ -53,7 +48,8 @@ public class KnownConditionalJumps extends Execution {
               if (predicted > 0) {
                 rewrittenCode.add(new JumpInsnNode(GOTO, labels.get(((JumpInsnNode) ain).label)));
               }
-              predictedJumps++;
+              modified.set(true);
+              context.increment("jumps");
               return;
             }
           } catch (Exception e) {
@@ -68,7 +64,8 @@ public class KnownConditionalJumps extends Execution {
               int index = lsin.keys.indexOf(input);
               rewrittenCode.add(new InsnNode(POP));
               rewrittenCode.add(new JumpInsnNode(GOTO, labels.get(index == -1 ? lsin.dflt : lsin.labels.get(index))));
-              predictedSwitches++;
+              modified.set(true);
+              context.increment("switches");
               return;
             }
           }
@@ -82,7 +79,8 @@ public class KnownConditionalJumps extends Execution {
               boolean dflt = index < 0 || index > tsin.max;
               rewrittenCode.add(new InsnNode(POP));
               rewrittenCode.add(new JumpInsnNode(GOTO, labels.get(dflt ? tsin.dflt : tsin.labels.get(index))));
-              predictedSwitches++;
+              modified.set(true);
+              context.increment("switches");
               return;
             }
           }
@@ -90,10 +88,29 @@ public class KnownConditionalJumps extends Execution {
         rewrittenCode.add(ain.clone(labels));
       });
       if (rewrittenCode.size() > 0) {
-        Instructions.updateInstructions(m, labels, rewrittenCode);
+        // keep unchanged methods, so their analysis can be reused
+        if (modified.get()) {
+          Instructions.updateInstructions(m, labels, rewrittenCode);
+          changed.set(true);
+        }
+        int size = m.instructions.size();
         Instructions.removeDeadCode(cn, m);
+        if (size != m.instructions.size()) {
+          changed.set(true);
+        }
       }
     });
+    if (changed.get()) {
+      c.markModified();
+    }
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
+    long jumps = context.count("jumps");
+    long switches = context.count("switches");
+    logger.info("Removed {} unnecessary conditional jumps and {} unnecessary switches.", jumps, switches);
+    return jumps > 0 || switches > 0;
   }
 
   private int predictJump(Frame<ConstantValue> frame, int op) {
@@ -102,43 +119,41 @@ public class KnownConditionalJumps extends Execution {
     ConstantValue up = frame.getStack(frame.getStackSize() - 1);
     if (!up.isKnown())
       return 0;
-    Object upperVal = up.getValue();
     switch (op) {
       case IFEQ:
-        return Casts.toInteger(upperVal) == 0 ? 1 : -1;
+        return up.intValue() == 0 ? 1 : -1;
       case IFNE:
-        return Casts.toInteger(upperVal) != 0 ? 1 : -1;
+        return up.intValue() != 0 ? 1 : -1;
       case IFNULL:
-        return upperVal.equals(ConstantTracker.NULL) ? 1 : -1;
+        return up.getValue().equals(ConstantTracker.NULL) ? 1 : -1;
       case IFNONNULL:
-        return !upperVal.equals(ConstantTracker.NULL) ? 1 : -1;
+        return !up.getValue().equals(ConstantTracker.NULL) ? 1 : -1;
       case IFGT:
-        return Casts.toInteger(upperVal) > 0 ? 1 : -1;
+        return up.intValue() > 0 ? 1 : -1;
       case IFGE:
-        return Casts.toInteger(upperVal) >= 0 ? 1 : -1;
+        return up.intValue() >= 0 ? 1 : -1;
       case IFLT:
-        return Casts.toInteger(upperVal) < 0 ? 1 : -1;
+        return up.intValue() < 0 ? 1 : -1;
       case IFLE:
-        return Casts.toInteger(upperVal) <= 0 ? 1 : -1;
+        return up.intValue() <= 0 ? 1 : -1;
     }
     if (frame.getStackSize() >= 2) {
       ConstantValue low = frame.getStack(frame.getStackSize() - 2);
       if (!low.isKnown())
         return 0;
-      Object lowerVal = low.getValue();
       switch (op) {
         case IF_ICMPEQ:
-          return upperVal.equals(lowerVal) ? 2 : -2;
+          return up.intValue() == low.intValue() ? 2 : -2;
         case IF_ICMPNE:
-          return upperVal.equals(lowerVal) ? -2 : 2;
+          return up.intValue() == low.intValue() ? -2 : 2;
         case IF_ICMPLT:
-          return Casts.toInteger(lowerVal) < Casts.toInteger(upperVal) ? 2 : -2;
+          return low.intValue() < up.intValue() ? 2 : -2;
         case IF_ICMPGE:
-          return Casts.toInteger(lowerVal) >= Casts.toInteger(upperVal) ? 2 : -2;
+          return low.intValue() >= up.intValue() ? 2 : -2;
         case IF_ICMPGT:
-          return Casts.toInteger(lowerVal) > Casts.toInteger(upperVal) ? 2 : -2;
+          return low.intValue() > up.intValue() ? 2 : -2;
         case IF_ICMPLE:
-          return Casts.toInteger(lowerVal) <= Casts.toInteger(upperVal) ? 2 : -2;
+          return low.intValue() <= up.intValue() ? 2 : -2;
         case IF_ACMPEQ:
           return up.equals(low) ? 2 : -2;
         case IF_ACMPNE:
@@ -17,15 +17,26 @@ public class ObfuscatedAccess extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).filter(this::shouldRemove)
-            .forEach(m -> m.access = Access.removeAccess(m.access, ACC_SYNTHETIC, ACC_BRIDGE, ACC_DEPRECATED));
-    classes.values().stream().map(c -> c.node.fields).flatMap(List::stream).filter(this::shouldRemove)
-            .forEach(f -> f.access = Access.removeAccess(f.access, ACC_SYNTHETIC, ACC_BRIDGE, ACC_DEPRECATED));
+  public boolean execute(ExecutionContext context) {
+    context.classes.values().forEach(c -> {
+      ClassNode cn = c.viewNode();
+      cn.methods.stream().filter(this::shouldRemove).filter(m -> removeAccess(m.access) != m.access).forEach(m -> {
+        c.markModified();
+        m.access = removeAccess(m.access);
+      });
+      cn.fields.stream().filter(this::shouldRemove).filter(f -> removeAccess(f.access) != f.access).forEach(f -> {
+        c.markModified();
+        f.access = removeAccess(f.access);
+      });
+    });
     logger.info("Removed every synthetic, bridge and deprecated access");
     return true;
   }
 
+  private static int removeAccess(int access) {
+    return Access.removeAccess(access, ACC_SYNTHETIC, ACC_BRIDGE, ACC_DEPRECATED);
+  }
+
   public boolean shouldRemove(FieldNode fn) {
     return !(Access.isFinal(fn.access) && fn.name.matches("(val\\$|this\\$).*"));
   }
@@ -13,9 +13,6 @@ import me.nov.threadtear.util.asm.Instructions;
  */
 public class TryCatchObfuscationRemover extends Execution {
 
-  private Map<String, Clazz> classes;
-  private boolean verbose;
-
   public TryCatchObfuscationRemover() {
     super(ExecutionCategory.GENERIC, "Remove unnecessary try catch blocks",
       "Remove try catch block flow obfuscation.<br>Makes decompiling a lot easier.",
@@ -23,55 +20,65 @@ public class TryCatchObfuscationRemover extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
+  public boolean execute(ExecutionContext context) {
     logger.info("Removing redundant try catch blocks");
     // TODO: recursive scan to check if catch type is ever thrown
-    long tcbs = getAmountBlocks();
-    classes.values().stream().map(c -> c.node).forEach(c -> checkTCBs(c, c.methods));
-    long amount = (tcbs - getAmountBlocks());
+    long tcbs = getAmountBlocks(context);
+    context.classes.values().forEach(c -> {
+      ClassNode cn = c.viewNode();
+      if (checkTCBs(context, cn, cn.methods)) {
+        c.markModified();
+      }
+    });
+    long amount = (tcbs - getAmountBlocks(context));
     logger.info("Finished, removed {} blocks of {} total blocks!", amount, tcbs);
     return amount > 0;
   }
 
-  private long getAmountBlocks() {
-    return classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.tryCatchBlocks)
-      .mapToLong(List::size).sum();
+  private long getAmountBlocks(ExecutionContext context) {
+    return context.classes.values().stream().map(c -> c.viewNode().methods).flatMap(List::stream)
+      .map(m -> m.tryCatchBlocks).mapToLong(List::size).sum();
   }
 
-  public void checkTCBs(ClassNode c, List<MethodNode> methods) {
-    methods.forEach(m -> {
-      m.tryCatchBlocks.removeIf(this::isFake);
-      m.tryCatchBlocks.removeIf(tcb -> isNonsense(m, tcb));
+  /**
+   * @return true if any of the methods was changed
+   */
+  public boolean checkTCBs(ExecutionContext context, ClassNode c, List<MethodNode> methods) {
+    boolean changed = false;
+    for (MethodNode m : methods) {
+      int size = m.instructions.size();
+      changed |= m.tryCatchBlocks.removeIf(tcb -> isFake(context, tcb));
+      changed |= m.tryCatchBlocks.removeIf(tcb -> isNonsense(m, tcb));
       Instructions.removeDeadCode(c, m);
-    });
+      changed |= size != m.instructions.size();
+    }
+    return changed;
   }
 
   private boolean isNonsense(MethodNode mn, TryCatchBlockNode tcbn) {
     return tcbn.start == tcbn.end || mn.instructions.indexOf(tcbn.start) >= mn.instructions.indexOf(tcbn.end);
   }
 
-  public boolean isFake(TryCatchBlockNode tcbn) {
+  public boolean isFake(ExecutionContext context, TryCatchBlockNode tcbn) {
     AbstractInsnNode ain = Instructions.getRealNext(tcbn.handler);
     if (ain == null || ain.getOpcode() == ATHROW) {
       return true;
     } else if (ain.getType() == AbstractInsnNode.METHOD_INSN && ain.getNext().getOpcode() == ATHROW) {
       MethodInsnNode min = (MethodInsnNode) ain;
-      Clazz clazz = classes.get(min.owner);
+      Clazz clazz = context.classes.get(min.owner);
       if (clazz == null) {
-        if (verbose)
+        if (context.verbose)
           logger.warning("Class {} not found, possibly library", min.owner);
         return false;
       }
-      MethodNode getter = getMethod(clazz.node, min.name, min.desc);
+      MethodNode getter = getMethod(clazz.viewNode(), min.name, min.desc);
       if (getter == null) {
-        if (verbose)
+        if (context.verbose)
           logger.warning("Getter {} not found, possibly library", min.owner + "." + min.name + min.desc);
         return false;
       }
       if ((getter.access & ACC_NATIVE) != 0) {
-        if (verbose)
+        if (context.verbose)
           logger.warning("Getter {} is a native method, skipping", min.owner + "." + min.name + min.desc);
         return false;
       }
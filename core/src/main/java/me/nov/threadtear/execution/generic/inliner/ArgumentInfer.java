@@ -5,7 +5,7 @@ import me.nov.threadtear.analysis.stack.ConstantValue;
 import me.nov.threadtear.analysis.stack.IConstantReferenceHandler;
 import me.nov.threadtear.logging.LogWrapper;
 import me.nov.threadtear.util.asm.Access;
-import me.nov.threadtear.util.asm.Mapping;
+import me.nov.threadtear.util.asm.CallGraph;
 import me.nov.threadtear.util.asm.method.MethodContext;
 import me.nov.threadtear.util.asm.method.MethodSignature;
 import me.nov.threadtear.vm.Sandbox;
@@ -28,12 +28,12 @@ import java.util.stream.IntStream;
  * @author ViRb3
  */
 public class ArgumentInfer implements IConstantReferenceHandler, Opcodes {
-  private final Map<MethodNode, List<MethodContext>> references;
+  private final CallGraph callGraph;
   private final Map<MethodNode, List<ConstantValue>> cache;
   private HashSet<MethodNode> trace;
 
-  public ArgumentInfer(List<ClassNode> classes) {
-    this.references = Mapping.getMethodReferences(classes);
+  public ArgumentInfer(CallGraph callGraph) {
+    this.callGraph = callGraph;
     this.cache = new HashMap<>();
   }
 
@@ -75,13 +75,18 @@ public class ArgumentInfer implements IConstantReferenceHandler, Opcodes {
     }
     trace.add(method);
 
-    final List<MethodContext> callerCtxs = references.get(method);
-    if (callerCtxs == null) {
+    // only calls that name the method itself are matched by getMatchingArgs
+    final List<MethodContext> callerCtxs = callGraph.getCallers(method, CallGraph.DIRECT);
+    if (callerCtxs.isEmpty()) {
       return new ArrayList<>();
     }
     Map<MethodNode, List<ConstantValue>> result = new HashMap<>();
     for (MethodContext callerCtx : callerCtxs) {
-      result.put(callerCtx.getMethod(), infer(methodCtx, callerCtx));
+      //TODO: Method calling itself is still
+      // technically valid
+      if (callerCtx.getMethod() != method) {
+        result.put(callerCtx.getMethod(), infer(methodCtx, callerCtx));
+      }
     }
 
     final List<ConstantValue> args = getCommonArgs(result);
@@ -131,9 +136,8 @@ public class ArgumentInfer implements IConstantReferenceHandler, Opcodes {
       if (args.size() == 1) {
         result.set(i, args.iterator().next());
       } else {
-        ConstantValue unknown = result.get(i);
-        unknown.setValue(null);
-        result.set(i, unknown);
+        // values are immutable and shared with the analyzed frames
+        result.set(i, ConstantValue.unknown(result.get(i).getType()));
       }
     }
     return result;
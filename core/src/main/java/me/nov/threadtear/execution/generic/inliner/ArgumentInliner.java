@@ -3,14 +3,14 @@ package me.nov.threadtear.execution.generic.inliner;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.method.MethodContext;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 public class ArgumentInliner extends Execution {
 
@@ -20,16 +20,18 @@ public class ArgumentInliner extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    final List<ClassNode> classNodes = classes.values().stream().map(c -> c.node).collect(Collectors.toList());
-    ArgumentInfer argumentInfer = new ArgumentInfer(classNodes);
+  public boolean execute(ExecutionContext context) {
+    final List<Clazz> classes = new ArrayList<>(context.classes.values());
+    ArgumentInfer argumentInfer = new ArgumentInfer(context.getCallGraph());
     int inlined = 0;
     int total = 0;
-    for (ClassNode clazz : classNodes) {
+    for (Clazz c : classes) {
+      ClassNode clazz = c.viewNode();
       for (MethodNode method : clazz.methods) {
         total++;
         if (argumentInfer.inline(new MethodContext(clazz, method))) {
           inlined++;
+          c.markModified();
         }
       }
     }
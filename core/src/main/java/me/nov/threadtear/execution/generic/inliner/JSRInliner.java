@@ -1,13 +1,13 @@
 package me.nov.threadtear.execution.generic.inliner;
 
-import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 import org.objectweb.asm.tree.MethodNode;
 
-import java.util.Map;
+import java.util.stream.StreamSupport;
 
 public class JSRInliner extends Execution {
 
@@ -18,16 +18,20 @@ public class JSRInliner extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().forEach(c -> {
-      for (int i = 0; i < c.node.methods.size(); i++) {
-        MethodNode mn = c.node.methods.get(i);
+  public boolean execute(ExecutionContext context) {
+    context.classes.values().forEach(c -> {
+      for (int i = 0; i < c.viewNode().methods.size(); i++) {
+        MethodNode mn = c.viewNode().methods.get(i);
+        if (StreamSupport.stream(mn.instructions.spliterator(), false)
+          .noneMatch(ain -> ain.getOpcode() == JSR || ain.getOpcode() == RET)) {
+          continue;
+        }
         try {
           JSRInlinerAdapter adapter = new JSRInlinerAdapter(mn, mn.access, mn.name, mn.desc, mn.signature, mn.exceptions.toArray(new String[0]));
           mn.accept(adapter);
-          c.node.methods.set(i, mn);
+          c.getNode().methods.set(i, mn);
         } catch (Throwable t) {
-          logger.error("Failed to inline JSRs in {}", t, referenceString(c.node, mn));
+          logger.error("Failed to inline JSRs in {}", t, referenceString(c.viewNode(), mn));
         }
       }
     });
@@ -2,6 +2,8 @@ package me.nov.threadtear.execution.paramorphism;
 
 import java.util.*;
 
+import org.objectweb.asm.tree.ClassNode;
+
 import me.nov.threadtear.execution.*;
 
 public class BadAttributeRemover extends Execution {
@@ -12,8 +14,8 @@ public class BadAttributeRemover extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node).forEach(c -> {
+  public boolean execute(ExecutionContext context) {
+    context.classes.values().stream().filter(c -> hasAttributes(c.viewNode())).map(c -> c.getNode()).forEach(c -> {
       c.innerClasses = new ArrayList<>();
       c.outerClass = null;
       c.outerMethod = null;
@@ -23,4 +25,9 @@ public class BadAttributeRemover extends Execution {
     logger.info("Removed all inner and outer class attributes.");
     return true;
   }
+
+  private static boolean hasAttributes(ClassNode cn) {
+    return (cn.innerClasses != null && !cn.innerClasses.isEmpty()) || cn.outerClass != null || cn.outerMethod != null ||
+      cn.outerMethodDesc != null;
+  }
 }
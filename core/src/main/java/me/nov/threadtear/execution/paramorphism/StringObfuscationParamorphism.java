@@ -3,23 +3,19 @@ package me.nov.threadtear.execution.paramorphism;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.logging.LogWrapper;
 import me.nov.threadtear.util.format.Strings;
-import me.nov.threadtear.vm.IVMReferenceHandler;
+import me.nov.threadtear.vm.DecryptionCache;
+import me.nov.threadtear.vm.Invocation;
 import me.nov.threadtear.vm.Sandbox;
-import me.nov.threadtear.vm.VM;
+import me.nov.threadtear.vm.SandboxSession;
 import org.objectweb.asm.tree.*;
 
-import java.lang.reflect.Method;
-import java.util.Map;
+import java.util.Collections;
 
-public class StringObfuscationParamorphism extends Execution implements IVMReferenceHandler {
-  private boolean verbose;
-  private Map<String, Clazz> classes;
-  private int encrypted;
-  private int decrypted;
-  private VM vm;
+public class StringObfuscationParamorphism extends Execution {
 
   public StringObfuscationParamorphism() {
     super(ExecutionCategory.PARAMORPHISM, "String obfuscation removal",
@@ -28,39 +24,44 @@ public class StringObfuscationParamorphism extends Execution implements IVMRefer
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
-    this.encrypted = 0;
-    this.decrypted = 0;
-    this.vm = VM.constructVM(this);
-    classes.values().forEach(this::decrypt);
+  public boolean execute(ExecutionContext context) {
+    try (SandboxSession session = Sandbox.getInvoker().open(name -> tryClassLoad(context, name), true, false)) {
+      context.classes.values().forEach(c -> decrypt(context, session, c));
+    }
+    long encrypted = context.count("encrypted");
     if (encrypted == 0) {
       logger.error("No strings matching Paramorphism 2.1 string obfuscation have been found!");
       return false;
     }
-    float decryptionRatio = Math.round((decrypted / (float) encrypted) * 100);
+    float decryptionRatio = Math.round((context.count("decrypted") / (float) encrypted) * 100);
     logger.info("Of a total {} encrypted strings, {}% were successfully decrypted", encrypted, decryptionRatio);
     return decryptionRatio > 0.25;
   }
 
-  private void decrypt(Clazz c) {
+  private void decrypt(ExecutionContext context, SandboxSession session, Clazz c) {
     logger.collectErrors(c);
-    ClassNode cn = c.node;
+    ClassNode cn = c.viewNode();
     cn.methods.forEach(m -> {
       for (int i = 0; i < m.instructions.size(); i++) {
         AbstractInsnNode ain = m.instructions.get(i);
         if (ain.getOpcode() == INVOKESTATIC) {
           MethodInsnNode min = (MethodInsnNode) ain;
-          if (min.desc.equals("()Ljava/lang/String;") && classes.containsKey(min.owner)) {
-            if (classes.get(min.owner).node.fields.stream().filter(f -> f.desc.equals("Ljava/util/Map;")).count() > 5) {
-              encrypted++;
-              String string = invokeVM(cn, m, min);
+          if (min.desc.equals("()Ljava/lang/String;") && context.classes.containsKey(min.owner)) {
+            if (context.classes.get(min.owner).viewNode().fields.stream()
+              .filter(f -> f.desc.equals("Ljava/util/Map;")).count() > 5) {
+              context.increment("encrypted");
+              DecryptionCache.Key key = DecryptionCache.key(min, null, cn.name + '.' + m.name);
+              String string = (String) DecryptionCache.get(key);
+              if (string == null) {
+                string = invokeVM(context, session, cn, m, min);
+                DecryptionCache.put(key, string);
+              }
               if (string != null) {
                 if (Strings.isHighUTF(string)) {
                   logger.warning("String may have not decrypted correctly in {}", referenceString(cn, m));
                 }
-                this.decrypted++;
+                context.increment("decrypted");
+                c.markModified();
                 m.instructions.set(ain, new LdcInsnNode(string));
               }
             }
@@ -70,7 +71,8 @@ public class StringObfuscationParamorphism extends Execution implements IVMRefer
     });
   }
 
-  private String invokeVM(ClassNode cn, MethodNode m, MethodInsnNode min) {
+  private String invokeVM(ExecutionContext context, SandboxSession session, ClassNode cn, MethodNode m,
+                          MethodInsnNode min) {
     ClassNode proxy = Sandbox.createClassProxy(cn.name); // paramorphism
     // checks for method name and class name
 
@@ -79,26 +81,22 @@ public class StringObfuscationParamorphism extends Execution implements IVMRefer
     invoker.add(new InsnNode(ARETURN)); // return callsite
     String name = m.name.startsWith("<") ? '\0' + m.name : m.name;
     proxy.methods.add(Sandbox.createMethodProxy(invoker, name, min.desc)); // same desc
-    if (!vm.isLoaded(proxy.name.replace('/', '.')))
-      vm.explicitlyPreload(proxy, true); // we need no
-    // clinit here
-    try {
-      Class<?> loadedProxy = vm.loadClass(proxy.name.replace('/', '.'));
-      Method stringGetterBridge = loadedProxy.getDeclaredMethods()[0];
-      return (String) stringGetterBridge.invoke(null);
-    } catch (Throwable e) {
-      if (verbose)
-        LogWrapper.logger.error("Throwable", e);
+    // the proxy has no clinit, it is defined again for every call as it is named after the calling method
+    Invocation invocation = new Invocation(proxy.name, name);
+    session.invoke(Collections.singleton(proxy), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      if (context.verbose)
+        LogWrapper.logger.error("Throwable", invocation.getError());
+      return null;
     }
-    return null;
+    return (String) invocation.getResult();
   }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    if (classes.containsKey(name)) {
-      return classes.get(name).node;
+  private ClassNode tryClassLoad(ExecutionContext context, String name) {
+    if (context.classes.containsKey(name)) {
+      return context.classes.get(name).viewNode();
     }
-    if (verbose)
+    if (context.verbose)
       logger.warning("Unresolved: {}, decryption might fail", name);
     return null;
   }
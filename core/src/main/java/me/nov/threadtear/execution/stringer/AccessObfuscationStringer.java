@@ -3,10 +3,11 @@ package me.nov.threadtear.execution.stringer;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.logging.LogWrapper;
 import me.nov.threadtear.util.reflection.DynamicReflection;
-import me.nov.threadtear.vm.IVMReferenceHandler;
+import me.nov.threadtear.vm.InvocationRunner;
 import me.nov.threadtear.vm.Sandbox;
 import me.nov.threadtear.vm.VM;
 import org.objectweb.asm.Handle;
@@ -20,18 +21,12 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.math.BigInteger;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class AccessObfuscationStringer extends Execution implements IVMReferenceHandler {
+public class AccessObfuscationStringer extends Execution {
 
   private static final String STRINGER_INVOKEDYNAMIC_HANDLE_DESC =
     "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
-  private Map<String, Clazz> classes;
-  private int index;
-  private int encrypted;
-  private int decrypted;
-  private boolean verbose;
-  private VM vm;
 
   public AccessObfuscationStringer() {
     super(ExecutionCategory.STRINGER, "Access obfuscation removal",
@@ -40,35 +35,32 @@ public class AccessObfuscationStringer extends Execution implements IVMReference
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
-
-    this.encrypted = 0;
-    this.decrypted = 0;
+  public boolean execute(ExecutionContext context) {
     logger.info("Decrypting all invokedynamic references");
     logger.warning("Make sure all required libraries or dynamic classes are in the jar itself, or else some" +
       " invokedynamics cannot be deobfuscated!");
 
-    this.vm = VM.constructVM(this); // can't use
+    VM vm = VM.constructVM(name -> tryClassLoad(context, name)); // can't use
     // non-initializing as decryption class needs <clinit>
 //    vm.setDummyLoading(true);
-    classes.values().forEach(this::decrypt);
+    context.classes.values().forEach(c -> decrypt(context, vm, c));
+    long encrypted = context.count("encrypted");
     if (encrypted == 0) {
       logger.error("No access obfuscation matching stringer 3 - 9 has been found!");
       return false;
     }
-    float decryptionRatio = Math.round((decrypted / (float) encrypted) * 100);
+    float decryptionRatio = Math.round((context.count("decrypted") / (float) encrypted) * 100);
     logger.errorIf("Of a total {} encrypted references, {}% were successfully decrypted", decryptionRatio <= 0.25,
       encrypted, decryptionRatio);
     return decryptionRatio > 0.25;
   }
 
-  private void decrypt(Clazz c) {
+  private void decrypt(ExecutionContext context, VM vm, Clazz c) {
     logger.collectErrors(c);
-    ClassNode cn = c.node;
+    ClassNode cn = c.viewNode();
     try {
-      ClassNode proxy = Sandbox.createClassProxy("Proxy" + (index++)); // can't use real class name here
+      int index = context.cache("proxyIndex", AtomicInteger::new).getAndIncrement();
+      ClassNode proxy = Sandbox.createClassProxy("Proxy" + index); // can't use real class name here
       proxy.sourceFile = cn.name + ".java";
       cn.methods.stream().filter(m -> m.desc.equals(STRINGER_INVOKEDYNAMIC_HANDLE_DESC))
         .forEach(m -> proxy.methods.add(m));
@@ -82,24 +74,26 @@ public class AccessObfuscationStringer extends Execution implements IVMReference
             if (idin.bsm != null) {
               Handle bsm = idin.bsm;
               if (bsm.getOwner().equals(cn.name) && bsm.getDesc().equals(STRINGER_INVOKEDYNAMIC_HANDLE_DESC)) {
-                encrypted++;
+                context.increment("encrypted");
                 try {
-                  allowReflection(true);
-                  CallSite callsite = loadCallSiteFromVM(proxyClass, idin, bsm);
+                  allowReflection(vm, true);
+                  CallSite callsite = loadCallSiteFromVM(context, vm, proxyClass, idin, bsm);
                   if (callsite != null) {
                     MethodHandleInfo methodInfo = DynamicReflection.revealMethodInfo(callsite.getTarget());
+                    c.markModified();
                     m.instructions.set(ain, DynamicReflection.getInstructionFromHandleInfo(methodInfo));
-                    decrypted++;
+                    context.increment("decrypted");
                   }
-                  allowReflection(false);
                 } catch (Throwable t) {
-                  if (verbose) {
+                  if (context.verbose) {
                     logger.error("Throwable", t);
                   }
                   logger.error("Failed to get callsite using classloader in {}, {}", referenceString(cn, m),
                     shortStacktrace(t));
+                } finally {
+                  allowReflection(vm, false);
                 }
-              } else if (verbose) {
+              } else if (context.verbose) {
                 logger.warning(
                   "Other bootstrap type in " + cn.name + ": " + bsm + " " + bsm.getOwner().equals(cn.name) + " " +
                     bsm.getDesc().equals(STRINGER_INVOKEDYNAMIC_HANDLE_DESC));
@@ -109,22 +103,24 @@ public class AccessObfuscationStringer extends Execution implements IVMReference
         }
       });
     } catch (Throwable t) {
-      if (verbose) {
+      if (context.verbose) {
         logger.error("Throwable", t);
       }
       logger.error("Failed load proxy for {}, {}", referenceString(cn, null), shortStacktrace(t));
     }
   }
 
-  private CallSite loadCallSiteFromVM(Class<?> proxyClass, InvokeDynamicInsnNode idin, Handle bsm) throws Throwable {
+  private CallSite loadCallSiteFromVM(ExecutionContext context, VM vm, Class<?> proxyClass, InvokeDynamicInsnNode idin,
+                                      Handle bsm) throws Throwable {
     Method bootstrap = proxyClass.getDeclaredMethod(bsm.getName(), Object.class, Object.class, Object.class);
     try {
-      return (CallSite) bootstrap
-        .invoke(null, MethodHandles.lookup(), idin.name, MethodType.fromMethodDescriptorString(idin.desc, vm));
+      MethodType type = MethodType.fromMethodDescriptorString(idin.desc, vm);
+      return (CallSite) InvocationRunner.call(bsm.getOwner(),
+        () -> bootstrap.invoke(null, MethodHandles.lookup(), idin.name, type));
     } catch (IllegalArgumentException e) {
       LogWrapper.logger.error("One or more classes not in jar file: {}, cannot decrypt!", idin.desc);
     } catch (Exception e) {
-      if (verbose)
+      if (context.verbose)
         LogWrapper.logger.error("CallSite exception", e);
     }
     return null;
@@ -147,19 +143,18 @@ public class AccessObfuscationStringer extends Execution implements IVMReference
     return false;
   }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    if (classes.containsKey(name)) {
-      ClassNode node = classes.get(name).node;
+  private ClassNode tryClassLoad(ExecutionContext context, String name) {
+    if (context.classes.containsKey(name)) {
+      ClassNode node = context.classes.get(name).viewNode();
       if (keepInitializer(node)) {
         return node;
       }
-      // this is necessary because bootstrap class initializes the classes with Class.forName
+      // this is necessary because bootstrap class initializes the context.classes with Class.forName
       ClassNode clazz = Sandbox.fullClassProxy(node);
       clazz.methods.removeIf(m -> m.name.equals("<clinit>"));
       return clazz;
     }
-    if (verbose)
+    if (context.verbose)
       logger.warning("Unresolved: {}, decryption might fail", name);
     return null;
   }
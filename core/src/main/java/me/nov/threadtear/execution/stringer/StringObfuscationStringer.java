@@ -1,6 +1,5 @@
 package me.nov.threadtear.execution.stringer;
 
-import java.lang.reflect.*;
 import java.util.*;
 
 import org.objectweb.asm.Type;
@@ -14,14 +13,10 @@ import me.nov.threadtear.util.format.Strings;
 import me.nov.threadtear.util.reflection.Casts;
 import me.nov.threadtear.vm.*;
 
-public class StringObfuscationStringer extends Execution implements IVMReferenceHandler, IConstantReferenceHandler {
+public class StringObfuscationStringer extends Execution {
 
   private static final String STRINGER_DECRPYTION_METHOD_DESC_REGEX =
           "\\(Ljava/lang/Object;[^\\[L]?[^\\[L]?[^\\[L]?[^\\[L]?\\)Ljava/lang/String;";
-  private Map<String, Clazz> classes;
-  private int encrypted;
-  private int decrypted;
-  private boolean verbose;
 
   public StringObfuscationStringer() {
     super(ExecutionCategory.STRINGER, "String obfuscation removal",
@@ -52,144 +47,285 @@ public class StringObfuscationStringer extends Execution implements IVMReference
    */
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
-    this.encrypted = 0;
-    this.decrypted = 0;
-    if (classes.values().stream().anyMatch(c -> c.oldEntry.getExtra() != null && c.oldEntry.getExtra().length > 0)) {
+  public boolean execute(ExecutionContext context) {
+    if (context.classes.values().stream()
+      .anyMatch(c -> c.oldEntry.getExtra() != null && c.oldEntry.getExtra().length > 0)) {
       logger.warning("The file has a stringer signature, please patch first!");
       try {
         Thread.sleep(1000);
       } catch (InterruptedException e) {
       }
     }
-    classes.values().forEach(this::decrypt);
+    IVMReferenceHandler classes = name -> context.classes.containsKey(name) ? context.classes.get(name).viewNode() :
+      null;
+    Emulator emulator = new Emulator(classes, true);
+    // decryption classes are shared by the session, only the proxies are defined again for every call
+    try (SandboxSession session = Sandbox.getInvoker().open(classes, true, true)) {
+      context.classes.values().forEach(c -> decrypt(context, emulator, session, c));
+    }
+    long encrypted = context.count("encrypted");
     if (encrypted == 0) {
       logger.error("No strings matching stringer 9 string obfuscation have been found!");
       return false;
     }
-    float decryptionRatio = Math.round((decrypted / (float) encrypted) * 100);
-    logger.info("Of a total {} encrypted strings, {}% were successfully decrypted", encrypted, decryptionRatio);
+    float decryptionRatio = Math.round((context.count("decrypted") / (float) encrypted) * 100);
+    logger.info("Of a total {} encrypted strings, {}% were successfully decrypted, {} by emulation and the rest " +
+      "in {} batches", encrypted, decryptionRatio, context.count("emulated"), context.count("batches"));
     return decryptionRatio > 0.25;
   }
 
-  private void decrypt(Clazz c) {
+  private void decrypt(ExecutionContext context, Emulator emulator, SandboxSession session, Clazz c) {
     logger.collectErrors(c);
-    ClassNode cn = c.node;
-    cn.methods.forEach(m -> {
-      InsnList rewrittenCode = new InsnList();
-      Map<LabelNode, LabelNode> labels = Instructions.cloneLabels(m.instructions);
-
-      // as we can't add instructions because frame index
-      // and instruction index
-      // wouldn't fit together anymore we have to do it
-      // this way
-      loopConstantFrames(cn, m, this, (ain, frame) -> {
-        for (AbstractInsnNode newInstr : tryReplaceMethods(cn, m, ain, frame)) {
-          rewrittenCode.add(newInstr.clone(labels));
+    ClassNode cn = c.viewNode();
+    StringerReferenceHandler handler = new StringerReferenceHandler(context);
+    List<CallSite> sites = new ArrayList<>();
+    cn.methods.forEach(m -> loopConstantFrames(cn, m, handler, (ain, frame) -> {
+      if (ain.getOpcode() == INVOKESTATIC &&
+        ((MethodInsnNode) ain).desc.matches(STRINGER_DECRPYTION_METHOD_DESC_REGEX)) {
+        context.increment("encrypted");
+        CallSite site = createCallSite(context, cn, m, (MethodInsnNode) ain, frame);
+        if (site != null) {
+          sites.add(site);
+        } else {
+          logger.error("Failed to decrypt string or false call in {}", referenceString(cn, m));
         }
-      });
-      if (rewrittenCode.size() > 0) {
-        Instructions.updateInstructions(m, labels, rewrittenCode);
       }
-    });
-  }
-
-  private AbstractInsnNode[] tryReplaceMethods(ClassNode cn, MethodNode m, AbstractInsnNode ain,
-                                               Frame<ConstantValue> frame) {
-    if (ain.getOpcode() == INVOKESTATIC) {
-      MethodInsnNode min = (MethodInsnNode) ain;
-      if (min.desc.matches(STRINGER_DECRPYTION_METHOD_DESC_REGEX)) {
-        try {
-          encrypted++;
-          allowReflection(true);
-          String realString = invokeProxy(cn, m, min, frame);
-          allowReflection(false);
-          if (realString != null) {
-            if (Strings.isHighUTF(realString)) {
-              logger.warning("String may have not decrypted correctly in {}", referenceString(cn, m));
-            }
-            this.decrypted++;
-            return new AbstractInsnNode[]{min, new InsnNode(POP), new LdcInsnNode(realString)};
-          } else {
-            logger.error("Failed to decrypt string or false call in {}", referenceString(cn, m));
-          }
-        } catch (Throwable e) {
-          if (verbose) {
-            logger.error("Throwable", e);
-          }
-          logger.error("Failed to decrypt string in {}, {}", referenceString(cn, m), shortStacktrace(e));
+    }));
+    // equal calls are decrypted only once, and not at all if they were decrypted before
+    Map<DecryptionCache.Key, CallSite> unique = new LinkedHashMap<>();
+    for (CallSite site : sites) {
+      if (!unique.containsKey(site.key)) {
+        site.result = (String) DecryptionCache.get(site.key);
+        if (site.result == null) {
+          unique.put(site.key, site);
+        }
+      }
+    }
+    // the decryption method checks the name of the calling class and method, every method name needs its own batch
+    Map<String, List<CallSite>> batches = new LinkedHashMap<>();
+    for (CallSite site : unique.values()) {
+      if (emulate(context, emulator, cn, site)) {
+        continue;
+      }
+      MethodInsnNode min = site.min;
+      batches.computeIfAbsent(site.method.name + ' ' + min.owner + '.' + min.name + min.desc, k -> new ArrayList<>())
+        .add(site);
+    }
+    batches.values().forEach(batch -> decryptBatch(context, session, cn, batch));
+    for (CallSite site : sites) {
+      CallSite decrypted = unique.get(site.key);
+      if (decrypted == site) {
+        DecryptionCache.put(site.key, site.result);
+      } else if (decrypted != null) {
+        site.result = decrypted.result;
+        site.error = decrypted.error;
+      }
+      if (site.result != null) {
+        if (Strings.isHighUTF(site.result)) {
+          logger.warning("String may have not decrypted correctly in {}", referenceString(cn, site.method));
+        }
+        context.increment("decrypted");
+        c.markModified();
+        // keep the call, as it consumes the arguments
+        site.method.instructions.insert(site.min, new LdcInsnNode(site.result));
+        site.method.instructions.insert(site.min, new InsnNode(POP));
+      } else if (site.error != null) {
+        if (context.verbose) {
+          logger.error("Throwable", site.error);
         }
+        logger.error("Failed to decrypt string in {}, {}", referenceString(cn, site.method),
+          shortStacktrace(site.error));
+      } else {
+        logger.error("Failed to decrypt string or false call in {}", referenceString(cn, site.method));
       }
     }
-    return new AbstractInsnNode[]{ain};
   }
 
-  private String invokeProxy(ClassNode cn, MethodNode m, MethodInsnNode min, Frame<ConstantValue> frame)
-          throws Exception {
+  /**
+   * @return the call with its constant arguments, or null if they are not known
+   */
+  private CallSite createCallSite(ExecutionContext context, ClassNode cn, MethodNode m, MethodInsnNode min,
+                                  Frame<ConstantValue> frame) {
     if (frame == null) {
-      if (verbose) {
+      if (context.verbose) {
         logger.error("Unvisited frame in {}: {}", referenceString(cn, m), frame);
       }
       return null;
     }
-    VM vm = VM.constructVM(this);
-    createFakeCloneAndFieldGetter(cn, m, min, frame); //
-    // create a duplicate of the current class,
-    // we need this because stringer checks for
-    // stacktrace method name and class
-
-    Class<?> proxyFieldClass = vm.loadClass(invocationFieldClass.name.replace('/', '.'), true);
-    // set proxyFields to stack values
-    int arguments = Type.getArgumentTypes(min.desc).length;
-    if (arguments > frame.getStackSize()) {
-      if (verbose) {
+    Type[] types = Type.getArgumentTypes(min.desc);
+    if (types.length > frame.getStackSize()) {
+      if (context.verbose) {
         logger.error("Stack has not enough values in {}", referenceString(cn, m), frame);
       }
       return null;
     }
-    for (int i = 0; i < arguments; i++) {
-      Field proxyField = proxyFieldClass.getDeclaredField("proxyField_" + i);
-      ConstantValue stackValue = frame.getStack(frame.getStackSize() - arguments + i);
+    Object[] args = new Object[types.length];
+    for (int i = 0; i < types.length; i++) {
+      ConstantValue stackValue = frame.getStack(frame.getStackSize() - types.length + i);
       if (!stackValue.isKnown()) {
-        if (verbose) {
-          logger.error("Stack index " + i + " is unknown in " + cn.name + "." + m.name + ": field type: " +
-                  proxyField.getType().getName() + ", stack type: " + stackValue.getType());
+        if (context.verbose) {
+          logger.error("Stack index " + i + " is unknown in " + cn.name + "." + m.name + ": argument type: " +
+            types[i].getClassName() + ", stack type: " + stackValue.getType());
         }
         return null;
       }
-      proxyField.set(null, Casts.castWithPrimitives(proxyField.getType(), stackValue.getValue()));
+      args[i] = Casts.castWithPrimitives(toClass(types[i]), stackValue.getValue());
     }
+    return new CallSite(m, min, args, DecryptionCache.key(min, args, cn.name + '.' + m.name));
+  }
 
-    vm.loadClass(min.owner.replace('/', '.'), true); // load decryption
-    // class, this class will load another class (some
-    // type of map)
-    Class<?> loadedClone = vm.loadClass(fakeInvocationClone.name.replace('/', '.'), true); // load dupe
+  /**
+   * Decrypt a call without loading any class. The caller of the emulated decryption method is the method of the
+   * call, the same as for the proxies.
+   *
+   * @return false if the call has to be decrypted in the sandbox
+   */
+  private boolean emulate(ExecutionContext context, Emulator emulator, ClassNode cn, CallSite site) {
+    MethodInsnNode min = site.min;
+    try {
+      site.result = (String) emulator.invoke(min.owner, min.name, min.desc, site.args,
+        Emulator.frame(cn.name, site.method.name));
+      context.increment("emulated");
+      return true;
+    } catch (EmulationException e) {
+      if (context.verbose) {
+        logger.warning("Emulation failed in {}: {}", referenceString(cn, site.method), e.getMessage());
+      }
+      if (e.canFallBack()) {
+        return false;
+      }
+      site.error = e;
+      return true;
+    }
+  }
 
-    if (m.name.equals("<init>")) {
-      loadedClone.newInstance(); // special case:
-      // constructors have to be invoked by newInstance.
-      // Sandbox.createMethodProxy automatically handles
-      // access and super call
-    } else {
-      for (Method reflectionMethod : loadedClone.getMethods()) {
-        if (reflectionMethod.getName().equals(m.name)) {
-          reflectionMethod.invoke(null);
-          break;
-        }
+  /**
+   * Decrypt all strings of a batch with a single proxy invocation. The proxy loops over the arguments of every call
+   * and calls the decryption method for each of them. If the proxy itself fails, the calls are decrypted one by
+   * one.
+   */
+  private void decryptBatch(ExecutionContext context, SandboxSession session, ClassNode cn, List<CallSite> batch) {
+    CallSite first = batch.get(0);
+    // the tables can't be in the clone itself, if the proxy is a static initializer it runs before they are set
+    ClassNode batchFieldClass = Sandbox.createClassProxy("ProxyFields");
+    ClassNode batchClone = createBatchClone(cn, first.method, first.min, batchFieldClass);
+    Object[][] args = new Object[batch.size()][];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = batch.get(i).args;
+    }
+    Invocation invocation = new Invocation(batchClone.name, first.method.name)
+      .set(batchFieldClass.name, "proxyArgs", args)
+      .set(batchFieldClass.name, "proxyReturn", new String[args.length])
+      .set(batchFieldClass.name, "proxyErrors", new Throwable[args.length])
+      .read(batchFieldClass.name, "proxyReturn")
+      .read(batchFieldClass.name, "proxyErrors");
+    session.invoke(Arrays.asList(batchClone, batchFieldClass), Collections.singletonList(invocation));
+    if (!invocation.failed()) {
+      context.increment("batches");
+      String[] results = (String[]) invocation.getOutput(0);
+      Throwable[] errors = (Throwable[]) invocation.getOutput(1);
+      for (int i = 0; i < args.length; i++) {
+        batch.get(i).result = results[i];
+        batch.get(i).error = errors[i];
       }
+      return;
+    }
+    if (context.verbose) {
+      logger.error("Batch decryption failed in {}, decrypting calls one by one: {}",
+        referenceString(cn, first.method), shortStacktrace(invocation.getError()));
+    }
+    for (CallSite site : batch) {
+      invokeProxy(session, cn, site);
     }
-    return (String) loadedClone.getDeclaredField("proxyReturn").get(null);
   }
 
-  private void createFakeCloneAndFieldGetter(ClassNode cn, MethodNode m, MethodInsnNode min,
-                                             Frame<ConstantValue> frame) {
-    ClassNode node = Sandbox.createClassProxy(cn.name);
+  private void invokeProxy(SandboxSession session, ClassNode cn, CallSite site) {
     // we can't put the fields in the same class, as
     // setting them via reflection
     // would execute <clinit>
-    ClassNode fieldClass = Sandbox.createClassProxy("ProxyFields");
+    ClassNode invocationFieldClass = Sandbox.createClassProxy("ProxyFields");
+    ClassNode fakeInvocationClone = createFakeCloneAndFieldGetter(cn, site.method, site.min, invocationFieldClass); //
+    // create a duplicate of the current class,
+    // we need this because stringer checks for
+    // stacktrace method name and class
+    Invocation invocation = new Invocation(fakeInvocationClone.name, site.method.name);
+    // set proxyFields to stack values
+    for (int i = 0; i < site.args.length; i++) {
+      invocation.set(invocationFieldClass.name, "proxyField_" + i, site.args[i]);
+    }
+    invocation.read(fakeInvocationClone.name, "proxyReturn");
+    session.invoke(Arrays.asList(fakeInvocationClone, invocationFieldClass), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      site.error = invocation.getError();
+    } else {
+      site.result = (String) invocation.getOutput(0);
+    }
+  }
+
+  /**
+   * Create a duplicate of the class with a method of the same name, that calls the decryption method for every
+   * entry of <code>proxyArgs</code>. Results are stored in <code>proxyReturn</code>, exceptions thrown by the
+   * decryption method in <code>proxyErrors</code>. The fields are added to <code>fieldClass</code>.
+   */
+  private ClassNode createBatchClone(ClassNode cn, MethodNode m, MethodInsnNode min, ClassNode fieldClass) {
+    ClassNode node = Sandbox.createClassProxy(cn.name);
+    // this version needs no stack map frames for the loop
+    node.version = V1_5;
+    fieldClass.fields.add(new FieldNode(ACC_PUBLIC | ACC_STATIC, "proxyArgs", "[[Ljava/lang/Object;", null, null));
+    fieldClass.fields.add(new FieldNode(ACC_PUBLIC | ACC_STATIC, "proxyReturn", "[Ljava/lang/String;", null, null));
+    fieldClass.fields.add(new FieldNode(ACC_PUBLIC | ACC_STATIC, "proxyErrors", "[Ljava/lang/Throwable;", null,
+      null));
+    int index = m.name.equals("<init>") ? 1 : 0;
+    LabelNode loop = new LabelNode();
+    LabelNode start = new LabelNode();
+    LabelNode end = new LabelNode();
+    LabelNode handler = new LabelNode();
+    LabelNode next = new LabelNode();
+    LabelNode exit = new LabelNode();
+    InsnList instructions = new InsnList();
+    instructions.add(new InsnNode(ICONST_0));
+    instructions.add(new VarInsnNode(ISTORE, index));
+    instructions.add(loop);
+    instructions.add(new VarInsnNode(ILOAD, index));
+    instructions.add(new FieldInsnNode(GETSTATIC, fieldClass.name, "proxyArgs", "[[Ljava/lang/Object;"));
+    instructions.add(new InsnNode(ARRAYLENGTH));
+    instructions.add(new JumpInsnNode(IF_ICMPGE, exit));
+    instructions.add(start);
+    instructions.add(new FieldInsnNode(GETSTATIC, fieldClass.name, "proxyReturn", "[Ljava/lang/String;"));
+    instructions.add(new VarInsnNode(ILOAD, index));
+    Type[] types = Type.getArgumentTypes(min.desc);
+    for (int i = 0; i < types.length; i++) {
+      instructions.add(new FieldInsnNode(GETSTATIC, fieldClass.name, "proxyArgs", "[[Ljava/lang/Object;"));
+      instructions.add(new VarInsnNode(ILOAD, index));
+      instructions.add(new InsnNode(AALOAD));
+      instructions.add(new LdcInsnNode(i));
+      instructions.add(new InsnNode(AALOAD));
+      instructions.add(Instructions.unbox(types[i]));
+    }
+    instructions.add(min.clone(null));
+    instructions.add(new InsnNode(AASTORE));
+    instructions.add(end);
+    instructions.add(new JumpInsnNode(GOTO, next));
+    instructions.add(handler);
+    instructions.add(new VarInsnNode(ASTORE, index + 1));
+    instructions.add(new FieldInsnNode(GETSTATIC, fieldClass.name, "proxyErrors", "[Ljava/lang/Throwable;"));
+    instructions.add(new VarInsnNode(ILOAD, index));
+    instructions.add(new VarInsnNode(ALOAD, index + 1));
+    instructions.add(new InsnNode(AASTORE));
+    instructions.add(next);
+    instructions.add(new IincInsnNode(index, 1));
+    instructions.add(new JumpInsnNode(GOTO, loop));
+    instructions.add(exit);
+    instructions.add(new InsnNode(RETURN));
+    MethodNode proxy = Sandbox.createMethodProxy(instructions, m.name, "()V");
+    proxy.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, "java/lang/Throwable"));
+    node.methods.add(proxy);
+    return node;
+  }
+
+  private ClassNode createFakeCloneAndFieldGetter(ClassNode cn, MethodNode m, MethodInsnNode min,
+                                                  ClassNode fieldClass) {
+    ClassNode node = Sandbox.createClassProxy(cn.name);
     InsnList instructions = new InsnList();
     Type[] types = Type.getArgumentTypes(min.desc);
     for (int i = 0; i < types.length; i++) {
@@ -208,42 +344,83 @@ public class StringObfuscationStringer extends Execution implements IVMReference
     node.fields.add(new FieldNode(ACC_PUBLIC | ACC_STATIC, "proxyReturn", "Ljava/lang/String;", null, null));
     node.methods.add(Sandbox.createMethodProxy(instructions, m.name, "()V")); // method should return real
     // string
-    fakeInvocationClone = node;
-    invocationFieldClass = fieldClass;
+    return node;
   }
 
-  private ClassNode fakeInvocationClone;
-  private ClassNode invocationFieldClass;
-
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    if (name.equals(fakeInvocationClone.name)) {
-      return fakeInvocationClone;
-    }
-    if (name.equals(invocationFieldClass.name)) {
-      return invocationFieldClass;
+  /**
+   * @return the class of a method argument, reference values are passed unchanged
+   */
+  private static Class<?> toClass(Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+        return boolean.class;
+      case Type.CHAR:
+        return char.class;
+      case Type.BYTE:
+        return byte.class;
+      case Type.SHORT:
+        return short.class;
+      case Type.INT:
+        return int.class;
+      case Type.FLOAT:
+        return float.class;
+      case Type.LONG:
+        return long.class;
+      case Type.DOUBLE:
+        return double.class;
+      default:
+        return Object.class;
     }
-    return classes.containsKey(name) ? classes.get(name).node : null;
   }
 
-  @Override
-  public Object getFieldValueOrNull(BasicValue v, String owner, String name, String desc) {
-    return null;
+  private static final class CallSite {
+    final MethodNode method;
+    final MethodInsnNode min;
+    final Object[] args;
+    final DecryptionCache.Key key;
+    String result;
+    Throwable error;
+
+    CallSite(MethodNode method, MethodInsnNode min, Object[] args, DecryptionCache.Key key) {
+      this.method = method;
+      this.min = min;
+      this.args = args;
+      this.key = key;
+    }
   }
 
-  @Override
-  public Object getMethodReturnOrNull(BasicValue v, String owner, String name, String desc,
-                                      List<? extends ConstantValue> values) {
-    if (name.equals("toCharArray") && owner.equals("java/lang/String")) {
-      if (!values.get(0).isKnown()) {
-        if (verbose) {
-          logger.error("String that should be converted to char[] is unknown");
+  private static class StringerReferenceHandler implements IConstantReferenceHandler {
+    private final ExecutionContext context;
+
+    StringerReferenceHandler(ExecutionContext context) {
+      this.context = context;
+    }
+
+    @Override
+    public Object getFieldValueOrNull(BasicValue v, String owner, String name, String desc) {
+      return null;
+    }
+
+    @Override
+    public Object getMethodReturnOrNull(BasicValue v, String owner, String name, String desc,
+                                        List<? extends ConstantValue> values) {
+      if (name.equals("toCharArray") && owner.equals("java/lang/String")) {
+        if (!values.get(0).isKnown()) {
+          if (context.verbose) {
+            logger.error("String that should be converted to char[] is unknown");
+          }
+          return null;
         }
-        return null;
+        // allow char array method
+        return ((String) values.get(0).getValue()).toCharArray();
       }
-      // allow char array method
-      return ((String) values.get(0).getValue()).toCharArray();
+      return null;
+    }
+
+    @Override
+    public Caching getCaching() {
+      // the context is only used for logging, handlers are created per class
+      return Caching.SHARED;
     }
-    return null;
   }
 }
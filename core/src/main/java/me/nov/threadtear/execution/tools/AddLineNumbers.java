@@ -1,15 +1,10 @@
 package me.nov.threadtear.execution.tools;
 
-import java.util.Map;
-
 import org.objectweb.asm.tree.*;
 
 import me.nov.threadtear.execution.*;
 
-public class AddLineNumbers extends Execution {
-
-  private int line;
-  private int method;
+public class AddLineNumbers extends ClassLocalExecution {
 
   public AddLineNumbers() {
     super(ExecutionCategory.TOOLS, "Add debug line numbers",
@@ -18,30 +13,32 @@ public class AddLineNumbers extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node).forEach(c -> {
-      if (c.sourceFile == null) {
-        c.sourceFile = c.name.hashCode() + ".java";
-      }
-      method = 0;
-      c.methods.forEach(m -> {
-        m.instructions.forEach(ain -> {
-          if (ain.getType() == AbstractInsnNode.LINE) {
-            m.instructions.remove(ain);
-          }
-        });
-        line = method * 10000 + 1;
-        m.instructions.forEach(ain -> {
-          if (couldThrow(ain)) {
-            LabelNode start = new LabelNode();
-            m.instructions.insertBefore(ain, start);
-            m.instructions.insertBefore(ain, new LineNumberNode(line++, start));
-          }
-        });
-        method++;
+  protected void transform(ExecutionContext context, Clazz clazz) {
+    ClassNode c = clazz.getNode();
+    if (c.sourceFile == null) {
+      c.sourceFile = c.name.hashCode() + ".java";
+    }
+    int method = 0;
+    for (MethodNode m : c.methods) {
+      m.instructions.forEach(ain -> {
+        if (ain.getType() == AbstractInsnNode.LINE) {
+          m.instructions.remove(ain);
+        }
       });
-    });
+      int line = method * 10000 + 1;
+      for (AbstractInsnNode ain : m.instructions) {
+        if (couldThrow(ain)) {
+          LabelNode start = new LabelNode();
+          m.instructions.insertBefore(ain, start);
+          m.instructions.insertBefore(ain, new LineNumberNode(line++, start));
+        }
+      }
+      method++;
+    }
+  }
 
+  @Override
+  protected boolean finish(ExecutionContext context) {
     logger.info("Created fake line numbers for debugging purposes!");
     return true;
   }
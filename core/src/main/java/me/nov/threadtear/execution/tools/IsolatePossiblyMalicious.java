@@ -1,7 +1,5 @@
 package me.nov.threadtear.execution.tools;
 
-import java.util.Map;
-
 import me.nov.threadtear.execution.*;
 import me.nov.threadtear.util.asm.Instructions;
 
@@ -11,7 +9,6 @@ public class IsolatePossiblyMalicious extends Execution {
           "(java/lang/runtime/Runtime|java/lang/reflect/|com/sun/jna|java/nio/file|java/io" +
                   "/File|sun/misc/Unsafe|java/io/.*Writer|java/io/.*Reader|org/apache/commons/io|io" +
                   "/netty/channel).*";
-  private int changed;
 
   public IsolatePossiblyMalicious() {
     super(ExecutionCategory.TOOLS, "Isolate dangerous calls",
@@ -22,20 +19,21 @@ public class IsolatePossiblyMalicious extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.changed = 0;
-    logger.info("Isolating all {} classes", classes.size());
-    classes.values().stream().map(c -> c.node).forEach(c -> c.methods.forEach(m -> {
+  public boolean execute(ExecutionContext context) {
+    logger.info("Isolating all {} classes", context.classes.size());
+    context.classes.values().forEach(clazz -> clazz.viewNode().methods.forEach(m -> {
       int oldSize = m.instructions.size();
       Instructions.isolateCallsThatMatch(m, (name, desc) -> name.matches(POSSIBLY_MALICIOUS_REGEX),
               (name, desc) -> name.matches(POSSIBLY_MALICIOUS_REGEX));
       if (oldSize != m.instructions.size()) {
-        changed++;
-        if (verbose) {
-          logger.info("Removed calls in {}", referenceString(c, m));
+        context.increment("changed");
+        clazz.markModified();
+        if (context.verbose) {
+          logger.info("Removed calls in {}", referenceString(clazz.viewNode(), m));
         }
       }
     }));
+    long changed = context.count("changed");
     logger.info("{} methods containing calls were isolated", changed);
     return changed > 0;
   }
@@ -1,6 +1,5 @@
 package me.nov.threadtear.execution.tools;
 
-import java.util.Map;
 
 import me.nov.threadtear.execution.*;
 
@@ -12,9 +11,10 @@ public class Java8Compatibility extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
+  public boolean execute(ExecutionContext context) {
     logger.info("Changing compability to Java 8+. Only works when no Java 9+ specific methods are present.");
-    classes.values().stream().map(c -> c.node).forEach(c -> c.version = 52);
+    context.classes.values().stream().filter(c -> c.viewNode().version != 52).map(c -> c.getNode())
+      .forEach(c -> c.version = 52);
     // TODO check if bytecode is compatible
     logger.info("Compatibility changed to Java 8+");
     return true;
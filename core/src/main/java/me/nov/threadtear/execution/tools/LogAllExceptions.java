@@ -15,10 +15,11 @@ public class LogAllExceptions extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream).forEach(m -> {
-      if (m.tryCatchBlocks == null)
+  public boolean execute(ExecutionContext context) {
+    context.classes.values().forEach(c -> c.viewNode().methods.forEach(m -> {
+      if (m.tryCatchBlocks == null || m.tryCatchBlocks.isEmpty())
         return;
+      c.markModified();
       m.tryCatchBlocks.forEach(tcb -> {
         AbstractInsnNode firstInstructionAfterHandler = Instructions.getRealNext(tcb.handler);
         if (!printsAlready(firstInstructionAfterHandler)) {
@@ -28,7 +29,7 @@ public class LogAllExceptions extends Execution {
         }
       });
       m.maxStack = Math.max(m.maxStack, 2);
-    });
+    }));
     logger.info("Inserted .printStackTrace() in every catch block!");
     return true;
   }
@@ -1,19 +1,22 @@
 package me.nov.threadtear.execution.tools;
 
-import java.util.*;
+import org.objectweb.asm.tree.*;
 
 import me.nov.threadtear.execution.*;
 
-public class RemoveMaxs extends Execution {
+public class RemoveMaxs extends InstructionPass {
 
   public RemoveMaxs() {
     super(ExecutionCategory.TOOLS, "Remove maxs", "Removes max local and stack limit", ExecutionTag.RUNNABLE);
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    classes.values().stream().map(c -> c.node.methods).flatMap(List::stream)
-            .forEach(m -> m.maxLocals = m.maxStack = 1337);
+  protected void visitMethod(ExecutionContext context, ClassNode cn, MethodNode m) {
+    m.maxLocals = m.maxStack = 1337;
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
     logger.info("Removed frame limits");
     return true;
   }
@@ -5,28 +5,31 @@ import me.nov.threadtear.analysis.stack.IConstantReferenceHandler;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.logging.LogWrapper;
+import me.nov.threadtear.util.asm.Access;
 import me.nov.threadtear.util.asm.Instructions;
-import me.nov.threadtear.util.reflection.DynamicReflection;
 import me.nov.threadtear.vm.IVMReferenceHandler;
-import me.nov.threadtear.vm.VM;
+import me.nov.threadtear.vm.Invocation;
+import me.nov.threadtear.vm.RevealedHandle;
+import me.nov.threadtear.vm.Sandbox;
+import me.nov.threadtear.vm.SandboxSession;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandleInfo;
-import java.lang.invoke.MethodType;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class AccessObfuscationZKM extends Execution implements IVMReferenceHandler, IConstantReferenceHandler {
+public class AccessObfuscationZKM extends Execution implements IConstantReferenceHandler {
 
   private static final String ZKM_INVOKEDYNAMIC_HANDLE_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;" +
     "Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
@@ -38,12 +41,6 @@ public class AccessObfuscationZKM extends Execution implements IVMReferenceHandl
     "\\$Lookup;Ljava/lang/invoke/MutableCallSite;Ljava/lang/String;Ljava/lang/invoke/MethodType;[JI]+\\)" +
     "Ljava/lang/invoke/MethodHandle;";
 
-  private Map<String, Clazz> classes;
-  private int encrypted;
-  private int decrypted;
-  private boolean verbose;
-  private VM vm;
-
   public AccessObfuscationZKM() {
     super(ExecutionCategory.ZKM, "Access obfuscation removal",
       "Tested on ZKM 8 - 11, could work on newer versions too.<br>Only works with " +
@@ -51,57 +48,57 @@ public class AccessObfuscationZKM extends Execution implements IVMReferenceHandl
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.classes = classes;
-    this.encrypted = 0;
-    this.decrypted = 0;
+  public boolean execute(ExecutionContext context) {
     logger.info("Decrypting all invokedynamic references, this could take some time!");
     logger.warning("Make sure all required libraries or dynamic classes are in the jar itself, or else some" +
       " invokedynamics cannot be deobfuscated!");
-    this.vm = VM.constructNonInitializingVM(this);
-    this.vm.setDummyLoading(true);
-    classes.values().forEach(this::decrypt);
+    // only bootstrap classes are initialized, calls to other classes are removed from them
+    Set<String> bootstrapOwners = ConcurrentHashMap.newKeySet();
+    IVMReferenceHandler handler = name -> {
+      ClassNode node = tryClassLoad(context, name);
+      return node != null && bootstrapOwners.contains(name) ? Sandbox.isolatedCopy(node,
+        (owner, desc) -> !owner.equals(name) && !owner.matches("java/lang/.*")) : node;
+    };
+    try (SandboxSession session = Sandbox.getInvoker().open(handler, false, true, bootstrapOwners::contains, true)) {
+      context.classes.values().forEach(c -> decrypt(context, session, bootstrapOwners, c));
+    }
+    long encrypted = context.count("encrypted");
     if (encrypted == 0) {
       logger.error("No access obfuscation matching ZKM has been found!");
       return false;
     }
-    float decryptionRatio = Math.round((decrypted / (float) encrypted) * 100);
+    float decryptionRatio = Math.round((context.count("decrypted") / (float) encrypted) * 100);
     logger.errorIf("Of a total {} encrypted references, {}% were successfully decrypted", decryptionRatio <= 0.25,
       encrypted, decryptionRatio);
     return decryptionRatio > 0.25;
   }
 
-  private void decrypt(Clazz cz) {
+  private void decrypt(ExecutionContext context, SandboxSession session, Set<String> bootstrapOwners, Clazz cz) {
     // TODO if invokedynamic points to ordinal() of enum,
     //  the invokedynamic cannot be decrypted, as ordinal
     //  () does not exist at bytecode level, only runtime.
-    ClassNode cn = cz.node;
+    ClassNode cn = cz.viewNode();
     logger.collectErrors(cz);
     cn.methods.forEach(m -> {
       InsnList rewrittenCode = new InsnList();
       Map<LabelNode, LabelNode> labels = Instructions.cloneLabels(m.instructions);
+      AtomicBoolean modified = new AtomicBoolean();
       loopConstantFrames(cn, m, this, (ain, frame) -> {
         if (ain.getOpcode() == INVOKEDYNAMIC && frame != null) {
           InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) ain;
           if (idin.bsm != null) {
             Handle bsm = idin.bsm;
-            if (bsm.getDesc().equals(ZKM_INVOKEDYNAMIC_HANDLE_DESC) &&
-              classes.values().stream().map(c -> c.node).anyMatch(node -> node.name.equals(bsm.getOwner()))) {
-              encrypted++;
+            Clazz bsmOwner = context.getHierarchy().getLoadedClass(bsm.getOwner());
+            if (bsm.getDesc().equals(ZKM_INVOKEDYNAMIC_HANDLE_DESC) && bsmOwner != null) {
+              context.increment("encrypted");
               try {
-                allowReflection(true);
-                MethodHandle handle = loadZKMBuriedHandleFromVM(
-                  classes.values().stream().map(c -> c.node).filter(node -> node.name.equals(bsm.getOwner()))
-                    .findFirst().get(), idin, frame);
+                bootstrapOwners.add(bsmOwner.getName());
+                RevealedHandle handle = loadZKMBuriedHandleFromVM(session, bsmOwner.viewNode(), idin, frame);
                 if (handle != null) {
-                  MethodHandleInfo methodInfo = DynamicReflection.revealMethodInfo(handle);
-                  AbstractInsnNode instruction = DynamicReflection.getInstructionFromHandleInfo(methodInfo);
+                  AbstractInsnNode instruction = handle.toInstruction();
 
-                  Type[] decryptionTypes =
-                    Type.getArgumentTypes(handle.type().toMethodDescriptorString()); // with extra values
-                  Type[] realTypes =
-                    Type.getArgumentTypes(methodInfo.getMethodType().toMethodDescriptorString()); // without
+                  Type[] decryptionTypes = Type.getArgumentTypes(handle.getHandleDesc()); // with extra values
+                  Type[] realTypes = Type.getArgumentTypes(handle.getMethodDesc()); // without
                   int extraArgs = decryptionTypes.length - realTypes.length; // difference equals extra count
                   if (instruction.getOpcode() != INVOKESTATIC && instruction.getOpcode() != GETSTATIC &&
                     instruction.getOpcode() != PUTSTATIC) {
@@ -115,90 +112,85 @@ public class AccessObfuscationZKM extends Execution implements IVMReferenceHandl
                     // pop off remaining decryption values
                   }
                   rewrittenCode.add(instruction);
-                  decrypted++;
+                  context.increment("decrypted");
+                  modified.set(true);
                   return;
                 } else {
                   logger.warning("Handle null in {}", referenceString(cn, m));
                 }
-                allowReflection(false);
               } catch (Throwable t) {
-                if (verbose) {
+                if (context.verbose) {
                   logger.error("Throwable", t);
                 }
                 logger.error("Failed to get callsite using classloader in {}, {}", referenceString(cn, m),
                   shortStacktrace(t));
               }
-            } else if (verbose) {
+            } else if (context.verbose) {
               logger.warning("Other bootstrap type in {}: {}", referenceString(cn, m), bsm);
             }
           }
         }
         rewrittenCode.add(ain.clone(labels));
       });
-      if (rewrittenCode.size() > 0) {
+      if (modified.get() && rewrittenCode.size() > 0) {
+        cz.markModified();
         Instructions.updateInstructions(m, labels, rewrittenCode);
       }
     });
   }
 
-  private MethodHandle loadZKMBuriedHandleFromVM(ClassNode cn, InvokeDynamicInsnNode idin, Frame<ConstantValue> frame)
-    throws Throwable {
-    if (!vm.isLoaded(cn.name.replace('/', '.'))) {
-      cn.methods.forEach(mn -> Instructions
-        .isolateCallsThatMatch(mn, (name, desc) -> !name.equals(cn.name) && !name.matches("java/lang/.*"),
-          (name, desc) -> !name.equals(cn.name) && !name.matches("java/lang/.*")));
-      vm.explicitlyPreload(cn); // make sure bootstrap
-      // class class has <clinit>
-    }
-    Class<?> proxyClass = vm.loadClass(cn.name.replace('/', '.'), true);
-    Method bootstrap = null;
-    for (Method m : proxyClass.getDeclaredMethods()) {
-      if (Type.getMethodDescriptor(m).matches(ZKM_INVOKEDYNAMIC_REAL_BOOTSTRAP_DESC_REGEX)) {
-        bootstrap = m;
-        break;
-      }
-    }
+  private RevealedHandle loadZKMBuriedHandleFromVM(SandboxSession session, ClassNode cn, InvokeDynamicInsnNode idin,
+                                                   Frame<ConstantValue> frame) throws Throwable {
+    // the bootstrap class is loaded with <clinit>
+    MethodNode bootstrap = cn.methods.stream()
+      .filter(m -> Access.isStatic(m.access) && m.desc.matches(ZKM_INVOKEDYNAMIC_REAL_BOOTSTRAP_DESC_REGEX))
+      .findFirst().orElse(null);
     if (bootstrap == null) {
       logger.warning("Failed to find real bootstrap method in {}: {}", referenceString(cn, null), idin.desc);
       return null;
     }
     if (idin.desc.matches("\\(.*[JI]+\\).*")) {
-      try {
-        int invokedynamicParams = Type.getArgumentTypes(Type.getMethodDescriptor(bootstrap)).length - 4;
-        List<Object> args = new ArrayList<>(Arrays.asList(
-          DynamicReflection.getTrustedLookup(), null /* MutableCallSite, unused in method */,
-          idin.name, MethodType.fromMethodDescriptorString(idin.desc, vm)
-        ));
-        for (int i = 0; i < invokedynamicParams; i++) {
-          ConstantValue stack = frame.getStack(frame.getStackSize() - invokedynamicParams + i);
-          if (!stack.isKnown()) {
-            LogWrapper.logger.warning("Stack value depth {} is unknown in {}, could be decryption class itself", i,
-              referenceString(cn, null));
-            LogWrapper.logger.warning("Stack value depth {} is unknown in {}, could be decryption class itself", i,
-              referenceString(cn, null));
-            return null;
-          }
-          args.add(stack.getValue());
-        }
-        return (MethodHandle) bootstrap.invoke(null, args.toArray());
-      } catch (IllegalArgumentException e) {
-        if (e.getMessage().contains("arguments")) {
-          LogWrapper.logger.error("IllegalArgumentException: Wrong arguments for {}, cannot decrypt!",
-            Arrays.toString(bootstrap.getParameterTypes()));
-        } else {
-          LogWrapper.logger.error("IllegalArgumentException: One or more classes not in jar file: {}, cannot decrypt!",
-            idin.desc);
+      Type[] types = Type.getArgumentTypes(bootstrap.desc);
+      Type[] extraTypes = Arrays.copyOfRange(types, 4, types.length);
+      Object[] args = new Object[extraTypes.length];
+      for (int i = 0; i < extraTypes.length; i++) {
+        ConstantValue stack = frame.getStack(frame.getStackSize() - extraTypes.length + i);
+        if (!stack.isKnown()) {
+          LogWrapper.logger.warning("Stack value depth {} is unknown in {}, could be decryption class itself", i,
+            referenceString(cn, null));
+          return null;
         }
+        args[i] = stack.getValue();
+      }
+      ClassNode proxy = Sandbox.createClassProxy("ProxyClass");
+      InsnList invoker = Sandbox.getTrustedLookup();
+      invoker.add(new InsnNode(ACONST_NULL)); // MutableCallSite, unused in method
+      invoker.add(new LdcInsnNode(idin.name));
+      invoker.add(new LdcInsnNode(Type.getMethodType(idin.desc)));
+      int var = 0;
+      for (Type type : extraTypes) {
+        invoker.add(new VarInsnNode(type.getOpcode(ILOAD), var));
+        var += type.getSize();
       }
+      invoker.add(new MethodInsnNode(INVOKESTATIC, cn.name, bootstrap.name, bootstrap.desc));
+      invoker.add(new InsnNode(ARETURN));
+      proxy.methods.add(Sandbox.createMethodProxy(invoker, "bootstrap",
+        Type.getMethodDescriptor(Type.getReturnType(bootstrap.desc), extraTypes)));
+      // method handles can't leave the VM, only the revealed target is returned
+      Invocation invocation = new Invocation(proxy.name, "bootstrap", args).revealHandle();
+      session.invoke(Collections.singleton(proxy), Collections.singletonList(invocation));
+      if (invocation.failed()) {
+        throw invocation.getError();
+      }
+      return (RevealedHandle) invocation.getResult();
     } else {
       logger.warning("Unimplemented or other dynamic desc variant in {}: {}", referenceString(cn, null), idin.desc);
     }
     return null;
   }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    return classes.containsKey(name.replace('.', '/')) ? classes.get(name).node : null;
+  private ClassNode tryClassLoad(ExecutionContext context, String name) {
+    return context.classes.containsKey(name.replace('.', '/')) ? context.classes.get(name).viewNode() : null;
   }
 
   @Override
@@ -5,13 +5,14 @@ import me.nov.threadtear.analysis.stack.IConstantReferenceHandler;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.util.asm.Access;
 import me.nov.threadtear.util.asm.InstructionModifier;
 import me.nov.threadtear.util.asm.Instructions;
 import me.nov.threadtear.util.asm.References;
 import me.nov.threadtear.util.reflection.DynamicReflection;
-import me.nov.threadtear.vm.IVMReferenceHandler;
+import me.nov.threadtear.vm.InvocationRunner;
 import me.nov.threadtear.vm.Sandbox;
 import me.nov.threadtear.vm.VM;
 import org.objectweb.asm.Handle;
@@ -33,7 +34,7 @@ import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
-public class DESObfuscationZKM extends Execution implements IVMReferenceHandler, IConstantReferenceHandler {
+public class DESObfuscationZKM extends Execution implements IConstantReferenceHandler {
   private static final String ZKM_INVOKEDYNAMIC_HANDLE_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;" +
     "Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
   private static final String ZKM_STRING_INVOKEDYNAMIC_DESC = "\\([IJ]+\\)Ljava/lang/String;";
@@ -42,11 +43,6 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
     "Ljava/lang/invoke/MethodHandle;";
   private static final String ZKM_REFERENCE_DESC_REGEX = "\\((?:L.*;)?J+\\)(?:\\[?(?:I|J|(?:L.*;)))";
 
-  private boolean verbose;
-  private int strings, encryptedStrings;
-  private int references, encryptedReferences;
-  private Map<String, Clazz> classes;
-
   public DESObfuscationZKM() {
     super(ExecutionCategory.ZKM, "ZKM DES case deobfuscator (WIP, unstable)",
       "Deobfuscates string / access obfuscation with DES cipher." +
@@ -55,35 +51,31 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    this.references = 0;
-    this.encryptedReferences = 0;
-    this.strings = 0;
-    this.encryptedStrings = 0;
-    this.classes = classes;
-//    final List<ClassNode> classNodes = classes.values().stream().map(c -> c.node).collect(Collectors.toList());
-    Collection<Clazz> values = classes.values();
+  public boolean execute(ExecutionContext context) {
+//    final List<ClassNode> classNodes = classes.values().stream().map(c -> c.getNode()).collect(Collectors.toList());
+    Collection<Clazz> values = context.classes.values();
 //    values.forEach(this::fixInterface);
     logger.info("Decrypting references...");
 //    String s = "constantpool/";
     values.stream()
 //      .filter(this::hasDESEncryption)
-//      .filter(clazz -> clazz.node.name.contains(s))
-      .forEach(this::decryptReferences);
+//      .filter(clazz -> clazz.getNode().name.contains(s))
+      .forEach(c -> decryptReferences(context, c));
 //    logger.info("Decrypting strings...");
 //    values.stream()
-////      .filter(clazz -> clazz.node.name.endsWith(s))
+////      .filter(clazz -> clazz.getNode().name.endsWith(s))
 //      .forEach(this::decryptStrings);
-    int stringDecryptionRate = Math.round((this.strings / (float) this.encryptedStrings) * 100);
-    int referenceDecryptionRate = Math.round((this.references / (float) this.encryptedReferences) * 100);
+    long strings = context.count("strings");
+    long references = context.count("references");
+    int stringDecryptionRate = Math.round((strings / (float) context.count("encryptedStrings")) * 100);
+    int referenceDecryptionRate = Math.round((references / (float) context.count("encryptedReferences")) * 100);
     logger.info("Decrypted {} strings ({}%) and {} references ({}%) successfully.",
       strings, stringDecryptionRate, references, referenceDecryptionRate);
     return references > 0 || strings > 0;
   }
 
 //  private void decryptStrings(Clazz clazz) {
-//    ClassNode classNode = clazz.node;
+//    ClassNode classNode = clazz.getNode();
 //    for (MethodNode methodNode : classNode.methods) {
 //      InsnList instructions = methodNode.instructions;
 //      Set<InvokeDynamicInsnNode> nodes = this.getInvokeDynamicInstructions(
@@ -144,12 +136,13 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
 //    }
 //  }
 
-  private void decryptReferences(Clazz clazz) {
+  private void decryptReferences(ExecutionContext context, Clazz clazz) {
     logger.collectErrors(clazz);
-    ClassNode classNode = clazz.node;
+    ClassNode classNode = clazz.viewNode();
     logger.info("Decrypting references in class {}...", classNode.name);
     MethodNode clinit = super.getStaticInitializer(classNode);
     if (clinit != null) {
+      clazz.markModified();
       BiPredicate<String, String> predicate = (owner, desc) -> !owner.equals(classNode.name)
         && !owner.matches("javax?/(lang|util|crypto)/.*")
         && !desc.matches("\\[?Ljava/lang/String;|J")
@@ -170,7 +163,8 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
       .forEach(ain -> References.remapClassRefs(singleMap, ain));
     proxyNode.fields.forEach(fieldNode -> References.remapFieldType(singleMap, fieldNode));
 
-    VM vm = VM.constructVM(this);
+    // the class itself is defined again, as its static initializer was changed. Other classes are shared
+    VM vm = VM.constructChildVM(getReferenceVM(context), name -> name.equals(classNode.name) ? classNode : null);
     try {
       this.invokeVM(classNode, proxyNode, vm);
     } catch (InvocationTargetException e) {
@@ -201,7 +195,7 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
       }
       InsnList instructions = methodNode.instructions;
       InstructionModifier modifier = new InstructionModifier();
-      encryptedReferences += nodes.size();
+      context.add("encryptedReferences", nodes.size());
       Frame<ConstantValue>[] frames = getConstantFrames(classNode, methodNode, this);
       long key = 0;
       nodes:
@@ -248,10 +242,11 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
 
           MethodHandle methodHandle;
           try {
-            methodHandle = (MethodHandle) bootstrapMethod.invoke(null, args.toArray());
+            methodHandle = (MethodHandle) InvocationRunner.call(classNode.name,
+              () -> bootstrapMethod.invoke(null, args.toArray()));
           } catch (InvocationTargetException e) {
             Throwable cause = e.getCause();
-            if (verbose)
+            if (context.verbose)
               logger.error("Exception", e);
             if (cause instanceof ArrayIndexOutOfBoundsException) {
               logger.warning("Something went wrong while invoking a bootstrap method", shortStacktrace(cause));
@@ -283,10 +278,10 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
 //          instructions.set(node, instruction);
           modifier.replace(node, new InsnNode(POP2), new InsnNode(POP2), instruction);
 
-          references++;
+          context.increment("references");
         } catch (IncompatibleClassChangeError ignored) {
         } catch (ExceptionInInitializerError | NoClassDefFoundError error) {
-          if (verbose)
+          if (context.verbose)
             logger.error("Error", error);
           logger.error("An exception was thrown while initializing class {}", error, classNode.name);
           error.printStackTrace();
@@ -298,11 +293,18 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
     }
   }
 
+  private VM getReferenceVM(ExecutionContext context) {
+    return context.cache("vm", () -> VM.constructVM(name -> {
+      Clazz c = context.classes.get(name);
+      return c != null ? c.viewNode() : null;
+    }));
+  }
+
   private void invokeVM(ClassNode classNode, ClassNode proxyNode, VM vm) throws Exception {
 //    vm.explicitlyPreload(proxyNode, true);
     Class<?> clazz = vm.loadClass(classNode.name.replace("/", "."));
     try {
-      clazz.getMethod("clinitProxy").invoke(null);
+      InvocationRunner.call(classNode.name, () -> clazz.getMethod("clinitProxy").invoke(null));
     } catch (InvocationTargetException e) {
       if (!(e.getCause() instanceof NullPointerException)) {
         throw e;
@@ -369,7 +371,7 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
   }
 
   private void fixInterface(Clazz clazz) {
-    ClassNode classNode = clazz.node;
+    ClassNode classNode = clazz.viewNode();
     if (!Access.isInterface(classNode.access)) {
       return;
     }
@@ -377,6 +379,7 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
     if (clinit == null || !this.hasDESEncryption(clazz)) {
       return;
     }
+    clazz.markModified();
 //    classNode.access &= ~ACC_INTERFACE;
     classNode.methods.clear();
   }
@@ -501,7 +504,7 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
 
   //TODO: implement better DES encryption check for classes without static initializer but obfuscation
   private boolean hasDESEncryption(Clazz c) {
-    ClassNode cn = c.node;
+    ClassNode cn = c.viewNode();
     if (Access.isInterface(cn.access))
       return false;
     MethodNode mn = getStaticInitializer(cn);
@@ -517,11 +520,6 @@ public class DESObfuscationZKM extends Execution implements IVMReferenceHandler,
     return "iamkyaru";
   }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    return this.classes.containsKey(name) ? this.classes.get(name).node : null;
-  }
-
   @Override
   public Object getFieldValueOrNull(BasicValue v, String owner, String name, String desc) {
     return null;
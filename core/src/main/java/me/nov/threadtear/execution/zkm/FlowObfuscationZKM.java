@@ -1,23 +1,19 @@
 package me.nov.threadtear.execution.zkm;
 
-import me.nov.threadtear.execution.Clazz;
-import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
+import me.nov.threadtear.execution.InstructionPass;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.MethodNode;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 import java.util.function.Predicate;
 
-public class FlowObfuscationZKM extends Execution {
+public class FlowObfuscationZKM extends InstructionPass {
 
   private static final Predicate<Integer> singleJump =
     op -> (op >= IFEQ && op <= IFLE) || op == IFNULL || op == IFNONNULL;
-  private int replaced;
 
   public FlowObfuscationZKM() {
     super(ExecutionCategory.ZKM, "Flow obfuscation removal",
@@ -26,33 +22,61 @@ public class FlowObfuscationZKM extends Execution {
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    replaced = 0;
+  protected void begin(ExecutionContext context) {
     logger.info("Removing all garbage jumps");
-    classes.values().stream().map(c -> c.node).forEach(c -> c.methods.forEach(this::removeZKMJumps));
+  }
+
+  @Override
+  protected AbstractInsnNode visitInsn(ExecutionContext context, MethodNode m, AbstractInsnNode ain) {
+    AbstractInsnNode replacement = removeZKMJump(m, ain);
+    if (replacement != ain) {
+      context.increment("replaced");
+    }
+    return replacement;
+  }
+
+  @Override
+  protected boolean finish(ExecutionContext context) {
+    long replaced = context.count("replaced");
     logger.info("Removed {} jumps matching ZKM pattern in total", replaced);
     return replaced > 0;
   }
 
-  public void removeZKMJumps(MethodNode mn) {
+  /**
+   * @return the number of removed jumps
+   */
+  public int removeZKMJumps(MethodNode mn) {
+    int replaced = 0;
     for (AbstractInsnNode ain : mn.instructions.toArray()) {
-      if (ain.getPrevious() != null && singleJump.test(ain.getOpcode())) {
-        AbstractInsnNode previous = ain.getPrevious();
-        boolean shouldPop = false;
-        if (ain.getOpcode() == IFNULL || ain.getOpcode() == IFNONNULL) { //first case flow obfuscation scenario
-          if (previous.getOpcode() == ALOAD) {
-            shouldPop = true;
-          }
-        } else if (ain.getOpcode() >= IFEQ && ain.getOpcode() <= IFLE) { //second case
-          if (previous.getOpcode() == ILOAD) {
-            shouldPop = true;
-          }
+      if (removeZKMJump(mn, ain) != ain) {
+        replaced++;
+      }
+    }
+    return replaced;
+  }
+
+  /**
+   * @return the instruction that replaced the jump, or ain if it was kept
+   */
+  private AbstractInsnNode removeZKMJump(MethodNode mn, AbstractInsnNode ain) {
+    if (ain.getPrevious() != null && singleJump.test(ain.getOpcode())) {
+      AbstractInsnNode previous = ain.getPrevious();
+      boolean shouldPop = false;
+      if (ain.getOpcode() == IFNULL || ain.getOpcode() == IFNONNULL) { //first case flow obfuscation scenario
+        if (previous.getOpcode() == ALOAD) {
+          shouldPop = true;
         }
-        if (shouldPop) {
-          mn.instructions.set(ain, new InsnNode(POP));
-          replaced++;
+      } else if (ain.getOpcode() >= IFEQ && ain.getOpcode() <= IFLE) { //second case
+        if (previous.getOpcode() == ILOAD) {
+          shouldPop = true;
         }
       }
+      if (shouldPop) {
+        InsnNode pop = new InsnNode(POP);
+        mn.instructions.set(ain, pop);
+        return pop;
+      }
     }
+    return ain;
   }
 }
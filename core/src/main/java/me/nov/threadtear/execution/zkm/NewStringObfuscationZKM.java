@@ -3,25 +3,22 @@ package me.nov.threadtear.execution.zkm;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.io.Conversion;
-import me.nov.threadtear.security.VMSecurityManager;
+import me.nov.threadtear.vm.DecryptionCache;
 import me.nov.threadtear.vm.IVMReferenceHandler;
-import me.nov.threadtear.vm.VM;
+import me.nov.threadtear.vm.Invocation;
+import me.nov.threadtear.vm.Sandbox;
+import me.nov.threadtear.vm.SandboxSession;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
 import java.util.stream.Collectors;
 
-public class NewStringObfuscationZKM extends Execution implements IVMReferenceHandler {
-  private Map<String, Clazz> classes;
-
-  private int countSuccess;
-  private int countFailure;
+public class NewStringObfuscationZKM extends Execution {
+  private static final String DECRYPT_PROXY = "decryptProxy";
 
   public NewStringObfuscationZKM() {
     super(
@@ -33,34 +30,33 @@ public class NewStringObfuscationZKM extends Execution implements IVMReferenceHa
     );
   }
 
-  @SuppressWarnings("removal")
   @Override
-  public boolean execute(Map<String, Clazz> map, boolean verbose) {
-    countSuccess = 0;
-    countFailure = 0;
-
-    VMSecurityManager securityManager = (VMSecurityManager) System.getSecurityManager();
-    securityManager.grantAll = true;
-
-    classes = map;
-    VM vm = VM.constructVM(this);
-
-    for (Clazz clazz : map.values()) {
-      decryptAll(vm, clazz.node);
+  public boolean execute(ExecutionContext context) {
+    // classes with string encryption are only loaded as copies that don't initialize anything else
+    Map<String, ClassNode> copies = new HashMap<>();
+    for (Clazz clazz : context.classes.values()) {
+      if (containsStringEncryption(clazz.viewNode())) {
+        copies.put(clazz.getName(), createDecryptionCopy(clazz.viewNode()));
+      }
     }
+    IVMReferenceHandler handler = name -> copies.containsKey(name) ? copies.get(name) : tryClassLoad(context, name);
 
-    securityManager.grantAll = false;
+    try (SandboxSession session = Sandbox.getInvoker().open(handler, true, false)) {
+      for (Clazz clazz : context.classes.values()) {
+        // only classes with string encryption are changed
+        if (copies.containsKey(clazz.getName())) {
+          decryptAll(context, session, clazz.getNode());
+        }
+      }
+    }
 
-    logger.info("Successfully decrypted {} strings and failed to decrypt {} strings!", countSuccess, countFailure);
+    logger.info("Successfully decrypted {} strings and failed to decrypt {} strings!", context.count("success"),
+      context.count("failure"));
     return true;
   }
 
-  private void decryptAll(VM vm, ClassNode klass) {
-    if (!containsStringEncryption(klass)) return;
-
+  private void decryptAll(ExecutionContext context, SandboxSession session, ClassNode klass) {
     // Loop methods
-    Class<?> loadedClass = null;
-
     for (MethodNode method : klass.methods) {
       if (method.instructions.size() < 4) continue;
 
@@ -79,6 +75,8 @@ public class NewStringObfuscationZKM extends Execution implements IVMReferenceHa
       }
       else continue;
 
+      Long seed = null;
+
       // Search for INVOKEDYNAMIC calls to the decrypt method
       List<DecryptCall> calls = new ArrayList<>();
 
@@ -115,56 +113,68 @@ public class NewStringObfuscationZKM extends Execution implements IVMReferenceHa
           method.instructions.remove(insn);
         }
 
-        // Decrypt string
-        if (loadedClass == null) loadedClass = loadClass(vm, klass);
+        // Strings that were decrypted before don't need the class to be loaded
+        DecryptionCache.Key key = DecryptionCache.key(klass.name, "a", "(IJ)Ljava/lang/String;",
+          new Object[]{call.arg1, call.arg2, methodSeed}, null);
+        String cached = (String) DecryptionCache.get(key);
+        if (cached != null) {
+          method.instructions.insert(prevInsn, new LdcInsnNode(cached));
+          context.increment("success");
+          continue;
+        }
+
+        // Decrypt string, reading the seed runs the static initializer
+        if (seed == null) seed = readSeed(session, klass, seedFieldName);
 
-        if (loadedClass == null) {
-          logger.error("{}: Failed to load copied class into VM", klass.name);
-          countFailure++;
+        if (seed == null) {
+          context.increment("failure");
           continue;
         }
 
-        String string = decrypt(loadedClass, seedFieldName, methodSeed, call);
+        String string = decrypt(session, klass, seed, methodSeed, call);
         if (string == null) {
-          countFailure++;
+          context.increment("failure");
           continue;
         }
+        DecryptionCache.put(key, string);
 
         // Insert LDC string instruction
         method.instructions.insert(prevInsn, new LdcInsnNode(string));
 
-        countSuccess++;
+        context.increment("success");
       }
     }
   }
 
-  private String decrypt(Class<?> klass, String seedFieldName, long methodSeed, DecryptCall call) {
-    try {
-      Field seedField = klass.getDeclaredField(seedFieldName);
-      seedField.setAccessible(true);
-      long seed = (long) seedField.get(null);
-
-      long var4 = seed ^ methodSeed;
-      int arg1 = call.arg1;
-      long arg2 = call.arg2 ^ var4;
-
-      Method method = klass.getDeclaredMethod("a", int.class, long.class);
-      method.setAccessible(true);
-      return (String) method.invoke(null, arg1, arg2);
-    }
-    catch (NoSuchFieldException | IllegalAccessException | NoSuchMethodException | InvocationTargetException | ExceptionInInitializerError | NoClassDefFoundError e) {
-      logger.error("{}: Failed to decrypt string", klass.getName());
+  private Long readSeed(SandboxSession session, ClassNode klass, String seedFieldName) {
+    Invocation invocation = new Invocation(klass.name, "<clinit>").read(klass.name, seedFieldName);
+    session.invoke(Collections.emptyList(), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      logger.error("{}: Failed to read the seed, {}", klass.name, shortStacktrace(invocation.getError()));
       return null;
     }
+    return (Long) invocation.getOutput(0);
   }
 
-  private Class<?> loadClass(VM vm, ClassNode klass) {
-    String name = klass.name.replace('/', '.');
+  private String decrypt(SandboxSession session, ClassNode klass, long seed, long methodSeed, DecryptCall call) {
+    long var4 = seed ^ methodSeed;
+    int arg1 = call.arg1;
+    long arg2 = call.arg2 ^ var4;
 
-    // Check if its already loaded, idk why this happens but oh well
-    Class<?> loadedClass = vm.loaded.get(name);
-    if (loadedClass != null) return loadedClass;
+    Invocation invocation = new Invocation(klass.name, DECRYPT_PROXY, arg1, arg2);
+    session.invoke(Collections.emptyList(), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      logger.error("{}: Failed to decrypt string, {}", klass.name, shortStacktrace(invocation.getError()));
+      return null;
+    }
+    return (String) invocation.getResult();
+  }
 
+  /**
+   * Copy the class with a static initializer that ends after the decryption is set up. The decryption method
+   * <code>a(IJ)</code> is called by a proxy with a unique name, as other methods may have the same name.
+   */
+  private ClassNode createDecryptionCopy(ClassNode klass) {
     // Copy class and get static initializer
     ClassNode copy = copyClassWithNeededMethodsAndFields(klass);
     MethodNode clinit = getClinit(copy);
@@ -184,9 +194,13 @@ public class NewStringObfuscationZKM extends Execution implements IVMReferenceHa
       }
     }
 
-    // Load class
-    vm.explicitlyPreload(copy);
-    return vm.loaded.get(name);
+    InsnList proxy = new InsnList();
+    proxy.add(new VarInsnNode(Opcodes.ILOAD, 0));
+    proxy.add(new VarInsnNode(Opcodes.LLOAD, 1));
+    proxy.add(new MethodInsnNode(Opcodes.INVOKESTATIC, copy.name, "a", "(IJ)Ljava/lang/String;"));
+    proxy.add(new InsnNode(Opcodes.ARETURN));
+    copy.methods.add(Sandbox.createMethodProxy(proxy, DECRYPT_PROXY, "(IJ)Ljava/lang/String;"));
+    return copy;
   }
 
   private ClassNode copyClassWithNeededMethodsAndFields(ClassNode klass) {
@@ -245,10 +259,9 @@ public class NewStringObfuscationZKM extends Execution implements IVMReferenceHa
     return null;
   }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    Clazz clazz = classes.get(name);
-    return clazz != null ? clazz.node : null;
+  private ClassNode tryClassLoad(ExecutionContext context, String name) {
+    Clazz clazz = context.classes.get(name);
+    return clazz != null ? clazz.viewNode() : null;
   }
 
   @Override
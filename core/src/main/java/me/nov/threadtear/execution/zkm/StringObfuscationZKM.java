@@ -5,44 +5,45 @@ import me.nov.threadtear.analysis.stack.IConstantReferenceHandler;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.execution.Execution;
 import me.nov.threadtear.execution.ExecutionCategory;
+import me.nov.threadtear.execution.ExecutionContext;
 import me.nov.threadtear.execution.ExecutionTag;
 import me.nov.threadtear.execution.generic.inliner.ArgumentInfer;
 import me.nov.threadtear.util.asm.Access;
+import me.nov.threadtear.util.asm.Copier;
 import me.nov.threadtear.util.asm.InstructionModifier;
 import me.nov.threadtear.util.asm.Instructions;
 import me.nov.threadtear.util.asm.References;
 import me.nov.threadtear.util.asm.method.MethodContext;
 import me.nov.threadtear.util.format.Strings;
+import me.nov.threadtear.vm.DecryptionCache;
+import me.nov.threadtear.vm.EmulationException;
+import me.nov.threadtear.vm.Emulator;
 import me.nov.threadtear.vm.IVMReferenceHandler;
+import me.nov.threadtear.vm.Invocation;
 import me.nov.threadtear.vm.Sandbox;
-import me.nov.threadtear.vm.VM;
+import me.nov.threadtear.vm.SandboxException;
+import me.nov.threadtear.vm.SandboxSession;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
-public class StringObfuscationZKM extends Execution implements IVMReferenceHandler, IConstantReferenceHandler {
+public class StringObfuscationZKM extends Execution {
 
   private static final String ENCHANCED_MODE_METHOD_DESC = "\\(II+\\)Ljava/lang/String;";
   private static final String ALLOWED_CALLS = "(java/lang/String).*";
-  private int decrypted;
-  private boolean verbose;
-  private ArgumentInfer argumentInfer;
 
   /*
    * TODO: String encryption using DES Cipher (probably
    *  only in combination with reflection obfuscation
    */
-  private FieldInsnNode decryptedArrayField;
-  private String[] decryptedFieldValue;
 
   public StringObfuscationZKM() {
     super(ExecutionCategory.ZKM, "String obfuscation removal",
@@ -52,17 +53,16 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
   }
 
   @Override
-  public boolean execute(Map<String, Clazz> classes, boolean verbose) {
-    this.verbose = verbose;
-    final List<ClassNode> classNodes = classes.values().stream().map(c -> c.node).collect(Collectors.toList());
-    argumentInfer = new ArgumentInfer(classNodes);
-    classes.values().stream().filter(this::hasZKMBlock).forEach(this::decrypt);
-    logger.info("Decrypted {} strings successfully.", decrypted);
-    return decrypted > 0;
+  public boolean execute(ExecutionContext context) {
+    ArgumentInfer argumentInfer = new ArgumentInfer(context.getCallGraph());
+    context.classes.values().stream().filter(this::hasZKMBlock).forEach(c -> decrypt(context, argumentInfer, c));
+    logger.info("Decrypted {} strings successfully, {} calls by emulation.", context.count("decrypted"),
+      context.count("emulated"));
+    return context.count("decrypted") > 0;
   }
 
   private boolean hasZKMBlock(Clazz c) {
-    ClassNode cn = c.node;
+    ClassNode cn = c.viewNode();
     if (Access.isInterface(cn.access)) // TODO maybe
       // interfaces get string encrypted too, but proxy
       // would not be
@@ -77,8 +77,8 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
         Strings.isHighSDev(((LdcInsnNode) ain).cst.toString()));
   }
 
-  private void decrypt(Clazz c) {
-    ClassNode cn = c.node;
+  private void decrypt(ExecutionContext context, ArgumentInfer argumentInfer, Clazz c) {
+    ClassNode cn = c.getNode();
     logger.collectErrors(c);
     MethodNode clinit = getStaticInitializer(cn);
     if (clinit == null)
@@ -110,9 +110,9 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
     proxyClass.methods.stream().map(m -> m.instructions.toArray()).flatMap(Arrays::stream)
       .forEach(ain -> References.remapClassRefs(singleMap, ain));
     try {
-      invokeVMAndReplace(proxyClass, cn);
+      invokeVMAndReplace(context, argumentInfer, proxyClass, cn);
     } catch (Throwable e) {
-      if (verbose)
+      if (context.verbose)
         logger.error("Throwable", e);
       logger.error("Failed to run proxy in {}, {} ", referenceString(cn, null), shortStacktrace(e));
     }
@@ -123,48 +123,59 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
    * method called "clinitProxy" that is a cutout of the
    * original static initializer with the decryption ONLY.
    */
-  private void invokeVMAndReplace(ClassNode proxy, ClassNode realClass) throws Throwable {
-    VM vm = VM.constructNonInitializingVM(this);
-    vm.explicitlyPreload(proxy, true);
-    vm.explicitlyPreload(realClass, true);
-    Class<?> callProxy = vm.loadClass("ProxyClass");
-    try {
-      callProxy.getMethod("clinitProxy").invoke(null); // invoke cut clinit, fields
-      // in original class in vm get set
-    } catch (InvocationTargetException e) {
-      if (!(e.getCause() instanceof NullPointerException)) {
-        // only ignore NPE from instruction removal
-        throw e;
+  private void invokeVMAndReplace(ExecutionContext context, ArgumentInfer argumentInfer, ClassNode proxy,
+                                  ClassNode realClass) throws Throwable {
+    IVMReferenceHandler classes = name -> name.equals(proxy.name) ? proxy : name.equals(realClass.name) ? realClass :
+      null;
+    Emulator emulator = createEmulator(proxy);
+    try (SandboxSession session = Sandbox.getInvoker().open(classes, false, false)) {
+      // invoke cut clinit, fields in the proxy get set. The proxy has no static initializer, initializing it only
+      // reads the fields
+      Invocation clinitProxy = new Invocation(proxy.name, "clinitProxy");
+      Invocation fields = new Invocation(proxy.name, "<clinit>");
+      proxy.fields.forEach(f -> fields.read(proxy.name, f.name));
+      session.invoke(Collections.emptyList(), Arrays.asList(clinitProxy, fields));
+      if (clinitProxy.failed()) {
+        if (!SandboxException.isType(clinitProxy.getError(), NullPointerException.class)) {
+          // only ignore NPE from instruction removal
+          throw clinitProxy.getError();
+        } else {
+          logger.info("NPE in " + realClass.name);
+        }
+      }
+      Map<String, Object> values = new HashMap<>();
+      if (fields.failed()) {
+        logger.error("Failed to get decrypted field values in {}, {}", referenceString(realClass, null),
+          shortStacktrace(fields.getError()));
       } else {
-        logger.info("NPE in " + realClass.name);
+        for (int i = 0; i < proxy.fields.size(); i++) {
+          values.put(proxy.fields.get(i).name, fields.getOutput(i));
+        }
       }
-    }
-    realClass.methods.forEach(m -> {
-      argumentInfer.inline(new MethodContext(realClass, m));
-      decryptedArrayField = null;
-      m.instructions.forEach(ain -> {
-        if (isLocalField(realClass, ain) && ((FieldInsnNode) ain).desc.equals("[Ljava/lang/String;")) {
-          decryptedArrayField = (FieldInsnNode) ain;
-          try {
-            decryptedFieldValue = (String[]) callProxy.getField(((FieldInsnNode) ain).name).get(null);
-          } catch (Exception e) {
-            logger.error("Failed to get decrypted field value in {}", referenceString(realClass, m));
+      realClass.methods.forEach(m -> {
+        argumentInfer.inline(new MethodContext(realClass, m));
+        DecryptedArrayHandler handler = new DecryptedArrayHandler();
+        m.instructions.forEach(ain -> {
+          if (isLocalField(realClass, ain) && ((FieldInsnNode) ain).desc.equals("[Ljava/lang/String;")) {
+            handler.field = (FieldInsnNode) ain;
+            handler.value = (String[]) values.get(handler.field.name);
           }
-        }
-      });
+        });
 
-      InstructionModifier modifier = new InstructionModifier();
+        InstructionModifier modifier = new InstructionModifier();
 
-      loopConstantFrames(realClass, m, this, (ain, frame) -> {
-        if (isZKMMethod(realClass, ain)) {
-          decryptMethodsAndRewrite(realClass, callProxy, m, (MethodInsnNode) ain, frame, modifier);
-        } else {
-          tryReplaceFieldLoads(realClass, callProxy, m, ain, frame, modifier);
-        }
-      });
+        loopConstantFrames(realClass, m, handler, (ain, frame) -> {
+          if (isZKMMethod(realClass, ain)) {
+            decryptMethodsAndRewrite(context, realClass, emulator, session, proxy.name, m, (MethodInsnNode) ain,
+              frame, modifier);
+          } else {
+            tryReplaceFieldLoads(context, realClass, values, m, ain, frame, modifier);
+          }
+        });
 
-      modifier.apply(m);
-    });
+        modifier.apply(m);
+      });
+    }
   }
 
   private boolean isLocalField(ClassNode cn, AbstractInsnNode ain) {
@@ -186,12 +197,26 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
     return min.owner.equals(cn.name) && min.desc.matches(ENCHANCED_MODE_METHOD_DESC);
   }
 
+  /**
+   * The emulator runs the cut static initializer of the proxy as its own, so the decryption methods can be emulated
+   * without loading any class.
+   */
+  private Emulator createEmulator(ClassNode proxy) {
+    ClassNode emulated = Copier.copy(proxy);
+    emulated.methods.stream().filter(m -> m.name.equals("clinitProxy")).forEach(m -> {
+      m.name = "<clinit>";
+      m.access = ACC_STATIC;
+    });
+    return new Emulator(name -> name.equals(emulated.name) ? emulated : null, true);
+  }
+
   /**
    * Replace decryption methods that take ints as
    * argument and returns the decrypted String. This does
    * only occur sometimes!
    */
-  private void decryptMethodsAndRewrite(ClassNode cn, Class<?> callProxy, MethodNode m, MethodInsnNode min,
+  private void decryptMethodsAndRewrite(ExecutionContext context, ClassNode cn, Emulator emulator,
+                                        SandboxSession session, String proxy, MethodNode m, MethodInsnNode min,
                                         Frame<ConstantValue> frame, InstructionModifier modifier) {
     try {
       int argCount = (int) Arrays.stream(Type.getArgumentTypes(min.desc))
@@ -204,44 +229,73 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
 
       if (Arrays.stream(argValues).allMatch(v -> v.isInteger() && v.isKnown())) {
         final Object[] invokeArgs = new Object[argCount];
-        final Class<?>[] invokeArgTypes = new Class[argCount];
         final InsnList newInsns = new InsnList();
         for (int i = 0; i < argCount; i++) {
           invokeArgs[i] = argValues[i].getAsInteger();
-          invokeArgTypes[i] = int.class;
           newInsns.add(new InsnNode(POP));
         }
 
-        String decryptedLDC = (String) callProxy.getDeclaredMethod(min.name, invokeArgTypes).invoke(null, invokeArgs);
+        DecryptionCache.Key key = DecryptionCache.key(min, invokeArgs, null);
+        String decryptedLDC = (String) DecryptionCache.get(key);
+        if (decryptedLDC == null) {
+          decryptedLDC = emulateOrInvoke(context, emulator, session, proxy, cn, m, min, invokeArgs);
+          DecryptionCache.put(key, decryptedLDC);
+        }
         if (!Strings.isHighUTF(decryptedLDC)) {
           newInsns.add(new LdcInsnNode(decryptedLDC));
           modifier.replace(min, newInsns);
-          decrypted++;
-        } else if (verbose) {
+          context.increment("decrypted");
+        } else if (context.verbose) {
           logger.error("Failed decrypting {}", referenceString(cn, m));
         }
-      } else if (verbose) {
+      } else if (context.verbose) {
         logger.warning("Failed to find arguments for {}", referenceString(cn, m));
       }
     } catch (Throwable t) {
-      if (verbose) {
+      if (context.verbose) {
         t.printStackTrace();
       }
       logger.error("General failure in {}, {}", referenceString(cn, m), shortStacktrace(t));
     }
   }
 
+  /**
+   * Emulate the decryption method, only if the emulator doesn't support it the proxy is invoked.
+   */
+  private String emulateOrInvoke(ExecutionContext context, Emulator emulator, SandboxSession session, String proxy,
+                                 ClassNode cn, MethodNode m, MethodInsnNode min, Object[] args) throws Throwable {
+    try {
+      String decrypted = (String) emulator.invoke(proxy, min.name, min.desc, args, Emulator.frame(cn.name, m.name));
+      context.increment("emulated");
+      return decrypted;
+    } catch (EmulationException e) {
+      if (!e.canFallBack()) {
+        throw e;
+      }
+      if (context.verbose) {
+        logger.warning("Emulation failed in {}: {}", referenceString(cn, m), e.getMessage());
+      }
+    }
+    // the decryption methods were copied to the proxy, they only differ by their number of arguments
+    Invocation invocation = new Invocation(proxy, min.name, args);
+    session.invoke(Collections.emptyList(), Collections.singletonList(invocation));
+    if (invocation.failed()) {
+      throw invocation.getError();
+    }
+    return (String) invocation.getResult();
+  }
+
   /**
    * Replace decrypted String[] and String fields in the
    * code. This is the hardest part
    */
-  private void tryReplaceFieldLoads(ClassNode cn, Class<?> callProxy, MethodNode m, AbstractInsnNode ain,
-                                    Frame<ConstantValue> frame, InstructionModifier modifier) {
+  private void tryReplaceFieldLoads(ExecutionContext context, ClassNode cn, Map<String, Object> values, MethodNode m,
+                                    AbstractInsnNode ain, Frame<ConstantValue> frame, InstructionModifier modifier) {
     try {
       if (ain.getOpcode() == GETSTATIC) {
         FieldInsnNode fin = (FieldInsnNode) ain;
         if (isLocalField(cn, fin) && fin.desc.equals("Ljava/lang/String;")) {
-          String decrypedString = (String) callProxy.getDeclaredField(fin.name).get(null);
+          String decrypedString = (String) values.get(fin.name);
           if (decrypedString == null) {
             // could be false call, not the decrypted string
             logger.warning("Possible false call in {} or failed decryption, single field is null: {}",
@@ -251,7 +305,7 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
             // i don't know why we need NOP, but it only
             // works that way :confusion:
             modifier.replace(ain, new LdcInsnNode(decrypedString), new InsnNode(NOP));
-            decrypted++;
+            context.increment("decrypted");
           }
         }
       } else if (ain.getOpcode() == AALOAD) {
@@ -268,32 +322,41 @@ public class StringObfuscationZKM extends Execution implements IVMReferenceHandl
               logger.warning("String decryption in {} may have failed", referenceString(cn, m));
             }
             modifier.replace(ain, new InsnNode(POP2), new LdcInsnNode(decryptedString));
-            decrypted++;
+            context.increment("decrypted");
           }
         }
       }
     } catch (Throwable t) {
-      if (verbose) {
+      if (context.verbose) {
         logger.error("Throwable", t);
       }
       logger.error("General failure in {}, {}", referenceString(cn, m), shortStacktrace(t));
     }
   }
 
-  @Override
-  public Object getFieldValueOrNull(BasicValue v, String owner, String name, String desc) {
-    return decryptedArrayField != null && decryptedArrayField.owner.equals(owner) &&
-      decryptedArrayField.name.equals(name) && decryptedArrayField.desc.equals(desc) ? decryptedFieldValue : null;
-  }
+  /**
+   * Resolves loads of the decrypted String[] field of the method that is currently analyzed.
+   */
+  private static class DecryptedArrayHandler implements IConstantReferenceHandler {
+    FieldInsnNode field;
+    String[] value;
 
-  @Override
-  public Object getMethodReturnOrNull(BasicValue v, String owner, String name, String desc,
-                                      List<? extends ConstantValue> values) {
-    return null;
-  }
+    @Override
+    public Object getFieldValueOrNull(BasicValue v, String owner, String name, String desc) {
+      return field != null && field.owner.equals(owner) && field.name.equals(name) && field.desc.equals(desc) ?
+        value : null;
+    }
 
-  @Override
-  public ClassNode tryClassLoad(String name) {
-    return null;
+    @Override
+    public Object getMethodReturnOrNull(BasicValue v, String owner, String name, String desc,
+                                        List<? extends ConstantValue> values) {
+      return null;
+    }
+
+    @Override
+    public Caching getCaching() {
+      // created per method, with the decrypted array of the current class
+      return Caching.NONE;
+    }
   }
 }
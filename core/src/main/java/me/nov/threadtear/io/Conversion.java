@@ -4,6 +4,7 @@ import java.io.*;
 import java.nio.file.Files;
 
 import me.nov.threadtear.logging.LogWrapper;
+import me.nov.threadtear.util.asm.ClassHierarchy;
 import me.nov.threadtear.util.asm.SignatureValidator;
 import org.objectweb.asm.*;
 import org.objectweb.asm.tree.ClassNode;
@@ -13,12 +14,17 @@ public final class Conversion {
   private Conversion() {
   }
 
-  public static byte[] toBytecode(ClassNode cn, boolean useMaxs) {
+  /**
+   * Serialize a class and recompute its stack map frames, using the hierarchy to resolve common super classes.
+   * If frames can't be computed, the existing frames are kept.
+   */
+  public static byte[] toBytecode(ClassNode cn, ClassHierarchy hierarchy) {
     try {
-      ClassWriter cw = new ClassWriter(useMaxs ? ClassWriter.COMPUTE_MAXS : ClassWriter.COMPUTE_FRAMES);
+      ClassWriter cw = new HierarchyClassWriter(hierarchy, ClassWriter.COMPUTE_FRAMES);
       cn.accept(cw);
       return cw.toByteArray();
     } catch (Exception e) {
+      LogWrapper.logger.warning("Failed to compute frames of {}, keeping original frames ({})", cn.name, e.toString());
       return toBytecode0(cn);
     }
   }
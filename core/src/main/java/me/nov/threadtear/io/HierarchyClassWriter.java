@@ -0,0 +1,22 @@
+package me.nov.threadtear.io;
+
+import me.nov.threadtear.util.asm.ClassHierarchy;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A class writer that resolves common super classes using a {@link ClassHierarchy} instead of loading classes with
+ * <code>Class.forName</code>. This makes frame computation work for classes that only exist in the workspace.
+ */
+public class HierarchyClassWriter extends ClassWriter {
+  private final ClassHierarchy hierarchy;
+
+  public HierarchyClassWriter(ClassHierarchy hierarchy, int flags) {
+    super(flags);
+    this.hierarchy = hierarchy;
+  }
+
+  @Override
+  protected String getCommonSuperClass(String type1, String type2) {
+    return hierarchy.getCommonSuperClass(type1, type2);
+  }
+}
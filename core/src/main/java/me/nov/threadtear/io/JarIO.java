@@ -5,18 +5,37 @@ import me.coley.cafedude.io.ClassFileReader;
 import me.coley.cafedude.io.ClassFileWriter;
 import me.nov.threadtear.execution.Clazz;
 import me.nov.threadtear.logging.LogWrapper;
+import me.nov.threadtear.util.asm.ClassHierarchy;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.IOUtils;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.*;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.zip.ZipException;
 
@@ -24,48 +43,175 @@ public final class JarIO {
   private JarIO() {}
 
   public static List<Clazz> loadClasses(File jarFile) throws IOException {
-    List<Clazz> classes = new ArrayList<>();
+    return loadClasses(jarFile, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Load all classes of a jar file. The raw entries are read sequentially, validating and sanitizing them is done in
+   * parallel. Only classes ASM fails to parse are sanitized using CAFED00D. The class nodes themselves are parsed
+   * lazily, see {@link Clazz#getNode()}. The order of the returned classes matches the entry order of the jar.
+   *
+   * @param parallelism the amount of worker threads used for validating and sanitizing
+   */
+  public static List<Clazz> loadClasses(File jarFile, int parallelism) throws IOException {
+    List<RawEntry> entries = new ArrayList<>();
 
     JarFile jar = new JarFile(jarFile);
-    jar.stream().forEach(jarEntry -> readEntry(jar, jarEntry, classes));
+    jar.stream().forEach(jarEntry -> readRawEntry(jar, jarEntry, entries));
     jar.close();
 
-    return classes;
+    Clazz[] classes = new Clazz[entries.size()];
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+    try {
+      pool.submit(() -> IntStream.range(0, classes.length).parallel()
+              .forEach(i -> classes[i] = readClass(jar, entries.get(i)))).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading classes", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to load classes", e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+    List<Clazz> loaded = Arrays.stream(classes).filter(Objects::nonNull).collect(Collectors.toCollection(ArrayList::new));
+    LogWrapper.logger.info("{} of {} classes were malformed and had to be sanitized",
+            loaded.stream().filter(c -> c.sanitized).count(), loaded.size());
+    return loaded;
   }
 
-  private static void readEntry(JarFile jar, JarEntry jarEntry, List<Clazz> classes) {
-    String name = jarEntry.getName();
-
+  private static void readRawEntry(JarFile jar, JarEntry jarEntry, List<RawEntry> entries) {
     try (InputStream in = jar.getInputStream(jarEntry)) {
       byte[] bytes = IOUtils.toByteArray(in);
 
       if (isClassFile(bytes)) {
-        try {
-          ClassFileReader reader = new ClassFileReader();
-          ClassFile classFile = reader.read(bytes);
-          bytes = new ClassFileWriter().write(classFile);
+        entries.add(new RawEntry(jarEntry, bytes));
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
 
-          final ClassNode cn = Conversion.toNode(bytes);
+  private static Clazz readClass(JarFile jar, RawEntry entry) {
+    try {
+      boolean sanitized = false;
+      byte[] bytes = entry.bytes;
+      if (!isWellFormed(bytes)) {
+        // only run the CAFED00D round trip on classes ASM can't handle by itself
+        ClassFileReader reader = new ClassFileReader();
+        ClassFile classFile = reader.read(bytes);
+        bytes = new ClassFileWriter().write(classFile);
+        sanitized = true;
+      }
 
-          if (cn.superName != null || cn.name != null && cn.name.equals("java/lang/Object")) {
-            classes.add(new Clazz(cn, jarEntry, jar));
-          }
-        }
-        catch (Exception e) {
-          LogWrapper.logger.error("Failed to load file {}", e, name);
-        }
+      ClassReader cr = new ClassReader(bytes);
+      if (cr.getSuperName() != null || cr.getClassName().equals("java/lang/Object")) {
+        // the class node is parsed lazily, only keep the bytes
+        Clazz clazz = new Clazz(bytes, entry.jarEntry, jar);
+        clazz.sanitized = sanitized;
+        return clazz;
       }
     }
     catch (Exception e) {
-      e.printStackTrace();
+      LogWrapper.logger.error("Failed to load file {}", e, entry.jarEntry.getName());
+    }
+    return null;
+  }
+
+  /**
+   * Run the class through ASM's parser without building a tree.
+   *
+   * @return false if the class is malformed and has to be sanitized first
+   */
+  private static boolean isWellFormed(byte[] bytes) {
+    try {
+      ValidatingVisitor validator = new ValidatingVisitor();
+      new ClassReader(bytes).accept(validator, ClassReader.EXPAND_FRAMES);
+      return !validator.unknownAttributes;
+    }
+    catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * Attributes ASM doesn't know are passed through as raw bytes, these are usually junk inserted by obfuscators.
+   */
+  private static final class ValidatingVisitor extends ClassVisitor {
+    boolean unknownAttributes;
+
+    ValidatingVisitor() {
+      super(Opcodes.ASM9);
+    }
+
+    @Override
+    public void visitAttribute(Attribute attribute) {
+      unknownAttributes = true;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+      return new FieldVisitor(Opcodes.ASM9) {
+        @Override
+        public void visitAttribute(Attribute attribute) {
+          unknownAttributes = true;
+        }
+      };
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                     String[] exceptions) {
+      return new MethodVisitor(Opcodes.ASM9) {
+        @Override
+        public void visitAttribute(Attribute attribute) {
+          unknownAttributes = true;
+        }
+      };
+    }
+  }
+
+  private static final class RawEntry {
+    final JarEntry jarEntry;
+    final byte[] bytes;
+
+    RawEntry(JarEntry jarEntry, byte[] bytes) {
+      this.jarEntry = jarEntry;
+      this.bytes = bytes;
     }
   }
 
   public static final String CERT_REGEX = "META-INF/.+(\\.SF|\\.RSA|\\.DSA)";
 
   public static void saveAsJar(File original, File output, List<Clazz> classes, boolean noSignature, boolean watermark) {
-    try {
-      JarOutputStream out = new JarOutputStream(new FileOutputStream(output));
+    saveAsJar(original, output, classes, noSignature, watermark, false, true,
+            Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Write all resources of the original file and all classes to a new jar. Classes are serialized in parallel, but
+   * written in the same order as in the list. At most a small window of serialized classes is held in memory.
+   *
+   * @param passthrough copy resources and unmodified classes as they are compressed in the original file, without
+   *                    inflating and deflating them again. Only modified classes are serialized.
+   * @param computeFrames recompute the stack map frames of modified classes, using the hierarchy of the exported
+   *                      classes and the JDK
+   * @param parallelism the amount of worker threads used for class serialization
+   */
+  public static void saveAsJar(File original, File output, List<Clazz> classes, boolean noSignature, boolean watermark,
+                               boolean passthrough, boolean computeFrames, int parallelism) {
+    // old class entries are replaced by the updated classes
+    Set<String> classEntries = classes.stream().map(c -> c.oldEntry.getName()).collect(Collectors.toSet());
+    ClassHierarchy hierarchy = computeFrames ? new ClassHierarchy(classes) : null;
+    if (passthrough && isZipFile(original)) {
+      try {
+        savePassthrough(original, output, classes, classEntries, noSignature, watermark, hierarchy, parallelism);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    try (JarOutputStream out = new JarOutputStream(new FileOutputStream(output))) {
       Rewriting:
       {
         JarFile jar;
@@ -78,23 +224,17 @@ public final class JarIO {
         Stream<JarEntry> str = jar.stream();
         str.forEach(z -> {
           try {
-            if (classes.stream().anyMatch(c -> c.oldEntry.getName().equals(z.getName()))) {
+            String name = z.getName();
+            if (classEntries.contains(name)) {
               // ignore old class files
               return;
             }
-            String name = z.getName();
             if (noSignature && name.matches(CERT_REGEX)) {
               // export no certificates
               return;
             }
             if (name.equals("META-INF/MANIFEST.MF")) {
-              byte[] manifest = IOUtils.toByteArray(jar.getInputStream(z));
-              if (noSignature) {
-                manifest = Manifest.patchManifest(manifest);
-              }
-              if (watermark) {
-                manifest = Manifest.watermark(manifest);
-              }
+              byte[] manifest = patchManifest(IOUtils.toByteArray(jar.getInputStream(z)), noSignature, watermark);
               out.putNextEntry(cloneOldEntry(z, z.getName()));
               out.write(manifest);
               out.closeEntry();
@@ -102,7 +242,9 @@ public final class JarIO {
             }
             // export resources
             out.putNextEntry(cloneOldEntry(z, z.getName()));
-            out.write(IOUtils.toByteArray(jar.getInputStream(z)));
+            try (InputStream in = jar.getInputStream(z)) {
+              IOUtils.copy(in, out);
+            }
             out.closeEntry();
           } catch (Exception e) {
             LogWrapper.logger
@@ -111,20 +253,158 @@ public final class JarIO {
         });
         jar.close();
       }
-      for (Clazz c : classes) {
+      writeClasses(classes, c -> false, hierarchy, parallelism, (c, bytes) -> {
+        // add updated classes
+        out.putNextEntry(cloneOldEntry(c.oldEntry, c.getName() + ".class"));
+        out.write(bytes);
+        out.closeEntry();
+      });
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Export mode that copies the compressed data of untouched entries directly from the original zip file, keeping
+   * their CRC. Only the manifest and modified classes are written anew.
+   */
+  private static void savePassthrough(File original, File output, List<Clazz> classes, Set<String> classEntries,
+                                      boolean noSignature, boolean watermark, ClassHierarchy hierarchy,
+                                      int parallelism) throws IOException {
+    try (ZipFile zip = new ZipFile(original); ZipArchiveOutputStream out = new ZipArchiveOutputStream(output)) {
+      for (ZipArchiveEntry z : Collections.list(zip.getEntriesInPhysicalOrder())) {
         try {
-          // add updated classes
-          out.putNextEntry(cloneOldEntry(c.oldEntry, c.node.name + ".class"));
-          out.write(Conversion.toBytecode0(c.node));
-          out.closeEntry();
+          String name = z.getName();
+          if (classEntries.contains(name)) {
+            // ignore old class files
+            continue;
+          }
+          if (noSignature && name.matches(CERT_REGEX)) {
+            // export no certificates
+            continue;
+          }
+          if (name.equals("META-INF/MANIFEST.MF") && (noSignature || watermark)) {
+            byte[] manifest = patchManifest(IOUtils.toByteArray(zip.getInputStream(z)), noSignature, watermark);
+            out.putArchiveEntry(new ZipArchiveEntry(name));
+            out.write(manifest);
+            out.closeArchiveEntry();
+            continue;
+          }
+          out.addRawArchiveEntry(z, zip.getRawInputStream(z));
         } catch (Exception e) {
           LogWrapper.logger
-                  .error("Failed at class entry " + c.node.name + " " + e.getClass().getName() + " " + e.getMessage());
+                  .error("Failed at entry " + z.getName() + " " + e.getClass().getName() + " " + e.getMessage());
         }
       }
-      out.close();
+      writeClasses(classes, c -> isUntouched(c, zip), hierarchy, parallelism, (c, bytes) -> {
+        if (bytes == null) {
+          ZipArchiveEntry z = zip.getEntry(c.oldEntry.getName());
+          out.addRawArchiveEntry(z, zip.getRawInputStream(z));
+          return;
+        }
+        // add updated classes
+        ZipArchiveEntry entry = new ZipArchiveEntry(c.getName() + ".class");
+        if (c.oldEntry.getExtra() != null) {
+          entry.setExtra(c.oldEntry.getExtra());
+        }
+        entry.setComment(c.oldEntry.getComment());
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+      });
+    }
+  }
+
+  /**
+   * @return true if the class can be copied from the original file as it is
+   */
+  private static boolean isUntouched(Clazz c, ZipFile zip) {
+    return !c.isModified() && !c.sanitized && c.oldEntry.getName().equals(c.getName() + ".class") &&
+            zip.getEntry(c.oldEntry.getName()) != null;
+  }
+
+  private static boolean isZipFile(File file) {
+    try {
+      new ZipFile(file).close();
+      return true;
     } catch (IOException e) {
-      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private static byte[] patchManifest(byte[] manifest, boolean noSignature, boolean watermark) {
+    if (noSignature) {
+      manifest = Manifest.patchManifest(manifest);
+    }
+    if (watermark) {
+      manifest = Manifest.watermark(manifest);
+    }
+    return manifest;
+  }
+
+  /**
+   * Serialize classes on a worker pool and pass them to the writer in list order.
+   *
+   * @param copyRaw   classes matching are not serialized, the writer receives null bytes for them
+   * @param hierarchy used to recompute frames, or null to keep the existing frames
+   */
+  private static void writeClasses(List<Clazz> classes, Predicate<Clazz> copyRaw, ClassHierarchy hierarchy,
+                                   int parallelism, ClassEntryWriter writer) throws IOException {
+    int workerCount = Math.max(1, parallelism);
+    int window = workerCount * 4;
+    ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+    try {
+      Deque<PendingClass> pending = new ArrayDeque<>();
+      for (Clazz c : classes) {
+        if (pending.size() >= window) {
+          writeClass(pending.poll(), writer);
+        }
+        // unmodified classes keep their original bytes
+        pending.add(new PendingClass(c, copyRaw.test(c) ? null : workers.submit(() -> c.getBytes(hierarchy))));
+      }
+      while (!pending.isEmpty()) {
+        writeClass(pending.poll(), writer);
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  private static void writeClass(PendingClass pending, ClassEntryWriter writer) throws IOException {
+    Clazz c = pending.clazz;
+    byte[] bytes = null;
+    if (pending.bytes != null) {
+      try {
+        bytes = pending.bytes.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while writing class entries");
+      } catch (ExecutionException e) {
+        LogWrapper.logger.error("Failed at class entry " + c.getName() + " " + e.getCause().getClass().getName() +
+                " " + e.getCause().getMessage());
+        return;
+      }
+    }
+    try {
+      writer.write(c, bytes);
+    } catch (IOException e) {
+      LogWrapper.logger
+              .error("Failed at class entry " + c.getName() + " " + e.getClass().getName() + " " + e.getMessage());
+    }
+  }
+
+  @FunctionalInterface
+  private interface ClassEntryWriter {
+    void write(Clazz c, byte[] bytes) throws IOException;
+  }
+
+  private static final class PendingClass {
+    final Clazz clazz;
+    final Future<byte[]> bytes;
+
+    PendingClass(Clazz clazz, Future<byte[]> bytes) {
+      this.clazz = clazz;
+      this.bytes = bytes;
     }
   }
 
@@ -18,10 +18,17 @@ public class LogWrapper {
 
   private final List<Logger> loggers;
 
-  private Clazz currentErrorCollector;
+  /**
+   * class that errors of the current thread are reported to
+   */
+  private final ThreadLocal<Clazz> currentErrorCollector = new ThreadLocal<>();
 
   public void collectErrors(Clazz c) {
-    currentErrorCollector = c;
+    if (c == null) {
+      currentErrorCollector.remove();
+    } else {
+      currentErrorCollector.set(c);
+    }
   }
 
   public LogWrapper() {
@@ -56,8 +63,9 @@ public class LogWrapper {
 
   public void error(String format, Object... args) {
     String msg = compile(format, args);
-    if (currentErrorCollector != null) {
-      currentErrorCollector.addFail(msg);
+    Clazz collector = currentErrorCollector.get();
+    if (collector != null) {
+      collector.addFail(msg);
     }
     logMessage(msg, Logger::error);
   }
@@ -65,8 +73,9 @@ public class LogWrapper {
   public void error(String format, Throwable t, Object... args) {
     String msg = compile(format, args);
     msg += " (" + t.toString() + ")";
-    if (currentErrorCollector != null) {
-      currentErrorCollector.addFail(t);
+    Clazz collector = currentErrorCollector.get();
+    if (collector != null) {
+      collector.addFail(t);
     }
     logMessage(msg, Logger::error);
   }
@@ -0,0 +1,125 @@
+package me.nov.threadtear.security;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Rewrites calls to dangerous methods of the JDK, like {@link System#exit(int)} or {@link Runtime#exec(String)}, in
+ * classes that are about to be loaded by a VM. Every blocked call site calls a generated method in the same class
+ * instead, which takes the same arguments and throws a {@link SecurityException}. The stack stays the same, so the
+ * frames of the method remain valid.
+ * <p>
+ * This is checked only once per class instead of on every call, but can't see calls made using reflection, method
+ * handles or constructors. Those are still blocked by {@link VMSecurityManager}.
+ */
+public final class CallSiteGuard implements Opcodes {
+  private static final String BLOCKED_PREFIX = "threadtear$blocked$";
+  private static final Map<String, Set<String>> BLOCKED = new HashMap<>();
+  private static final LongAdder rewritten = new LongAdder();
+  private static volatile boolean enabled = true;
+
+  static {
+    block("java/lang/System", "exit", "load", "loadLibrary", "setSecurityManager", "setProperty", "clearProperty",
+      "setProperties", "setIn", "setOut", "setErr");
+    block("java/lang/Runtime", "exit", "halt", "exec", "load", "loadLibrary", "addShutdownHook");
+    block("java/lang/ProcessBuilder", "start");
+    block("java/io/File", "delete", "deleteOnExit", "renameTo", "mkdir", "mkdirs", "createNewFile", "setWritable",
+      "setReadable", "setExecutable");
+    block("java/nio/file/Files", "delete", "deleteIfExists", "write", "writeString", "move", "copy", "createFile",
+      "createDirectory", "createDirectories", "newOutputStream", "newBufferedWriter");
+    block("java/net/URL", "openConnection", "openStream");
+  }
+
+  private CallSiteGuard() {
+  }
+
+  private static void block(String owner, String... names) {
+    BLOCKED.put(owner, new HashSet<>(Arrays.asList(names)));
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setEnabled(boolean enabled) {
+    CallSiteGuard.enabled = enabled;
+  }
+
+  public static boolean isBlocked(String owner, String name) {
+    Set<String> names = BLOCKED.get(owner);
+    return names != null && names.contains(name);
+  }
+
+  /**
+   * Rewrite the blocked calls of a class. The class is modified, only pass copies of the input.
+   *
+   * @return the number of rewritten call sites
+   */
+  public static int rewrite(ClassNode cn) {
+    if (!enabled || (cn.access & ACC_INTERFACE) != 0 && (cn.version & 0xFFFF) < V1_8) {
+      // interfaces can't have static methods before java 8
+      return 0;
+    }
+    Map<String, MethodNode> stubs = new LinkedHashMap<>();
+    int count = 0;
+    for (MethodNode m : cn.methods) {
+      for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+        if (ain.getType() != AbstractInsnNode.METHOD_INSN || ain.getOpcode() == INVOKESPECIAL) {
+          continue;
+        }
+        MethodInsnNode min = (MethodInsnNode) ain;
+        if (!isBlocked(min.owner, min.name)) {
+          continue;
+        }
+        String desc = min.getOpcode() == INVOKESTATIC ? min.desc :
+          Type.getMethodDescriptor(Type.getReturnType(min.desc), prepend(Type.getObjectType(min.owner),
+            Type.getArgumentTypes(min.desc)));
+        MethodNode stub = stubs.computeIfAbsent(min.owner + '.' + min.name + desc,
+          k -> createStub(BLOCKED_PREFIX + stubs.size(), desc, min.owner.replace('/', '.') + '.' + min.name));
+        MethodInsnNode call = new MethodInsnNode(INVOKESTATIC, cn.name, stub.name, stub.desc,
+          (cn.access & ACC_INTERFACE) != 0);
+        m.instructions.set(min, call);
+        ain = call;
+        count++;
+      }
+    }
+    cn.methods.addAll(stubs.values());
+    rewritten.add(count);
+    return count;
+  }
+
+  private static Type[] prepend(Type first, Type[] types) {
+    Type[] result = new Type[types.length + 1];
+    result[0] = first;
+    System.arraycopy(types, 0, result, 1, types.length);
+    return result;
+  }
+
+  private static MethodNode createStub(String name, String desc, String blocked) {
+    MethodNode stub = new MethodNode(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, name, desc, null, null);
+    stub.instructions.add(new TypeInsnNode(NEW, "java/lang/SecurityException"));
+    stub.instructions.add(new InsnNode(DUP));
+    stub.instructions.add(new LdcInsnNode("Dynamic class tried to call " + blocked));
+    stub.instructions.add(new MethodInsnNode(INVOKESPECIAL, "java/lang/SecurityException", "<init>",
+      "(Ljava/lang/String;)V", false));
+    stub.instructions.add(new InsnNode(ATHROW));
+    stub.maxStack = 3;
+    stub.maxLocals = Type.getArgumentsAndReturnSizes(desc) >> 2;
+    return stub;
+  }
+
+  /**
+   * @return the number of call sites rewritten since the last reset
+   */
+  public static long getRewrittenCount() {
+    return rewritten.sum();
+  }
+
+  public static void resetCounters() {
+    rewritten.reset();
+  }
+}
@@ -7,12 +7,60 @@ import java.io.FileDescriptor;
 import java.lang.reflect.ReflectPermission;
 import java.net.InetAddress;
 import java.security.Permission;
-
-
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+
+/**
+ * Blocks code of the input from doing anything harmful, like writing files or starting processes. A permission is
+ * granted if every class on the stack was loaded by one of the loaders of threadtear and the JDK, which are collected
+ * once. Like with the access controller, a privileged action only needs the classes above it to be trusted. Most
+ * dangerous calls are already rewritten by {@link CallSiteGuard} when a class is loaded by a VM.
+ * <p>
+ * Reflection can be allowed for the classes of a single VM, e.g. for the duration of a sandbox session. It is allowed
+ * per loader and not per thread, as invocations run on threads of the
+ * {@link me.nov.threadtear.vm.InvocationRunner}, and they don't affect VMs of other executions running at the same
+ * time.
+ */
 public final class VMSecurityManager extends SecurityManager {
-  private static final String granted = "sun\\..*";
-  public boolean grantAll;
-  private boolean checkReflection = true;
+  private static final String THREADTEAR_PACKAGE = ThreadtearCore.class.getPackage().getName();
+  private static final ClassLoader PLATFORM_LOADER = ClassLoader.getPlatformClassLoader();
+  private static final String ACCESS_CONTROLLER = "java.security.AccessController";
+  // lambdas of dynamic classes are hidden frames, their loader is the one of the dynamic class
+  private static final StackWalker walker = StackWalker.getInstance(
+    EnumSet.of(StackWalker.Option.RETAIN_CLASS_REFERENCE, StackWalker.Option.SHOW_HIDDEN_FRAMES));
+  private final Set<ClassLoader> trustedLoaders = collectTrustedLoaders();
+  /**
+   * loaders of VMs that are allowed to use reflection
+   */
+  private final Set<ClassLoader> reflecting = newLoaderSet();
+  private final Predicate<StackWalker.StackFrame> untrusted = f -> !isTrusted(f.getDeclaringClass().getClassLoader());
+  private final Predicate<StackWalker.StackFrame> untrustedReflection =
+    untrusted.and(f -> !reflecting.contains(f.getDeclaringClass().getClassLoader()));
+  private final Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame> firstUntrustedFrame =
+    frames -> frames.takeWhile(f -> !isPrivileged(f)).filter(untrusted).findFirst().orElse(null);
+  private final Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame> firstUntrustedReflectionFrame =
+    frames -> frames.takeWhile(f -> !isPrivileged(f)).filter(untrustedReflection).findFirst().orElse(null);
+  /**
+   * the first frame outside of the JDK and this class, if it is untrusted
+   */
+  private final Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame> untrustedCaller =
+    frames -> frames.filter(f -> !isJdk(f.getDeclaringClass()) && f.getDeclaringClass() != VMSecurityManager.class)
+      .findFirst().filter(untrusted).orElse(null);
+  private final ThreadLocal<Boolean> reporting = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+  public VMSecurityManager() {
+    // initialize the classes used by the stack walk now, initializing them during a check would recurse
+    walker.walk(firstUntrustedFrame);
+    walker.walk(firstUntrustedReflectionFrame);
+    walker.walk(untrustedCaller);
+  }
 
   @Override
   public final void checkPermission(Permission perm) {
@@ -68,8 +116,7 @@ public final class VMSecurityManager extends SecurityManager {
 
   @Override
   public final void checkCreateClassLoader() {
-    if (checkReflection)
-      throwIfNotGranted();
+    throwIfNotGranted(firstUntrustedReflectionFrame);
   }
 
   @Override
@@ -99,66 +146,89 @@ public final class VMSecurityManager extends SecurityManager {
 
   @Override
   public final void checkPackageAccess(String pkg) {
-    if (pkg.startsWith("javax.swing") || pkg.startsWith("sun.misc") || pkg.startsWith(ThreadtearCore.class.getPackage().getName()) || checkReflection(pkg)) {
+    if (pkg.startsWith(THREADTEAR_PACKAGE)) {
+      // VMs load classes of threadtear lazily while code of the input runs, only check who asks for them
+      throwIfNotGranted(untrustedCaller);
+    } else if (pkg.startsWith("javax.swing") || pkg.startsWith("sun.misc")) {
       throwIfNotGranted();
+    } else if (pkg.startsWith("java.lang.reflect")) {
+      throwIfNotGranted(firstUntrustedReflectionFrame);
     }
   }
 
-  private final boolean checkReflection(String pkg) {
-    return checkReflection && pkg.startsWith("java.lang.reflect");
+  /**
+   * Allow or disallow the classes of a VM to use reflection and create class loaders. Can only be called by trusted
+   * code.
+   */
+  public final void allowReflection(ClassLoader loader, boolean allow) {
+    if (!grantAccess(firstUntrustedFrame))
+      return;
+    if (allow)
+      reflecting.add(loader);
+    else
+      reflecting.remove(loader);
   }
 
-  public final void allowReflection(boolean allow) {
-    if (grantAccess())
-      checkReflection = !allow;
+  private final void throwIfNotGranted() {
+    throwIfNotGranted(firstUntrustedFrame);
   }
 
-  private final void throwIfNotGranted() {
-    if (!grantAccess())
+  private final void throwIfNotGranted(Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame> check) {
+    if (!grantAccess(check))
       throw new SecurityException("An execution ran code that it's not supposed to. If you think this is a " +
         "false call, open an issue on GitHub.");
   }
 
-  private final boolean grantAccess() {
-    if (grantAll) {
+  /**
+   * Walks the stack lazily and stops at the first frame of a class that was not loaded by a trusted loader, or by a VM
+   * that is allowed the checked permission. Classes of
+   * the input are only ever defined by {@link me.nov.threadtear.vm.VM}s, which are never trusted.
+   */
+  private final boolean grantAccess(Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame> check) {
+    if (reporting.get()) {
       return true;
     }
-    // check all stacktrace elements if they're in classpath
-    for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-      if (ste.getClassName().matches(granted))
-        continue;
-      if (!isLocal(ste.getClassName())) {
+    StackWalker.StackFrame blocked = walker.walk(check);
+    if (blocked != null) {
+      // logging checks permissions too, which would be denied again while the blocked class is on the stack
+      reporting.set(Boolean.TRUE);
+      try {
         LogWrapper.logger.warning("Dynamic class was blocked trying to execute forbidden code: {}, {}",
-          ste.getClassName(), Thread.currentThread().getStackTrace()[3].getMethodName());
-        return false;
+          blocked.getClassName(), blocked.getMethodName());
+      } finally {
+        reporting.set(Boolean.FALSE);
       }
+      return false;
     }
     return true;
   }
 
-  public final boolean isLocal(String name) {
-    try {
-      grantAll = true; // we have to grant everything for
-      // the next check, otherwise we would end up in a loop
-      /*
-       * This way you could check if they are really in
-       * the jar file itself
-       *
-       * return Class.forName(name, false, ClassLoader
-       * .getSystemClassLoader()).getProtectionDomain()
-       * .getCodeSource().getLocation().getPath()
-       * .equals(Threadtear.class.getProtectionDomain()
-       * .getCodeSource().getLocation().getPath());
-       */
-      Class.forName(name, false, ClassLoader.getSystemClassLoader());
-      // no exception thrown, class is local
-      return true;
-    } catch (Throwable e) {
-      // class not found or whatever, class is not local
-      return false;
-    } finally {
-      // disable bypass
-      grantAll = false;
+  private boolean isTrusted(ClassLoader loader) {
+    return loader == null || trustedLoaders.contains(loader);
+  }
+
+  private static boolean isPrivileged(StackWalker.StackFrame frame) {
+    return frame.getClassName().equals(ACCESS_CONTROLLER);
+  }
+
+  private static boolean isJdk(Class<?> c) {
+    ClassLoader loader = c.getClassLoader();
+    return loader == null || loader == PLATFORM_LOADER;
+  }
+
+  private static Set<ClassLoader> newLoaderSet() {
+    // a VM that is no longer used can't be granted anything anymore
+    return Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+  }
+
+  private static Set<ClassLoader> collectTrustedLoaders() {
+    Set<ClassLoader> loaders = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (ClassLoader loader : new ClassLoader[]{ClassLoader.getSystemClassLoader(),
+      VMSecurityManager.class.getClassLoader(), Thread.currentThread().getContextClassLoader()}) {
+      for (; loader != null; loader = loader.getParent()) {
+        loaders.add(loader);
+      }
     }
+    return loaders;
   }
 }
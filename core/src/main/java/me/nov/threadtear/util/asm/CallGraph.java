@@ -0,0 +1,468 @@
+package me.nov.threadtear.util.asm;
+
+import java.util.*;
+
+import me.nov.threadtear.execution.Clazz;
+import me.nov.threadtear.util.asm.method.MethodContext;
+import me.nov.threadtear.util.asm.method.MethodSignature;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Callers and callees of every method of the loaded classes. Calls are resolved like the JVM would, virtual and
+ * interface calls also point to the loaded methods that override the called method. Bootstrap methods and methods
+ * referenced by method handles are recorded as dynamic calls. Calls using reflection can not be found.
+ * <p>
+ * The graph is built on first use and kept for the whole run. {@link #refresh()} brings it up to date again: every
+ * method is stamped with a fingerprint of the calls it makes, and only methods whose calls changed are scanned again.
+ * The whole graph is only rebuilt if classes or methods were added, removed or renamed.
+ * <p>
+ * The graph only references the loaded {@link Clazz} instances, not their nodes, so evicted class nodes can be
+ * collected. Evicted classes are unmodified and are skipped by {@link #refresh()}, classes that are parsed again are
+ * matched to the graph by their method signatures.
+ * <p>
+ * Edges are stored as arrays of method ids, each packed together with the kind of the call.
+ */
+public class CallGraph implements Opcodes {
+  /**
+   * the call instruction references the class that declares the method
+   */
+  public static final int DIRECT = 1;
+  /**
+   * the call instruction references a subclass that inherits the method
+   */
+  public static final int INHERITED = 2;
+  /**
+   * a virtual or interface call that can be dispatched to an overriding method
+   */
+  public static final int VIRTUAL = 4;
+  /**
+   * the method is a bootstrap method or is referenced by a method handle
+   */
+  public static final int DYNAMIC = 8;
+  public static final int ALL = DIRECT | INHERITED | VIRTUAL | DYNAMIC;
+
+  private static final int KIND_BITS = 4;
+  private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+  private static final int[] NONE = new int[0];
+
+  private final Map<String, Clazz> classes;
+  private final ClassHierarchy hierarchy;
+
+  /**
+   * ids of the method nodes that were seen, method nodes are only equal to themselves
+   */
+  private final Map<MethodNode, Integer> ids = new WeakHashMap<>();
+  private final Map<MethodSignature, Integer> signatures = new HashMap<>();
+  private final Map<Clazz, Integer> methodCounts = new HashMap<>();
+  /**
+   * loaded methods a virtual call can be dispatched to, by the called signature
+   */
+  private final Map<MethodSignature, int[]> dispatchTargets = new HashMap<>();
+  private Clazz[] owners;
+  private int[] accesses;
+  private Stamp[] stamps;
+  private int size;
+  /**
+   * outgoing edges of each method, packed as <code>id &lt;&lt; KIND_BITS | kind</code>
+   */
+  private int[][] callees;
+  /**
+   * incoming edges of each method, only the first <code>callerCounts[id]</code> entries are used
+   */
+  private int[][] callers;
+  private int[] callerCounts;
+  private int edges;
+  private boolean built;
+  private final IntList scratch = new IntList();
+
+  /**
+   * @param classes   the loaded classes of the run, by their internal name
+   * @param hierarchy hierarchy of the same classes, used to resolve calls
+   */
+  public CallGraph(Map<String, Clazz> classes, ClassHierarchy hierarchy) {
+    this.classes = classes;
+    this.hierarchy = hierarchy;
+  }
+
+  /**
+   * Scan the methods that changed since the last refresh, or rebuild the graph if methods were added, removed or
+   * renamed.
+   */
+  public synchronized void refresh() {
+    if (!built) {
+      rebuild();
+      return;
+    }
+    IntList changed = new IntList();
+    List<MethodNode> changedMethods = new ArrayList<>();
+    int count = 0;
+    for (Clazz clazz : classes.values()) {
+      Integer methodCount = methodCounts.get(clazz);
+      if (methodCount == null) {
+        rebuild();
+        return;
+      }
+      if (!clazz.isMaterialized()) {
+        // evicted classes were never modified, their calls are still known
+        count += methodCount;
+        continue;
+      }
+      ClassNode cn = clazz.viewNode();
+      for (MethodNode m : cn.methods) {
+        Integer id = ids.get(m);
+        if (id == null) {
+          // the class was parsed again after it was evicted
+          id = signatures.get(new MethodSignature(cn, m));
+          if (id == null || owners[id] != clazz) {
+            rebuild();
+            return;
+          }
+          ids.put(m, id);
+        }
+        if (owners[id] != clazz || !stamps[id].sameSignature(cn, m)) {
+          rebuild();
+          return;
+        }
+        if (!stamps[id].sameCalls(m)) {
+          changed.add(id);
+          changedMethods.add(m);
+        }
+        count++;
+      }
+    }
+    if (count != size) {
+      rebuild();
+      return;
+    }
+    for (int i = 0; i < changed.size; i++) {
+      scan(changed.values[i], changedMethods.get(i));
+    }
+  }
+
+  /**
+   * Scan a method again right away, e.g. after it was modified while the graph is in use.
+   */
+  public synchronized void update(MethodNode method) {
+    Integer id = ids.get(method);
+    if (id != null) {
+      scan(id, method);
+    }
+  }
+
+  /**
+   * @param kinds the kinds of calls to include, e.g. {@link #DIRECT} or {@link #ALL}
+   * @return every method that calls the given method, each only once
+   */
+  public synchronized List<MethodContext> getCallers(MethodNode method, int kinds) {
+    Integer id = ids.get(method);
+    if (id == null) {
+      return Collections.emptyList();
+    }
+    return toContexts(callers[id], callerCounts[id], kinds);
+  }
+
+  /**
+   * @param kinds the kinds of calls to include, e.g. {@link #DIRECT} or {@link #ALL}
+   * @return every loaded method that can be called by the given method, each only once
+   */
+  public synchronized List<MethodContext> getCallees(MethodNode method, int kinds) {
+    Integer id = ids.get(method);
+    if (id == null) {
+      return Collections.emptyList();
+    }
+    return toContexts(callees[id], callees[id].length, kinds);
+  }
+
+  public synchronized int getMethodCount() {
+    return size;
+  }
+
+  public synchronized int getEdgeCount() {
+    return edges;
+  }
+
+  private List<MethodContext> toContexts(int[] packed, int length, int kinds) {
+    List<MethodContext> list = new ArrayList<>();
+    BitSet added = new BitSet(size);
+    for (int i = 0; i < length; i++) {
+      int id = packed[i] >>> KIND_BITS;
+      if ((packed[i] & kinds) != 0 && !added.get(id)) {
+        added.set(id);
+        MethodContext context = toContext(id);
+        if (context != null) {
+          list.add(context);
+        }
+      }
+    }
+    return list;
+  }
+
+  /**
+   * @return the current node of a method, parsing its class again if it was evicted
+   */
+  private MethodContext toContext(int id) {
+    ClassNode cn = owners[id].viewNode();
+    Stamp stamp = stamps[id];
+    for (MethodNode m : cn.methods) {
+      if (m.name.equals(stamp.name) && m.desc.equals(stamp.desc)) {
+        ids.put(m, id);
+        return new MethodContext(cn, m);
+      }
+    }
+    // changed since the last refresh
+    return null;
+  }
+
+  private void rebuild() {
+    ids.clear();
+    signatures.clear();
+    methodCounts.clear();
+    dispatchTargets.clear();
+    int count = 0;
+    for (Clazz clazz : classes.values()) {
+      count += clazz.viewNode().methods.size();
+    }
+    owners = new Clazz[count];
+    accesses = new int[count];
+    stamps = new Stamp[count];
+    MethodNode[] methods = new MethodNode[count];
+    callees = new int[count][];
+    callers = new int[count][];
+    callerCounts = new int[count];
+    size = 0;
+    edges = 0;
+    for (Clazz clazz : classes.values()) {
+      ClassNode cn = clazz.viewNode();
+      methodCounts.put(clazz, cn.methods.size());
+      for (MethodNode m : cn.methods) {
+        int id = size++;
+        owners[id] = clazz;
+        accesses[id] = m.access;
+        methods[id] = m;
+        callees[id] = NONE;
+        callers[id] = NONE;
+        ids.put(m, id);
+        signatures.put(new MethodSignature(cn, m), id);
+      }
+    }
+    for (int id = 0; id < size; id++) {
+      scan(id, methods[id]);
+    }
+    built = true;
+  }
+
+  /**
+   * Replace the outgoing edges of a method with the calls it currently makes.
+   */
+  private void scan(int id, MethodNode m) {
+    for (int edge : callees[id]) {
+      removeCaller(edge >>> KIND_BITS, id << KIND_BITS | (edge & KIND_MASK));
+    }
+    edges -= callees[id].length;
+    accesses[id] = m.access;
+    IntList found = scratch;
+    found.size = 0;
+    for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+      switch (ain.getType()) {
+        case AbstractInsnNode.METHOD_INSN:
+          addCall(found, (MethodInsnNode) ain);
+          break;
+        case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+          InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) ain;
+          addHandle(found, idin.bsm);
+          for (Object arg : idin.bsmArgs) {
+            if (arg instanceof Handle) {
+              addHandle(found, (Handle) arg);
+            }
+          }
+          break;
+        case AbstractInsnNode.LDC_INSN:
+          Object cst = ((LdcInsnNode) ain).cst;
+          if (cst instanceof Handle) {
+            addHandle(found, (Handle) cst);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    int[] packed = found.distinct();
+    callees[id] = packed;
+    for (int edge : packed) {
+      addCaller(edge >>> KIND_BITS, id << KIND_BITS | (edge & KIND_MASK));
+    }
+    edges += packed.length;
+    stamps[id] = new Stamp(owners[id].getName(), m);
+  }
+
+  private void addCall(IntList found, MethodInsnNode min) {
+    MethodSignature signature = new MethodSignature(min);
+    Integer target = signatures.get(signature);
+    if (target != null) {
+      found.add(target << KIND_BITS | DIRECT);
+    } else if (hierarchy.getLoadedClass(min.owner) != null) {
+      // library classes can't inherit methods from loaded classes
+      for (String supertype : hierarchy.getSupertypes(min.owner)) {
+        target = signatures.get(new MethodSignature(supertype, min.name, min.desc));
+        if (target != null) {
+          found.add(target << KIND_BITS | INHERITED);
+          break;
+        }
+      }
+    }
+    if (min.getOpcode() == INVOKEVIRTUAL || min.getOpcode() == INVOKEINTERFACE) {
+      for (int overriding : getDispatchTargets(signature)) {
+        found.add(overriding << KIND_BITS | VIRTUAL);
+      }
+    }
+  }
+
+  private void addHandle(IntList found, Handle handle) {
+    if (handle.getTag() < H_INVOKEVIRTUAL) {
+      // field handle
+      return;
+    }
+    Integer target = signatures.get(new MethodSignature(handle.getOwner(), handle.getName(), handle.getDesc()));
+    if (target != null) {
+      found.add(target << KIND_BITS | DYNAMIC);
+    }
+  }
+
+  /**
+   * @return the loaded methods that override the called method
+   */
+  private int[] getDispatchTargets(MethodSignature called) {
+    int[] targets = dispatchTargets.get(called);
+    if (targets == null) {
+      IntList list = new IntList();
+      for (String subtype : hierarchy.getSubtypes(called.getOwner())) {
+        Integer id = signatures.get(new MethodSignature(subtype, called.getName(), called.getDesc()));
+        if (id != null && !Access.isStatic(accesses[id]) && !Access.isPrivate(accesses[id])) {
+          list.add(id);
+        }
+      }
+      targets = list.size == 0 ? NONE : Arrays.copyOf(list.values, list.size);
+      dispatchTargets.put(called, targets);
+    }
+    return targets;
+  }
+
+  private void addCaller(int callee, int edge) {
+    int[] array = callers[callee];
+    int count = callerCounts[callee];
+    if (count == array.length) {
+      array = callers[callee] = Arrays.copyOf(array, Math.max(4, count * 2));
+    }
+    array[count] = edge;
+    callerCounts[callee] = count + 1;
+  }
+
+  private void removeCaller(int callee, int edge) {
+    int[] array = callers[callee];
+    int count = callerCounts[callee];
+    for (int i = 0; i < count; i++) {
+      if (array[i] == edge) {
+        array[i] = array[count - 1];
+        callerCounts[callee] = count - 1;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Identifies a method and the calls it made at the time it was scanned. Calls are compared by content, so
+   * instructions that were replaced or changed in place are found as well. No nodes are referenced.
+   */
+  private static final class Stamp {
+    final String owner;
+    final String name;
+    final String desc;
+    final long calls;
+
+    Stamp(String owner, MethodNode m) {
+      this.owner = owner;
+      this.name = m.name;
+      this.desc = m.desc;
+      this.calls = fingerprint(m);
+    }
+
+    boolean sameSignature(ClassNode cn, MethodNode m) {
+      return owner.equals(cn.name) && name.equals(m.name) && desc.equals(m.desc);
+    }
+
+    boolean sameCalls(MethodNode m) {
+      return fingerprint(m) == calls;
+    }
+
+    /**
+     * @return a hash of every call instruction and method handle of the method, in order
+     */
+    static long fingerprint(MethodNode m) {
+      long hash = 1;
+      for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+        switch (ain.getType()) {
+          case AbstractInsnNode.METHOD_INSN:
+            MethodInsnNode min = (MethodInsnNode) ain;
+            hash = mix(hash, min.getOpcode());
+            hash = mix(hash, min.owner.hashCode());
+            hash = mix(hash, min.name.hashCode());
+            hash = mix(hash, min.desc.hashCode());
+            break;
+          case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+            InvokeDynamicInsnNode idin = (InvokeDynamicInsnNode) ain;
+            hash = mix(hash, Objects.hashCode(idin.bsm));
+            for (Object arg : idin.bsmArgs) {
+              if (arg instanceof Handle) {
+                hash = mix(hash, arg.hashCode());
+              }
+            }
+            break;
+          case AbstractInsnNode.LDC_INSN:
+            Object cst = ((LdcInsnNode) ain).cst;
+            if (cst instanceof Handle) {
+              hash = mix(hash, cst.hashCode());
+            }
+            break;
+          default:
+            break;
+        }
+      }
+      return hash;
+    }
+
+    private static long mix(long hash, int value) {
+      return (hash ^ value) * 0x9E3779B97F4A7C15L;
+    }
+  }
+
+  private static final class IntList {
+    int[] values = new int[16];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    /**
+     * @return the values without duplicates, sorted
+     */
+    int[] distinct() {
+      if (size == 0) {
+        return NONE;
+      }
+      Arrays.sort(values, 0, size);
+      int unique = 1;
+      for (int i = 1; i < size; i++) {
+        if (values[i] != values[unique - 1]) {
+          values[unique++] = values[i];
+        }
+      }
+      return Arrays.copyOf(values, unique);
+    }
+  }
+}
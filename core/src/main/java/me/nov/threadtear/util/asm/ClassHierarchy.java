@@ -0,0 +1,481 @@
+package me.nov.threadtear.util.asm;
+
+import me.nov.threadtear.execution.Clazz;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Type hierarchy of the loaded classes and the JDK classes they extend. Answers supertype, subtype and override
+ * questions without loading any class into the running VM. JDK classes are read from the <code>jrt:/</code> file
+ * system, other classes on the class path using the system class loader.
+ * <p>
+ * Everything is computed lazily on first access and cached, the hierarchy can be used by multiple threads at once.
+ * When classes are renamed or their supertypes or methods change, call {@link #rename(Map)} or
+ * {@link #invalidate(Collection)}. Only the changed classes are read again, and only cached results that depend on
+ * them are dropped.
+ */
+public class ClassHierarchy {
+  private static final String OBJECT = "java/lang/Object";
+  private static final ClassInfo UNKNOWN = new ClassInfo(null, new String[0], 0, Collections.emptyList());
+  /**
+   * cached in place of a common super class that can't be determined
+   */
+  private static final String UNDETERMINED = "";
+  private static final FileSystem JRT = openJrt();
+  private static final Map<String, Optional<Path>> jrtPackages = new ConcurrentHashMap<>();
+
+  /**
+   * loaded classes by their current name
+   */
+  private final Map<String, Clazz> classes = new ConcurrentHashMap<>();
+  private final Map<String, ClassInfo> infos = new ConcurrentHashMap<>();
+  private final Map<String, String> commonSuperClasses = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> supertypes = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> subtypes = new ConcurrentHashMap<>();
+  private volatile Map<String, List<String>> directSubtypes;
+
+  public ClassHierarchy(Map<String, Clazz> classes) {
+    this(classes.values());
+  }
+
+  public ClassHierarchy(Collection<Clazz> classes) {
+    classes.forEach(c -> this.classes.putIfAbsent(c.getName(), c));
+  }
+
+  /**
+   * @return the internal name of the super class, or null if the class is unknown or java/lang/Object
+   */
+  public String getSuperName(String name) {
+    return getInfo(name).superName;
+  }
+
+  public List<String> getInterfaces(String name) {
+    return Arrays.asList(getInfo(name).interfaces);
+  }
+
+  /**
+   * @return the declared methods of a class, in declaration order. Methods of parsed loaded classes are read from
+   * their node, so they are always up to date.
+   */
+  public List<Member> getMethods(String name) {
+    Clazz clazz = classes.get(name);
+    if (clazz != null && clazz.isMaterialized()) {
+      return ClassInfo.methods(clazz.viewNode());
+    }
+    return getInfo(name).methods;
+  }
+
+  public boolean isKnown(String name) {
+    return getInfo(name) != UNKNOWN;
+  }
+
+  public boolean isInterface(String name) {
+    return Access.isInterface(getInfo(name).access);
+  }
+
+  /**
+   * @return the loaded class with this name, or null if it is a library or JDK class
+   */
+  public Clazz getLoadedClass(String name) {
+    return classes.get(name);
+  }
+
+  /**
+   * @return all super classes and interfaces of a class, direct or not. Unknown supertypes are included, but not
+   * their supertypes.
+   */
+  public Set<String> getSupertypes(String name) {
+    Set<String> set = supertypes.get(name);
+    if (set == null) {
+      set = new LinkedHashSet<>();
+      Deque<String> queue = new ArrayDeque<>();
+      addSupertypes(name, queue);
+      while (!queue.isEmpty()) {
+        String current = queue.poll();
+        if (!current.equals(name) && set.add(current)) {
+          addSupertypes(current, queue);
+        }
+      }
+      set = Collections.unmodifiableSet(set);
+      supertypes.put(name, set);
+    }
+    return set;
+  }
+
+  /**
+   * @return all interfaces a class implements, direct, inherited or extended by other interfaces
+   */
+  public Set<String> getInterfaceClosure(String name) {
+    Set<String> interfaces = new LinkedHashSet<>();
+    for (String supertype : getSupertypes(name)) {
+      if (isInterface(supertype)) {
+        interfaces.add(supertype);
+      }
+    }
+    return interfaces;
+  }
+
+  /**
+   * @return the loaded classes that directly extend or implement a type
+   */
+  public List<String> getDirectSubtypes(String name) {
+    return getDirectSubtypes().getOrDefault(name, Collections.emptyList());
+  }
+
+  /**
+   * @return all loaded classes that extend or implement a type, direct or not
+   */
+  public Set<String> getSubtypes(String name) {
+    Set<String> set = subtypes.get(name);
+    if (set == null) {
+      set = new LinkedHashSet<>();
+      Deque<String> queue = new ArrayDeque<>(getDirectSubtypes(name));
+      while (!queue.isEmpty()) {
+        String current = queue.poll();
+        if (!current.equals(name) && set.add(current)) {
+          queue.addAll(getDirectSubtypes(current));
+        }
+      }
+      set = Collections.unmodifiableSet(set);
+      subtypes.put(name, set);
+    }
+    return set;
+  }
+
+  /**
+   * @return the supertypes that declare a method which is overridden by the given method, nearest first. Private,
+   * static and initializer methods override nothing.
+   */
+  public List<String> getOverriddenOwners(String owner, String name, String desc) {
+    if (name.startsWith("<")) {
+      return Collections.emptyList();
+    }
+    List<String> owners = new ArrayList<>();
+    for (String supertype : getSupertypes(owner)) {
+      Member m = findMethod(supertype, name, desc);
+      if (m != null && !Access.isPrivate(m.access) && !Access.isStatic(m.access)) {
+        owners.add(supertype);
+      }
+    }
+    return owners;
+  }
+
+  /**
+   * @return the loaded subtypes that override the given method
+   */
+  public List<String> getOverridingOwners(String owner, String name, String desc) {
+    if (name.startsWith("<")) {
+      return Collections.emptyList();
+    }
+    List<String> owners = new ArrayList<>();
+    for (String subtype : getSubtypes(owner)) {
+      Member m = findMethod(subtype, name, desc);
+      if (m != null && !Access.isStatic(m.access)) {
+        owners.add(subtype);
+      }
+    }
+    return owners;
+  }
+
+  /**
+   * @return the method declared by the class, or null if it declares none with this name and descriptor
+   */
+  public Member findMethod(String owner, String name, String desc) {
+    for (Member m : getMethods(owner)) {
+      if (m.name.equals(name) && m.desc.equals(desc)) {
+        return m;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if a value of type <code>child</code> can be assigned to <code>parent</code>
+   */
+  public boolean isAssignableFrom(String parent, String child) {
+    return parent.equals(child) || parent.equals(OBJECT) || getSupertypes(child).contains(parent);
+  }
+
+  /**
+   * Least common super class of two types, as used for stack map frame computation. Interfaces resolve to
+   * java/lang/Object.
+   *
+   * @throws TypeNotPresentException if the common super class can't be determined, because one of the types or one
+   *                                 of their super classes is unknown
+   */
+  public String getCommonSuperClass(String type1, String type2) {
+    if (type1.equals(type2)) {
+      return type1;
+    }
+    String key = type1.compareTo(type2) < 0 ? type1 + ';' + type2 : type2 + ';' + type1;
+    String common = commonSuperClasses.get(key);
+    if (common == null) {
+      try {
+        common = computeCommonSuperClass(type1, type2);
+      } catch (TypeNotPresentException e) {
+        commonSuperClasses.put(key, UNDETERMINED);
+        throw e;
+      }
+      commonSuperClasses.put(key, common);
+    } else if (common == UNDETERMINED) {
+      throw new TypeNotPresentException(isKnown(type1) ? type2 : type1, null);
+    }
+    return common;
+  }
+
+  private String computeCommonSuperClass(String type1, String type2) {
+    if (isAssignableFrom(type1, type2)) {
+      return type1;
+    }
+    if (isAssignableFrom(type2, type1)) {
+      return type2;
+    }
+    // with a gap in the hierarchy, the classes could still share a super class
+    requireKnownSuperClasses(type1);
+    requireKnownSuperClasses(type2);
+    if (isInterface(type1) || isInterface(type2)) {
+      return OBJECT;
+    }
+    Set<String> visited = new HashSet<>();
+    String current = type1;
+    while (current != null && visited.add(current)) {
+      if (isAssignableFrom(current, type2)) {
+        return current;
+      }
+      current = getSuperName(current);
+    }
+    return OBJECT;
+  }
+
+  private void requireKnownSuperClasses(String type) {
+    Set<String> visited = new HashSet<>();
+    for (String current = type; current != null && visited.add(current); current = getSuperName(current)) {
+      if (!isKnown(current)) {
+        throw new TypeNotPresentException(current, null);
+      }
+    }
+  }
+
+  /**
+   * Update the hierarchy after loaded classes were renamed. Call this after the class nodes and all references to
+   * the classes were updated.
+   *
+   * @param renames old internal names mapped to new ones
+   */
+  public void rename(Map<String, String> renames) {
+    Set<String> changed = new HashSet<>();
+    Map<String, Clazz> renamed = new HashMap<>();
+    renames.forEach((oldName, newName) -> {
+      changed.add(oldName);
+      changed.add(newName);
+      Clazz clazz = classes.remove(oldName);
+      if (clazz != null) {
+        renamed.put(newName, clazz);
+      }
+    });
+    classes.putAll(renamed);
+    // classes that were read before and extend a renamed class still refer to its old name
+    infos.forEach((name, info) -> {
+      if (info.superName != null && renames.containsKey(info.superName)) {
+        changed.add(name);
+      }
+      for (String itf : info.interfaces) {
+        if (renames.containsKey(itf)) {
+          changed.add(name);
+        }
+      }
+    });
+    invalidate(changed);
+  }
+
+  /**
+   * Forget everything known about some classes, e.g. after their supertypes or methods were changed. Cached
+   * results that depend on these classes are dropped too, everything else is kept.
+   */
+  public synchronized void invalidate(Collection<String> names) {
+    if (names.isEmpty()) {
+      return;
+    }
+    Set<String> changed = new HashSet<>(names);
+    changed.forEach(infos::remove);
+    // the supertypes of a class change with the supertypes of every class it extends
+    supertypes.entrySet().removeIf(e -> changed.contains(e.getKey()) || !Collections.disjoint(e.getValue(), changed));
+    // common super classes were computed from the supertypes of both types, which are cached along with them
+    commonSuperClasses.keySet().removeIf(key -> {
+      int split = key.indexOf(';');
+      return !supertypes.containsKey(key.substring(0, split)) || !supertypes.containsKey(key.substring(split + 1));
+    });
+    // a changed class leaves the subtypes of its old supertypes, which contain it, and joins those of the new ones
+    Set<String> joined = new HashSet<>(changed);
+    changed.forEach(name -> joined.addAll(getSupertypes(name)));
+    subtypes.entrySet().removeIf(e -> joined.contains(e.getKey()) || !Collections.disjoint(e.getValue(), changed));
+    // rebuilt from the cached infos of the unchanged classes
+    directSubtypes = null;
+  }
+
+  private void addSupertypes(String name, Deque<String> queue) {
+    ClassInfo info = getInfo(name);
+    if (info.superName != null) {
+      queue.add(info.superName);
+    }
+    Collections.addAll(queue, info.interfaces);
+  }
+
+  private Map<String, List<String>> getDirectSubtypes() {
+    Map<String, List<String>> map = directSubtypes;
+    if (map == null) {
+      synchronized (this) {
+        map = directSubtypes;
+        if (map == null) {
+          map = new HashMap<>();
+          for (String name : classes.keySet()) {
+            ClassInfo info = getInfo(name);
+            if (info.superName != null) {
+              map.computeIfAbsent(info.superName, k -> new ArrayList<>()).add(name);
+            }
+            for (String itf : info.interfaces) {
+              map.computeIfAbsent(itf, k -> new ArrayList<>()).add(name);
+            }
+          }
+          directSubtypes = map;
+        }
+      }
+    }
+    return map;
+  }
+
+  private ClassInfo getInfo(String name) {
+    ClassInfo info = infos.get(name);
+    if (info == null) {
+      // no computeIfAbsent, reading JDK classes can recurse into the map
+      info = readInfo(name);
+      infos.put(name, info);
+    }
+    return info;
+  }
+
+  private ClassInfo readInfo(String name) {
+    Clazz clazz = classes.get(name);
+    if (clazz != null) {
+      if (clazz.isMaterialized()) {
+        return ClassInfo.of(clazz.viewNode());
+      }
+      return ClassInfo.of(new ClassReader(clazz.getBytes()));
+    }
+    try (InputStream in = openLibraryClass(name)) {
+      if (in != null) {
+        return ClassInfo.of(new ClassReader(in));
+      }
+    } catch (IOException | RuntimeException e) {
+      // unreadable or too new class file, treat as unknown
+    }
+    return UNKNOWN;
+  }
+
+  private static InputStream openLibraryClass(String name) throws IOException {
+    int slash = name.lastIndexOf('/');
+    if (JRT != null && slash > 0) {
+      Optional<Path> module = jrtPackages.computeIfAbsent(name.substring(0, slash), ClassHierarchy::findJrtModule);
+      if (module.isPresent()) {
+        Path file = module.get().resolve(name + ".class");
+        if (Files.exists(file)) {
+          return Files.newInputStream(file);
+        }
+      }
+    }
+    return ClassLoader.getSystemResourceAsStream(name + ".class");
+  }
+
+  /**
+   * @return the module directory that contains a package
+   */
+  private static Optional<Path> findJrtModule(String pkg) {
+    Path dir = JRT.getPath("/packages", pkg.replace('/', '.'));
+    if (!Files.isDirectory(dir)) {
+      return Optional.empty();
+    }
+    try (DirectoryStream<Path> modules = Files.newDirectoryStream(dir)) {
+      for (Path module : modules) {
+        return Optional.of(JRT.getPath("/modules", module.getFileName().toString()));
+      }
+    } catch (IOException e) {
+      // fall back to the class loader
+    }
+    return Optional.empty();
+  }
+
+  private static FileSystem openJrt() {
+    try {
+      return FileSystems.getFileSystem(URI.create("jrt:/"));
+    } catch (Exception e) {
+      // not available before Java 9
+      return null;
+    }
+  }
+
+  /**
+   * A method of a class
+   */
+  public static final class Member {
+    public final int access;
+    public final String name;
+    public final String desc;
+
+    Member(int access, String name, String desc) {
+      this.access = access;
+      this.name = name;
+      this.desc = desc;
+    }
+  }
+
+  private static final class ClassInfo {
+    final String superName;
+    final String[] interfaces;
+    final int access;
+    final List<Member> methods;
+
+    ClassInfo(String superName, String[] interfaces, int access, List<Member> methods) {
+      this.superName = superName;
+      this.interfaces = interfaces;
+      this.access = access;
+      this.methods = methods;
+    }
+
+    static ClassInfo of(ClassNode node) {
+      return new ClassInfo(node.superName, node.interfaces.toArray(new String[0]), node.access, methods(node));
+    }
+
+    static List<Member> methods(ClassNode node) {
+      List<Member> methods = new ArrayList<>(node.methods.size());
+      for (MethodNode m : node.methods) {
+        methods.add(new Member(m.access, m.name, m.desc));
+      }
+      return Collections.unmodifiableList(methods);
+    }
+
+    static ClassInfo of(ClassReader reader) {
+      List<Member> methods = new ArrayList<>();
+      reader.accept(new ClassVisitor(Opcodes.ASM9) {
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                         String[] exceptions) {
+          methods.add(new Member(access, name, descriptor));
+          return null;
+        }
+      }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      return new ClassInfo(reader.getSuperName(), reader.getInterfaces(), reader.getAccess(),
+        Collections.unmodifiableList(methods));
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package me.nov.threadtear.util.asm;
+
+import java.util.*;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Deep copies of class, method and field nodes. Copies are made tree to tree, without writing and parsing the class
+ * again. Labels are remapped, so the copy can be modified without affecting the original.
+ */
+public final class Copier {
+  /**
+   * do not copy method code, see {@link ClassReader#SKIP_CODE}
+   */
+  public static final int SKIP_CODE = ClassReader.SKIP_CODE;
+  /**
+   * do not copy source file, line numbers, local variables and method parameters, see
+   * {@link ClassReader#SKIP_DEBUG}
+   */
+  public static final int SKIP_DEBUG = ClassReader.SKIP_DEBUG;
+  /**
+   * do not copy frame nodes, see {@link ClassReader#SKIP_FRAMES}
+   */
+  public static final int SKIP_FRAMES = ClassReader.SKIP_FRAMES;
+
+  private Copier() {
+  }
+
+  public static ClassNode copy(ClassNode cn) {
+    return copy(cn, 0);
+  }
+
+  public static ClassNode copy(ClassNode cn, int flags) {
+    ClassNode copy = new ClassNode();
+    copy.version = cn.version;
+    copy.access = cn.access;
+    copy.name = cn.name;
+    copy.signature = cn.signature;
+    copy.superName = cn.superName;
+    copy.interfaces = copyList(cn.interfaces);
+    if ((flags & SKIP_DEBUG) == 0) {
+      copy.sourceFile = cn.sourceFile;
+      copy.sourceDebug = cn.sourceDebug;
+    }
+    if (cn.module != null) {
+      cn.module.accept(copy);
+    }
+    copy.outerClass = cn.outerClass;
+    copy.outerMethod = cn.outerMethod;
+    copy.outerMethodDesc = cn.outerMethodDesc;
+    copy.visibleAnnotations = copyAnnotations(cn.visibleAnnotations);
+    copy.invisibleAnnotations = copyAnnotations(cn.invisibleAnnotations);
+    copy.visibleTypeAnnotations = copyTypeAnnotations(cn.visibleTypeAnnotations);
+    copy.invisibleTypeAnnotations = copyTypeAnnotations(cn.invisibleTypeAnnotations);
+    copy.attrs = copyList(cn.attrs);
+    for (InnerClassNode icn : cn.innerClasses) {
+      copy.innerClasses.add(new InnerClassNode(icn.name, icn.outerName, icn.innerName, icn.access));
+    }
+    copy.nestHostClass = cn.nestHostClass;
+    copy.nestMembers = copyList(cn.nestMembers);
+    copy.permittedSubclasses = copyList(cn.permittedSubclasses);
+    if (cn.recordComponents != null) {
+      copy.recordComponents = new ArrayList<>(cn.recordComponents.size());
+      for (RecordComponentNode rcn : cn.recordComponents) {
+        RecordComponentNode rcCopy = new RecordComponentNode(rcn.name, rcn.descriptor, rcn.signature);
+        rcCopy.visibleAnnotations = copyAnnotations(rcn.visibleAnnotations);
+        rcCopy.invisibleAnnotations = copyAnnotations(rcn.invisibleAnnotations);
+        rcCopy.visibleTypeAnnotations = copyTypeAnnotations(rcn.visibleTypeAnnotations);
+        rcCopy.invisibleTypeAnnotations = copyTypeAnnotations(rcn.invisibleTypeAnnotations);
+        rcCopy.attrs = copyList(rcn.attrs);
+        copy.recordComponents.add(rcCopy);
+      }
+    }
+    for (FieldNode fn : cn.fields) {
+      copy.fields.add(copy(fn));
+    }
+    for (MethodNode mn : cn.methods) {
+      copy.methods.add(copy(mn, flags));
+    }
+    return copy;
+  }
+
+  public static FieldNode copy(FieldNode fn) {
+    FieldNode copy = new FieldNode(fn.access, fn.name, fn.desc, fn.signature, fn.value);
+    copy.visibleAnnotations = copyAnnotations(fn.visibleAnnotations);
+    copy.invisibleAnnotations = copyAnnotations(fn.invisibleAnnotations);
+    copy.visibleTypeAnnotations = copyTypeAnnotations(fn.visibleTypeAnnotations);
+    copy.invisibleTypeAnnotations = copyTypeAnnotations(fn.invisibleTypeAnnotations);
+    copy.attrs = copyList(fn.attrs);
+    return copy;
+  }
+
+  public static MethodNode copy(MethodNode mn) {
+    return copy(mn, 0);
+  }
+
+  public static MethodNode copy(MethodNode mn, int flags) {
+    MethodNode copy = new MethodNode(mn.access, mn.name, mn.desc, mn.signature,
+      mn.exceptions == null ? null : mn.exceptions.toArray(new String[0]));
+    if ((flags & SKIP_DEBUG) == 0 && mn.parameters != null) {
+      copy.parameters = new ArrayList<>(mn.parameters.size());
+      for (ParameterNode pn : mn.parameters) {
+        copy.parameters.add(new ParameterNode(pn.name, pn.access));
+      }
+    }
+    copy.visibleAnnotations = copyAnnotations(mn.visibleAnnotations);
+    copy.invisibleAnnotations = copyAnnotations(mn.invisibleAnnotations);
+    copy.visibleTypeAnnotations = copyTypeAnnotations(mn.visibleTypeAnnotations);
+    copy.invisibleTypeAnnotations = copyTypeAnnotations(mn.invisibleTypeAnnotations);
+    copy.attrs = copyList(mn.attrs);
+    if (mn.annotationDefault != null) {
+      // the visitor returned by visitAnnotationDefault stores the first visited value
+      AnnotationNode holder = new AnnotationNode((String) null);
+      holder.values = Arrays.asList("value", mn.annotationDefault);
+      holder.accept(copy.visitAnnotationDefault());
+    }
+    copy.visibleAnnotableParameterCount = mn.visibleAnnotableParameterCount;
+    copy.visibleParameterAnnotations = copyParameterAnnotations(mn.visibleParameterAnnotations);
+    copy.invisibleAnnotableParameterCount = mn.invisibleAnnotableParameterCount;
+    copy.invisibleParameterAnnotations = copyParameterAnnotations(mn.invisibleParameterAnnotations);
+    if ((flags & SKIP_CODE) == 0) {
+      copyCode(mn, copy, flags);
+    }
+    return copy;
+  }
+
+  private static void copyCode(MethodNode mn, MethodNode copy, int flags) {
+    boolean skipDebug = (flags & SKIP_DEBUG) != 0;
+    boolean skipFrames = (flags & SKIP_FRAMES) != 0;
+    Map<LabelNode, LabelNode> labels = Instructions.cloneLabels(mn.instructions);
+    for (AbstractInsnNode ain = mn.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+      int type = ain.getType();
+      if ((skipDebug && type == AbstractInsnNode.LINE) || (skipFrames && type == AbstractInsnNode.FRAME)) {
+        continue;
+      }
+      copy.instructions.add(ain.clone(labels));
+    }
+    if (mn.tryCatchBlocks != null) {
+      copy.tryCatchBlocks = new ArrayList<>(mn.tryCatchBlocks.size());
+      for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+        TryCatchBlockNode tcbCopy = new TryCatchBlockNode(labels.get(tcb.start), labels.get(tcb.end),
+          labels.get(tcb.handler), tcb.type);
+        tcbCopy.visibleTypeAnnotations = copyTypeAnnotations(tcb.visibleTypeAnnotations);
+        tcbCopy.invisibleTypeAnnotations = copyTypeAnnotations(tcb.invisibleTypeAnnotations);
+        copy.tryCatchBlocks.add(tcbCopy);
+      }
+    }
+    if (!skipDebug && mn.localVariables != null) {
+      copy.localVariables = new ArrayList<>(mn.localVariables.size());
+      for (LocalVariableNode lvn : mn.localVariables) {
+        copy.localVariables.add(new LocalVariableNode(lvn.name, lvn.desc, lvn.signature, labels.get(lvn.start),
+          labels.get(lvn.end), lvn.index));
+      }
+    }
+    copy.visibleLocalVariableAnnotations = copyLocalVariableAnnotations(mn.visibleLocalVariableAnnotations, labels);
+    copy.invisibleLocalVariableAnnotations = copyLocalVariableAnnotations(mn.invisibleLocalVariableAnnotations,
+      labels);
+    copy.maxStack = mn.maxStack;
+    copy.maxLocals = mn.maxLocals;
+  }
+
+  private static <T> List<T> copyList(List<T> list) {
+    return list == null ? null : new ArrayList<>(list);
+  }
+
+  private static List<AnnotationNode> copyAnnotations(List<AnnotationNode> annotations) {
+    if (annotations == null) {
+      return null;
+    }
+    List<AnnotationNode> copy = new ArrayList<>(annotations.size());
+    for (AnnotationNode an : annotations) {
+      AnnotationNode anCopy = new AnnotationNode(an.desc);
+      an.accept(anCopy);
+      copy.add(anCopy);
+    }
+    return copy;
+  }
+
+  private static List<TypeAnnotationNode> copyTypeAnnotations(List<TypeAnnotationNode> annotations) {
+    if (annotations == null) {
+      return null;
+    }
+    List<TypeAnnotationNode> copy = new ArrayList<>(annotations.size());
+    for (TypeAnnotationNode tan : annotations) {
+      TypeAnnotationNode tanCopy = new TypeAnnotationNode(tan.typeRef, tan.typePath, tan.desc);
+      tan.accept(tanCopy);
+      copy.add(tanCopy);
+    }
+    return copy;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<AnnotationNode>[] copyParameterAnnotations(List<AnnotationNode>[] annotations) {
+    if (annotations == null) {
+      return null;
+    }
+    List<AnnotationNode>[] copy = (List<AnnotationNode>[]) new List<?>[annotations.length];
+    for (int i = 0; i < annotations.length; i++) {
+      copy[i] = copyAnnotations(annotations[i]);
+    }
+    return copy;
+  }
+
+  private static List<LocalVariableAnnotationNode> copyLocalVariableAnnotations(
+    List<LocalVariableAnnotationNode> annotations, Map<LabelNode, LabelNode> labels) {
+    if (annotations == null) {
+      return null;
+    }
+    List<LocalVariableAnnotationNode> copy = new ArrayList<>(annotations.size());
+    for (LocalVariableAnnotationNode lvan : annotations) {
+      LocalVariableAnnotationNode lvanCopy = new LocalVariableAnnotationNode(lvan.typeRef, lvan.typePath,
+        remap(lvan.start, labels), remap(lvan.end, labels), lvan.index.stream().mapToInt(Integer::intValue).toArray(),
+        lvan.desc);
+      lvan.accept(lvanCopy);
+      copy.add(lvanCopy);
+    }
+    return copy;
+  }
+
+  private static LabelNode[] remap(List<LabelNode> list, Map<LabelNode, LabelNode> labels) {
+    LabelNode[] remapped = new LabelNode[list.size()];
+    for (int i = 0; i < remapped.length; i++) {
+      remapped[i] = labels.get(list.get(i));
+    }
+    return remapped;
+  }
+}
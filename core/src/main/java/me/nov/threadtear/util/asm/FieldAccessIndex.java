@@ -0,0 +1,105 @@
+package me.nov.threadtear.util.asm;
+
+import java.util.*;
+
+import me.nov.threadtear.execution.Clazz;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Every read and write of every field in the code of the loaded classes, built in a single pass over all
+ * instructions. Fields are identified by the owner, name and descriptor of the field instruction, without resolving
+ * inherited fields.
+ * <p>
+ * The index describes the code at the time it was built. Classes are only viewed while building it, call
+ * {@link Clazz#markModified()} on {@link FieldAccess#clazz} after modifying an access.
+ */
+public class FieldAccessIndex implements Opcodes {
+  private static final Entry EMPTY = new Entry();
+
+  private final Map<String, Entry> fields = new HashMap<>();
+
+  public FieldAccessIndex(Collection<Clazz> classes) {
+    for (Clazz clazz : classes) {
+      ClassNode cn = clazz.viewNode();
+      for (MethodNode m : cn.methods) {
+        boolean staticInitializer = m.name.equals("<clinit>");
+        for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+          if (ain.getType() != AbstractInsnNode.FIELD_INSN) {
+            continue;
+          }
+          FieldInsnNode fin = (FieldInsnNode) ain;
+          Entry entry = fields.computeIfAbsent(key(fin.owner, fin.name, fin.desc), k -> new Entry());
+          FieldAccess access = new FieldAccess(clazz, m, fin);
+          if (fin.getOpcode() == GETFIELD || fin.getOpcode() == GETSTATIC) {
+            entry.readers.add(access);
+          } else {
+            entry.writers.add(access);
+            if (!staticInitializer || !fin.owner.equals(cn.name)) {
+              entry.writtenOutsideStaticInitializer = true;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return all instructions that read the field
+   */
+  public List<FieldAccess> getReaders(String owner, String name, String desc) {
+    return Collections.unmodifiableList(get(owner, name, desc).readers);
+  }
+
+  /**
+   * @return all instructions that write the field
+   */
+  public List<FieldAccess> getWriters(String owner, String name, String desc) {
+    return Collections.unmodifiableList(get(owner, name, desc).writers);
+  }
+
+  public boolean isRead(String owner, String name, String desc) {
+    return !get(owner, name, desc).readers.isEmpty();
+  }
+
+  public boolean isWritten(String owner, String name, String desc) {
+    return !get(owner, name, desc).writers.isEmpty();
+  }
+
+  /**
+   * @return true if the field is written, but only by the static initializer of its owner
+   */
+  public boolean isOnlyWrittenInStaticInitializer(String owner, String name, String desc) {
+    Entry entry = get(owner, name, desc);
+    return !entry.writers.isEmpty() && !entry.writtenOutsideStaticInitializer;
+  }
+
+  private Entry get(String owner, String name, String desc) {
+    return fields.getOrDefault(key(owner, name, desc), EMPTY);
+  }
+
+  private static String key(String owner, String name, String desc) {
+    return owner + '.' + name + ':' + desc;
+  }
+
+  /**
+   * A single field instruction and where it is located.
+   */
+  public static final class FieldAccess {
+    public final Clazz clazz;
+    public final MethodNode method;
+    public final FieldInsnNode insn;
+
+    FieldAccess(Clazz clazz, MethodNode method, FieldInsnNode insn) {
+      this.clazz = clazz;
+      this.method = method;
+      this.insn = insn;
+    }
+  }
+
+  private static final class Entry {
+    final List<FieldAccess> readers = new ArrayList<>(2);
+    final List<FieldAccess> writers = new ArrayList<>(1);
+    boolean writtenOutsideStaticInitializer;
+  }
+}
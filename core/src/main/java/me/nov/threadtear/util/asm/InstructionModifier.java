@@ -79,12 +79,20 @@ public class InstructionModifier {
     }
   }
 
-  public void apply(MethodNode methodNode) {
+  /**
+   * @return true if the method was changed
+   */
+  public boolean apply(MethodNode methodNode) {
+    if (prepends.isEmpty() && appends.isEmpty() && replacements.isEmpty()) {
+      return false;
+    }
+    ModificationStamp.bump(methodNode);
     prepends.forEach((insn, list) -> methodNode.instructions.insertBefore(insn, list));
     appends.forEach((insn, list) -> methodNode.instructions.insert(insn, list));
     replacements.forEach((insn, list) -> {
       methodNode.instructions.insert(insn, list);
       methodNode.instructions.remove(insn);
     });
+    return true;
   }
 }
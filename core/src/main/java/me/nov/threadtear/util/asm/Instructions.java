@@ -260,10 +260,8 @@ public final class Instructions implements Opcodes {
         }
       } else if (ain.getType() == AbstractInsnNode.LDC_INSN) {
         LdcInsnNode ldc = (LdcInsnNode) ain;
-        if (ldc.cst instanceof Type) {
-          if (methodRemove.test(((Type) ldc.cst).getInternalName(), "")) {
-            mn.instructions.set(ldc, new InsnNode(ACONST_NULL));
-          }
+        if (ldc.cst instanceof Type && methodRemove != null && referencesMatch((Type) ldc.cst, methodRemove)) {
+          mn.instructions.set(ldc, new InsnNode(ACONST_NULL));
         }
       }
     }
@@ -272,6 +270,26 @@ public final class Instructions implements Opcodes {
     }
   }
 
+  /**
+   * Method type constants are tested by their argument and return types, not by their descriptor.
+   */
+  private static boolean referencesMatch(Type type, BiPredicate<String, String> predicate) {
+    switch (type.getSort()) {
+      case Type.METHOD:
+        for (Type argument : type.getArgumentTypes()) {
+          if (referencesMatch(argument, predicate))
+            return true;
+        }
+        return referencesMatch(type.getReturnType(), predicate);
+      case Type.ARRAY:
+        return referencesMatch(type.getElementType(), predicate);
+      case Type.OBJECT:
+        return predicate.test(type.getInternalName(), "");
+      default:
+        return false;
+    }
+  }
+
   /**
    * Make a null or zero push
    */
@@ -294,6 +312,46 @@ public final class Instructions implements Opcodes {
     }
   }
 
+  /**
+   * Convert the object on top of the stack to a value of the type, primitive values are unboxed
+   */
+  public static InsnList unbox(Type type) {
+    InsnList list = new InsnList();
+    String box;
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+        box = "java/lang/Boolean";
+        break;
+      case Type.CHAR:
+        box = "java/lang/Character";
+        break;
+      case Type.BYTE:
+        box = "java/lang/Byte";
+        break;
+      case Type.SHORT:
+        box = "java/lang/Short";
+        break;
+      case Type.INT:
+        box = "java/lang/Integer";
+        break;
+      case Type.FLOAT:
+        box = "java/lang/Float";
+        break;
+      case Type.LONG:
+        box = "java/lang/Long";
+        break;
+      case Type.DOUBLE:
+        box = "java/lang/Double";
+        break;
+      default:
+        list.add(new TypeInsnNode(CHECKCAST, type.getInternalName()));
+        return list;
+    }
+    list.add(new TypeInsnNode(CHECKCAST, box));
+    list.add(new MethodInsnNode(INVOKEVIRTUAL, box, type.getClassName() + "Value", "()" + type.getDescriptor()));
+    return list;
+  }
+
   public static boolean opcodesMatch(InsnList list1, InsnList list2) {
     if (list1.size() != list2.size())
       return false;
@@ -311,6 +369,7 @@ public final class Instructions implements Opcodes {
    * Gives a method node new instructions
    */
   public static void updateInstructions(MethodNode m, Map<LabelNode, LabelNode> labels, InsnList rewrittenCode) {
+    ModificationStamp.bump(m);
     m.instructions.clear();
     m.instructions = rewrittenCode;
     if (m.tryCatchBlocks != null) {
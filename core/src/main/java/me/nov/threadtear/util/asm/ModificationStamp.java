@@ -0,0 +1,74 @@
+package me.nov.threadtear.util.asm;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Modification stamps of class and method nodes. Caches of data computed from a node remember its stamp and drop
+ * the data once the stamp changed, instead of being invalidated by every execution that changes a node.
+ * <p>
+ * Stamps are bumped by {@link me.nov.threadtear.execution.Clazz#getNode()},
+ * {@link me.nov.threadtear.execution.Clazz#setNode(ClassNode)},
+ * {@link me.nov.threadtear.execution.Clazz#markModified()}, {@link InstructionModifier#apply(MethodNode)} and
+ * {@link Instructions#updateInstructions}. Code that changes a node in another way, e.g. an operand in place, has to
+ * call {@link #bump} itself.
+ */
+public final class ModificationStamp {
+  /**
+   * stamps by node identity, nodes that were never bumped have stamp 0
+   */
+  private static final Map<Object, Long> stamps = new WeakHashMap<>();
+  private static long counter;
+
+  private ModificationStamp() {
+  }
+
+  public static void bump(ClassNode cn) {
+    bumpNode(cn);
+  }
+
+  public static void bump(MethodNode m) {
+    bumpNode(m);
+  }
+
+  private static void bumpNode(Object node) {
+    synchronized (stamps) {
+      // every bump is greater than all previous ones, so the maximum over a class and its methods always changes
+      stamps.put(node, ++counter);
+    }
+  }
+
+  /**
+   * @return the stamp of the method
+   */
+  public static long of(MethodNode m) {
+    synchronized (stamps) {
+      return stamps.getOrDefault(m, 0L);
+    }
+  }
+
+  /**
+   * @return the stamp of the class node alone, which changes when the class is marked as modified
+   */
+  public static long ofClass(ClassNode cn) {
+    synchronized (stamps) {
+      return stamps.getOrDefault(cn, 0L);
+    }
+  }
+
+  /**
+   * @return the stamp of the class, which changes when the class or one of its methods is bumped
+   */
+  public static long of(ClassNode cn) {
+    synchronized (stamps) {
+      long stamp = stamps.getOrDefault(cn, 0L);
+      for (MethodNode m : cn.methods) {
+        stamp = Math.max(stamp, stamps.getOrDefault(m, 0L));
+      }
+      return stamp;
+    }
+  }
+}
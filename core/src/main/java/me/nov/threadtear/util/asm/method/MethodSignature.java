@@ -39,6 +39,18 @@ public class MethodSignature {
     this.desc = method.desc;
   }
 
+  public String getOwner() {
+    return owner;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDesc() {
+    return desc;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o)
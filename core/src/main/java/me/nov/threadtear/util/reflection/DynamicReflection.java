@@ -10,7 +10,6 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandleInfo;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
-import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 
@@ -49,27 +48,29 @@ public final class DynamicReflection implements Opcodes {
   }
 
   public static AbstractInsnNode getInstructionFromHandleInfo(MethodHandleInfo direct) throws Exception {
-    Class<?> declaringClass = direct.getDeclaringClass();
-    String name = direct.getName();
-    MethodType methodType = direct.getMethodType();
-    int refKind = direct.getReferenceKind();
+    return getInstruction(direct.getReferenceKind(), direct.getDeclaringClass().getName().replace('.', '/'),
+            direct.getName(), direct.getMethodType().toMethodDescriptorString());
+  }
+
+  /**
+   * @param refKind reference kind of the handle, see {@link MethodHandleInfo#getReferenceKind()}
+   * @param owner   internal name of the declaring class
+   * @param mds     method descriptor of the handle target, field accesses are treated as methods
+   */
+  public static AbstractInsnNode getInstruction(int refKind, String owner, String name, String mds) {
     int op = bootstrapTagToOp(refKind);
     if (refKind <= H_PUTSTATIC) {
       if (refKind <= H_GETSTATIC) {
         // method handle treats field retrieving as a
         // method ()X
-        return new FieldInsnNode(op, declaringClass.getName().replace('.', '/'), name,
-                methodType.toMethodDescriptorString().substring(2));
+        return new FieldInsnNode(op, owner, name, mds.substring(2));
       } else {
         // method handle treats field putting as a method
         // (returning void) -> (X)V
-        String mds = methodType.toMethodDescriptorString();
-        return new FieldInsnNode(op, declaringClass.getName().replace('.', '/'), name,
-                mds.substring(1, mds.lastIndexOf(')')));
+        return new FieldInsnNode(op, owner, name, mds.substring(1, mds.lastIndexOf(')')));
       }
     } else {
-      return new MethodInsnNode(op, declaringClass.getName().replace('.', '/'), name,
-              methodType.toMethodDescriptorString());
+      return new MethodInsnNode(op, owner, name, mds);
     }
   }
 
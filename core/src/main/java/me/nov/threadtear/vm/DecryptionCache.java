@@ -0,0 +1,175 @@
+package me.nov.threadtear.vm;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.objectweb.asm.tree.MethodInsnNode;
+
+/**
+ * Caches the results of decryption methods invoked in a sandbox, so the same encrypted value is only decrypted once.
+ * Results are identified by the decryption method and its arguments. Decryption methods that read the calling class
+ * or method, like the ones of Stringer or Allatori, also have to pass the caller.
+ * <p>
+ * Only successful results are cached. The least recently used results are evicted once {@link #getMaxEntries()} is
+ * reached.
+ */
+public final class DecryptionCache {
+  private static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static final LongAdder evictions = new LongAdder();
+  private static int maxEntries = DEFAULT_MAX_ENTRIES;
+  private static final Map<Key, Object> entries = new LinkedHashMap<Key, Object>(256, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+      if (size() > maxEntries) {
+        evictions.increment();
+        return true;
+      }
+      return false;
+    }
+  };
+
+  private DecryptionCache() {
+  }
+
+  /**
+   * @param caller the calling class and method if the result depends on them, otherwise null
+   */
+  public static Key key(MethodInsnNode decryptor, Object[] args, String caller) {
+    return new Key(decryptor.owner, decryptor.name, decryptor.desc, args, caller);
+  }
+
+  /**
+   * @param caller the calling class and method if the result depends on them, otherwise null
+   */
+  public static Key key(String owner, String name, String desc, Object[] args, String caller) {
+    return new Key(owner, name, desc, args, caller);
+  }
+
+  /**
+   * @return the cached result, or null if the value was not decrypted yet
+   */
+  public static Object get(Key key) {
+    Object result;
+    synchronized (entries) {
+      result = entries.get(key);
+    }
+    if (result == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return result;
+  }
+
+  /**
+   * Cache a result. Null results are ignored.
+   */
+  public static void put(Key key, Object result) {
+    if (result == null) {
+      return;
+    }
+    synchronized (entries) {
+      entries.put(key, result);
+    }
+  }
+
+  public static void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public static int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public static void setMaxEntries(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    synchronized (entries) {
+      DecryptionCache.maxEntries = maxEntries;
+      Iterator<Key> it = entries.keySet().iterator();
+      while (entries.size() > maxEntries && it.hasNext()) {
+        it.next();
+        it.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  public static long getHits() {
+    return hits.sum();
+  }
+
+  public static long getMisses() {
+    return misses.sum();
+  }
+
+  public static long getEvictions() {
+    return evictions.sum();
+  }
+
+  public static void resetCounters() {
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  /**
+   * A decryption method, its arguments and optionally the caller. Arrays in the arguments are copied, as the
+   * decryption method may modify them, and compared by content.
+   */
+  public static final class Key {
+    private final String owner;
+    private final String name;
+    private final String desc;
+    private final Object[] args;
+    private final String caller;
+    private final int hash;
+
+    private Key(String owner, String name, String desc, Object[] args, String caller) {
+      this.owner = owner;
+      this.name = name;
+      this.desc = desc;
+      this.args = args == null ? new Object[0] : copy(args);
+      this.caller = caller;
+      this.hash = Objects.hash(owner, name, desc, caller) * 31 + Arrays.deepHashCode(this.args);
+    }
+
+    private static Object[] copy(Object[] args) {
+      Object[] copy = args.clone();
+      for (int i = 0; i < copy.length; i++) {
+        Object arg = copy[i];
+        if (arg != null && arg.getClass().isArray()) {
+          int length = Array.getLength(arg);
+          copy[i] = Array.newInstance(arg.getClass().getComponentType(), length);
+          System.arraycopy(arg, 0, copy[i], 0, length);
+        }
+      }
+      return copy;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key that = (Key) obj;
+      return hash == that.hash && owner.equals(that.owner) && name.equals(that.name) && desc.equals(that.desc) &&
+        Objects.equals(caller, that.caller) && Arrays.deepEquals(args, that.args);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
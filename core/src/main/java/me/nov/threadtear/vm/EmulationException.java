@@ -0,0 +1,47 @@
+package me.nov.threadtear.vm;
+
+/**
+ * Thrown when a method can't be emulated by the {@link Emulator}.
+ */
+public class EmulationException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public enum Reason {
+    /**
+     * the code uses an instruction, class or method the emulator does not support. Running the code in a VM may
+     * still work.
+     */
+    UNSUPPORTED,
+    /**
+     * the instruction budget was used up, the code probably loops forever
+     */
+    BUDGET,
+    /**
+     * the emulated code threw an exception, which is the cause
+     */
+    THROWN
+  }
+
+  private final Reason reason;
+
+  public EmulationException(Reason reason, String message) {
+    super(message);
+    this.reason = reason;
+  }
+
+  public EmulationException(Throwable thrown) {
+    super("Emulated code threw " + thrown, thrown);
+    this.reason = Reason.THROWN;
+  }
+
+  public Reason getReason() {
+    return reason;
+  }
+
+  /**
+   * @return true if the code might work in a VM, which is the case unless the budget was used up
+   */
+  public boolean canFallBack() {
+    return reason != Reason.BUDGET;
+  }
+}
@@ -0,0 +1,1323 @@
+package me.nov.threadtear.vm;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import me.nov.threadtear.util.asm.Access;
+import me.nov.threadtear.util.reflection.Casts;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Interprets methods of the input without loading them. This is a lot faster than defining proxy classes in a
+ * {@link VM} and can't run code of the input by accident, but only supports the subset of the JDK decryption methods
+ * usually need: strings, string builders, arrays, boxes and math. Static fields and static methods of the input are
+ * emulated, static initializers run on first access like in a VM, unless the emulator is non-initializing. Objects
+ * of the input are not supported.
+ * <p>
+ * Stack traces of <code>new Throwable().getStackTrace()</code> and <code>Thread.currentThread().getStackTrace()
+ * </code> are made up from the emulated frames and the caller passed to {@link #invoke}, so decryption methods that
+ * check their caller get the same result as when they are called by a proxy.
+ * <p>
+ * An emulator keeps the static fields of the classes it initialized and is not thread safe.
+ */
+public class Emulator implements Opcodes {
+  public static final int DEFAULT_MAX_INSTRUCTIONS = 5_000_000;
+  public static final int DEFAULT_MAX_DEPTH = 64;
+
+  /**
+   * JDK classes whose methods can be invoked. Only methods without side effects outside of their arguments are
+   * included.
+   */
+  private static final Set<String> PURE_CLASSES = new HashSet<>(Arrays.asList("java/lang/Object", "java/lang/String",
+    "java/lang/StringBuilder", "java/lang/StringBuffer", "java/lang/CharSequence", "java/lang/Math",
+    "java/lang/StrictMath", "java/lang/Integer", "java/lang/Long", "java/lang/Short", "java/lang/Byte",
+    "java/lang/Character", "java/lang/Boolean", "java/lang/Float", "java/lang/Double", "java/lang/Number",
+    "java/lang/StackTraceElement", "java/lang/Throwable", "java/util/Arrays"));
+  /**
+   * methods of the classes above that read global state or have side effects
+   */
+  private static final Set<String> IMPURE_METHODS = new HashSet<>(Arrays.asList("getInteger", "getLong", "getBoolean",
+    "getClass", "wait", "notify", "notifyAll", "printStackTrace", "fillInStackTrace", "setStackTrace",
+    "addSuppressed", "initCause", "parallelSort", "parallelPrefix", "parallelSetAll", "setAll", "stream",
+    "spliterator", "describeConstable", "resolveConstantDesc", "chars", "codePoints", "lines", "random"));
+  /**
+   * exceptions thrown by the emulated instructions themselves that are passed on to the emulated code
+   */
+  private static final Set<Class<?>> INSTRUCTION_EXCEPTIONS = new HashSet<>(Arrays.asList(ArithmeticException.class,
+    ArrayIndexOutOfBoundsException.class, NegativeArraySizeException.class, NullPointerException.class,
+    ArrayStoreException.class));
+  private static final Object CURRENT_THREAD = new Object();
+  private static final AbstractInsnNode RETURN_MARKER = new InsnNode(NOP);
+
+  private final IVMReferenceHandler classes;
+  private final boolean initialize;
+  private final int maxInstructions;
+  private final int maxDepth;
+  private final Map<String, Object> statics = new HashMap<>();
+  private final Set<String> initialized = new HashSet<>();
+  private final Set<String> failed = new HashSet<>();
+  private final Map<String, Member> members = new HashMap<>();
+  private final Deque<Frame> frames = new ArrayDeque<>();
+  private StackTraceElement caller;
+  private long budget;
+
+  public Emulator(IVMReferenceHandler classes, boolean initialize) {
+    this(classes, initialize, DEFAULT_MAX_INSTRUCTIONS, DEFAULT_MAX_DEPTH);
+  }
+
+  /**
+   * @param classes         the classes of the input
+   * @param initialize      false to skip static initializers, like a non-initializing VM does. Static fields then
+   *                        have their constant or default value.
+   * @param maxInstructions maximum number of instructions a single invocation may execute, including static
+   *                        initializers it triggers
+   * @param maxDepth        maximum number of nested calls
+   */
+  public Emulator(IVMReferenceHandler classes, boolean initialize, int maxInstructions, int maxDepth) {
+    this.classes = classes;
+    this.initialize = initialize;
+    this.maxInstructions = maxInstructions;
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Emulate a static method of the input.
+   *
+   * @param args   the arguments, primitives boxed. Arrays are copied, so they are unchanged if emulation fails.
+   * @param caller the frame the method appears to be called from, or null
+   * @return the return value, boxed as the return type of the method
+   */
+  public Object invoke(String owner, String name, String desc, Object[] args, StackTraceElement caller)
+    throws EmulationException {
+    if (!frames.isEmpty()) {
+      throw new IllegalStateException("Emulator is already running");
+    }
+    this.caller = caller;
+    this.budget = maxInstructions;
+    Type[] types = Type.getArgumentTypes(desc);
+    if (args.length != types.length) {
+      throw new IllegalArgumentException("Expected " + types.length + " arguments");
+    }
+    Object[] values = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      values[i] = toValue(types[i], args[i]);
+      if (values[i] != null && values[i].getClass().isArray()) {
+        values[i] = copyArray(values[i]);
+      }
+    }
+    try {
+      return fromValue(Type.getReturnType(desc), invokeStatic(owner, name, desc, values));
+    } catch (Thrown t) {
+      throw new EmulationException(t.thrown);
+    } catch (RuntimeException e) {
+      // the code does not verify, or the emulator is missing something
+      throw unsupported("state: " + e);
+    } finally {
+      frames.clear();
+    }
+  }
+
+  /**
+   * @param className  class name with dots
+   * @param methodName method name
+   * @return a frame that can be passed as caller of {@link #invoke}
+   */
+  public static StackTraceElement frame(String className, String methodName) {
+    return new StackTraceElement(className.replace('/', '.'), methodName, null, -1);
+  }
+
+  private Object invokeStatic(String owner, String name, String desc, Object[] args) throws EmulationException {
+    ClassNode cn = classes.tryClassLoad(owner);
+    if (cn == null) {
+      throw unsupported("class " + owner + " is not part of the input");
+    }
+    MethodNode m = null;
+    for (ClassNode c = cn; c != null && m == null; c = c.superName == null ? null : classes.tryClassLoad(c.superName)) {
+      for (MethodNode mn : c.methods) {
+        if (mn.name.equals(name) && mn.desc.equals(desc) && Access.isStatic(mn.access)) {
+          m = mn;
+          cn = c;
+          break;
+        }
+      }
+    }
+    if (m == null) {
+      throw unsupported("method " + owner + "." + name + desc + " not found");
+    }
+    initialize(cn);
+    return execute(cn, m, args);
+  }
+
+  private void initialize(ClassNode cn) throws EmulationException {
+    if (failed.contains(cn.name)) {
+      throw unsupported("initialization of " + cn.name + " failed before");
+    }
+    if (!initialized.add(cn.name)) {
+      return;
+    }
+    try {
+      if (cn.superName != null && !Access.isInterface(cn.access)) {
+        ClassNode superClass = classes.tryClassLoad(cn.superName);
+        if (superClass != null) {
+          initialize(superClass);
+        }
+      }
+      for (FieldNode f : cn.fields) {
+        if (Access.isStatic(f.access)) {
+          statics.put(cn.name + "." + f.name, f.value != null ? toValue(Type.getType(f.desc), f.value) :
+            defaultValue(Type.getType(f.desc)));
+        }
+      }
+      for (MethodNode m : cn.methods) {
+        if (initialize && m.name.equals("<clinit>")) {
+          execute(cn, m, new Object[0]);
+        }
+      }
+    } catch (EmulationException e) {
+      failed.add(cn.name);
+      throw e;
+    } catch (Thrown t) {
+      failed.add(cn.name);
+      throw unsupported("initializer of " + cn.name + " threw " + t.thrown);
+    }
+  }
+
+  private Object execute(ClassNode cn, MethodNode m, Object[] args) throws EmulationException {
+    if (frames.size() >= maxDepth) {
+      throw unsupported("maximum call depth reached");
+    }
+    if (m.instructions.size() == 0) {
+      throw unsupported("method " + cn.name + "." + m.name + " has no code");
+    }
+    Object[] locals = new Object[Math.max(m.maxLocals, Type.getArgumentsAndReturnSizes(m.desc) >> 2)];
+    Type[] types = Type.getArgumentTypes(m.desc);
+    for (int i = 0, slot = 0; i < types.length; i++) {
+      locals[slot] = args[i];
+      slot += types[i].getSize();
+    }
+    Frame frame = new Frame(cn, m, locals);
+    frames.push(frame);
+    try {
+      return frame.run();
+    } finally {
+      frames.pop();
+    }
+  }
+
+  private StackTraceElement[] stackTrace(boolean thread) {
+    List<StackTraceElement> trace = new ArrayList<>();
+    if (thread) {
+      trace.add(new StackTraceElement("java.lang.Thread", "getStackTrace", "Thread.java", -1));
+    }
+    for (Frame frame : frames) {
+      trace.add(new StackTraceElement(frame.owner.name.replace('/', '.'), frame.method.name, frame.owner.sourceFile,
+        frame.line));
+    }
+    if (caller != null) {
+      trace.add(caller);
+    }
+    return trace.toArray(new StackTraceElement[0]);
+  }
+
+  private String staticField(FieldInsnNode fin) throws EmulationException {
+    ClassNode cn = classes.tryClassLoad(fin.owner);
+    if (cn == null) {
+      throw unsupported("field of " + fin.owner + " that is not part of the input");
+    }
+    ClassNode declaring = findField(cn, fin.name, fin.desc);
+    if (declaring == null) {
+      throw unsupported("field " + fin.owner + "." + fin.name + " not found");
+    }
+    initialize(declaring);
+    return declaring.name + "." + fin.name;
+  }
+
+  private ClassNode findField(ClassNode cn, String name, String desc) {
+    for (FieldNode f : cn.fields) {
+      if (f.name.equals(name) && f.desc.equals(desc) && Access.isStatic(f.access)) {
+        return cn;
+      }
+    }
+    for (String itf : cn.interfaces) {
+      ClassNode c = classes.tryClassLoad(itf);
+      ClassNode declaring = c == null ? null : findField(c, name, desc);
+      if (declaring != null) {
+        return declaring;
+      }
+    }
+    ClassNode superClass = cn.superName == null ? null : classes.tryClassLoad(cn.superName);
+    return superClass == null ? null : findField(superClass, name, desc);
+  }
+
+  /**
+   * Invoke a method of an allowed JDK class. Arguments and return values are converted between the value
+   * representation of the emulator and the types of the method.
+   */
+  private Object invokeJdk(int opcode, String owner, String name, String desc, Object receiver, Object[] args)
+    throws EmulationException {
+    if (!isPure(owner) || IMPURE_METHODS.contains(name) || (owner.equals("java/lang/Object") &&
+      !name.equals("<init>") && !name.equals("hashCode") && !name.equals("equals") && !name.equals("toString"))) {
+      throw unsupported("method " + owner + "." + name + desc);
+    }
+    if (opcode != INVOKESTATIC && (!isAllowedInstance(receiver) || (receiver != null &&
+      receiver.getClass().isArray()))) {
+      throw unsupported("receiver " + receiver.getClass().getName());
+    }
+    Member member = member(owner, name, desc);
+    if ((opcode == INVOKESTATIC) != Modifier.isStatic(member.getModifiers()) && !(member instanceof Constructor)) {
+      throw unsupported("invocation of " + owner + "." + name + desc);
+    }
+    Type[] types = Type.getArgumentTypes(desc);
+    Object[] params = new Object[args.length];
+    for (int i = 0; i < args.length; i++) {
+      params[i] = fromValue(types[i], args[i]);
+    }
+    try {
+      if (member instanceof Constructor) {
+        return ((Constructor<?>) member).newInstance(params);
+      }
+      return toValue(Type.getReturnType(desc), ((Method) member).invoke(receiver, params));
+    } catch (InvocationTargetException e) {
+      throw new Thrown(e.getCause());
+    } catch (IllegalArgumentException | ReflectiveOperationException e) {
+      throw unsupported("invocation of " + owner + "." + name + desc + " failed: " + e);
+    }
+  }
+
+  private Member member(String owner, String name, String desc) throws EmulationException {
+    String key = owner + '.' + name + desc;
+    Member member = members.get(key);
+    if (member == null) {
+      try {
+        Class<?> type = jdkClass(Type.getObjectType(owner));
+        Type[] types = Type.getArgumentTypes(desc);
+        Class<?>[] params = new Class<?>[types.length];
+        for (int i = 0; i < types.length; i++) {
+          params[i] = jdkClass(types[i]);
+        }
+        member = name.equals("<init>") ? type.getConstructor(params) : type.getMethod(name, params);
+      } catch (ReflectiveOperationException e) {
+        throw unsupported("method " + key + " not found");
+      }
+      members.put(key, member);
+    }
+    return member;
+  }
+
+  /**
+   * @return true if the methods of a JDK class can be invoked, which is the case for the classes above and for
+   * exceptions
+   */
+  private static boolean isPure(String owner) throws EmulationException {
+    return PURE_CLASSES.contains(owner) || (owner.startsWith("java/") &&
+      Throwable.class.isAssignableFrom(jdkClass(Type.getObjectType(owner))));
+  }
+
+  private static boolean isAllowedInstance(Object object) {
+    if (object == null) {
+      // let the invocation throw a NullPointerException
+      return true;
+    }
+    Class<?> type = object.getClass();
+    return type.isArray() || type == String.class || type == StringBuilder.class || type == StringBuffer.class ||
+      type == StackTraceElement.class || (object instanceof Number && type.getClassLoader() == null) ||
+      type == Character.class || type == Boolean.class ||
+      (object instanceof Throwable && type.getClassLoader() == null);
+  }
+
+  /**
+   * @return the class of a JDK type, without loading or initializing anything outside of the bootstrap class loader
+   */
+  private static Class<?> jdkClass(Type type) throws EmulationException {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+        return boolean.class;
+      case Type.CHAR:
+        return char.class;
+      case Type.BYTE:
+        return byte.class;
+      case Type.SHORT:
+        return short.class;
+      case Type.INT:
+        return int.class;
+      case Type.FLOAT:
+        return float.class;
+      case Type.LONG:
+        return long.class;
+      case Type.DOUBLE:
+        return double.class;
+      case Type.VOID:
+        return void.class;
+      default:
+        String name = type.getSort() == Type.ARRAY ? type.getDescriptor().replace('/', '.') :
+          type.getClassName();
+        try {
+          return Class.forName(name, false, null);
+        } catch (ClassNotFoundException e) {
+          throw unsupported("type " + type.getInternalName() + " is not part of the JDK");
+        }
+    }
+  }
+
+  /**
+   * Convert a value to the representation of the emulator, where boolean, byte, char and short are ints.
+   */
+  private static Object toValue(Type type, Object value) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+      case Type.CHAR:
+      case Type.BYTE:
+      case Type.SHORT:
+      case Type.INT:
+        return Casts.toInteger(value);
+      case Type.FLOAT:
+        return ((Number) value).floatValue();
+      case Type.LONG:
+        return ((Number) value).longValue();
+      case Type.DOUBLE:
+        return ((Number) value).doubleValue();
+      default:
+        return value;
+    }
+  }
+
+  private static Object fromValue(Type type, Object value) throws EmulationException {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+        return (Integer) value != 0;
+      case Type.CHAR:
+        return (char) (int) (Integer) value;
+      case Type.BYTE:
+        return (byte) (int) (Integer) value;
+      case Type.SHORT:
+        return (short) (int) (Integer) value;
+      case Type.VOID:
+        return null;
+      case Type.INT:
+      case Type.FLOAT:
+      case Type.LONG:
+      case Type.DOUBLE:
+        return value;
+      default:
+        if (value == CURRENT_THREAD || value instanceof Uninitialized) {
+          throw unsupported("value can't leave the emulator");
+        }
+        return value;
+    }
+  }
+
+  private static Object defaultValue(Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+      case Type.CHAR:
+      case Type.BYTE:
+      case Type.SHORT:
+      case Type.INT:
+        return 0;
+      case Type.FLOAT:
+        return 0f;
+      case Type.LONG:
+        return 0L;
+      case Type.DOUBLE:
+        return 0d;
+      default:
+        return null;
+    }
+  }
+
+  private static Object copyArray(Object array) {
+    int length = Array.getLength(array);
+    Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+    System.arraycopy(array, 0, copy, 0, length);
+    return copy;
+  }
+
+  private static boolean isWide(Object value) {
+    return value instanceof Long || value instanceof Double;
+  }
+
+  private static EmulationException unsupported(String what) {
+    return new EmulationException(EmulationException.Reason.UNSUPPORTED, "Unsupported " + what);
+  }
+
+  /**
+   * An object of a JDK class that was created by NEW, but whose constructor wasn't called yet.
+   */
+  private static final class Uninitialized {
+    final String type;
+
+    Uninitialized(String type) {
+      this.type = type;
+    }
+  }
+
+  /**
+   * An exception thrown by the emulated code, passed on to the frames below until it is caught.
+   */
+  private static final class Thrown extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    final Throwable thrown;
+
+    Thrown(Throwable thrown) {
+      super(null, null, false, false);
+      this.thrown = thrown;
+    }
+  }
+
+  private final class Frame {
+    final ClassNode owner;
+    final MethodNode method;
+    final Object[] locals;
+    final Object[] stack;
+    int sp;
+    int line = -1;
+    Object returnValue;
+
+    Frame(ClassNode owner, MethodNode method, Object[] locals) {
+      this.owner = owner;
+      this.method = method;
+      this.locals = locals;
+      this.stack = new Object[Math.max(method.maxStack, 1) + 1];
+    }
+
+    Object run() throws EmulationException {
+      AbstractInsnNode insn = method.instructions.getFirst();
+      while (true) {
+        if (insn == null) {
+          throw unsupported("end of method reached");
+        }
+        if (--budget < 0) {
+          throw new EmulationException(EmulationException.Reason.BUDGET, "Instruction budget of " + maxInstructions +
+            " used up in " + owner.name + "." + method.name);
+        }
+        AbstractInsnNode next;
+        try {
+          next = step(insn);
+        } catch (Thrown t) {
+          next = handler(insn, t);
+        } catch (RuntimeException e) {
+          if (!INSTRUCTION_EXCEPTIONS.contains(e.getClass())) {
+            throw e;
+          }
+          next = handler(insn, new Thrown(e));
+        }
+        if (next == RETURN_MARKER) {
+          return returnValue;
+        }
+        insn = next;
+      }
+    }
+
+    private AbstractInsnNode handler(AbstractInsnNode insn, Thrown t) throws EmulationException {
+      int index = method.instructions.indexOf(insn);
+      for (TryCatchBlockNode tcb : method.tryCatchBlocks) {
+        if (index < method.instructions.indexOf(tcb.start) || index >= method.instructions.indexOf(tcb.end)) {
+          continue;
+        }
+        if (tcb.type != null) {
+          Class<?> type;
+          try {
+            type = jdkClass(Type.getObjectType(tcb.type));
+          } catch (EmulationException e) {
+            // exceptions of the input can't be thrown by the emulator
+            continue;
+          }
+          if (!type.isInstance(t.thrown)) {
+            continue;
+          }
+        }
+        sp = 0;
+        push(t.thrown);
+        return tcb.handler;
+      }
+      throw t;
+    }
+
+    private void push(Object value) {
+      stack[sp++] = value;
+    }
+
+    private Object pop() {
+      return stack[--sp];
+    }
+
+    private int popInt() {
+      return (Integer) pop();
+    }
+
+    private long popLong() {
+      return (Long) pop();
+    }
+
+    private float popFloat() {
+      return (Float) pop();
+    }
+
+    private double popDouble() {
+      return (Double) pop();
+    }
+
+    private AbstractInsnNode jump(boolean condition, AbstractInsnNode insn) {
+      return condition ? ((JumpInsnNode) insn).label : insn.getNext();
+    }
+
+    private AbstractInsnNode ret(Object value) {
+      returnValue = value;
+      return RETURN_MARKER;
+    }
+
+    private AbstractInsnNode step(AbstractInsnNode insn) throws EmulationException {
+      int op = insn.getOpcode();
+      Object a;
+      Object b;
+      Object c;
+      int i;
+      long l;
+      switch (op) {
+        case -1:
+          if (insn instanceof LineNumberNode) {
+            line = ((LineNumberNode) insn).line;
+          }
+          break;
+        case NOP:
+          break;
+        case ACONST_NULL:
+          push(null);
+          break;
+        case ICONST_M1:
+        case ICONST_0:
+        case ICONST_1:
+        case ICONST_2:
+        case ICONST_3:
+        case ICONST_4:
+        case ICONST_5:
+          push(op - ICONST_0);
+          break;
+        case LCONST_0:
+        case LCONST_1:
+          push((long) (op - LCONST_0));
+          break;
+        case FCONST_0:
+        case FCONST_1:
+        case FCONST_2:
+          push((float) (op - FCONST_0));
+          break;
+        case DCONST_0:
+        case DCONST_1:
+          push((double) (op - DCONST_0));
+          break;
+        case BIPUSH:
+        case SIPUSH:
+          push(((IntInsnNode) insn).operand);
+          break;
+        case LDC:
+          Object cst = ((LdcInsnNode) insn).cst;
+          if (cst instanceof String) {
+            push(((String) cst).intern());
+          } else if (cst instanceof Integer || cst instanceof Long || cst instanceof Float || cst instanceof Double) {
+            push(cst);
+          } else {
+            throw unsupported("constant " + cst);
+          }
+          break;
+        case ILOAD:
+        case LLOAD:
+        case FLOAD:
+        case DLOAD:
+        case ALOAD:
+          push(locals[((VarInsnNode) insn).var]);
+          break;
+        case ISTORE:
+        case FSTORE:
+        case ASTORE:
+          locals[((VarInsnNode) insn).var] = pop();
+          break;
+        case LSTORE:
+        case DSTORE:
+          i = ((VarInsnNode) insn).var;
+          locals[i] = pop();
+          locals[i + 1] = null;
+          break;
+        case IALOAD:
+          i = popInt();
+          push(((int[]) pop())[i]);
+          break;
+        case LALOAD:
+          i = popInt();
+          push(((long[]) pop())[i]);
+          break;
+        case FALOAD:
+          i = popInt();
+          push(((float[]) pop())[i]);
+          break;
+        case DALOAD:
+          i = popInt();
+          push(((double[]) pop())[i]);
+          break;
+        case AALOAD:
+          i = popInt();
+          push(((Object[]) pop())[i]);
+          break;
+        case BALOAD:
+          i = popInt();
+          a = pop();
+          push(a instanceof boolean[] ? (((boolean[]) a)[i] ? 1 : 0) : (int) ((byte[]) a)[i]);
+          break;
+        case CALOAD:
+          i = popInt();
+          push((int) ((char[]) pop())[i]);
+          break;
+        case SALOAD:
+          i = popInt();
+          push((int) ((short[]) pop())[i]);
+          break;
+        case IASTORE:
+          a = pop();
+          i = popInt();
+          ((int[]) pop())[i] = (Integer) a;
+          break;
+        case LASTORE:
+          a = pop();
+          i = popInt();
+          ((long[]) pop())[i] = (Long) a;
+          break;
+        case FASTORE:
+          a = pop();
+          i = popInt();
+          ((float[]) pop())[i] = (Float) a;
+          break;
+        case DASTORE:
+          a = pop();
+          i = popInt();
+          ((double[]) pop())[i] = (Double) a;
+          break;
+        case AASTORE:
+          a = pop();
+          i = popInt();
+          b = pop();
+          if (a == CURRENT_THREAD || a instanceof Uninitialized) {
+            throw unsupported("array element");
+          }
+          ((Object[]) b)[i] = a;
+          break;
+        case BASTORE:
+          a = pop();
+          i = popInt();
+          b = pop();
+          if (b instanceof boolean[]) {
+            ((boolean[]) b)[i] = ((Integer) a & 1) != 0;
+          } else {
+            ((byte[]) b)[i] = (byte) (int) (Integer) a;
+          }
+          break;
+        case CASTORE:
+          a = pop();
+          i = popInt();
+          ((char[]) pop())[i] = (char) (int) (Integer) a;
+          break;
+        case SASTORE:
+          a = pop();
+          i = popInt();
+          ((short[]) pop())[i] = (short) (int) (Integer) a;
+          break;
+        case POP:
+          sp--;
+          break;
+        case POP2:
+          sp -= isWide(stack[sp - 1]) ? 1 : 2;
+          break;
+        case DUP:
+          push(stack[sp - 1]);
+          break;
+        case DUP_X1:
+          a = pop();
+          b = pop();
+          push(a);
+          push(b);
+          push(a);
+          break;
+        case DUP_X2:
+          a = pop();
+          b = pop();
+          if (isWide(b)) {
+            push(a);
+            push(b);
+            push(a);
+          } else {
+            c = pop();
+            push(a);
+            push(c);
+            push(b);
+            push(a);
+          }
+          break;
+        case DUP2:
+          a = stack[sp - 1];
+          if (isWide(a)) {
+            push(a);
+          } else {
+            b = stack[sp - 2];
+            push(b);
+            push(a);
+          }
+          break;
+        case DUP2_X1:
+          a = pop();
+          if (isWide(a)) {
+            b = pop();
+            push(a);
+            push(b);
+            push(a);
+          } else {
+            b = pop();
+            c = pop();
+            push(b);
+            push(a);
+            push(c);
+            push(b);
+            push(a);
+          }
+          break;
+        case DUP2_X2:
+          a = pop();
+          if (isWide(a)) {
+            b = pop();
+            if (isWide(b)) {
+              push(a);
+              push(b);
+              push(a);
+            } else {
+              c = pop();
+              push(a);
+              push(c);
+              push(b);
+              push(a);
+            }
+          } else {
+            b = pop();
+            c = pop();
+            if (isWide(c)) {
+              push(b);
+              push(a);
+              push(c);
+              push(b);
+              push(a);
+            } else {
+              Object d = pop();
+              push(b);
+              push(a);
+              push(d);
+              push(c);
+              push(b);
+              push(a);
+            }
+          }
+          break;
+        case SWAP:
+          a = pop();
+          b = pop();
+          push(a);
+          push(b);
+          break;
+        case IADD:
+          i = popInt();
+          push(popInt() + i);
+          break;
+        case LADD:
+          l = popLong();
+          push(popLong() + l);
+          break;
+        case FADD:
+          a = pop();
+          push(popFloat() + (Float) a);
+          break;
+        case DADD:
+          a = pop();
+          push(popDouble() + (Double) a);
+          break;
+        case ISUB:
+          i = popInt();
+          push(popInt() - i);
+          break;
+        case LSUB:
+          l = popLong();
+          push(popLong() - l);
+          break;
+        case FSUB:
+          a = pop();
+          push(popFloat() - (Float) a);
+          break;
+        case DSUB:
+          a = pop();
+          push(popDouble() - (Double) a);
+          break;
+        case IMUL:
+          i = popInt();
+          push(popInt() * i);
+          break;
+        case LMUL:
+          l = popLong();
+          push(popLong() * l);
+          break;
+        case FMUL:
+          a = pop();
+          push(popFloat() * (Float) a);
+          break;
+        case DMUL:
+          a = pop();
+          push(popDouble() * (Double) a);
+          break;
+        case IDIV:
+          i = popInt();
+          push(popInt() / i);
+          break;
+        case LDIV:
+          l = popLong();
+          push(popLong() / l);
+          break;
+        case FDIV:
+          a = pop();
+          push(popFloat() / (Float) a);
+          break;
+        case DDIV:
+          a = pop();
+          push(popDouble() / (Double) a);
+          break;
+        case IREM:
+          i = popInt();
+          push(popInt() % i);
+          break;
+        case LREM:
+          l = popLong();
+          push(popLong() % l);
+          break;
+        case FREM:
+          a = pop();
+          push(popFloat() % (Float) a);
+          break;
+        case DREM:
+          a = pop();
+          push(popDouble() % (Double) a);
+          break;
+        case INEG:
+          push(-popInt());
+          break;
+        case LNEG:
+          push(-popLong());
+          break;
+        case FNEG:
+          push(-popFloat());
+          break;
+        case DNEG:
+          push(-popDouble());
+          break;
+        case ISHL:
+          i = popInt();
+          push(popInt() << i);
+          break;
+        case LSHL:
+          i = popInt();
+          push(popLong() << i);
+          break;
+        case ISHR:
+          i = popInt();
+          push(popInt() >> i);
+          break;
+        case LSHR:
+          i = popInt();
+          push(popLong() >> i);
+          break;
+        case IUSHR:
+          i = popInt();
+          push(popInt() >>> i);
+          break;
+        case LUSHR:
+          i = popInt();
+          push(popLong() >>> i);
+          break;
+        case IAND:
+          i = popInt();
+          push(popInt() & i);
+          break;
+        case LAND:
+          l = popLong();
+          push(popLong() & l);
+          break;
+        case IOR:
+          i = popInt();
+          push(popInt() | i);
+          break;
+        case LOR:
+          l = popLong();
+          push(popLong() | l);
+          break;
+        case IXOR:
+          i = popInt();
+          push(popInt() ^ i);
+          break;
+        case LXOR:
+          l = popLong();
+          push(popLong() ^ l);
+          break;
+        case IINC:
+          IincInsnNode iinc = (IincInsnNode) insn;
+          locals[iinc.var] = (Integer) locals[iinc.var] + iinc.incr;
+          break;
+        case I2L:
+          push((long) popInt());
+          break;
+        case I2F:
+          push((float) popInt());
+          break;
+        case I2D:
+          push((double) popInt());
+          break;
+        case L2I:
+          push((int) popLong());
+          break;
+        case L2F:
+          push((float) popLong());
+          break;
+        case L2D:
+          push((double) popLong());
+          break;
+        case F2I:
+          push((int) popFloat());
+          break;
+        case F2L:
+          push((long) popFloat());
+          break;
+        case F2D:
+          push((double) popFloat());
+          break;
+        case D2I:
+          push((int) popDouble());
+          break;
+        case D2L:
+          push((long) popDouble());
+          break;
+        case D2F:
+          push((float) popDouble());
+          break;
+        case I2B:
+          push((int) (byte) popInt());
+          break;
+        case I2C:
+          push((int) (char) popInt());
+          break;
+        case I2S:
+          push((int) (short) popInt());
+          break;
+        case LCMP:
+          l = popLong();
+          push(Long.compare(popLong(), l));
+          break;
+        case FCMPL:
+        case FCMPG:
+          float f2 = popFloat();
+          float f1 = popFloat();
+          push(f1 > f2 ? 1 : f1 == f2 ? 0 : f1 < f2 ? -1 : op == FCMPG ? 1 : -1);
+          break;
+        case DCMPL:
+        case DCMPG:
+          double d2 = popDouble();
+          double d1 = popDouble();
+          push(d1 > d2 ? 1 : d1 == d2 ? 0 : d1 < d2 ? -1 : op == DCMPG ? 1 : -1);
+          break;
+        case IFEQ:
+          return jump(popInt() == 0, insn);
+        case IFNE:
+          return jump(popInt() != 0, insn);
+        case IFLT:
+          return jump(popInt() < 0, insn);
+        case IFGE:
+          return jump(popInt() >= 0, insn);
+        case IFGT:
+          return jump(popInt() > 0, insn);
+        case IFLE:
+          return jump(popInt() <= 0, insn);
+        case IF_ICMPEQ:
+          i = popInt();
+          return jump(popInt() == i, insn);
+        case IF_ICMPNE:
+          i = popInt();
+          return jump(popInt() != i, insn);
+        case IF_ICMPLT:
+          i = popInt();
+          return jump(popInt() < i, insn);
+        case IF_ICMPGE:
+          i = popInt();
+          return jump(popInt() >= i, insn);
+        case IF_ICMPGT:
+          i = popInt();
+          return jump(popInt() > i, insn);
+        case IF_ICMPLE:
+          i = popInt();
+          return jump(popInt() <= i, insn);
+        case IF_ACMPEQ:
+          return jump(pop() == pop(), insn);
+        case IF_ACMPNE:
+          return jump(pop() != pop(), insn);
+        case IFNULL:
+          return jump(pop() == null, insn);
+        case IFNONNULL:
+          return jump(pop() != null, insn);
+        case GOTO:
+          return ((JumpInsnNode) insn).label;
+        case TABLESWITCH:
+          TableSwitchInsnNode tsin = (TableSwitchInsnNode) insn;
+          i = popInt();
+          return i < tsin.min || i > tsin.max ? tsin.dflt : tsin.labels.get(i - tsin.min);
+        case LOOKUPSWITCH:
+          LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) insn;
+          i = lsin.keys.indexOf(popInt());
+          return i < 0 ? lsin.dflt : lsin.labels.get(i);
+        case IRETURN:
+        case LRETURN:
+        case FRETURN:
+        case DRETURN:
+        case ARETURN:
+          return ret(pop());
+        case RETURN:
+          return ret(null);
+        case GETSTATIC:
+          push(statics.get(staticField((FieldInsnNode) insn)));
+          break;
+        case PUTSTATIC:
+          a = pop();
+          if (a == CURRENT_THREAD || a instanceof Uninitialized) {
+            throw unsupported("static field value");
+          }
+          statics.put(staticField((FieldInsnNode) insn), a);
+          break;
+        case INVOKEVIRTUAL:
+        case INVOKESPECIAL:
+        case INVOKESTATIC:
+        case INVOKEINTERFACE:
+          invoke((MethodInsnNode) insn);
+          break;
+        case INVOKEDYNAMIC:
+          concat((InvokeDynamicInsnNode) insn);
+          break;
+        case NEW:
+          String type = ((TypeInsnNode) insn).desc;
+          Class<?> clazz = jdkClass(Type.getObjectType(type));
+          if (!isPure(type) || Modifier.isAbstract(clazz.getModifiers())) {
+            throw unsupported("instance of " + type);
+          }
+          push(new Uninitialized(type));
+          break;
+        case NEWARRAY:
+          i = popInt();
+          switch (((IntInsnNode) insn).operand) {
+            case T_BOOLEAN:
+              push(new boolean[i]);
+              break;
+            case T_CHAR:
+              push(new char[i]);
+              break;
+            case T_FLOAT:
+              push(new float[i]);
+              break;
+            case T_DOUBLE:
+              push(new double[i]);
+              break;
+            case T_BYTE:
+              push(new byte[i]);
+              break;
+            case T_SHORT:
+              push(new short[i]);
+              break;
+            case T_INT:
+              push(new int[i]);
+              break;
+            case T_LONG:
+              push(new long[i]);
+              break;
+            default:
+              throw unsupported("array type");
+          }
+          break;
+        case ANEWARRAY:
+          i = popInt();
+          push(Array.newInstance(jdkClass(Type.getObjectType(((TypeInsnNode) insn).desc)), i));
+          break;
+        case MULTIANEWARRAY:
+          MultiANewArrayInsnNode manain = (MultiANewArrayInsnNode) insn;
+          int[] dimensions = new int[manain.dims];
+          for (int d = manain.dims - 1; d >= 0; d--) {
+            dimensions[d] = popInt();
+          }
+          Class<?> component = jdkClass(Type.getType(manain.desc));
+          for (int d = 0; d < manain.dims; d++) {
+            component = component.getComponentType();
+          }
+          push(Array.newInstance(component, dimensions));
+          break;
+        case ARRAYLENGTH:
+          a = pop();
+          if (a == null) {
+            throw new NullPointerException();
+          }
+          push(Array.getLength(a));
+          break;
+        case ATHROW:
+          a = pop();
+          if (a == null) {
+            throw new NullPointerException();
+          }
+          throw new Thrown((Throwable) a);
+        case CHECKCAST:
+          a = stack[sp - 1];
+          if (a != null && !isInstance(((TypeInsnNode) insn).desc, a)) {
+            throw new Thrown(new ClassCastException(a.getClass().getName()));
+          }
+          break;
+        case INSTANCEOF:
+          a = pop();
+          push(a != null && isInstance(((TypeInsnNode) insn).desc, a) ? 1 : 0);
+          break;
+        case MONITORENTER:
+        case MONITOREXIT:
+          if (pop() == null) {
+            throw new NullPointerException();
+          }
+          break;
+        default:
+          throw unsupported("instruction " + op);
+      }
+      return insn.getNext();
+    }
+
+    private boolean isInstance(String type, Object value) throws EmulationException {
+      if (value == CURRENT_THREAD || value instanceof Uninitialized) {
+        throw unsupported("type check");
+      }
+      return jdkClass(Type.getObjectType(type)).isInstance(value);
+    }
+
+    private void invoke(MethodInsnNode min) throws EmulationException {
+      Type[] types = Type.getArgumentTypes(min.desc);
+      Object[] args = new Object[types.length];
+      for (int i = types.length - 1; i >= 0; i--) {
+        args[i] = pop();
+        if (args[i] == CURRENT_THREAD || args[i] instanceof Uninitialized) {
+          throw unsupported("argument");
+        }
+      }
+      if (min.getOpcode() == INVOKESTATIC) {
+        if (classes.tryClassLoad(min.owner) != null) {
+          push(min.desc, invokeStatic(min.owner, min.name, min.desc, args));
+        } else if (min.owner.equals("java/lang/Thread") && min.name.equals("currentThread")) {
+          push(CURRENT_THREAD);
+        } else if (min.owner.equals("java/lang/System") && min.name.equals("arraycopy")) {
+          System.arraycopy(args[0], (Integer) args[1], args[2], (Integer) args[3], (Integer) args[4]);
+        } else {
+          push(min.desc, invokeJdk(INVOKESTATIC, min.owner, min.name, min.desc, null, args));
+        }
+        return;
+      }
+      Object receiver = pop();
+      if (receiver == CURRENT_THREAD) {
+        if (!min.name.equals("getStackTrace")) {
+          throw unsupported("method Thread." + min.name);
+        }
+        push(stackTrace(true));
+      } else if (receiver instanceof Uninitialized) {
+        if (min.getOpcode() != INVOKESPECIAL || !min.name.equals("<init>")) {
+          throw unsupported("use of uninitialized object");
+        }
+        String type = ((Uninitialized) receiver).type;
+        Object object = invokeJdk(INVOKESPECIAL, type, "<init>", min.desc, null, args);
+        if (object instanceof Throwable) {
+          ((Throwable) object).setStackTrace(stackTrace(false));
+        }
+        for (int i = 0; i < sp; i++) {
+          if (stack[i] == receiver) {
+            stack[i] = object;
+          }
+        }
+        for (int i = 0; i < locals.length; i++) {
+          if (locals[i] == receiver) {
+            locals[i] = object;
+          }
+        }
+      } else if (min.owner.startsWith("[")) {
+        if (!min.name.equals("clone") || receiver == null) {
+          throw unsupported("array method " + min.name);
+        }
+        push(copyArray(receiver));
+      } else if (min.getOpcode() == INVOKESPECIAL) {
+        throw unsupported("super call");
+      } else {
+        push(min.desc, invokeJdk(min.getOpcode(), min.owner, min.name, min.desc, receiver, args));
+      }
+    }
+
+    private void push(String desc, Object returnValue) {
+      if (Type.getReturnType(desc).getSort() != Type.VOID) {
+        push(returnValue);
+      }
+    }
+
+    /**
+     * String concatenation compiled by javac 9 and later.
+     */
+    private void concat(InvokeDynamicInsnNode idin) throws EmulationException {
+      Handle bsm = idin.bsm;
+      if (!bsm.getOwner().equals("java/lang/invoke/StringConcatFactory")) {
+        throw unsupported("invokedynamic " + bsm.getOwner() + "." + bsm.getName());
+      }
+      Type[] types = Type.getArgumentTypes(idin.desc);
+      String[] args = new String[types.length];
+      for (int i = types.length - 1; i >= 0; i--) {
+        Object value = pop();
+        if (value == CURRENT_THREAD || value instanceof Uninitialized) {
+          throw unsupported("argument");
+        }
+        switch (types[i].getSort()) {
+          case Type.BOOLEAN:
+            args[i] = String.valueOf((Integer) value != 0);
+            break;
+          case Type.CHAR:
+            args[i] = String.valueOf((char) (int) (Integer) value);
+            break;
+          default:
+            if (value != null && !isAllowedInstance(value)) {
+              throw unsupported("string conversion of " + value.getClass().getName());
+            }
+            args[i] = String.valueOf(value);
+        }
+      }
+      StringBuilder sb = new StringBuilder();
+      if (bsm.getName().equals("makeConcat")) {
+        for (String arg : args) {
+          sb.append(arg);
+        }
+      } else if (bsm.getName().equals("makeConcatWithConstants")) {
+        String recipe = (String) idin.bsmArgs[0];
+        int arg = 0;
+        int constant = 1;
+        for (int i = 0; i < recipe.length(); i++) {
+          char ch = recipe.charAt(i);
+          if (ch == '\1') {
+            sb.append(args[arg++]);
+          } else if (ch == '\2') {
+            sb.append(idin.bsmArgs[constant++]);
+          } else {
+            sb.append(ch);
+          }
+        }
+      } else {
+        throw unsupported("invokedynamic StringConcatFactory." + bsm.getName());
+      }
+      push(sb.toString());
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package me.nov.threadtear.vm;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.function.Predicate;
+
+import me.nov.threadtear.security.VMSecurityManager;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Runs code of the input in this JVM, using a {@link VM} per session. This is the default invoker.
+ */
+public class InProcessInvoker implements SandboxInvoker {
+  @Override
+  public SandboxSession open(IVMReferenceHandler handler, boolean initialize, boolean allowReflection,
+                             Predicate<String> initialized, boolean dummyLoading) {
+    VM vm = initialize ? VM.constructVM(handler) : VM.constructNonInitializingVM(handler);
+    vm.setInitialized(initialized);
+    vm.setDummyLoading(dummyLoading);
+    return new SandboxSession() {
+      @Override
+      public void invoke(Collection<ClassNode> proxies, List<Invocation> invocations) {
+        run(vm, proxies, invocations, allowReflection);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * Run invocations in a VM, also used by {@link SandboxWorker}.
+   */
+  @SuppressWarnings("removal")
+  static void run(VM vm, Collection<ClassNode> proxies, List<Invocation> invocations, boolean allowReflection) {
+    VM target = vm;
+    if (!proxies.isEmpty()) {
+      Map<String, ClassNode> byName = new HashMap<>();
+      proxies.forEach(proxy -> byName.put(proxy.name, proxy));
+      target = VM.constructChildVM(vm, byName::get);
+    }
+    SecurityManager sm = System.getSecurityManager();
+    boolean toggleReflection = allowReflection && sm instanceof VMSecurityManager;
+    try {
+      if (toggleReflection) {
+        // only this session, other sessions may run at the same time
+        ((VMSecurityManager) sm).allowReflection(vm, true);
+        ((VMSecurityManager) sm).allowReflection(target, true);
+      }
+      for (Invocation invocation : invocations) {
+        run(target, invocation);
+      }
+    } finally {
+      if (toggleReflection) {
+        ((VMSecurityManager) sm).allowReflection(vm, false);
+        ((VMSecurityManager) sm).allowReflection(target, false);
+      }
+    }
+  }
+
+  private static void run(VM vm, Invocation invocation) {
+    try {
+      // setting fields can run static initializers, everything is bounded by the runner
+      Object[] values = InvocationRunner.call(invocation.owner, () -> {
+        for (int i = 0; i < invocation.inputFields.size(); i++) {
+          String[] field = invocation.inputFields.get(i);
+          load(vm, field[0]).getDeclaredField(field[1]).set(null, invocation.inputValues.get(i));
+        }
+        Class<?> owner = load(vm, invocation.owner);
+        Object result;
+        if (invocation.method.equals("<init>")) {
+          result = owner.getDeclaredConstructor().newInstance();
+        } else if (invocation.method.equals("<clinit>")) {
+          // static initializers can't be invoked by reflection, they run when the class is initialized
+          result = null;
+          try {
+            Class.forName(owner.getName(), true, owner.getClassLoader());
+          } catch (ExceptionInInitializerError e) {
+            throw new InvocationTargetException(e.getCause());
+          }
+        } else {
+          result = findMethod(owner, invocation.method, invocation.args.length).invoke(null, invocation.args);
+        }
+        if (invocation.reveal && result != null) {
+          result = RevealedHandle.reveal(result);
+        }
+        Object[] outputs = new Object[invocation.outputFields.size() + 1];
+        for (int i = 1; i < outputs.length; i++) {
+          String[] field = invocation.outputFields.get(i - 1);
+          outputs[i] = load(vm, field[0]).getDeclaredField(field[1]).get(null);
+        }
+        outputs[0] = result;
+        return outputs;
+      });
+      // an abandoned invocation must not complete later, so this is done by the caller
+      invocation.complete(values[0], Arrays.copyOfRange(values, 1, values.length), null);
+    } catch (InvocationTargetException e) {
+      invocation.complete(null, null, e.getCause());
+    } catch (Throwable t) {
+      invocation.complete(null, null, t);
+    }
+  }
+
+  private static Class<?> load(VM vm, String name) throws ClassNotFoundException {
+    Class<?> loaded = vm.loadClass(name.replace('/', '.'), true);
+    if (loaded == null) {
+      throw new ClassNotFoundException(name);
+    }
+    return loaded;
+  }
+
+  private static Method findMethod(Class<?> owner, String name, int argCount) throws NoSuchMethodException {
+    for (Method method : owner.getMethods()) {
+      if (method.getName().equals(name) && method.getParameterCount() == argCount) {
+        return method;
+      }
+    }
+    throw new NoSuchMethodException(owner.getName() + "." + name);
+  }
+}
@@ -0,0 +1,93 @@
+package me.nov.threadtear.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A call of a static method, or of a constructor without arguments, in a {@link SandboxSession}. Static fields can
+ * be set before the call and read after it, which is how proxies usually pass values. The method is found by its
+ * name only, like proxies created by {@link Sandbox#createMethodProxy} are named after the method they replace.
+ * <p>
+ * Arguments, field values and results are copied when the invocation runs in another process, they have to be
+ * serializable. Exceptions are transferred as {@link SandboxException}s.
+ */
+public final class Invocation {
+  final String owner;
+  final String method;
+  final Object[] args;
+  final List<String[]> inputFields = new ArrayList<>(2);
+  final List<Object> inputValues = new ArrayList<>(2);
+  final List<String[]> outputFields = new ArrayList<>(2);
+  boolean reveal;
+
+  private Object result;
+  private Object[] outputs;
+  private Throwable error;
+
+  /**
+   * @param owner  internal name of the class declaring the method
+   * @param method name of the method, <code>&lt;init&gt;</code> to create a new instance
+   */
+  public Invocation(String owner, String method, Object... args) {
+    this.owner = owner;
+    this.method = method;
+    this.args = args;
+  }
+
+  /**
+   * Set a static field before the method is called. Setting a field initializes its class.
+   */
+  public Invocation set(String owner, String field, Object value) {
+    inputFields.add(new String[]{owner, field});
+    inputValues.add(value);
+    return this;
+  }
+
+  /**
+   * Read a static field after the method was called, see {@link #getOutput(int)}.
+   */
+  public Invocation read(String owner, String field) {
+    outputFields.add(new String[]{owner, field});
+    return this;
+  }
+
+  /**
+   * Return the {@link RevealedHandle} of the method handle or call site the method returns, instead of the handle.
+   */
+  public Invocation revealHandle() {
+    reveal = true;
+    return this;
+  }
+
+  void complete(Object result, Object[] outputs, Throwable error) {
+    this.result = result;
+    this.outputs = outputs;
+    this.error = error;
+  }
+
+  /**
+   * @return the returned value, or the created instance for constructors
+   */
+  public Object getResult() {
+    return result;
+  }
+
+  /**
+   * @param index index of the field in the order {@link #read} was called
+   * @return the value of the field after the call
+   */
+  public Object getOutput(int index) {
+    return outputs[index];
+  }
+
+  /**
+   * @return the exception thrown while setting the fields, calling the method or reading the fields, or null
+   */
+  public Throwable getError() {
+    return error;
+  }
+
+  public boolean failed() {
+    return error != null;
+  }
+}
@@ -0,0 +1,208 @@
+package me.nov.threadtear.vm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs invocations of code of the input on managed threads, with a wall-clock and a CPU time budget. If an
+ * invocation takes longer, its thread is interrupted and, if that doesn't end it, stopped. Threads that can't be
+ * stopped either are abandoned at minimum priority, the caller continues in any case.
+ * <p>
+ * Timeouts are counted per class, {@link me.nov.threadtear.ThreadtearCore} logs them at the end of a run.
+ */
+public final class InvocationRunner {
+  private static final long POLL_MILLIS = 50;
+  private static final long GRACE_MILLIS = 250;
+  private static final int STOP_ATTEMPTS = 8;
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+  private static final AtomicInteger threadCount = new AtomicInteger();
+  private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "Sandbox invocation " + threadCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static volatile long wallClockMillis = 15_000;
+  private static volatile long cpuTimeMillis = 10_000;
+
+  private static final Map<String, LongAdder> timeouts = new ConcurrentHashMap<>();
+  private static final LongAdder abandoned = new LongAdder();
+
+  private InvocationRunner() {
+  }
+
+  /**
+   * @param wallClockMillis maximum time an invocation may take, 0 for no limit
+   * @param cpuTimeMillis   maximum CPU time an invocation may use, 0 for no limit. Ignored if the JVM can't measure
+   *                        the CPU time of threads.
+   */
+  public static void setTimeouts(long wallClockMillis, long cpuTimeMillis) {
+    if (wallClockMillis < 0 || cpuTimeMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    InvocationRunner.wallClockMillis = wallClockMillis;
+    InvocationRunner.cpuTimeMillis = cpuTimeMillis;
+  }
+
+  public static long getWallClockMillis() {
+    return wallClockMillis;
+  }
+
+  public static long getCpuTimeMillis() {
+    return cpuTimeMillis;
+  }
+
+  /**
+   * Run an invocation and wait for it. Exceptions thrown by the invocation are thrown unchanged.
+   *
+   * @param className the class the invocation is made for, timeouts are counted by it
+   * @throws TimeoutException if the invocation used up its budget
+   */
+  public static <T> T call(String className, Callable<T> invocation) throws Exception {
+    Task<T> task = new Task<>(invocation);
+    Future<T> future = executor.submit(task);
+    long wallClock = wallClockMillis;
+    long cpuTime = THREAD_MX_BEAN.isThreadCpuTimeSupported() ? cpuTimeMillis : 0;
+    long start = System.nanoTime();
+    while (true) {
+      try {
+        return future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw e;
+      } catch (InterruptedException e) {
+        terminate(task, future);
+        throw e;
+      } catch (TimeoutException e) {
+        String overrun = null;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (wallClock > 0 && elapsed > wallClock) {
+          overrun = elapsed + " ms wall-clock time";
+        } else if (cpuTime > 0 && task.cpuTimeMillis() > cpuTime) {
+          overrun = task.cpuTimeMillis() + " ms CPU time";
+        }
+        if (overrun != null) {
+          timeouts.computeIfAbsent(className, k -> new LongAdder()).increment();
+          terminate(task, future);
+          throw new TimeoutException("Invocation in " + className + " timed out after " + overrun);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings({"deprecation", "removal"})
+  private static void terminate(Task<?> task, Future<?> future) {
+    future.cancel(true);
+    if (task.awaitDone(GRACE_MILLIS)) {
+      return;
+    }
+    // code of the input can catch ThreadDeath, e.g. a proxy that loops over calls, so try more than once
+    for (int attempt = 0; attempt < STOP_ATTEMPTS; attempt++) {
+      synchronized (task) {
+        if (task.done) {
+          return;
+        }
+        try {
+          task.thread.stop();
+        } catch (UnsupportedOperationException | SecurityException e) {
+          // newer JVMs can't stop threads
+          break;
+        }
+      }
+      if (task.awaitDone(GRACE_MILLIS)) {
+        return;
+      }
+    }
+    abandoned.increment();
+    task.thread.setPriority(Thread.MIN_PRIORITY);
+  }
+
+  /**
+   * @return the number of timed out invocations per class since the last reset, most timeouts first
+   */
+  public static Map<String, Long> getTimeouts() {
+    Map<String, Long> sorted = new LinkedHashMap<>();
+    timeouts.entrySet().stream()
+      .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+      .forEach(e -> sorted.put(e.getKey(), e.getValue().sum()));
+    return sorted;
+  }
+
+  public static long getTimeoutCount() {
+    return timeouts.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  /**
+   * @return the number of threads that were still running after a timeout and had to be abandoned
+   */
+  public static long getAbandonedCount() {
+    return abandoned.sum();
+  }
+
+  public static void resetCounters() {
+    timeouts.clear();
+    abandoned.reset();
+  }
+
+  private static final class Task<T> implements Callable<T> {
+    private final Callable<T> invocation;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile Thread thread;
+    private volatile long cpuStart;
+    private boolean done;
+
+    Task(Callable<T> invocation) {
+      this.invocation = invocation;
+    }
+
+    @Override
+    public T call() throws Exception {
+      cpuStart = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+      thread = Thread.currentThread();
+      // the thread may have been abandoned before
+      thread.setPriority(Thread.NORM_PRIORITY);
+      try {
+        return invocation.call();
+      } finally {
+        synchronized (this) {
+          done = true;
+        }
+        finished.countDown();
+      }
+    }
+
+    long cpuTimeMillis() {
+      Thread t = thread;
+      if (t == null) {
+        return 0;
+      }
+      long cpu = THREAD_MX_BEAN.getThreadCpuTime(t.getId());
+      return cpu < 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(cpu - cpuStart);
+    }
+
+    /**
+     * @return true if the task ended, or never started
+     */
+    boolean awaitDone(long millis) {
+      if (thread == null) {
+        return true;
+      }
+      try {
+        return finished.await(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+}
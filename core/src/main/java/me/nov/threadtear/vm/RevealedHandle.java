@@ -0,0 +1,75 @@
+package me.nov.threadtear.vm;
+
+import java.io.Serializable;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleInfo;
+
+import me.nov.threadtear.util.reflection.DynamicReflection;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+/**
+ * The member a method handle points to. Handles only exist in the VM that created them, invocations that return a
+ * handle or a call site can reveal it instead, see {@link Invocation#revealHandle()}. Revealed handles can be
+ * transferred from worker processes.
+ */
+public final class RevealedHandle implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final int referenceKind;
+  private final String owner;
+  private final String name;
+  private final String methodDesc;
+  private final String handleDesc;
+
+  private RevealedHandle(int referenceKind, String owner, String name, String methodDesc, String handleDesc) {
+    this.referenceKind = referenceKind;
+    this.owner = owner;
+    this.name = name;
+    this.methodDesc = methodDesc;
+    this.handleDesc = handleDesc;
+  }
+
+  /**
+   * @param value a method handle or a call site
+   */
+  static RevealedHandle reveal(Object value) throws ReflectiveOperationException {
+    MethodHandle handle = value instanceof CallSite ? ((CallSite) value).getTarget() : (MethodHandle) value;
+    MethodHandleInfo info = DynamicReflection.revealMethodInfo(handle);
+    return new RevealedHandle(info.getReferenceKind(), info.getDeclaringClass().getName().replace('.', '/'),
+      info.getName(), info.getMethodType().toMethodDescriptorString(), handle.type().toMethodDescriptorString());
+  }
+
+  /**
+   * @return the instruction that accesses the member directly
+   */
+  public AbstractInsnNode toInstruction() {
+    return DynamicReflection.getInstruction(referenceKind, owner, name, methodDesc);
+  }
+
+  /**
+   * @return see {@link MethodHandleInfo#getReferenceKind()}
+   */
+  public int getReferenceKind() {
+    return referenceKind;
+  }
+
+  /**
+   * @return the descriptor of the member, field accesses are treated as methods
+   */
+  public String getMethodDesc() {
+    return methodDesc;
+  }
+
+  /**
+   * @return the descriptor of the handle itself, which can take more arguments than the member
+   */
+  public String getHandleDesc() {
+    return handleDesc;
+  }
+
+  @Override
+  public String toString() {
+    return owner + '.' + name + methodDesc;
+  }
+}
@@ -1,16 +1,31 @@
 package me.nov.threadtear.vm;
 
+import java.util.Objects;
+import java.util.function.BiPredicate;
+
+import me.nov.threadtear.util.asm.Copier;
 import me.nov.threadtear.util.asm.Instructions;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
-import java.util.Map;
-import java.util.stream.Collectors;
-
 public final class Sandbox implements Opcodes {
+  private static volatile SandboxInvoker invoker = new InProcessInvoker();
+
   private Sandbox() {
   }
 
+  /**
+   * @return the invoker executions use to run code of the input, in process by default
+   */
+  public static SandboxInvoker getInvoker() {
+    return invoker;
+  }
+
+  public static void setInvoker(SandboxInvoker invoker) {
+    Sandbox.invoker = Objects.requireNonNull(invoker);
+  }
+
   public static MethodNode createMethodProxy(InsnList code, String name, String desc) {
     boolean isConstructor = name.equals("<init>");
     MethodNode proxy = new MethodNode(isConstructor ? ACC_PUBLIC : ACC_PUBLIC | ACC_STATIC, name, desc, null, null);
@@ -30,6 +45,27 @@ public final class Sandbox implements Opcodes {
     return list;
   }
 
+  /**
+   * Push the trusted lookup, which has access to all members, like
+   * {@link me.nov.threadtear.util.reflection.DynamicReflection#getTrustedLookup()}. Proxies pass it to bootstrap
+   * methods, the session has to allow reflection.
+   */
+  public static InsnList getTrustedLookup() {
+    InsnList list = new InsnList();
+    list.add(new LdcInsnNode(Type.getObjectType("java/lang/invoke/MethodHandles$Lookup")));
+    list.add(new LdcInsnNode("IMPL_LOOKUP"));
+    list.add(new MethodInsnNode(INVOKEVIRTUAL, "java/lang/Class", "getDeclaredField",
+      "(Ljava/lang/String;)Ljava/lang/reflect/Field;"));
+    list.add(new InsnNode(DUP));
+    list.add(new InsnNode(ICONST_1));
+    list.add(new MethodInsnNode(INVOKEVIRTUAL, "java/lang/reflect/Field", "setAccessible", "(Z)V"));
+    list.add(new InsnNode(ACONST_NULL));
+    list.add(new MethodInsnNode(INVOKEVIRTUAL, "java/lang/reflect/Field", "get",
+      "(Ljava/lang/Object;)Ljava/lang/Object;"));
+    list.add(new TypeInsnNode(CHECKCAST, "java/lang/invoke/MethodHandles$Lookup"));
+    return list;
+  }
+
   public static ClassNode createClassProxy(String name) {
     ClassNode proxy = new ClassNode();
     proxy.access = ACC_PUBLIC;
@@ -40,27 +76,25 @@ public final class Sandbox implements Opcodes {
   }
 
   public static MethodNode copyMethod(MethodNode original) {
-    MethodNode mn = new MethodNode(original.access, original.name, original.desc, original.signature,
-      original.exceptions.toArray(new String[0]));
-    InsnList copy = new InsnList();
-    Map<LabelNode, LabelNode> labels = Instructions.cloneLabels(original.instructions);
-    for (AbstractInsnNode ain : original.instructions) {
-      copy.add(ain.clone(labels));
-    }
-    if (original.tryCatchBlocks != null)
-      mn.tryCatchBlocks = original.tryCatchBlocks.stream()
-        .map(tcb -> new TryCatchBlockNode(tcb.start, tcb.end, tcb.handler, tcb.type))
-        .collect(Collectors.toList());
-    if (original.localVariables != null)
-      mn.localVariables = original.localVariables.stream()
-        .map(lv -> new LocalVariableNode(lv.name, lv.desc, lv.signature, lv.start, lv.end, lv.index))
-        .collect(Collectors.toList());
-    Instructions.updateInstructions(mn, labels, copy);
+    MethodNode mn = Copier.copy(original);
     mn.maxStack = 1337;
     mn.maxLocals = 1337;
     return mn;
   }
 
+  /**
+   * Copy a class and replace the method calls and field accesses that match the predicate by default values, like
+   * {@link VM#explicitlyPreload(ClassNode, boolean, BiPredicate)} does. Handlers of sessions return such copies for
+   * decryption classes, so their code can run without the rest of the input.
+   *
+   * @param predicate tests the owner and descriptor of calls and field accesses
+   */
+  public static ClassNode isolatedCopy(ClassNode cn, BiPredicate<String, String> predicate) {
+    ClassNode copy = Copier.copy(cn);
+    copy.methods.forEach(m -> Instructions.isolateCallsThatMatch(m, predicate, predicate));
+    return copy;
+  }
+
   public static ClassNode fullClassProxy(ClassNode classNode) {
     return fullClassProxy(classNode, false);
   }
@@ -0,0 +1,29 @@
+package me.nov.threadtear.vm;
+
+/**
+ * An exception thrown in a worker process. Exceptions of the input can't be loaded outside of the worker, so only
+ * their description and stack trace are transferred.
+ */
+public class SandboxException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  private final String type;
+
+  public SandboxException(String message) {
+    super(message);
+    this.type = null;
+  }
+
+  SandboxException(Throwable original) {
+    super(original.toString(), original.getCause() == null || original.getCause() == original ? null :
+      new SandboxException(original.getCause()));
+    setStackTrace(original.getStackTrace());
+    this.type = original.getClass().getName();
+  }
+
+  /**
+   * @return true if the exception is of the type, or was transferred from an exception of exactly that type
+   */
+  public static boolean isType(Throwable t, Class<? extends Throwable> type) {
+    return type.isInstance(t) || t instanceof SandboxException && type.getName().equals(((SandboxException) t).type);
+  }
+}
@@ -0,0 +1,41 @@
+package me.nov.threadtear.vm;
+
+import java.util.function.Predicate;
+
+/**
+ * Decides where code of the input is run. Executions open sessions through {@link Sandbox#getInvoker()}, so they
+ * work the same way whether code runs in this JVM or in worker processes.
+ *
+ * @see InProcessInvoker
+ * @see WorkerPoolInvoker
+ */
+public interface SandboxInvoker {
+  /**
+   * @param handler         supplies the classes of the session VM
+   * @param initialize      false to remove static initializers and super classes, like
+   *                        {@link VM#constructNonInitializingVM}
+   * @param allowReflection allow loaded classes to use reflection while invoking
+   */
+  default SandboxSession open(IVMReferenceHandler handler, boolean initialize, boolean allowReflection) {
+    return open(handler, initialize, allowReflection, name -> false, false);
+  }
+
+  /**
+   * @param handler         supplies the classes of the session VM
+   * @param initialize      false to remove static initializers and super classes, like
+   *                        {@link VM#constructNonInitializingVM}
+   * @param allowReflection allow loaded classes to use reflection while invoking
+   * @param initialized     internal names of classes that keep their static initializer and super classes even if
+   *                        <code>initialize</code> is false, see {@link VM#setInitialized}
+   * @param dummyLoading    define empty classes for names the handler has no class for, see
+   *                        {@link VM#setDummyLoading}
+   */
+  SandboxSession open(IVMReferenceHandler handler, boolean initialize, boolean allowReflection,
+                      Predicate<String> initialized, boolean dummyLoading);
+
+  /**
+   * Release all resources of the invoker, sessions that are still open fail afterwards.
+   */
+  default void shutdown() {
+  }
+}
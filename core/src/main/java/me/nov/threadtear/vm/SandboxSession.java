@@ -0,0 +1,23 @@
+package me.nov.threadtear.vm;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Runs invocations in a VM that is kept until the session is closed, so classes loaded by the handler are only
+ * initialized once. Obtained from a {@link SandboxInvoker}.
+ */
+public interface SandboxSession extends AutoCloseable {
+  /**
+   * Run the invocations in order. The results are stored in the invocations, failed invocations don't affect the
+   * others.
+   *
+   * @param proxies classes that are only defined for these invocations, by a new child VM of the session
+   */
+  void invoke(Collection<ClassNode> proxies, List<Invocation> invocations);
+
+  @Override
+  void close();
+}
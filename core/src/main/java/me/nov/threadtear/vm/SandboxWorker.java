@@ -0,0 +1,262 @@
+package me.nov.threadtear.vm;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.nov.threadtear.io.Conversion;
+import me.nov.threadtear.security.VMSecurityManager;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Main class of the worker processes started by {@link WorkerPoolInvoker}. Requests are read from stdin and answered
+ * on stdout, output of the input is redirected to stderr. Classes of the session VM are requested from the parent
+ * process when they are loaded.
+ * <p>
+ * Every message starts with its type. Values are serialized, exceptions are replaced by {@link SandboxException}s
+ * and only JDK classes can be deserialized.
+ */
+public final class SandboxWorker {
+  static final int EXIT = 0;
+  /**
+   * parent: initialize, allowReflection, dummyLoading, wall-clock and CPU time budget of an invocation
+   */
+  static final int OPEN = 1;
+  /**
+   * parent: proxies, invocations
+   */
+  static final int INVOKE = 2;
+  /**
+   * worker: name, parent: class bytes or null, whether the class keeps its initializer
+   */
+  static final int CLASS = 3;
+  static final int CLOSE = 4;
+  /**
+   * worker: result, outputs or error of every invocation
+   */
+  static final int RESULTS = 5;
+
+  private static final ObjectInputFilter FILTER = info -> {
+    Class<?> type = info.serialClass();
+    while (type != null && type.isArray()) {
+      type = type.getComponentType();
+    }
+    if (type == null || type.isPrimitive() || type == SandboxException.class || type == RevealedHandle.class ||
+      type.getName().startsWith("java.")) {
+      return ObjectInputFilter.Status.ALLOWED;
+    }
+    return ObjectInputFilter.Status.REJECTED;
+  };
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private VM vm;
+  private boolean allowReflection;
+  /**
+   * classes of the session that keep their static initializer, as decided by the parent
+   */
+  private Set<String> initialized;
+  /**
+   * true while invocations run, only then the parent answers class requests. Guarded by this.
+   */
+  private boolean invoking;
+
+  private SandboxWorker(DataInputStream in, DataOutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  @SuppressWarnings("removal")
+  public static void main(String[] args) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);
+    System.setIn(new ByteArrayInputStream(new byte[0]));
+    try {
+      System.setSecurityManager(new VMSecurityManager());
+    } catch (UnsupportedOperationException e) {
+      System.err.println("Sandbox worker runs without security manager");
+    }
+    new SandboxWorker(in, out).serve();
+  }
+
+  private void serve() throws IOException {
+    while (true) {
+      int type = in.read();
+      switch (type) {
+        case -1:
+        case EXIT:
+          return;
+        case OPEN:
+          boolean initialize = in.readBoolean();
+          allowReflection = in.readBoolean();
+          boolean dummyLoading = in.readBoolean();
+          InvocationRunner.setTimeouts(in.readLong(), in.readLong());
+          vm = initialize ? VM.constructVM(this::requestClass) : VM.constructNonInitializingVM(this::requestClass);
+          initialized = ConcurrentHashMap.newKeySet();
+          vm.setInitialized(initialized::contains);
+          vm.setDummyLoading(dummyLoading);
+          break;
+        case INVOKE:
+          invoke();
+          break;
+        case CLOSE:
+          vm = null;
+          break;
+        default:
+          throw new IOException("Unexpected message " + type);
+      }
+    }
+  }
+
+  private void invoke() throws IOException {
+    List<ClassNode> proxies = new ArrayList<>();
+    for (int i = in.readInt(); i > 0; i--) {
+      proxies.add(Conversion.toNode(readBytes(in)));
+    }
+    List<Invocation> invocations = new ArrayList<>();
+    for (int i = in.readInt(); i > 0; i--) {
+      Invocation invocation = new Invocation(in.readUTF(), in.readUTF(), (Object[]) readValue(in));
+      invocation.reveal = in.readBoolean();
+      for (int j = in.readInt(); j > 0; j--) {
+        invocation.set(in.readUTF(), in.readUTF(), readValue(in));
+      }
+      for (int j = in.readInt(); j > 0; j--) {
+        invocation.read(in.readUTF(), in.readUTF());
+      }
+      invocations.add(invocation);
+    }
+    if (vm == null) {
+      throw new IOException("No open session");
+    }
+    synchronized (this) {
+      invoking = true;
+    }
+    try {
+      InProcessInvoker.run(vm, proxies, invocations, allowReflection);
+    } finally {
+      synchronized (this) {
+        invoking = false;
+      }
+    }
+    synchronized (this) {
+      out.writeByte(RESULTS);
+      for (Invocation invocation : invocations) {
+        writeResult(invocation);
+      }
+      out.flush();
+    }
+  }
+
+  private void writeResult(Invocation invocation) throws IOException {
+    if (!invocation.failed()) {
+      try {
+        byte[] result = encode(invocation.getResult());
+        byte[][] outputs = new byte[invocation.outputFields.size()][];
+        for (int i = 0; i < outputs.length; i++) {
+          outputs[i] = encode(invocation.getOutput(i));
+        }
+        out.writeBoolean(true);
+        writeBytes(out, result);
+        out.writeInt(outputs.length);
+        for (byte[] output : outputs) {
+          writeBytes(out, output);
+        }
+        return;
+      } catch (IOException e) {
+        invocation.complete(null, null, new SandboxException("Result can't be transferred: " + e));
+      }
+    }
+    out.writeBoolean(false);
+    writeBytes(out, encode(invocation.getError()));
+  }
+
+  /**
+   * Called by the VM, possibly by threads started by the input. After the results are sent, the input stream belongs
+   * to {@link #serve()} again, so later requests are rejected.
+   */
+  private synchronized ClassNode requestClass(String name) {
+    if (!invoking) {
+      throw new IllegalStateException("Class " + name + " requested outside of an invocation");
+    }
+    try {
+      out.writeByte(CLASS);
+      out.writeUTF(name);
+      out.flush();
+      if (in.read() != CLASS) {
+        throw new IOException("Expected class " + name);
+      }
+      byte[] bytes = readBytes(in);
+      if (in.readBoolean()) {
+        initialized.add(name);
+      }
+      return bytes == null ? null : Conversion.toNode(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new TransferOutputStream(bytes)) {
+      oos.writeObject(value);
+    }
+    return bytes.toByteArray();
+  }
+
+  static Object decode(byte[] bytes) throws IOException {
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      ois.setObjectInputFilter(FILTER);
+      return ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  static void writeValue(DataOutputStream out, Object value) throws IOException {
+    writeBytes(out, encode(value));
+  }
+
+  static Object readValue(DataInputStream in) throws IOException {
+    return decode(readBytes(in));
+  }
+
+  /**
+   * @param bytes the bytes, or null
+   */
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static final class TransferOutputStream extends ObjectOutputStream {
+    TransferOutputStream(OutputStream out) throws IOException {
+      super(out);
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) {
+      if (obj instanceof Throwable && !(obj instanceof SandboxException)) {
+        return new SandboxException((Throwable) obj);
+      }
+      return obj;
+    }
+  }
+}
@@ -3,8 +3,11 @@ package me.nov.threadtear.vm;
 import me.nov.threadtear.ThreadtearCore;
 import me.nov.threadtear.io.Conversion;
 import me.nov.threadtear.logging.LogWrapper;
+import me.nov.threadtear.security.CallSiteGuard;
 import me.nov.threadtear.util.asm.Access;
+import me.nov.threadtear.util.asm.Copier;
 import me.nov.threadtear.util.asm.Instructions;
+import me.nov.threadtear.util.asm.ModificationStamp;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InsnNode;
@@ -13,22 +16,59 @@ import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
+/**
+ * Loads classes of the input to run their code. VMs can be chained: a child VM defines the classes of its own
+ * handler, all other classes are loaded by its parent. That way classes that are expensive to load, like decryption
+ * classes, can be shared by a single VM, while small proxy classes are defined by a new child VM for every
+ * invocation. A parent keeps no reference to its children, so the proxies of a child VM are unloaded together with
+ * it once the invocation is done.
+ * <p>
+ * The bytecode a class is defined from is cached for the run, so VMs that load the same class don't copy and
+ * transform it again. As executions modify class nodes in place, the cache has to be cleared after every execution
+ * using {@link #clearConversionCache()}.
+ */
 public class VM extends ClassLoader implements Opcodes {
   public static final String RT_REGEX = "((?:com\\.(?:oracle|sun)|j(?:avax?|dk)|sun)\\.).*";
   public static final String threadtearPkg = ThreadtearCore.class.getPackage().getName();
+  private static final Pattern RT_PATTERN = Pattern.compile(RT_REGEX);
   public Map<String, Class<?>> loaded = new HashMap<>();
+  /**
+   * names the handler has no class for, so it isn't asked again
+   */
+  private final Set<String> unresolved = new HashSet<>();
   public boolean noInitialization;
   private IVMReferenceHandler handler;
   private boolean dummyLoading;
+  private Predicate<String> initialized = name -> false;
+
+  private static final LongAdder constructed = new LongAdder();
+  private static final LongAdder definedClasses = new LongAdder();
+  private static final LongAdder conversionHits = new LongAdder();
+  private static final LongAdder conversionMisses = new LongAdder();
+  private static final LongAdder skippedLookups = new LongAdder();
+  /**
+   * converted bytecode by the class node it was converted from. Weak keys, so proxy nodes of finished invocations
+   * don't stay in memory. Conversions are only used while the {@link ModificationStamp} of the node is unchanged.
+   */
+  private static final Map<ClassNode, Map<ConversionKey, Converted>> conversions = new WeakHashMap<>();
+  private static final Method DEFINE_CLASS_0 = findDefineClass0();
 
   private VM(IVMReferenceHandler handler, ClassLoader parent, boolean clinit) {
     super(parent);
     this.handler = handler;
     this.noInitialization = clinit;
     this.dummyLoading = false;
+    constructed.increment();
   }
 
   public static VM constructVM(IVMReferenceHandler ivm) {
@@ -39,24 +79,82 @@ public class VM extends ClassLoader implements Opcodes {
     return new VM(ivm, ClassLoader.getSystemClassLoader(), true);
   }
 
+  /**
+   * Construct a VM that only defines the classes returned by its handler, all other classes are loaded by the
+   * parent. Initialization is handled the same way as by the parent.
+   */
+  public static VM constructChildVM(VM parent, IVMReferenceHandler ivm) {
+    return new VM(ivm, parent, parent.noInitialization);
+  }
+
+  /**
+   * @return the number of VMs constructed since the last reset
+   */
+  public static long getConstructedCount() {
+    return constructed.sum();
+  }
+
+  /**
+   * @return the number of classes defined by all VMs since the last reset
+   */
+  public static long getDefinedClassCount() {
+    return definedClasses.sum();
+  }
+
+  /**
+   * @return the number of classes whose converted bytecode was taken from the cache since the last reset
+   */
+  public static long getConversionHits() {
+    return conversionHits.sum();
+  }
+
+  public static long getConversionMisses() {
+    return conversionMisses.sum();
+  }
+
+  /**
+   * @return the number of handler lookups skipped because the handler had no class for the name before
+   */
+  public static long getSkippedLookups() {
+    return skippedLookups.sum();
+  }
+
+  public static void resetCounters() {
+    constructed.reset();
+    definedClasses.reset();
+    conversionHits.reset();
+    conversionMisses.reset();
+    skippedLookups.reset();
+  }
+
+  /**
+   * Drop all converted bytecode. Conversions of modified nodes are not used anyway, this only frees memory.
+   */
+  public static void clearConversionCache() {
+    synchronized (conversions) {
+      conversions.clear();
+    }
+  }
+
   private Class<?> bytesToClass(String name, byte[] bytes) {
     if (loaded.containsKey(name))
       throw new RuntimeException("class " + name + " is already defined");
     if (isForbiddenName(name))
       throw new RuntimeException(name + " is not an allowed class name");
-    try {
-      Method define = ClassLoader.class
-        .getDeclaredMethod("defineClass0", String.class, byte[].class, int.class, int.class,
-          ProtectionDomain.class);
-      define.setAccessible(true);
-      Class<?> c = (Class<?>) define.invoke(this, name, bytes, 0, bytes.length, null);
-      resolveClass(c);
-      return c;
-    } catch (Exception e) {
+    if (DEFINE_CLASS_0 != null) {
+      try {
+        Class<?> c = (Class<?>) DEFINE_CLASS_0.invoke(this, name, bytes, 0, bytes.length, null);
+        resolveClass(c);
+        definedClasses.increment();
+        return c;
+      } catch (Exception e) {
+        // fall back to the checked method
+      }
     }
     try {
       Class<?> c = defineClass(name, bytes, 0, bytes.length);
       resolveClass(c);
+      definedClasses.increment();
       return c;
     } catch (Throwable t) {
       LogWrapper.logger.error("Failed to resolve class using defineClass", t);
@@ -64,8 +162,25 @@ public class VM extends ClassLoader implements Opcodes {
     }
   }
 
+  /**
+   * Older JVMs have an unchecked <code>defineClass0</code>, newer ones only allow the regular
+   * {@link #defineClass(String, byte[], int, int)}. The method is looked up once, instead of failing the lookup for
+   * every defined class.
+   */
+  private static Method findDefineClass0() {
+    try {
+      Method define = ClassLoader.class
+        .getDeclaredMethod("defineClass0", String.class, byte[].class, int.class, int.class,
+          ProtectionDomain.class);
+      define.setAccessible(true);
+      return define;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
   private boolean isForbiddenName(String name) {
-    return name.startsWith(threadtearPkg) || name.matches(RT_REGEX);
+    return name.startsWith(threadtearPkg) || RT_PATTERN.matcher(name).matches();
   }
 
   @Override
@@ -79,11 +194,23 @@ public class VM extends ClassLoader implements Opcodes {
     if (loaded.containsKey(name)) {
       return loaded.get(name);
     }
-    if (name.matches(RT_REGEX)) {
+    if (RT_PATTERN.matcher(name).matches()) {
       return super.loadClass(name, resolve);
     }
+    ClassNode node = null;
+    if (unresolved.contains(name)) {
+      skippedLookups.increment();
+    } else {
+      node = handler.tryClassLoad(name.replace('.', '/'));
+      if (node == null) {
+        unresolved.add(name);
+      }
+    }
+    if (node == null && getParent() instanceof VM) {
+      return ((VM) getParent()).loadClass(name, resolve);
+    }
     // unloaded class, convert ClassNode to bytes
-    byte[] clazz = convert(name, handler.tryClassLoad(name.replace('.', '/')), noInitialization, null);
+    byte[] clazz = cachedConvert(name, node, noInitialization && !initialized.test(name.replace('.', '/')), null);
     if (clazz == null) {
       return null;
     }
@@ -92,6 +219,33 @@ public class VM extends ClassLoader implements Opcodes {
     return loadedClass;
   }
 
+  private byte[] cachedConvert(String name, ClassNode node, boolean noInitialization,
+                               BiPredicate<String, String> removalPredicate) {
+    if (node == null || getParent() instanceof VM) {
+      // child VMs define proxies and classes that were just changed for a single invocation
+      return convert(name, node, noInitialization, removalPredicate);
+    }
+    ConversionKey key = new ConversionKey(name, noInitialization, removalPredicate);
+    // taken before converting, a change made meanwhile makes the conversion stale
+    long stamp = ModificationStamp.of(node);
+    Converted converted;
+    synchronized (conversions) {
+      converted = conversions.getOrDefault(node, Map.of()).get(key);
+    }
+    if (converted != null && converted.matches(node, stamp)) {
+      conversionHits.increment();
+      return converted.bytes;
+    }
+    conversionMisses.increment();
+    byte[] clazz = convert(name, node, noInitialization, removalPredicate);
+    if (clazz != null) {
+      synchronized (conversions) {
+        conversions.computeIfAbsent(node, n -> new HashMap<>()).put(key, new Converted(node, stamp, clazz));
+      }
+    }
+    return clazz;
+  }
+
   private byte[] convert(String name, ClassNode node, boolean noInitialization,
                          BiPredicate<String, String> removalPredicate) {
     if (node == null) {
@@ -104,8 +258,7 @@ public class VM extends ClassLoader implements Opcodes {
       }
       return null;
     }
-    ClassNode vmnode = Conversion.toNode(Conversion.toBytecode0(node)); // clone ClassNode the
-    // easy way
+    ClassNode vmnode = Copier.copy(node);
     vmnode.methods.forEach(m -> m.access = fixAccess(m.access));
     vmnode.fields.forEach(f -> f.access = fixAccess(f.access));
     vmnode.access = fixAccess(node.access);
@@ -122,6 +275,7 @@ public class VM extends ClassLoader implements Opcodes {
         vmnode.superName = "java/lang/Object";
       vmnode.interfaces = new ArrayList<>();
     }
+    CallSiteGuard.rewrite(vmnode);
     if (removalPredicate != null) {
       vmnode.methods.forEach(m -> Instructions.isolateCallsThatMatch(m, removalPredicate, removalPredicate));
     }
@@ -155,7 +309,7 @@ public class VM extends ClassLoader implements Opcodes {
 
   public void explicitlyPreload(ClassNode node, boolean removeClinit, BiPredicate<String, String> p) {
     String name = node.name.replace('/', '.');
-    byte[] clazz = convert(name, node, removeClinit, p);
+    byte[] clazz = cachedConvert(name, node, removeClinit, p);
     Class<?> loadedClass = bytesToClass(name, clazz);
     if (loadedClass != null) loaded.put(name, loadedClass);
   }
@@ -169,4 +323,66 @@ public class VM extends ClassLoader implements Opcodes {
   public void setDummyLoading(boolean dummyLoad) {
     this.dummyLoading = dummyLoad;
   }
+
+  /**
+   * Keep the static initializer and super classes of some classes loaded by the handler, although this VM doesn't
+   * initialize classes. Used for classes whose initializer sets up the decryption.
+   *
+   * @param initialized tests internal names of classes
+   */
+  public void setInitialized(Predicate<String> initialized) {
+    this.initialized = Objects.requireNonNull(initialized);
+  }
+
+  /**
+   * Converted bytecode and the state of the node it was converted from. Members added or removed without bumping the
+   * stamp are detected by their count.
+   */
+  private static final class Converted {
+    private final long stamp;
+    private final int methods;
+    private final int fields;
+    private final byte[] bytes;
+
+    Converted(ClassNode node, long stamp, byte[] bytes) {
+      this.stamp = stamp;
+      this.methods = node.methods.size();
+      this.fields = node.fields.size();
+      this.bytes = bytes;
+    }
+
+    boolean matches(ClassNode node, long stamp) {
+      return this.stamp == stamp && methods == node.methods.size() && fields == node.fields.size();
+    }
+  }
+
+  /**
+   * A conversion of a class node. Removal predicates are compared by identity, callers have to reuse the same
+   * predicate instance to get cached conversions.
+   */
+  private static final class ConversionKey {
+    private final String name;
+    private final boolean noInitialization;
+    private final BiPredicate<String, String> removalPredicate;
+
+    ConversionKey(String name, boolean noInitialization, BiPredicate<String, String> removalPredicate) {
+      this.name = name;
+      this.noInitialization = noInitialization;
+      this.removalPredicate = removalPredicate;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ConversionKey))
+        return false;
+      ConversionKey that = (ConversionKey) obj;
+      return name.equals(that.name) && noInitialization == that.noInitialization &&
+        removalPredicate == that.removalPredicate;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name, noInitialization, System.identityHashCode(removalPredicate));
+    }
+  }
 }
@@ -0,0 +1,363 @@
+package me.nov.threadtear.vm;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+import me.nov.threadtear.io.Conversion;
+import me.nov.threadtear.logging.LogWrapper;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Runs code of the input in a pool of {@link SandboxWorker} processes, so a decryption method that runs forever or
+ * exhausts its memory only takes down its worker. A session uses a single worker from its first invocation until it
+ * is closed, all invocations passed at once are sent in a single request. Workers are reused by later sessions and
+ * replaced after a number of requests.
+ * <p>
+ * If a request takes longer than the timeout, or uses more CPU time than the budget of {@link InvocationRunner}
+ * allows for its invocations, the worker is killed and all invocations of the request fail. The next request of the
+ * session starts over in a new worker. Within the worker, every invocation has the same budget as in process.
+ */
+public class WorkerPoolInvoker implements SandboxInvoker {
+  private static final long POLL_MILLIS = 50;
+  private final String maxHeap;
+  private final long timeoutMillis;
+  private final int recycleAfter;
+  private final Semaphore permits;
+  private final Deque<Worker> idle = new ArrayDeque<>();
+  private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Sandbox worker watchdog");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile boolean shutdown;
+
+  /**
+   * A worker per processor with a heap of 512 MB, a timeout of one minute per request, and workers that are replaced
+   * after 100 requests.
+   */
+  public WorkerPoolInvoker() {
+    this(Runtime.getRuntime().availableProcessors(), "512m", 60_000, 100);
+  }
+
+  /**
+   * @param workers       maximum number of worker processes, sessions wait for a free worker
+   * @param maxHeap       maximum heap of a worker, in the format of <code>-Xmx</code>, e.g. <code>256m</code>
+   * @param timeoutMillis maximum time a worker may take for a request
+   * @param recycleAfter  number of requests after which a worker is replaced
+   */
+  public WorkerPoolInvoker(int workers, String maxHeap, long timeoutMillis, int recycleAfter) {
+    if (workers < 1 || timeoutMillis < 1 || recycleAfter < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxHeap = maxHeap;
+    this.timeoutMillis = timeoutMillis;
+    this.recycleAfter = recycleAfter;
+    this.permits = new Semaphore(workers, true);
+  }
+
+  @Override
+  public SandboxSession open(IVMReferenceHandler handler, boolean initialize, boolean allowReflection,
+                             Predicate<String> initialized, boolean dummyLoading) {
+    return new RemoteSession(handler, initialize, allowReflection, initialized, dummyLoading);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    synchronized (idle) {
+      idle.forEach(Worker::stop);
+      idle.clear();
+    }
+    watchdog.shutdownNow();
+  }
+
+  private Worker acquire() throws IOException, InterruptedException {
+    if (shutdown) {
+      throw new IllegalStateException("Worker pool was shut down");
+    }
+    permits.acquire();
+    synchronized (idle) {
+      Worker worker = idle.poll();
+      if (worker != null && worker.process.isAlive()) {
+        return worker;
+      }
+    }
+    try {
+      return new Worker(command());
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private void release(Worker worker) {
+    if (worker.broken || worker.requests >= recycleAfter || shutdown) {
+      worker.stop();
+    } else {
+      synchronized (idle) {
+        idle.push(worker);
+      }
+    }
+    permits.release();
+  }
+
+  private List<String> command() {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-Xmx" + maxHeap);
+    command.add("-Djava.security.manager=allow");
+    // decryption works better without verification, and revealing handles needs access to the JDK internals. Pass
+    // the flags the user started threadtear with
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.equals("-noverify") || arg.startsWith("-Xverify") || arg.startsWith("-XX:-BytecodeVerification") ||
+        arg.startsWith("--add-opens")) {
+        command.add(arg);
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(SandboxWorker.class.getName());
+    return command;
+  }
+
+  private final class RemoteSession implements SandboxSession {
+    private final IVMReferenceHandler handler;
+    private final boolean initialize;
+    private final boolean allowReflection;
+    private final Predicate<String> initialized;
+    private final boolean dummyLoading;
+    private Worker worker;
+    private boolean closed;
+
+    RemoteSession(IVMReferenceHandler handler, boolean initialize, boolean allowReflection,
+                  Predicate<String> initialized, boolean dummyLoading) {
+      this.handler = handler;
+      this.initialize = initialize;
+      this.allowReflection = allowReflection;
+      this.initialized = initialized;
+      this.dummyLoading = dummyLoading;
+    }
+
+    @Override
+    public synchronized void invoke(Collection<ClassNode> proxies, List<Invocation> invocations) {
+      if (closed) {
+        throw new IllegalStateException("Session is closed");
+      }
+      int completed = 0;
+      try {
+        if (worker == null) {
+          worker = acquire();
+          worker.out.writeByte(SandboxWorker.OPEN);
+          worker.out.writeBoolean(initialize);
+          worker.out.writeBoolean(allowReflection);
+          worker.out.writeBoolean(dummyLoading);
+          worker.out.writeLong(InvocationRunner.getWallClockMillis());
+          worker.out.writeLong(InvocationRunner.getCpuTimeMillis());
+        }
+        worker.requests++;
+        writeRequest(proxies, invocations);
+        Future<?> kill = watchdog.scheduleAtFixedRate(new Watch(worker, invocations.size()), POLL_MILLIS, POLL_MILLIS,
+          TimeUnit.MILLISECONDS);
+        try {
+          awaitResults();
+          for (Invocation invocation : invocations) {
+            readResult(invocation);
+            completed++;
+          }
+        } finally {
+          kill.cancel(false);
+        }
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        String killed = worker == null ? null : worker.killed;
+        SandboxException error = killed != null ? new SandboxException("Worker " + killed) :
+          new SandboxException("Worker failed: " + e);
+        for (Invocation invocation : invocations.subList(completed, invocations.size())) {
+          invocation.complete(null, null, error);
+        }
+        if (worker != null) {
+          worker.broken = true;
+          release(worker);
+          worker = null;
+        }
+      }
+    }
+
+    private void writeRequest(Collection<ClassNode> proxies, List<Invocation> invocations) throws IOException {
+      DataOutputStream out = worker.out;
+      out.writeByte(SandboxWorker.INVOKE);
+      out.writeInt(proxies.size());
+      for (ClassNode proxy : proxies) {
+        SandboxWorker.writeBytes(out, Conversion.toBytecode0(proxy));
+      }
+      out.writeInt(invocations.size());
+      for (Invocation invocation : invocations) {
+        out.writeUTF(invocation.owner);
+        out.writeUTF(invocation.method);
+        SandboxWorker.writeValue(out, invocation.args);
+        out.writeBoolean(invocation.reveal);
+        out.writeInt(invocation.inputFields.size());
+        for (int i = 0; i < invocation.inputFields.size(); i++) {
+          out.writeUTF(invocation.inputFields.get(i)[0]);
+          out.writeUTF(invocation.inputFields.get(i)[1]);
+          SandboxWorker.writeValue(out, invocation.inputValues.get(i));
+        }
+        out.writeInt(invocation.outputFields.size());
+        for (String[] field : invocation.outputFields) {
+          out.writeUTF(field[0]);
+          out.writeUTF(field[1]);
+        }
+      }
+      out.flush();
+    }
+
+    /**
+     * Answer class requests of the worker until the results arrive.
+     */
+    private void awaitResults() throws IOException {
+      DataInputStream in = worker.in;
+      while (true) {
+        int type = in.read();
+        if (type == SandboxWorker.RESULTS) {
+          return;
+        }
+        if (type != SandboxWorker.CLASS) {
+          throw new EOFException("Worker exited");
+        }
+        String name = in.readUTF();
+        byte[] bytes = null;
+        boolean keepInitializer = false;
+        try {
+          ClassNode node = handler.tryClassLoad(name);
+          bytes = node == null ? null : Conversion.toBytecode0(node);
+          keepInitializer = node != null && initialized.test(name);
+        } catch (RuntimeException e) {
+          LogWrapper.logger.warning("Failed to supply class {} to sandbox worker: {}", name, e.toString());
+        }
+        worker.out.writeByte(SandboxWorker.CLASS);
+        SandboxWorker.writeBytes(worker.out, bytes);
+        worker.out.writeBoolean(keepInitializer);
+        worker.out.flush();
+      }
+    }
+
+    private void readResult(Invocation invocation) throws IOException {
+      DataInputStream in = worker.in;
+      if (in.readBoolean()) {
+        byte[] result = SandboxWorker.readBytes(in);
+        byte[][] outputs = new byte[in.readInt()][];
+        for (int i = 0; i < outputs.length; i++) {
+          outputs[i] = SandboxWorker.readBytes(in);
+        }
+        try {
+          Object[] values = new Object[outputs.length];
+          for (int i = 0; i < outputs.length; i++) {
+            values[i] = SandboxWorker.decode(outputs[i]);
+          }
+          invocation.complete(SandboxWorker.decode(result), values, null);
+        } catch (IOException e) {
+          invocation.complete(null, null, new SandboxException("Result can't be transferred: " + e));
+        }
+      } else {
+        Object error = SandboxWorker.readValue(in);
+        invocation.complete(null, null, error instanceof Throwable ? (Throwable) error :
+          new SandboxException(String.valueOf(error)));
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      if (worker != null) {
+        try {
+          worker.out.writeByte(SandboxWorker.CLOSE);
+          worker.out.flush();
+        } catch (IOException e) {
+          worker.broken = true;
+        }
+        release(worker);
+        worker = null;
+      }
+    }
+  }
+
+  /**
+   * Kills the worker of a request that exceeds its wall-clock time or CPU time. The CPU time is measured for the
+   * whole process, so it also counts threads started by the input.
+   */
+  private final class Watch implements Runnable {
+    private final Worker worker;
+    private final long cpuBudget;
+    private final long start = System.nanoTime();
+    private final long cpuStart;
+
+    Watch(Worker worker, int invocations) {
+      this.worker = worker;
+      this.cpuBudget = InvocationRunner.getCpuTimeMillis() * Math.max(1, invocations);
+      this.cpuStart = worker.cpuTimeMillis();
+    }
+
+    @Override
+    public void run() {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      if (elapsed > timeoutMillis) {
+        worker.kill("timed out after " + timeoutMillis + " ms");
+        return;
+      }
+      long cpu = worker.cpuTimeMillis();
+      if (cpuBudget > 0 && cpuStart >= 0 && cpu - cpuStart > cpuBudget) {
+        worker.kill("used more than " + cpuBudget + " ms CPU time");
+      }
+    }
+  }
+
+  private static final class Worker {
+    final Process process;
+    final DataInputStream in;
+    final DataOutputStream out;
+    int requests;
+    boolean broken;
+    /**
+     * why the worker was killed, or null
+     */
+    volatile String killed;
+
+    Worker(List<String> command) throws IOException {
+      process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+    }
+
+    void kill(String reason) {
+      if (killed == null) {
+        killed = reason;
+        process.destroyForcibly();
+      }
+    }
+
+    /**
+     * @return the CPU time the process used so far, or -1 if it can't be measured
+     */
+    long cpuTimeMillis() {
+      return process.info().totalCpuDuration().map(d -> d.toMillis()).orElse(-1L);
+    }
+
+    void stop() {
+      try {
+        out.writeByte(SandboxWorker.EXIT);
+        out.flush();
+        if (!process.waitFor(1, TimeUnit.SECONDS)) {
+          process.destroyForcibly();
+        }
+      } catch (IOException e) {
+        process.destroyForcibly();
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
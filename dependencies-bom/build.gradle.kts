@@ -32,6 +32,7 @@ dependencies {
         apiv("commons-io:commons-io")
         apiv("org.apache.commons:commons-configuration2")
         apiv("commons-beanutils:commons-beanutils")
+        apiv("org.apache.commons:commons-compress")
         apiv("com.github.leibnitz27:cfr")
         apiv("org.quiltmc:quiltflower")
         apiv("com.fifesoft:rsyntaxtextarea")
@@ -12,6 +12,9 @@ import me.nov.threadtear.swing.listener.ExitListener;
 import me.nov.threadtear.swing.panel.ConfigurationPanel;
 import me.nov.threadtear.swing.panel.StatusBar;
 import me.nov.threadtear.swing.panel.TreePanel;
+import me.nov.threadtear.vm.InProcessInvoker;
+import me.nov.threadtear.vm.Sandbox;
+import me.nov.threadtear.vm.WorkerPoolInvoker;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
@@ -133,7 +136,10 @@ public class Threadtear extends JFrame {
     setMinimumSize(new Dimension((int) (width / 1.25), (int) (height / 1.25)));
   }
 
-  public void run(boolean verbose, boolean disableSecurity) {
+  /**
+   * @param workerPool run code of the input in worker processes, see {@link WorkerPoolInvoker}
+   */
+  public void run(boolean verbose, boolean disableSecurity, boolean workerPool) {
     List<Clazz> classes = listPanel.classList.classes;
     List<Execution> executions = listPanel.executionList.getExecutions();
     if (classes == null || classes.isEmpty()) {
@@ -145,7 +151,12 @@ public class Threadtear extends JFrame {
     }
     logFrame.setVisible(true);
     SwingUtilities.invokeLater(() -> new Thread(() -> {
-      ThreadtearCore.run(classes, executions, disableSecurity, verbose);
+      Sandbox.setInvoker(workerPool ? new WorkerPoolInvoker() : new InProcessInvoker());
+      try {
+        ThreadtearCore.run(classes, executions, disableSecurity, verbose);
+      } finally {
+        Sandbox.getInvoker().shutdown();
+      }
       listPanel.classList.loadTree(classes);
       configPanel.run.setEnabled(true);
     }, "Execution-Thread").start());
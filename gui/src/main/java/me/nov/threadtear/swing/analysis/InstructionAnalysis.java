@@ -19,7 +19,7 @@ public class InstructionAnalysis implements Opcodes {
     LogWrapper.logger.debug("----------------------------------------------");
     LogWrapper.logger.debug("Jumps in proportion to references -> ");
 
-    double jumpPercentage = classes.stream().map(c -> c.node.methods).flatMap(List::stream).mapToDouble(m -> Counting
+    double jumpPercentage = classes.stream().map(c -> c.viewNode().methods).flatMap(List::stream).mapToDouble(m -> Counting
             .percentOf(AbstractInsnNode.JUMP_INSN, m.instructions, AbstractInsnNode.METHOD_INSN,
                     AbstractInsnNode.FIELD_INSN, AbstractInsnNode.TYPE_INSN)).average().orElse(Double.NaN);
 
@@ -38,7 +38,7 @@ public class InstructionAnalysis implements Opcodes {
     LogWrapper.logger.debug("----------------------------------------------");
     LogWrapper.logger.debug("Average invokedynamics per method -> ");
 
-    double invokedynamics = classes.stream().map(c -> c.node.methods).flatMap(List::stream)
+    double invokedynamics = classes.stream().map(c -> c.viewNode().methods).flatMap(List::stream)
             .mapToDouble(m -> Counting.count(m.instructions, AbstractInsnNode.INVOKE_DYNAMIC_INSN)).average()
             .orElse(Double.NaN);
 
@@ -57,7 +57,7 @@ public class InstructionAnalysis implements Opcodes {
     LogWrapper.logger.debug("----------------------------------------------");
     LogWrapper.logger.debug("Rare stack operations averagely per method -> ");
 
-    double stackop = classes.stream().map(c -> c.node.methods).flatMap(List::stream)
+    double stackop = classes.stream().map(c -> c.viewNode().methods).flatMap(List::stream)
             .mapToDouble(m -> Counting.countOp(m.instructions, POP2, DUP2, DUP_X1, DUP_X2, DUP2_X1, DUP2_X2, SWAP))
             .average().orElse(Double.NaN);
 
@@ -76,7 +76,7 @@ public class InstructionAnalysis implements Opcodes {
     LogWrapper.logger.debug("----------------------------------------------");
     LogWrapper.logger.debug("Average standard deviation of letters in strings -> ");
 
-    double sdev = classes.stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.spliterator())
+    double sdev = classes.stream().map(c -> c.viewNode().methods).flatMap(List::stream).map(m -> m.instructions.spliterator())
             .flatMap(insns -> StreamSupport.stream(insns, false))
             .filter(ain -> ain.getOpcode() == LDC && ((LdcInsnNode) ain).cst instanceof String &&
                     ((LdcInsnNode) ain).cst.toString().length() > 2)
@@ -98,7 +98,7 @@ public class InstructionAnalysis implements Opcodes {
     LogWrapper.logger.debug("Percentage of high character value strings -> ");
 
     double highutf =
-            classes.stream().map(c -> c.node.methods).flatMap(List::stream).map(m -> m.instructions.spliterator())
+            classes.stream().map(c -> c.viewNode().methods).flatMap(List::stream).map(m -> m.instructions.spliterator())
                     .flatMap(insns -> StreamSupport.stream(insns, false))
                     .filter(ain -> ain.getOpcode() == LDC && ((LdcInsnNode) ain).cst instanceof String &&
                             ((LdcInsnNode) ain).cst.toString().length() > 2)
@@ -120,7 +120,7 @@ public class InstructionAnalysis implements Opcodes {
     LogWrapper.logger.debug("----------------------------------------------");
     LogWrapper.logger.debug("NOP instructions averagely per method -> ");
 
-    double nops = classes.stream().map(c -> c.node.methods).flatMap(List::stream)
+    double nops = classes.stream().map(c -> c.viewNode().methods).flatMap(List::stream)
             .mapToDouble(m -> Counting.countOp(m.instructions, NOP)).average().orElse(Double.NaN);
 
     double nopPercentage = Math.round(nops * 100) / 100.0;
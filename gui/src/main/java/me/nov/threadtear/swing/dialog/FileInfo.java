@@ -27,9 +27,9 @@ public class FileInfo extends JDialog {
     JPanel cp = new JPanel(new BorderLayout());
     cp.setBorder(new EmptyBorder(10, 10, 10, 10));
     getContentPane().add(cp, BorderLayout.CENTER);
-    JPanel descriptions = new JPanel(new GridLayout(9, 1));
+    JPanel descriptions = new JPanel(new GridLayout(10, 1));
     descriptions.setBorder(new EmptyBorder(8, 8, 8, 8));
-    JPanel values = new JPanel(new GridLayout(9, 1));
+    JPanel values = new JPanel(new GridLayout(10, 1));
     values.setBorder(new EmptyBorder(8, 8, 8, 8));
     descriptions.add(new CustomLabel("File name: "));
     values.add(new CustomLabel(member.oldEntry.getName()));
@@ -61,6 +61,11 @@ public class FileInfo extends JDialog {
             "<font color=\"red\">signed, please remove certs</font>" :
             "<font color=\"green\">not signed</font>"));
 
+    descriptions.add(new CustomLabel("Class file: "));
+    values.add(new CustomLabel(member.sanitized ?
+            "<font color=\"red\">malformed, sanitized on load</font>" :
+            "<font color=\"green\">well-formed</font>"));
+
     descriptions.add(new CustomLabel("CRC-32 hash: "));
     values.add(new CustomLabel(Long.toHexString(member.oldEntry.getCrc())));
     JPanel inner = new JPanel(new BorderLayout());
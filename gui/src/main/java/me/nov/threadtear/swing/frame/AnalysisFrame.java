@@ -30,7 +30,7 @@ public class AnalysisFrame extends JFrame {
   public AnalysisFrame(File archive, Clazz clazz) {
     this.clazz = clazz;
     this.archive = archive;
-    this.title = Strings.min(clazz.node.name.replace('/', '.'), 128);
+    this.title = Strings.min(clazz.getName().replace('/', '.'), 128);
     createFrame();
   }
 
@@ -50,10 +50,10 @@ public class AnalysisFrame extends JFrame {
       SwingUtils.withEmptyBorder(new DecompilerPanel(this, archive, clazz), 0, pad, 0, pad));
     tabbedPane.setDisabledIconAt(0, SwingUtils.getIcon("decompile_disabled.svg", true));
     tabbedPane.addTab("Bytecode", SwingUtils.getIcon("bytecode.svg", true),
-      SwingUtils.withEmptyBorder(new BytecodePanel(clazz.node), 0, pad, 0, pad));
+      SwingUtils.withEmptyBorder(new BytecodePanel(clazz.viewNode()), 0, pad, 0, pad));
     tabbedPane.setDisabledIconAt(1, SwingUtils.getIcon("bytecode_disabled.svg", true));
     tabbedPane.addTab("Graph", SwingUtils.getIcon("graph.svg", true),
-      SwingUtils.withEmptyBorder(new CFGPanel(clazz.node), 0, pad, 0, pad));
+      SwingUtils.withEmptyBorder(new CFGPanel(clazz.viewNode()), 0, pad, 0, pad));
     tabbedPane.setDisabledIconAt(2, SwingUtils.getIcon("graph_disabled.svg", true));
 
     cp.add(tabbedPane, BorderLayout.CENTER);
@@ -30,6 +30,9 @@ public class ConfigurationPanel extends JPanel {
   private JCheckBox watermark;
   private JCheckBox disableSecurity;
   private JCheckBox removeSignature;
+  private JCheckBox passthrough;
+  private JCheckBox computeFrames;
+  private JCheckBox workerPool;
 
   public ConfigurationPanel(Threadtear main) {
     this.main = main;
@@ -64,6 +67,16 @@ public class ConfigurationPanel extends JPanel {
     panel.add(removeSignature = new JCheckBox("Remove manifest signature"),
       SwingUtils.createGridBagConstraints(1, 1));
     removeSignature.setToolTipText("Remove the signature from the manifest file, if available.");
+    panel.add(passthrough = new JCheckBox("Copy unchanged entries"), SwingUtils.createGridBagConstraints(0, 2));
+    passthrough.setToolTipText("<html>Copy resources and unmodified classes without recompressing them.<br>" +
+      "Untouched entries stay byte-identical and saving is a lot faster.");
+    panel.add(computeFrames = new JCheckBox("Recompute frames"), SwingUtils.createGridBagConstraints(1, 2));
+    computeFrames.setToolTipText("<html>Recompute stack map frames of modified classes on save,<br>" +
+      "using the class hierarchy of the loaded file.<br>Classes that use missing libraries keep their frames.");
+    computeFrames.setSelected(true);
+    panel.add(workerPool = new JCheckBox("Run code in worker processes"), SwingUtils.createGridBagConstraints(0, 3));
+    workerPool.setToolTipText("<html>Run decryption code of the input in separate processes instead of this one.<br>" +
+      "Code that runs forever or exhausts its memory only takes down its worker, but decryption is slower.");
     return panel;
   }
 
@@ -112,7 +125,8 @@ public class ConfigurationPanel extends JPanel {
       File output = Utils.saveFileDialog("Save as jar file", FilenameUtils.removeExtension(inputFile.getAbsolutePath()) + ".jar", "*.jar");
 
       if (output != null) {
-        JarIO.saveAsJar(inputFile, output, main.listPanel.classList.classes, removeSignature.isSelected(), watermark.isSelected());
+        JarIO.saveAsJar(inputFile, output, main.listPanel.classList.classes, removeSignature.isSelected(),
+          watermark.isSelected(), passthrough.isSelected(), computeFrames.isSelected(), Runtime.getRuntime().availableProcessors());
         LogWrapper.logger.info("Saved to " + output.getAbsolutePath());
       }
 
@@ -129,7 +143,7 @@ public class ConfigurationPanel extends JPanel {
             ".<br>Use \"<tt>java -noverify -jar ...</tt>\" to start the application.", "Warning",
           JOptionPane.WARNING_MESSAGE);
       }
-      main.run(verbose.isSelected(), disableSecurity.isSelected());
+      main.run(verbose.isSelected(), disableSecurity.isSelected(), workerPool.isSelected());
     });
     panel.add(run);
     return panel;
@@ -145,12 +159,15 @@ public class ConfigurationPanel extends JPanel {
       config.setProperty("verbose", verbose.isSelected());
       config.setProperty("no_sec", disableSecurity.isSelected());
       config.setProperty("rem_sig", removeSignature.isSelected());
+      config.setProperty("passthrough", passthrough.isSelected());
+      config.setProperty("compute_frames", computeFrames.isSelected());
+      config.setProperty("worker_pool", workerPool.isSelected());
 
       File input = main.listPanel.classList.inputFile;
       if (input != null) {
         config.setProperty("file", input.getAbsolutePath());
         config.setProperty("ignored",
-          main.listPanel.classList.classes.stream().filter(c -> !c.transform).map(c -> c.node.name)
+          main.listPanel.classList.classes.stream().filter(c -> !c.transform).map(c -> c.getName())
             .toArray(String[]::new));
       }
       ArrayList<Execution> executions = main.listPanel.executionList.getExecutions();
@@ -173,6 +190,9 @@ public class ConfigurationPanel extends JPanel {
       watermark.setSelected(true);
       disableSecurity.setSelected(config.getBoolean("no_sec"));
       removeSignature.setSelected(config.getBoolean("rem_sig"));
+      passthrough.setSelected(config.getBoolean("passthrough", false));
+      computeFrames.setSelected(config.getBoolean("compute_frames", true));
+      workerPool.setSelected(config.getBoolean("worker_pool", false));
       if (config.containsKey("file")) {
         File file = new File(config.getString("file"));
         if (file.exists()) {
@@ -193,7 +193,7 @@ public class DecompilerPanel extends JPanel implements ActionListener {
         bytes = IOUtils.toByteArray(clazz.streamOriginal());
       } else {
         // use the local code
-        bytes = Conversion.toBytecode0(clazz.node);
+        bytes = clazz.getBytes();
       }
       ClassNode copy = Conversion.toNode(bytes);
       // do some asm action here
@@ -211,7 +211,7 @@ public class DecompilerPanel extends JPanel implements ActionListener {
         .createDecompilerBridge();
       preferredDecompilerIndex = decompilerSelection.getSelectedIndex();
       decompilerBridge.setAggressive(aggressive.isSelected());
-      String decompiled = decompilerBridge.decompile(archive, clazz.node.name, bytes);
+      String decompiled = decompilerBridge.decompile(archive, clazz.getName(), bytes);
       this.textArea.setText(decompiled);
     } catch (IOException e) {
       e.printStackTrace();
@@ -3,7 +3,6 @@ package me.nov.threadtear.swing.tree;
 import com.github.weisj.darklaf.components.OverlayScrollPane;
 import me.nov.threadtear.Threadtear;
 import me.nov.threadtear.execution.Clazz;
-import me.nov.threadtear.io.Conversion;
 import me.nov.threadtear.io.JarIO;
 import me.nov.threadtear.logging.LogWrapper;
 import me.nov.threadtear.swing.SwingUtils;
@@ -17,7 +16,7 @@ import me.nov.threadtear.swing.tree.component.ClassTreeNode;
 import me.nov.threadtear.swing.tree.renderer.ClassTreeCellRenderer;
 import me.nov.threadtear.util.format.Strings;
 import org.apache.commons.io.FilenameUtils;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.ClassReader;
 
 import javax.swing.*;
 import javax.swing.tree.*;
@@ -126,7 +125,7 @@ public class ClassTreePanel extends JPanel implements ILoader {
   }
 
   public void ignore(String className) {
-    classes.stream().filter(c -> c.node.name.equals(className)).forEach(c -> c.transform = false);
+    classes.stream().filter(c -> c.getName().equals(className)).forEach(c -> c.transform = false);
   }
 
   public void updateAllNames(ClassTreeNode root) {
@@ -223,8 +222,9 @@ public class ClassTreePanel extends JPanel implements ILoader {
           }
         }
         case "class" -> {
-          ClassNode node = Conversion.toNode(Files.readAllBytes(inputFile.toPath()));
-          this.classes = new ArrayList<>(Collections.singletonList(new Clazz(node, new JarEntry(node.name), inputFile)));
+          byte[] bytes = Files.readAllBytes(inputFile.toPath());
+          String name = new ClassReader(bytes).getClassName();
+          this.classes = new ArrayList<>(Collections.singletonList(new Clazz(bytes, new JarEntry(name), inputFile)));
         }
       }
     }
@@ -237,8 +237,8 @@ public class ClassTreePanel extends JPanel implements ILoader {
     ClassTreeNode root = new ClassTreeNode("");
     model = new DefaultTreeModel(root);
     classes.forEach(c -> {
-      String[] packages = c.node.name.split("/");
-      if (c.node.name.contains("//") || packages.length >= 256) {
+      String[] packages = c.getName().split("/");
+      if (c.getName().contains("//") || packages.length >= 256) {
         String last = packages[packages.length - 1];
         boolean valid = last.chars().mapToObj(i -> (char) i).allMatch(Character::isJavaIdentifierPart);
         packages = new String[]{"<html><font color=\"red\">$invalid_name",
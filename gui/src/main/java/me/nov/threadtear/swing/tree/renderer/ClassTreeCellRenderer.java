@@ -38,7 +38,7 @@ public class ClassTreeCellRenderer extends DefaultTreeCellRenderer implements Op
     if (node instanceof ClassTreeNode) {
       Clazz member = ((ClassTreeNode) node).member;
       if (member != null) {
-        ClassNode cn = member.node;
+        ClassNode cn = member.viewNode();
         if (Access.isInterface(cn.access)) {
           this.setIcon(itf);
         } else if (Access.isEnum(cn.access)) {